@@ -26,6 +26,8 @@ import util.Configuration;
 import util.args.MainArgsHandler;
 import util.args.intervals.GenericInterval;
 import util.args.intervals.Interval;
+import util.knn.KNNCandidates;
+import util.router.PartitionLayout;
 import vo.*;
 
 import java.io.IOException;
@@ -61,6 +63,7 @@ public class StreamKNNTopology {
         conf.put(Config.TOPOLOGY_BACKPRESSURE_ENABLE, true);
 
         init(conf, args);
+        checkSettings();
         boolean isWriteResults = ! Boolean.valueOf(conf.get("no-write").toString());
         // conf.registerMetricsConsumer(LoggingMetricsConsumer.class);
         TopologyBuilder topologyBuilder = new TopologyBuilder();
@@ -92,23 +95,57 @@ public class StreamKNNTopology {
 
 
         /**
-         * 1). 路由模块加入, topology中只有一个路由器. 从HdfsSpout读取slide数据.
+         * 1). 路由模块加入, 从HdfsSpout读取slide数据. 有多个路由器时每个路由器处理一部分数据.
          */
-        RouterBolt routerBolt = new RouterBolt();
-        routerBolt.withTimestampField(FieldUtils.FIELD_TIMESTAMP)
-                .withTumblingWindow(new BaseWindowedBolt.Duration(Configuration.SLIDE_INTERVAL, TimeUnit.MILLISECONDS))
-                .withLag(new BaseWindowedBolt.Duration(0, TimeUnit.MILLISECONDS))
-                .withWatermarkInterval(new BaseWindowedBolt.Duration(0, TimeUnit.MILLISECONDS))
-        ;
-        topologyBuilder.setBolt(StreamUtils.BOLT_ROUTER,routerBolt, 1)
-                .allGrouping(StreamUtils.SPOUT_HDFS);
+        if (Configuration.ROUTER_STREAMING) {
+            topologyBuilder.setBolt(StreamUtils.BOLT_ROUTER, new StreamingRouterBolt(), Configuration.ROUTER_BOLT_NUM)
+                    .shuffleGrouping(StreamUtils.SPOUT_HDFS);
+        } else {
+            RouterBolt routerBolt = new RouterBolt();
+            routerBolt.withTimestampField(FieldUtils.FIELD_TIMESTAMP)
+                    .withTumblingWindow(new BaseWindowedBolt.Duration(Configuration.SLIDE_INTERVAL, TimeUnit.MILLISECONDS))
+                    .withLag(new BaseWindowedBolt.Duration(0, TimeUnit.MILLISECONDS))
+                    .withWatermarkInterval(new BaseWindowedBolt.Duration(0, TimeUnit.MILLISECONDS))
+            ;
+            topologyBuilder.setBolt(StreamUtils.BOLT_ROUTER,routerBolt, Configuration.ROUTER_BOLT_NUM)
+                    .shuffleGrouping(StreamUtils.SPOUT_HDFS);
+        }
+        boolean multiRouter = Configuration.ROUTER_BOLT_NUM > 1;
+        //incremental, forest和grid模式的索引跨Slide保存窗口, 同一分区的数据必须一直分到同一个任务
+        boolean windowedIndex = !"rebuild".equalsIgnoreCase(Configuration.KNN_MODE);
 
         /**
          * 2). KNN Bolt receives points stream & calculates top K neighbors.
          */
         KNNBolt knnBolt = new KNNBolt();
-        topologyBuilder.setBolt(StreamUtils.BOLT_KNN, knnBolt, Configuration.KNN_BOLT_NUM)
-                        .localOrShuffleGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_TO_KNN);//.fieldsGrouping(StreamUtils.BOLT_ROUTER,StreamUtils.STREAM_ROUTER_TO_KNN ,new Fields(FieldUtils.FIELD_ROUTER_PORT));
+        boolean twoPhase = Boolean.valueOf(conf.get(Configuration.NAME_TWO_PHASE).toString());
+        if (twoPhase) {
+            /*
+             * 两阶段查询: 同一分区的数据块和转发来的查询按分区id分到同一个KNNBolt,
+             * 部分结果按查询点id分到合并Bolt. KNNBolt之间互相广播Slide结束标记,
+             * 所有任务都处理完一个Slide之后才开始下一个Slide, 使转发来的查询总是在该Slide的窗口上回答.
+             */
+            topologyBuilder.setBolt(StreamUtils.BOLT_KNN, knnBolt, Configuration.KNN_BOLT_NUM)
+                    .fieldsGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_TO_KNN, new Fields(FieldUtils.FIELD_ROUTER_PORT))
+                    .allGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_LAYOUT)
+                    .allGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_MARKER)
+                    .fieldsGrouping(StreamUtils.BOLT_KNN, StreamUtils.STREAM_KNN_PROBE, new Fields(FieldUtils.FIELD_ROUTER_PORT))
+                    .allGrouping(StreamUtils.BOLT_KNN, StreamUtils.STREAM_KNN_MARKER);
+            topologyBuilder.setBolt(StreamUtils.BOLT_KNN_MERGE, new KNNMergeBolt(), Configuration.KNN_BOLT_NUM)
+                    .fieldsGrouping(StreamUtils.BOLT_KNN, StreamUtils.STREAM_KNN_PARTIAL, new Fields(FieldUtils.FIELD_QUERY_ID))
+                    .allGrouping(StreamUtils.BOLT_KNN, StreamUtils.STREAM_KNN_MARKER);
+        } else if (multiRouter || Configuration.PARTITION_AFFINITY || windowedIndex) {
+            /*
+             * 分区亲和: 同一分区的数据总是分到同一个KNNBolt, 每个分区一个窗口索引.
+             * 多个路由器时, 同一分区来自各路由器的数据在收到所有路由器的Slide结束标记后合并处理.
+             */
+            topologyBuilder.setBolt(StreamUtils.BOLT_KNN, knnBolt, Configuration.KNN_BOLT_NUM)
+                    .fieldsGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_TO_KNN, new Fields(FieldUtils.FIELD_ROUTER_PORT))
+                    .allGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_MARKER);
+        } else {
+            topologyBuilder.setBolt(StreamUtils.BOLT_KNN, knnBolt, Configuration.KNN_BOLT_NUM)
+                    .localOrShuffleGrouping(StreamUtils.BOLT_ROUTER, StreamUtils.STREAM_ROUTER_TO_KNN);
+        }
 
         if (isWriteResults) {
             ResultHandlerBolt resultHandlerBolt = new ResultHandlerBolt();
@@ -123,7 +160,7 @@ public class StreamKNNTopology {
             resultHandlerBolt.withFsUrl(Configuration.HDFS_URI)
                     .withFileNameFormat(fileNameFormat);
             topologyBuilder.setBolt(StreamUtils.STREAM_RESULT, resultHandlerBolt, Configuration.RESULTS_BOLTS_NUM)
-                    .fieldsGrouping(StreamUtils.BOLT_KNN, StreamUtils.STREAM_RESULT,
+                    .fieldsGrouping(twoPhase ? StreamUtils.BOLT_KNN_MERGE : StreamUtils.BOLT_KNN, StreamUtils.STREAM_RESULT,
                             new Fields(FieldUtils.FIELD_TIMESTAMP));
 
             TimerBolt timerBolt = new TimerBolt();
@@ -155,6 +192,31 @@ public class StreamKNNTopology {
         client.killTopologyWithOpts(topologyName,opts);
     }
 
+    /**
+     * 拒绝拓扑不支持的配置.
+     */
+    static void checkSettings() {
+        if (Configuration.DIMENSIONS != PointBlock.DIMENSIONS) {
+            throw new IllegalArgumentException("data.dimensions is " + Configuration.DIMENSIONS
+                    + ", the kNN topology (PointBlock, router partitions, KNN indexes) only supports "
+                    + PointBlock.DIMENSIONS + " dimensions");
+        }
+        //分区调整和kdtree重新划分都会换新的分区id, 按分区保存的窗口索引会丢掉窗口内已有的Slide
+        if (!"rebuild".equalsIgnoreCase(Configuration.KNN_MODE)
+                && (Configuration.BALANCE || "kdtree".equalsIgnoreCase(Configuration.LAYOUT))) {
+            throw new IllegalArgumentException("index.knn.mode " + Configuration.KNN_MODE
+                    + " keeps a window per partition, it cannot be used with router.balance or the kdtree layout:"
+                    + " re-layouts assign new partition ids and the windows of the old partitions would be lost");
+        }
+        //rebuild模式每个Slide重建的RTree只做精确查询, 近似设置不起作用
+        if ("rebuild".equalsIgnoreCase(Configuration.KNN_MODE)
+                && (Configuration.APPROXIMATE_EPSILON > 0 || Configuration.APPROXIMATE_MAX_NODES > 0)) {
+            throw new IllegalArgumentException("index.knn.mode rebuild only answers exact queries,"
+                    + " knn.approximate.epsilon and knn.approximate.max.nodes would be ignored;"
+                    + " use the incremental, forest or grid mode for approximate kNN");
+        }
+    }
+
     /**
      * 序列化器注册
      * @param config
@@ -168,6 +230,11 @@ public class StreamKNNTopology {
         config.registerSerialization(ArrayList.class);
 
         config.registerSerialization(Point.class);
+        config.registerSerialization(PointBlock.class, PointBlockSerializer.class);
+        config.registerSerialization(KNNCandidates.class);
+        config.registerSerialization(PartitionLayout.class);
+        config.registerSerialization(int[].class);
+        config.registerSerialization(long[].class);
 
         config.registerSerialization(double[][].class);
         config.registerSerialization(double[].class);
@@ -175,10 +242,27 @@ public class StreamKNNTopology {
         config.registerSerialization(DistanceResult.class);
 
         config.put(Configuration.NAME_BOUNDARY_LENGTH_SCALE, Configuration.BOUNDARY_LENGTH_SCALE);
+        config.put(Configuration.NAME_BOUNDARY_ADAPTIVE, Configuration.BOUNDARY_ADAPTIVE);
+        config.put(Configuration.NAME_BOUNDARY_SAFETY, Configuration.BOUNDARY_SAFETY);
         config.put(Configuration.NAME_BRANCH_FACTOR, Configuration.BRANCH_FACTOR);
+        config.put(Configuration.NAME_KNN_MODE, Configuration.KNN_MODE);
+        config.put(Configuration.NAME_GRID_CELL_WIDTH, Configuration.GRID_CELL_WIDTH);
+        config.put(Configuration.NAME_QUERY_PARALLELISM, Configuration.QUERY_PARALLELISM);
+        config.put(Configuration.NAME_CONTINUOUS, Configuration.CONTINUOUS);
+        config.put(Configuration.NAME_TWO_PHASE, Configuration.TWO_PHASE);
+        config.put(Configuration.NAME_PARTITION_AFFINITY, Configuration.PARTITION_AFFINITY);
+        config.put(Configuration.NAME_APPROXIMATE_EPSILON, Configuration.APPROXIMATE_EPSILON);
+        config.put(Configuration.NAME_APPROXIMATE_MAX_NODES, Configuration.APPROXIMATE_MAX_NODES);
+        config.put(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE, Configuration.APPROXIMATE_RECALL_SAMPLE);
+        config.put(Configuration.NAME_BALANCE, Configuration.BALANCE);
+        config.put(Configuration.NAME_LAYOUT, Configuration.LAYOUT);
+        config.put(Configuration.NAME_LAYOUT_SAMPLE_SLIDES, Configuration.LAYOUT_SAMPLE_SLIDES);
+        config.put(Configuration.NAME_LAYOUT_PARTITIONS, Configuration.LAYOUT_PARTITIONS);
         config.put(Configuration.NAME_INDEX_HIGHT, Configuration.INDEX_HIGHT);
         config.put(Configuration.NAME_K, Configuration.K);
         config.put(Configuration.NAME_KNN_BOLT_NUM, Configuration.KNN_BOLT_NUM);
+        config.put(Configuration.NAME_ROUTER_BOLT_NUM, Configuration.ROUTER_BOLT_NUM);
+        config.put(Configuration.NAME_ROUTER_STREAMING, Configuration.ROUTER_STREAMING);
         config.put(Configuration.NAME_DATA_END_TIME, Configuration.DATA_ENDTIME);
 
         String useStreamingSpout = "streaming-spout";
@@ -192,10 +276,27 @@ public class StreamKNNTopology {
             MainArgsHandler mah = MainArgsHandler.getHandler();
 
             mah.permitVariable(Configuration.NAME_BOUNDARY_LENGTH_SCALE, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_BOUNDARY_ADAPTIVE, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_BOUNDARY_SAFETY, MainArgsHandler.ZERO_OR_ONE);
             mah.permitVariable(Configuration.NAME_BRANCH_FACTOR, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_KNN_MODE, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_GRID_CELL_WIDTH, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_QUERY_PARALLELISM, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_CONTINUOUS, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_TWO_PHASE, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_PARTITION_AFFINITY, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_APPROXIMATE_EPSILON, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_APPROXIMATE_MAX_NODES, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_BALANCE, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_LAYOUT, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_LAYOUT_SAMPLE_SLIDES, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_LAYOUT_PARTITIONS, MainArgsHandler.ZERO_OR_ONE);
             mah.permitVariable(Configuration.NAME_INDEX_HIGHT, MainArgsHandler.ZERO_OR_ONE);
             mah.permitVariable(Configuration.NAME_K, MainArgsHandler.ZERO_OR_ONE);
             mah.permitVariable(Configuration.NAME_KNN_BOLT_NUM, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_ROUTER_BOLT_NUM, MainArgsHandler.ZERO_OR_ONE);
+            mah.permitVariable(Configuration.NAME_ROUTER_STREAMING, MainArgsHandler.ZERO_OR_ONE);
             mah.permitVariable(Configuration.NAME_DATA_END_TIME, MainArgsHandler.ZERO_OR_ONE);
             mah.permitFlag(no_results);
             mah.permitFlag(useStreamingSpout);
@@ -213,10 +314,70 @@ public class StreamKNNTopology {
                 Configuration.BOUNDARY_LENGTH_SCALE =  Double.parseDouble(mah.getValuesFromVariable(Configuration.NAME_BOUNDARY_LENGTH_SCALE).get(0));
                 config.put(Configuration.NAME_BOUNDARY_LENGTH_SCALE, Configuration.BOUNDARY_LENGTH_SCALE);
             }
+            if (mah.foundVariable(Configuration.NAME_BOUNDARY_ADAPTIVE)){
+                Configuration.BOUNDARY_ADAPTIVE =  Boolean.parseBoolean(mah.getValuesFromVariable(Configuration.NAME_BOUNDARY_ADAPTIVE).get(0));
+                config.put(Configuration.NAME_BOUNDARY_ADAPTIVE, Configuration.BOUNDARY_ADAPTIVE);
+            }
+            if (mah.foundVariable(Configuration.NAME_BOUNDARY_SAFETY)){
+                Configuration.BOUNDARY_SAFETY =  Double.parseDouble(mah.getValuesFromVariable(Configuration.NAME_BOUNDARY_SAFETY).get(0));
+                config.put(Configuration.NAME_BOUNDARY_SAFETY, Configuration.BOUNDARY_SAFETY);
+            }
             if (mah.foundVariable(Configuration.NAME_BRANCH_FACTOR)){
                 Configuration.BRANCH_FACTOR =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_BRANCH_FACTOR).get(0));
                 config.put(Configuration.NAME_BRANCH_FACTOR, Configuration.BRANCH_FACTOR);
             }
+            if (mah.foundVariable(Configuration.NAME_KNN_MODE)){
+                Configuration.KNN_MODE = mah.getValuesFromVariable(Configuration.NAME_KNN_MODE).get(0);
+                config.put(Configuration.NAME_KNN_MODE, Configuration.KNN_MODE);
+            }
+            if (mah.foundVariable(Configuration.NAME_GRID_CELL_WIDTH)){
+                Configuration.GRID_CELL_WIDTH =  Double.parseDouble(mah.getValuesFromVariable(Configuration.NAME_GRID_CELL_WIDTH).get(0));
+                config.put(Configuration.NAME_GRID_CELL_WIDTH, Configuration.GRID_CELL_WIDTH);
+            }
+            if (mah.foundVariable(Configuration.NAME_QUERY_PARALLELISM)){
+                Configuration.QUERY_PARALLELISM =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_QUERY_PARALLELISM).get(0));
+                config.put(Configuration.NAME_QUERY_PARALLELISM, Configuration.QUERY_PARALLELISM);
+            }
+            if (mah.foundVariable(Configuration.NAME_CONTINUOUS)){
+                Configuration.CONTINUOUS =  Boolean.parseBoolean(mah.getValuesFromVariable(Configuration.NAME_CONTINUOUS).get(0));
+                config.put(Configuration.NAME_CONTINUOUS, Configuration.CONTINUOUS);
+            }
+            if (mah.foundVariable(Configuration.NAME_TWO_PHASE)){
+                Configuration.TWO_PHASE =  Boolean.parseBoolean(mah.getValuesFromVariable(Configuration.NAME_TWO_PHASE).get(0));
+                config.put(Configuration.NAME_TWO_PHASE, Configuration.TWO_PHASE);
+            }
+            if (mah.foundVariable(Configuration.NAME_PARTITION_AFFINITY)){
+                Configuration.PARTITION_AFFINITY =  Boolean.parseBoolean(mah.getValuesFromVariable(Configuration.NAME_PARTITION_AFFINITY).get(0));
+                config.put(Configuration.NAME_PARTITION_AFFINITY, Configuration.PARTITION_AFFINITY);
+            }
+            if (mah.foundVariable(Configuration.NAME_APPROXIMATE_EPSILON)){
+                Configuration.APPROXIMATE_EPSILON =  Double.parseDouble(mah.getValuesFromVariable(Configuration.NAME_APPROXIMATE_EPSILON).get(0));
+                config.put(Configuration.NAME_APPROXIMATE_EPSILON, Configuration.APPROXIMATE_EPSILON);
+            }
+            if (mah.foundVariable(Configuration.NAME_APPROXIMATE_MAX_NODES)){
+                Configuration.APPROXIMATE_MAX_NODES =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_APPROXIMATE_MAX_NODES).get(0));
+                config.put(Configuration.NAME_APPROXIMATE_MAX_NODES, Configuration.APPROXIMATE_MAX_NODES);
+            }
+            if (mah.foundVariable(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE)){
+                Configuration.APPROXIMATE_RECALL_SAMPLE =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE).get(0));
+                config.put(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE, Configuration.APPROXIMATE_RECALL_SAMPLE);
+            }
+            if (mah.foundVariable(Configuration.NAME_BALANCE)){
+                Configuration.BALANCE =  Boolean.parseBoolean(mah.getValuesFromVariable(Configuration.NAME_BALANCE).get(0));
+                config.put(Configuration.NAME_BALANCE, Configuration.BALANCE);
+            }
+            if (mah.foundVariable(Configuration.NAME_LAYOUT)){
+                Configuration.LAYOUT = mah.getValuesFromVariable(Configuration.NAME_LAYOUT).get(0);
+                config.put(Configuration.NAME_LAYOUT, Configuration.LAYOUT);
+            }
+            if (mah.foundVariable(Configuration.NAME_LAYOUT_SAMPLE_SLIDES)){
+                Configuration.LAYOUT_SAMPLE_SLIDES =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_LAYOUT_SAMPLE_SLIDES).get(0));
+                config.put(Configuration.NAME_LAYOUT_SAMPLE_SLIDES, Configuration.LAYOUT_SAMPLE_SLIDES);
+            }
+            if (mah.foundVariable(Configuration.NAME_LAYOUT_PARTITIONS)){
+                Configuration.LAYOUT_PARTITIONS =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_LAYOUT_PARTITIONS).get(0));
+                config.put(Configuration.NAME_LAYOUT_PARTITIONS, Configuration.LAYOUT_PARTITIONS);
+            }
             if (mah.foundVariable(Configuration.NAME_INDEX_HIGHT)){
                 Configuration.INDEX_HIGHT =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_INDEX_HIGHT).get(0));
                 config.put(Configuration.NAME_INDEX_HIGHT, Configuration.INDEX_HIGHT);
@@ -225,6 +386,14 @@ public class StreamKNNTopology {
                 Configuration.KNN_BOLT_NUM =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_KNN_BOLT_NUM).get(0));
                 config.put(Configuration.NAME_KNN_BOLT_NUM, Configuration.KNN_BOLT_NUM);
             }
+            if (mah.foundVariable(Configuration.NAME_ROUTER_BOLT_NUM)){
+                Configuration.ROUTER_BOLT_NUM =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_ROUTER_BOLT_NUM).get(0));
+                config.put(Configuration.NAME_ROUTER_BOLT_NUM, Configuration.ROUTER_BOLT_NUM);
+            }
+            if (mah.foundVariable(Configuration.NAME_ROUTER_STREAMING)){
+                Configuration.ROUTER_STREAMING =  Boolean.parseBoolean(mah.getValuesFromVariable(Configuration.NAME_ROUTER_STREAMING).get(0));
+                config.put(Configuration.NAME_ROUTER_STREAMING, Configuration.ROUTER_STREAMING);
+            }
             if (mah.foundVariable(Configuration.NAME_K)){
                 Configuration.K =  Integer.parseInt(mah.getValuesFromVariable(Configuration.NAME_K).get(0));
                 config.put(Configuration.NAME_K, Configuration.K);
@@ -16,11 +16,24 @@ import storm.util.FieldUtils;
 import storm.util.StreamUtils;
 import storm.util.TupleUtils;
 import util.Configuration;
+import util.knn.ContinuousKNN;
+import util.knn.GridKNNIndex;
+import util.knn.IncrementalKNNIndex;
+import util.knn.KNNCandidates;
+import util.knn.KNNHeap;
+import util.knn.KNNIndex;
+import util.knn.RebuildKNNIndex;
+import util.knn.SlideForestKNNIndex;
+import util.router.PartitionLayout;
+import util.router.RouteBuffer;
+import validate.KNNRecallEvaluation;
 import vo.Point;
-import vo.Point2DConverter;
+import vo.PointBlock;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,10 +46,15 @@ public class KNNBolt extends BaseBasicBolt implements Serializable {
     private static Logger LOG = LoggerFactory.getLogger(KNNBolt.class);
     private static long startTime = 0L;
     private static long endTime = 0L;
-    private PRTree<Point> tree;
-    private Point2DConverter converter;
-    private  DistanceCalculator<Point> dc;
-    private NodeFilter<Point> acceptAll;
+    /**
+     * 查询数少于该值时不值得拆分, 直接在executor线程上执行.
+     */
+    private static final int MIN_PARALLEL_QUERIES = 64;
+    /**
+     * rebuild: 每个Slide重建索引; incremental: 整个窗口增量维护一个索引;
+     * forest: 窗口内每个Slide一个索引; grid: 整个窗口一个均匀网格.
+     */
+    private KNNIndex index;
     private Integer K;
     private Integer BRANCH_FACTOR;
     private long dataEndTime;
@@ -44,15 +62,139 @@ public class KNNBolt extends BaseBasicBolt implements Serializable {
     //private long interval = Long.MIN_VALUE;
     private boolean isWriteResults = true;
     private int  QUERY_NUM ;
+    /**
+     * 查询并行度, 大于1时在{@link #queryPool}中并行查询只读的索引.
+     */
+    private int queryParallelism = 1;
+    private transient ForkJoinPool queryPool;
+    /**
+     * 持续查询模式下保存各查询对象上一次的结果, 否则为null.
+     */
+    private transient ContinuousKNN continuousKNN;
+    /**
+     * 近似查询的误差和每次查询的节点预算, 见{@link KNNHeap#setApproximation(double, int)}.
+     */
+    private double approximateEpsilon = 0.0;
+    private int approximateMaxNodes = 0;
+    /**
+     * 大于0时每隔这么多个查询做一次精确查询, 统计近似结果的召回率.
+     */
+    private int recallSample = 0;
+    private transient KNNRecallEvaluation recallEvaluation;
+    private transient KNNHeap exactHeap;
+    /**
+     * 每个查询一个结果堆, 以及查询点在PointBlock中的下标和坐标, 跨Slide复用.
+     */
+    private transient KNNHeap[] heaps;
+    private transient int[] queryOffsets;
+    private transient double[] queryXs;
+    private transient double[] queryYs;
+    private transient StringBuilder resultBuilder;
+    /**
+     * 分区亲和: 数据按分区id分组, 同一分区总是由同一个KNNBolt任务处理,
+     * 每个分区一个索引和持续查询状态, 跨Slide保留.
+     * 状态按分区id保存, 重新划分后的新分区从空窗口开始, 所以窗口索引模式不允许分区调整和kdtree划分.
+     */
+    private boolean perPartition = false;
+    private transient Map<Integer, PartitionState> partitionStates;
+    /**
+     * 两阶段查询(分区亲和): 查询先在所在分区中搜索,
+     * 第K近距离的圆跨出分区时再转发给相交的相邻分区, 部分结果由{@link KNNMergeBolt}合并.
+     */
+    private boolean twoPhase = false;
+    private transient PartitionLayout layout;
+    private transient Map<Integer, List<Probe>> pendingProbes;
+    private transient KNNHeap probeHeap;
+    private transient RouteBuffer probeTargets;
+    private transient long currentSlide;
+    /**
+     * 两阶段查询中各KNNBolt任务最近处理完的Slide. 一个Slide的转发查询可能来自任何任务,
+     * 所有任务都发出该Slide的结束标记后, 发往本任务的转发查询才已全部到达, 这之后才用下一个Slide更新索引;
+     * 因此转发来的查询总是在它所在Slide的窗口上回答.
+     */
+    private int knnTasks = 1;
+    private transient Map<Integer, Long> knnSlides;
+    private transient long markedSlide;
+    private boolean continuous = false;
+    private transient Map stormConf;
+    /**
+     * 有多个RouterBolt任务时, 同一分区同一Slide的数据分几块到达, 先按Slide和分区合并缓存,
+     * 收到所有RouterBolt任务该Slide(或更晚Slide)的结束标记后再按Slide顺序处理.
+     * 两阶段查询时也这样缓存, 以便在其他KNNBolt任务处理完上一个Slide之前不更新索引.
+     */
+    private int routerTasks = 1;
+    private transient TreeMap<Long, Map<Integer, PointBlock>> shards;
+    private transient Map<Integer, Long> routerSlides;
+
+    /**
+     * 一个分区的索引, 持续查询状态, 以及最近更新的Slide.
+     */
+    private static class PartitionState {
+        KNNIndex index;
+        ContinuousKNN continuousKNN;
+        long slide;
+    }
+
+    /**
+     * 从相邻分区转发来, 等待该分区本Slide数据的查询.
+     */
+    private static class Probe {
+        long slide, queryId, queryTime;
+        double x, y, radiusSq;
+    }
+
     @Override
     public void prepare(Map stormConf, TopologyContext context) {
         _taskId = context.getThisTaskId();
         super.prepare(stormConf, context);
-        converter = new Point2DConverter();
-        dc = new Point();
-        acceptAll = new AcceptAll<>();
+        this.stormConf = stormConf;
+        routerTasks = context.getComponentTasks(StreamUtils.BOLT_ROUTER).size();
+        twoPhase = Boolean.valueOf(stormConf.get(Configuration.NAME_TWO_PHASE).toString());
+        if (routerTasks > 1 || twoPhase) {
+            shards = new TreeMap<>();
+            routerSlides = new HashMap<>();
+        }
         K = Integer.valueOf(stormConf.get(Configuration.NAME_K).toString());
         BRANCH_FACTOR = Integer.valueOf(stormConf.get(Configuration.NAME_BRANCH_FACTOR).toString());
+        index = newIndex();
+        LOG.info("KNN_BoltID_{} index mode: {}", _taskId, stormConf.get(Configuration.NAME_KNN_MODE));
+        //窗口索引(非rebuild模式)只能保存同一个分区的数据, 否则窗口内混入了其他任务的分区
+        perPartition = twoPhase || routerTasks > 1 || !(index instanceof RebuildKNNIndex)
+                || Boolean.valueOf(stormConf.get(Configuration.NAME_PARTITION_AFFINITY).toString());
+        if (perPartition) {
+            partitionStates = new HashMap<>();
+            currentSlide = Long.MIN_VALUE;
+            LOG.info("KNN_BoltID_{} partition affinity, one index per partition", _taskId);
+        }
+        if (twoPhase) {
+            pendingProbes = new HashMap<>();
+            probeHeap = new KNNHeap(K + 1);
+            probeTargets = new RouteBuffer();
+            knnTasks = context.getComponentTasks(context.getThisComponentId()).size();
+            knnSlides = new HashMap<>();
+            markedSlide = Long.MIN_VALUE;
+            LOG.info("KNN_BoltID_{} two-phase kNN", _taskId);
+        }
+        queryParallelism = Integer.valueOf(stormConf.get(Configuration.NAME_QUERY_PARALLELISM).toString());
+        if (queryParallelism > 1) {
+            queryPool = new ForkJoinPool(queryParallelism);
+        }
+        resultBuilder = new StringBuilder();
+        continuous = Boolean.valueOf(stormConf.get(Configuration.NAME_CONTINUOUS).toString());
+        if (continuous) {
+            continuousKNN = new ContinuousKNN(index);
+        }
+        approximateEpsilon = Double.valueOf(stormConf.get(Configuration.NAME_APPROXIMATE_EPSILON).toString());
+        approximateMaxNodes = Integer.valueOf(stormConf.get(Configuration.NAME_APPROXIMATE_MAX_NODES).toString());
+        recallSample = Integer.valueOf(stormConf.get(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE).toString());
+        if (approximateEpsilon > 0 || approximateMaxNodes > 0) {
+            LOG.info("KNN_BoltID_{} approximate kNN, epsilon: {}, max nodes: {}", _taskId,
+                    approximateEpsilon, approximateMaxNodes);
+            if (recallSample > 0) {
+                recallEvaluation = new KNNRecallEvaluation();
+                exactHeap = new KNNHeap(K + 1);
+            }
+        }
         dataEndTime = Long.valueOf(stormConf.get(Configuration.NAME_DATA_END_TIME).toString());
 
         isWriteResults = ! Boolean.valueOf(stormConf.get("no-write").toString());
@@ -64,9 +206,97 @@ public class KNNBolt extends BaseBasicBolt implements Serializable {
        // FieldUtils.FIELD_ROUTER_PORT, FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_POINTS
         if (TupleUtils.isTickTuple(input))return;
 
-       //mv Integer routerPort = input.getIntegerByField(FieldUtils.FIELD_ROUTER_PORT);
+        if (twoPhase) {
+            if (StreamUtils.STREAM_ROUTER_LAYOUT.equals(input.getSourceStreamId())) {
+                layout = (PartitionLayout) input.getValueByField(FieldUtils.FIELD_LAYOUT);
+                return;
+            }
+            if (StreamUtils.STREAM_KNN_PROBE.equals(input.getSourceStreamId())) {
+                probe(input, collector);
+                return;
+            }
+            if (StreamUtils.STREAM_KNN_MARKER.equals(input.getSourceStreamId())) {
+                knnSlides.merge(input.getIntegerByField(FieldUtils.FIELD_KNN_TASK),
+                        input.getLongByField(FieldUtils.FIELD_TIMESTAMP), Math::max);
+                processCompleteSlides(collector);
+                return;
+            }
+        }
+        if (StreamUtils.STREAM_ROUTER_MARKER.equals(input.getSourceStreamId())) {
+            routerSlides.put(input.getIntegerByField(FieldUtils.FIELD_ROUTER_TASK),
+                    input.getLongByField(FieldUtils.FIELD_TIMESTAMP));
+            processCompleteSlides(collector);
+            return;
+        }
+        Integer routerPort = input.getIntegerByField(FieldUtils.FIELD_ROUTER_PORT);
         Long timestamp = input.getLongByField(FieldUtils.FIELD_TIMESTAMP);
-        Set<Point> points = (HashSet<Point>)input.getValueByField(FieldUtils.FIELD_POINTS);
+        PointBlock points = (PointBlock)input.getValueByField(FieldUtils.FIELD_POINTS);
+        if (null != shards) {
+            Map<Integer, PointBlock> slideShards = shards.computeIfAbsent(timestamp, s -> new HashMap<>());
+            PointBlock block = slideShards.get(routerPort);
+            if (null == block) {
+                slideShards.put(routerPort, points);
+            } else {
+                block.addAll(points);
+            }
+            return;
+        }
+        process(routerPort, timestamp, points, collector);
+    }
+
+    /**
+     * 所有RouterBolt任务都已结束的Slide, 即各任务最近的结束标记中最早的Slide及之前的Slide.
+     */
+    private void processCompleteSlides(BasicOutputCollector collector) {
+        if (routerSlides.size() < routerTasks) return;
+        long complete = Collections.min(routerSlides.values());
+        if (twoPhase) {
+            processSlidesInStep(complete, collector);
+            return;
+        }
+        while (!shards.isEmpty() && shards.firstKey() <= complete) {
+            Map.Entry<Long, Map<Integer, PointBlock>> slide = shards.pollFirstEntry();
+            for (Map.Entry<Integer, PointBlock> shard : slide.getValue().entrySet()) {
+                process(shard.getKey(), slide.getKey(), shard.getValue(), collector);
+            }
+        }
+    }
+
+    /**
+     * 两阶段查询: 每次处理一个Slide, 然后向所有KNNBolt任务(包括自己)和合并Bolt发出结束标记.
+     * 下一个Slide要等所有任务都标记了本任务上一个处理的Slide, 即发往本任务的该Slide的转发查询都已到达并回答,
+     * 然后才更新索引. 没有数据块的Slide也发出标记, 其他任务不必等待.
+     */
+    private void processSlidesInStep(long complete, BasicOutputCollector collector) {
+        while (complete > markedSlide) {
+            if (Long.MIN_VALUE != markedSlide
+                    && (knnSlides.size() < knnTasks || Collections.min(knnSlides.values()) < markedSlide)) {
+                return;
+            }
+            long slide = shards.isEmpty() || shards.firstKey() > complete ? complete : shards.firstKey();
+            Map<Integer, PointBlock> slideShards = shards.remove(slide);
+            if (null != slideShards) {
+                for (Map.Entry<Integer, PointBlock> shard : slideShards.entrySet()) {
+                    process(shard.getKey(), slide, shard.getValue(), collector);
+                }
+            }
+            markedSlide = Math.max(markedSlide, slide);
+            answerMarkedProbes(collector);
+            //自己的标记也经过消息队列, 排在自己转发给自己的查询之后
+            collector.emit(StreamUtils.STREAM_KNN_MARKER, new Values(markedSlide, _taskId));
+        }
+    }
+
+    /**
+     * 用一个分区一个Slide的数据更新索引, 查询其中的查询点.
+     */
+    private void process(Integer routerPort, Long timestamp, PointBlock points, BasicOutputCollector collector) {
+        PartitionState partition = null;
+        if (perPartition) {
+            partition = partitionState(routerPort, timestamp);
+            index = partition.index;
+            continuousKNN = partition.continuousKNN;
+        }
 
         if (isWriteResults) {
             String networkTimeEnd = "NETWORK_TIME_END:\t" + System.currentTimeMillis() +
@@ -75,32 +305,75 @@ public class KNNBolt extends BaseBasicBolt implements Serializable {
         }
         startTime = System.currentTimeMillis();
         LOG.debug("KNN Analyzing,slide {}, size {}.",timestamp, points.size());
-        tree = new PRTree<Point> (this.converter, BRANCH_FACTOR);
-        tree.load(points);
-        int query_counter=0;
-        for (Point point: points) {
-            if (point.isBoundary() || !point.isQuery())continue;
-            query_counter++;
-            //timer counter
-            List<DistanceResult<Point>> res = tree.nearestNeighbour(dc, acceptAll, K + 1, point);
-            if ( isWriteResults ){
-                List<Point> topK = res.stream().map(pointDistanceResult ->
-                        pointDistanceResult.get()).collect(Collectors.toList());
-                List<Double> topKDistance = res.stream().map(pointDistanceResult ->
-                        pointDistanceResult.getDistance()).collect(Collectors.toList());
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < topK.size(); i++){
-                    sb.append(topK.get(i).toString() /*+ topKDistance.get(i)*/ +"\t");
+        index.update(timestamp, points);
+        //边界点在RouterBolt中已去掉查询标记
+        int query_counter = points.queryCount();
+        ensureQueryCapacity(query_counter);
+        for (int i = points.nextQuery(0), q = 0; i >= 0; i = points.nextQuery(i + 1), q++) {
+            queryOffsets[q] = i;
+            queryXs[q] = points.getX(i);
+            queryYs[q] = points.getY(i);
+        }
+        if (null == continuousKNN) {
+            nearestNeighbours(query_counter, K + 1);
+        } else {
+            //能由上一次结果得到的查询换到后面, 前searches个查询多取一个点完整搜索
+            continuousKNN.prepare(points);
+            int searches = query_counter;
+            for (int q = 0; q < searches; ) {
+                long id = points.getId(queryOffsets[q]);
+                if (continuousKNN.reuse(timestamp, id, queryXs[q], queryYs[q], K + 1, heaps[q])) {
+                    swapQueries(q, --searches);
+                } else {
+                    heaps[q].setLimit(Double.POSITIVE_INFINITY);
+                    q++;
                 }
-
-           //   LOG.info("Emitting tuple to results_bolt, {}", point.toString());
-                collector.emit(StreamUtils.STREAM_RESULT, new Values(timestamp,point.toString(), sb.toString()));
+            }
+            nearestNeighbours(searches, K + 2);
+            for (int q = 0; q < query_counter; q++) {
+                continuousKNN.record(timestamp, points.getId(queryOffsets[q]), queryXs[q], queryYs[q], heaps[q]);
+            }
+            continuousKNN.evict(timestamp);
+            LOG.debug("KNN_BoltID_{} continuous queries, reused: {}, searched: {}, tracked: {}", _taskId,
+                    continuousKNN.getReused(), continuousKNN.getSearched(), continuousKNN.size());
+            continuousKNN.resetCounters();
+        }
+        if (null != recallEvaluation) {
+            for (int q = 0; q < query_counter; q += recallSample) {
+                index.nearestNeighbour(queryXs[q], queryYs[q], K + 1, exactHeap);
+                recallEvaluation.add(heaps[q], exactHeap);
+            }
+            if (recallEvaluation.getCount() > 0) {
+                LOG.info("KNN_BoltID_{} approximate kNN, slide: {}, sampled: {}, recall: {}, precision: {}", _taskId,
+                        timestamp, recallEvaluation.getCount(), recallEvaluation.recall(), recallEvaluation.precision());
+            }
+            recallEvaluation.reset();
+        }
+        if (null != partition) {
+            partition.slide = timestamp;
+        }
+        if (twoPhase) {
+            emitPartials(routerPort, timestamp, points, query_counter, collector);
+            answerPendingProbes(routerPort, partition, collector);
+        } else if ( isWriteResults ){
+            for (int q = 0; q < query_counter; q++) {
+                KNNHeap heap = heaps[q];
+                heap.sort();
+                resultBuilder.setLength(0);
+                for (int i = 0; i < heap.size(); i++){
+                    int handle = heap.handle(i);
+                    Point.appendTo(resultBuilder, index.id(handle), index.time(handle)).append('\t');
+                }
+                int offset = queryOffsets[q];
+                String point = Point.appendTo(new StringBuilder(), points.getId(offset), points.getTime(offset)).toString();
+           //   LOG.info("Emitting tuple to results_bolt, {}", point);
+                collector.emit(StreamUtils.STREAM_RESULT, new Values(timestamp, point, resultBuilder.toString()));
             }
         }
         LOG.info("QuerySize:\t{}\t, timestamp: {}, CurrentTime:\t{}", query_counter, timestamp, System.currentTimeMillis());
         if (isWriteResults) {
             endTime = System.currentTimeMillis();
-            long per_100_time = (endTime - startTime) * 100 / points.size();
+            long per_100_time = (endTime - startTime) * 100 / Math.max(points.size(), 1);
             //LOG.info("KNN_BoltID_{} timer(per 100 queries):{}", _taskId, per_100_time);
             String str = "KNN_BoltID_" + _taskId + " time(per 100 queries):\t" + per_100_time
                     + "\t size:\t" + points.size();
@@ -111,11 +384,209 @@ public class KNNBolt extends BaseBasicBolt implements Serializable {
 
     }
 
+    private KNNIndex newIndex() {
+        String mode = stormConf.get(Configuration.NAME_KNN_MODE).toString();
+        if ("incremental".equalsIgnoreCase(mode)) {
+            return new IncrementalKNNIndex(BRANCH_FACTOR, Configuration.SLIDES);
+        } else if ("forest".equalsIgnoreCase(mode)) {
+            return new SlideForestKNNIndex(BRANCH_FACTOR, Configuration.SLIDES);
+        } else if ("grid".equalsIgnoreCase(mode)) {
+            double cellWidth = Double.valueOf(stormConf.get(Configuration.NAME_GRID_CELL_WIDTH).toString());
+            return new GridKNNIndex(cellWidth, Configuration.SLIDES);
+        }
+        return new RebuildKNNIndex(BRANCH_FACTOR);
+    }
+
+    /**
+     * 分区的索引, 第一次收到该分区的数据时创建.
+     * 新Slide的第一个数据块到达时, 丢弃窗口内已没有数据的分区; 两阶段查询中仍在分区布局里的分区保留,
+     * 以便回答转发来的查询.
+     */
+    private PartitionState partitionState(int route, long slide) {
+        if (slide > currentSlide) {
+            currentSlide = slide;
+            partitionStates.entrySet().removeIf(e -> e.getValue().slide <= slide - e.getValue().index.windowSlides()
+                    && (null == layout || !layout.contains(e.getKey())));
+        }
+        PartitionState state = partitionStates.get(route);
+        if (null == state) {
+            state = new PartitionState();
+            state.index = newIndex();
+            state.slide = Long.MIN_VALUE;
+            if (continuous) {
+                state.continuousKNN = new ContinuousKNN(state.index);
+            }
+            partitionStates.put(route, state);
+        }
+        return state;
+    }
+
+    /**
+     * 第一阶段: 发出每个查询的本地结果. 第K近距离的圆跨出分区时, 把查询转发给与圆相交的分区,
+     * 本地不足K+1个结果时转发给所有其他分区.
+     */
+    private void emitPartials(int route, long slide, PointBlock points, int count, BasicOutputCollector collector) {
+        for (int q = 0; q < count; q++) {
+            KNNHeap heap = heaps[q];
+            heap.sort();
+            double radiusSq = heap.size() < K + 1 ? Double.POSITIVE_INFINITY : heap.distanceSq(heap.size() - 1);
+            int forwards = null == layout ? 0 : layout.nearby(queryXs[q], queryYs[q], radiusSq, route, probeTargets);
+            int offset = queryOffsets[q];
+            long queryId = points.getId(offset), queryTime = points.getTime(offset);
+            for (int i = 0; i < forwards; i++) {
+                collector.emit(StreamUtils.STREAM_KNN_PROBE, new Values(probeTargets.route(i), slide,
+                        queryId, queryTime, queryXs[q], queryYs[q], radiusSq));
+            }
+            collector.emit(StreamUtils.STREAM_KNN_PARTIAL, new Values(slide, queryId, queryTime, 1 + forwards,
+                    KNNCandidates.of(heap, index)));
+        }
+    }
+
+    /**
+     * 第二阶段: 在本分区中搜索转发来的查询, 只保留第K近距离以内的点.
+     * 只在分区刚好处于该Slide时回答; 本分区还没有处理该Slide的数据时先缓存.
+     */
+    private void probe(Tuple input, BasicOutputCollector collector) {
+        Probe probe = new Probe();
+        int route = input.getIntegerByField(FieldUtils.FIELD_ROUTER_PORT);
+        probe.slide = input.getLongByField(FieldUtils.FIELD_TIMESTAMP);
+        probe.queryId = input.getLongByField(FieldUtils.FIELD_QUERY_ID);
+        probe.queryTime = input.getLongByField(FieldUtils.FIELD_QUERY_TIME);
+        probe.x = input.getDoubleByField(FieldUtils.FIELD_QUERY_X);
+        probe.y = input.getDoubleByField(FieldUtils.FIELD_QUERY_Y);
+        probe.radiusSq = input.getDoubleByField(FieldUtils.FIELD_RADIUS);
+        PartitionState partition = partitionStates.get(route);
+        if (null != partition && partition.slide == probe.slide) {
+            answer(probe, partition.index, collector);
+        } else if (probe.slide <= markedSlide) {
+            //本任务已处理完该Slide而分区没有这个Slide的数据(已被合并掉), 回复空结果使合并端能够收齐
+            LOG.debug("KNN_BoltID_{} probe of slide {} for partition {} without that slide", _taskId, probe.slide, route);
+            answer(probe, null, collector);
+        } else {
+            pendingProbes.computeIfAbsent(route, r -> new ArrayList<>()).add(probe);
+        }
+    }
+
+    private void answerPendingProbes(int route, PartitionState partition, BasicOutputCollector collector) {
+        List<Probe> probes = pendingProbes.get(route);
+        if (null == probes) return;
+        probes.removeIf(probe -> {
+            if (probe.slide != partition.slide) return false;
+            answer(probe, partition.index, collector);
+            return true;
+        });
+        if (probes.isEmpty()) pendingProbes.remove(route);
+    }
+
+    /**
+     * 回答缓存的、不晚于{@link #markedSlide}的转发查询. 处理完该Slide后还在缓存中的, 其分区没有这个Slide的数据.
+     */
+    private void answerMarkedProbes(BasicOutputCollector collector) {
+        Iterator<Map.Entry<Integer, List<Probe>>> iter = pendingProbes.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Integer, List<Probe>> entry = iter.next();
+            PartitionState partition = partitionStates.get(entry.getKey());
+            entry.getValue().removeIf(probe -> {
+                if (probe.slide > markedSlide) return false;
+                boolean current = null != partition && partition.slide == probe.slide;
+                answer(probe, current ? partition.index : null, collector);
+                return true;
+            });
+            if (entry.getValue().isEmpty()) iter.remove();
+        }
+    }
+
+    private void answer(Probe probe, KNNIndex partitionIndex, BasicOutputCollector collector) {
+        probeHeap.reset(K + 1);
+        if (null != partitionIndex) {
+            probeHeap.setLimit(probe.radiusSq);
+            partitionIndex.nearestNeighbour(probe.x, probe.y, K + 1, probeHeap);
+            probeHeap.sort();
+        }
+        collector.emit(StreamUtils.STREAM_KNN_PARTIAL, new Values(probe.slide, probe.queryId, probe.queryTime, 0,
+                KNNCandidates.of(probeHeap, partitionIndex)));
+    }
+
+    /**
+     * 查询缓冲区按本Slide的查询数扩容, 之后的Slide复用.
+     */
+    private void ensureQueryCapacity(int count) {
+        if (null != heaps && heaps.length >= count) return;
+        int capacity = Math.max(count, null == heaps ? 0 : heaps.length * 2);
+        KNNHeap[] grown = new KNNHeap[capacity];
+        int reused = 0;
+        if (null != heaps) {
+            System.arraycopy(heaps, 0, grown, 0, heaps.length);
+            reused = heaps.length;
+        }
+        for (int i = reused; i < capacity; i++) {
+            grown[i] = new KNNHeap(K + 1);
+            grown[i].setApproximation(approximateEpsilon, approximateMaxNodes);
+        }
+        heaps = grown;
+        queryOffsets = new int[capacity];
+        queryXs = new double[capacity];
+        queryYs = new double[capacity];
+    }
+
+    /**
+     * 交换两个查询的下标, 坐标和结果堆.
+     */
+    private void swapQueries(int i, int j) {
+        int offset = queryOffsets[i];
+        queryOffsets[i] = queryOffsets[j];
+        queryOffsets[j] = offset;
+        double x = queryXs[i];
+        queryXs[i] = queryXs[j];
+        queryXs[j] = x;
+        double y = queryYs[i];
+        queryYs[i] = queryYs[j];
+        queryYs[j] = y;
+        KNNHeap heap = heaps[i];
+        heaps[i] = heaps[j];
+        heaps[j] = heap;
+    }
+
+    /**
+     * 索引已经用当前Slide更新过, 查询阶段只读, 可以把查询点分块并发查询.
+     * 每个查询写入各自的{@link KNNHeap}, 由调用线程统一emit.
+     */
+    private void nearestNeighbours(int count, int k) {
+        if (null == queryPool || count < MIN_PARALLEL_QUERIES) {
+            index.nearestNeighbours(queryXs, queryYs, 0, count, k, heaps);
+            return;
+        }
+        int chunkSize = (count + queryParallelism - 1) / queryParallelism;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(queryParallelism);
+        for (int start = 0; start < count; start += chunkSize) {
+            int from = start, to = Math.min(start + chunkSize, count);
+            tasks.add(queryPool.submit(() -> index.nearestNeighbours(queryXs, queryYs, from, to, k, heaps)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        if (null != queryPool) {
+            queryPool.shutdown();
+        }
+        super.cleanup();
+    }
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         if (isWriteResults) {
             declarer.declareStream(StreamUtils.STREAM_RESULT, new Fields(FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_POINT, FieldUtils.FIELD_KNN));
             declarer.declareStream(StreamUtils.STREAM_TIME_COUNTER, new Fields(FieldUtils.FIELD_TIME_RECODER));
         }
+        declarer.declareStream(StreamUtils.STREAM_KNN_PROBE, new Fields(FieldUtils.FIELD_ROUTER_PORT,
+                FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_QUERY_ID, FieldUtils.FIELD_QUERY_TIME,
+                FieldUtils.FIELD_QUERY_X, FieldUtils.FIELD_QUERY_Y, FieldUtils.FIELD_RADIUS));
+        declarer.declareStream(StreamUtils.STREAM_KNN_PARTIAL, new Fields(FieldUtils.FIELD_TIMESTAMP,
+                FieldUtils.FIELD_QUERY_ID, FieldUtils.FIELD_QUERY_TIME, FieldUtils.FIELD_PARTS, FieldUtils.FIELD_KNN));
+        declarer.declareStream(StreamUtils.STREAM_KNN_MARKER,
+                new Fields(FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_KNN_TASK));
     }
 }
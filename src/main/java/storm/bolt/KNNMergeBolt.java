@@ -0,0 +1,135 @@
+package storm.bolt;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.BasicOutputCollector;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseBasicBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.util.FieldUtils;
+import storm.util.StreamUtils;
+import storm.util.TupleUtils;
+import util.Configuration;
+import util.knn.KNNCandidates;
+import vo.Point;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 两阶段kNN查询的合并: 按查询点id分组, 接收KNNBolt发来的部分结果.
+ * <br/>
+ * 查询点所在分区的KNNBolt发出本地的K+1个候选以及部分结果总数(1 + 转发到的相邻分区数),
+ * 相邻分区发出第K近距离以内的候选(部分结果数为0, 可能先于本地结果到达).
+ * 收齐后合并, 去重, 保留前K+1个, 按{@link KNNBolt}相同的格式发出结果.
+ * <br/>
+ * 同时接收各KNNBolt任务的Slide结束标记: 任务处理下一个Slide之前已发出上一个Slide的全部部分结果,
+ * 所以所有任务都标记了比某个Slide更晚的Slide后, 该Slide仍未收齐的查询不会再收齐(上游失败), 丢弃它们.
+ */
+public class KNNMergeBolt extends BaseBasicBolt implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = LoggerFactory.getLogger(KNNMergeBolt.class);
+    private static class PendingQuery {
+        long time;
+        /**
+         * 部分结果总数, 本地结果到达前为0.
+         */
+        int parts = 0;
+        int received = 0;
+        KNNCandidates candidates;
+    }
+
+    private Integer K;
+    private boolean isWriteResults = true;
+    private transient TreeMap<Long, TLongObjectHashMap<PendingQuery>> pending;
+    private int knnTasks = 1;
+    private transient Map<Integer, Long> knnSlides;
+    private transient StringBuilder resultBuilder;
+
+    @Override
+    public void prepare(Map stormConf, TopologyContext context) {
+        super.prepare(stormConf, context);
+        K = Integer.valueOf(stormConf.get(Configuration.NAME_K).toString());
+        isWriteResults = ! Boolean.valueOf(stormConf.get("no-write").toString());
+        pending = new TreeMap<>();
+        knnTasks = context.getComponentTasks(StreamUtils.BOLT_KNN).size();
+        knnSlides = new HashMap<>();
+        resultBuilder = new StringBuilder();
+    }
+
+    @Override
+    public void execute(Tuple input, BasicOutputCollector collector) {
+        if (TupleUtils.isTickTuple(input)) return;
+        if (StreamUtils.STREAM_KNN_MARKER.equals(input.getSourceStreamId())) {
+            knnSlides.merge(input.getIntegerByField(FieldUtils.FIELD_KNN_TASK),
+                    input.getLongByField(FieldUtils.FIELD_TIMESTAMP), Math::max);
+            if (knnSlides.size() == knnTasks) evict(Collections.min(knnSlides.values()));
+            return;
+        }
+        long slide = input.getLongByField(FieldUtils.FIELD_TIMESTAMP);
+        long queryId = input.getLongByField(FieldUtils.FIELD_QUERY_ID);
+        int parts = input.getIntegerByField(FieldUtils.FIELD_PARTS);
+        KNNCandidates candidates = (KNNCandidates) input.getValueByField(FieldUtils.FIELD_KNN);
+
+        TLongObjectHashMap<PendingQuery> queries = pending.get(slide);
+        if (null == queries) {
+            queries = new TLongObjectHashMap<>();
+            pending.put(slide, queries);
+        }
+        PendingQuery query = queries.get(queryId);
+        if (null == query) {
+            query = new PendingQuery();
+            queries.put(queryId, query);
+        }
+        if (parts > 0) {
+            query.parts = parts;
+            query.time = input.getLongByField(FieldUtils.FIELD_QUERY_TIME);
+        }
+        query.received++;
+        if (null == query.candidates) {
+            query.candidates = candidates;
+        } else {
+            query.candidates.merge(candidates);
+        }
+        if (query.parts == 0 || query.received < query.parts) return;
+
+        queries.remove(queryId);
+        if (queries.isEmpty()) pending.remove(slide);
+        KNNCandidates result = query.candidates;
+        result.truncate(K + 1);
+        if (isWriteResults) {
+            resultBuilder.setLength(0);
+            for (int i = 0; i < result.size(); i++) {
+                Point.appendTo(resultBuilder, result.id(i), result.time(i)).append('\t');
+            }
+            String point = Point.appendTo(new StringBuilder(), queryId, query.time).toString();
+            collector.emit(StreamUtils.STREAM_RESULT, new Values(slide, point, resultBuilder.toString()));
+        }
+    }
+
+    /**
+     * 丢弃早于{@code markedSlide}的Slide中没有收齐的查询(上游失败).
+     */
+    private void evict(long markedSlide) {
+        Iterator<Map.Entry<Long, TLongObjectHashMap<PendingQuery>>> iter = pending.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, TLongObjectHashMap<PendingQuery>> entry = iter.next();
+            if (entry.getKey() >= markedSlide) break;
+            LOG.warn("Dropping {} incomplete kNN queries of slide {}", entry.getValue().size(), entry.getKey());
+            iter.remove();
+        }
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declareStream(StreamUtils.STREAM_RESULT, new Fields(FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_POINT, FieldUtils.FIELD_KNN));
+    }
+}
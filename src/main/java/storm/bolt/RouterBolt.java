@@ -4,14 +4,11 @@ import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseWindowedBolt;
-import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
-import org.apache.storm.tuple.Values;
 import org.apache.storm.windowing.TupleWindow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.util.FieldUtils;
-import storm.util.StreamUtils;
 import util.Configuration;
 import util.router.Router;
 import vo.Point;
@@ -24,11 +21,15 @@ import java.util.stream.Collectors;
  * Time-based tumbling window.
  * 目的是获取同一Slide的数据.
  * Tumbling window意为滚动窗口, 一个事件只能属于一个窗口, 窗口之间没有重叠.
+ * <br/>
+ * 可以有多个RouterBolt任务, 每个任务路由一个Slide中的一部分数据, 各自持有一个{@link Router}.
+ * Slide的编号由数据的时间戳算出(见{@link SlideRouter#slideOf(long)}), 各任务一致; 每个Slide处理完后向所有KNNBolt发出Slide结束标记,
+ * KNNBolt收到所有RouterBolt任务的标记后才处理该Slide.
  */
 public class RouterBolt extends BaseWindowedBolt {
     private static final Logger LOG = LoggerFactory.getLogger(RouterBolt.class);
     private OutputCollector _collector;
-    private static Router _router = null;
+    private transient SlideRouter slideRouter;
 
     private static long startTime = 0L;
     private static long endTime = 0L;
@@ -39,17 +40,14 @@ public class RouterBolt extends BaseWindowedBolt {
 
     private boolean isWriteResults = true;
     private int _taskId;
+    /**
+     * 批量读入时本任务每个Slide的前{@code QUERY_NUM}个点为查询点, {@code query.num}由各任务均分.
+     */
     private int QUERY_NUM = 0;
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
-        //1. - declare streams id. each id represents a bolt.
-        outputFieldsDeclarer.declareStream(StreamUtils.STREAM_ROUTER_TO_KNN,
-                new Fields(/*FieldUtils.FIELD_ROUTER_PORT, */FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_POINTS));
-        if (isWriteResults) {
-            outputFieldsDeclarer.declareStream(StreamUtils.STREAM_TIME_COUNTER,
-                    new Fields(FieldUtils.FIELD_TIME_RECODER));
-        }
+        SlideRouter.declareOutputFields(outputFieldsDeclarer, isWriteResults);
     }
 
     @Override
@@ -57,9 +55,8 @@ public class RouterBolt extends BaseWindowedBolt {
         conf = stormConf;
         _taskId = context.getThisTaskId();
         _collector = collector;
-        _router = new Router(stormConf);
-        _router.init();
-        QUERY_NUM = Integer.valueOf(stormConf.get(Configuration.NAME_QUERY).toString());
+        slideRouter = new SlideRouter(stormConf, context);
+        QUERY_NUM = SlideRouter.queryQuota(stormConf, context);
         LOG.info("PREPARE_QUERY_NUM:\t{}", QUERY_NUM);
         dataEndTime = Long.valueOf(stormConf.get(Configuration.NAME_DATA_END_TIME).toString());
         isWriteResults = ! Boolean.valueOf(conf.get("no-write").toString());
@@ -79,10 +76,10 @@ public class RouterBolt extends BaseWindowedBolt {
         //1. 提取当前Slide的所有数据
         List<Tuple> currentWindow = inputWindow.get();
         if (currentWindow.size() == 0)return;
-        _router.clearBuffer();//Do nothing
         startTime = System.currentTimeMillis();
         //1. 路由查询
         Set<Point> points = new HashSet<Point>();
+        long latestTime = Long.MIN_VALUE;
         if (! Boolean.valueOf(conf.get("streaming-spout").toString()).booleanValue()) {
             int query_num = QUERY_NUM;
             for (Tuple tuple : currentWindow){
@@ -102,9 +99,8 @@ public class RouterBolt extends BaseWindowedBolt {
                 }
                 List<Point> pointList =
                         lists.stream().flatMap(List::stream).collect(Collectors.toList());
-                Configuration.LATEST_TIME = pointList.get(pointList.size() - 1).getTimestamp();
-                Configuration.LATEST_SLIDE_TIME = Configuration.LATEST_TIME / Configuration.SLIDE_INTERVAL;
-                LOG.debug("Current time {} points size: {}",Configuration.LATEST_SLIDE_TIME, pointList.size());
+                latestTime = Math.max(latestTime, pointList.get(pointList.size() - 1).getTimestamp());
+                LOG.debug("Current time {} points size: {}", SlideRouter.slideOf(latestTime), pointList.size());
                 int i = 0;
                 while (query_num > 0){
                     pointList.get(i).setQuery(true);
@@ -115,7 +111,7 @@ public class RouterBolt extends BaseWindowedBolt {
                // _collector.ack(tuple);
             }
         }else{
-            currentWindow.forEach((Tuple tuple) -> {
+            for (Tuple tuple : currentWindow) {
                 String id = tuple.getValueByField(FieldUtils.POINT.ID).toString();
                 Long timestamp = Long.parseLong(tuple.getValueByField(FieldUtils.POINT.TIME).toString());
                 Double x = Double.parseDouble(tuple.getValueByField(FieldUtils.POINT.X).toString());
@@ -123,69 +119,21 @@ public class RouterBolt extends BaseWindowedBolt {
                 boolean isQuery = Boolean.valueOf(tuple.getValueByField(FieldUtils.POINT.IS_QUERY).toString());
                 Point point = new Point(id, new double[]{x, y}, timestamp);
                 point.setQuery(isQuery);
-                Configuration.LATEST_TIME = timestamp > Configuration.LATEST_TIME ? timestamp : Configuration.LATEST_TIME;
-                Configuration.LATEST_SLIDE_TIME = Configuration.LATEST_TIME /  Configuration.SLIDE_INTERVAL;
+                latestTime = Math.max(latestTime, timestamp);
 
                 points.add(point);
               //  _collector.ack(tuple);
-            });
-        }
-        int tmp = 0;
-        for (Point point: points){
-            if (point.isQuery())tmp++;
+            }
         }
-        //LOG.info("Receive {} points.", points.size());
+        //同一Slide的数据时间戳落在同一个窗口(k-1)*I, k*I]内, 以窗口结束时间编号, 各RouterBolt任务算出相同的编号
+        long slide = SlideRouter.slideOf(latestTime);
+        Configuration.LATEST_TIME = Math.max(Configuration.LATEST_TIME, latestTime);
+        Configuration.LATEST_SLIDE_TIME = slide;
         //2. 路由器转发
-        HashMap<Integer, Set<Point>> pointsRouting = new HashMap<>();
-        int query_counter = 0;
         for (Point point : points){
-            Map<Integer, Character> routs = _router.getIndexes(point);
-
-            for (Map.Entry<Integer, Character> r : routs.entrySet()){
-                Integer route = r.getKey();
-                boolean isBoundary = r.getValue().equals('T') ? true : false;
-                if (null == pointsRouting.get(route)){
-                    pointsRouting.put(route, new HashSet<>());
-                }
-
-                Point p = new Point(point);
-                p.setBoundary(isBoundary);
-                if (isBoundary) {
-                    p.setQuery(false);
-                }
-                pointsRouting.get(route).add(p);
-
-                if (p.isQuery() && !isBoundary)query_counter++;
-            }
+            slideRouter.route(Long.parseLong(point.getId()), point.getTimestamp(), point.getX(), point.getY(),
+                    point.isQuery());
         }
-        //2.1 emitting tuples
-        Iterator<Map.Entry<Integer, Set<Point>>> iter= pointsRouting.entrySet().iterator();
-       tmp = 0;
-        while (iter.hasNext()){
-            Map.Entry<Integer, Set<Point>> message = iter.next();
-            Integer routerPort = message.getKey();
-            for (Point point: message.getValue()){
-                if (point.isQuery() && ! point.isBoundary())tmp++;
-            }
-            Long timestamp = Configuration.LATEST_SLIDE_TIME;
-            _collector.emit(StreamUtils.STREAM_ROUTER_TO_KNN, new Values(/*routerPort,*/
-                    timestamp, message.getValue()));
-           // iter.remove();
-            endTime = System.currentTimeMillis();
-            if (isWriteResults) {
-                long per_100_time = ((endTime - startTime) * 100) / message.getValue().size();
-                //long time_per_stamp = endTime - startTime;
-                String val = "Router_Bolt_" + _taskId + " timer(per 100 points):\t" + per_100_time;
-                _collector.emit(StreamUtils.STREAM_TIME_COUNTER, new Values(val));
-                // LOG.info("Router_Bolt {} timer(per 100 points): {}", _taskId, per_100_time);
-            }
-
-        }
-        LOG.info("QUERY_POINTS_SIZE emitting: {}, CurrentTime:\t{}", tmp, System.currentTimeMillis());
-        if(isWriteResults) {
-            String networkTimeStart = "NETWORK_TIME_START:\t" + System.currentTimeMillis() + "\tSlide_" + Configuration.LATEST_SLIDE_TIME;
-            _collector.emit(StreamUtils.STREAM_TIME_COUNTER, new Values(networkTimeStart));
-        }
-
+        slideRouter.flush(slide, _collector, startTime);
     }
 }
\ No newline at end of file
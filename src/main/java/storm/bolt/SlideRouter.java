@@ -0,0 +1,188 @@
+package storm.bolt;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.util.FieldUtils;
+import storm.util.StreamUtils;
+import util.Configuration;
+import util.router.PartitionLayout;
+import util.router.RouteBuffer;
+import util.router.Router;
+import vo.PointBlock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 路由器任务中一个Slide的路由和发送, 由{@link RouterBolt}和{@link StreamingRouterBolt}共用.
+ * <br/>
+ * {@link #route(long, long, double, double, boolean)}把点按分区放入各自的{@link PointBlock},
+ * {@link #flush(long, OutputCollector, long)}发送该Slide的所有数据块, 然后调整分区.
+ * <br/>
+ * 各分区的数据块在Slide之间复用, 容量保持在该分区最大的Slide, 不再每个Slide从头扩容;
+ * 发送的是大小正好的副本, 因为下游(同一个worker内不经过序列化)会持有发出的对象.
+ */
+class SlideRouter {
+    private static final Logger LOG = LoggerFactory.getLogger(SlideRouter.class);
+
+    private final Router router;
+    private final RouteBuffer routeBuffer = new RouteBuffer();
+    private final int taskId;
+    private final int routerTasks;
+    private final boolean isWriteResults;
+    /**
+     * 两阶段kNN查询时不复制边界点, 分区布局变化时广播给KNNBolt,
+     * 并且每个Slide向每个分区都发送数据块(可能为空), 使各分区的窗口同步前进;
+     * 只有一个路由器任务时也发送Slide结束标记, KNNBolt据此判断一个Slide的数据块已经收齐.
+     */
+    private final boolean twoPhase;
+    private PartitionLayout layout;
+    private final TIntObjectHashMap<PointBlock> blocks = new TIntObjectHashMap<>();
+    private int points = 0;
+
+    SlideRouter(Map stormConf, TopologyContext context) {
+        taskId = context.getThisTaskId();
+        routerTasks = context.getComponentTasks(context.getThisComponentId()).size();
+        Map routerConf = stormConf;
+        if (routerTasks > 1) {
+            //每个任务只看到一部分数据, 按负载调整或按采样构建的分区在各任务间会不一致, 只使用固定的分区
+            routerConf = new HashMap(stormConf);
+            if (Boolean.valueOf(String.valueOf(stormConf.get(Configuration.NAME_BALANCE)))
+                    || "kdtree".equalsIgnoreCase(String.valueOf(stormConf.get(Configuration.NAME_LAYOUT)))) {
+                LOG.warn("{} router tasks, partition balancing and sampled layouts are disabled", routerTasks);
+            }
+            routerConf.put(Configuration.NAME_BALANCE, false);
+            if (!"hilbert".equalsIgnoreCase(String.valueOf(stormConf.get(Configuration.NAME_LAYOUT)))) {
+                routerConf.put(Configuration.NAME_LAYOUT, "grid");
+            }
+        }
+        router = new Router(routerConf);
+        router.init();
+        isWriteResults = ! Boolean.valueOf(stormConf.get("no-write").toString());
+        twoPhase = Boolean.valueOf(stormConf.get(Configuration.NAME_TWO_PHASE).toString());
+    }
+
+    /**
+     * Slide编号: Storm的Tumbling window以{@link Configuration#SLIDE_INTERVAL}的整数倍为窗口结束时间,
+     * 窗口k包含时间戳在(k-1)*I, k*I]内的点, 这里以窗口结束时间编号, 即 ceil(时间戳 / I).
+     * 同一窗口内的任意时间戳都得到相同的编号, 与各任务看到的最大时间戳无关.
+     */
+    static long slideOf(long timestamp) {
+        return Math.floorDiv(timestamp + Configuration.SLIDE_INTERVAL - 1, Configuration.SLIDE_INTERVAL);
+    }
+
+    /**
+     * 批量读入(非streaming-spout)时本任务每个Slide标记为查询点的点数:
+     * {@code query.num}在各路由器任务间均分, 余数分给前几个任务, 使每个Slide共有{@code query.num}个查询点.
+     * -1表示所有点都是查询点.
+     */
+    static int queryQuota(Map stormConf, TopologyContext context) {
+        int queryNum = Integer.valueOf(stormConf.get(Configuration.NAME_QUERY).toString());
+        if (queryNum < 0) return queryNum;
+        int tasks = context.getComponentTasks(context.getThisComponentId()).size();
+        int index = context.getThisTaskIndex();
+        return queryNum / tasks + (index < queryNum % tasks ? 1 : 0);
+    }
+
+    static void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer, boolean isWriteResults) {
+        //1. - declare streams id. each id represents a bolt.
+        outputFieldsDeclarer.declareStream(StreamUtils.STREAM_ROUTER_TO_KNN,
+                new Fields(FieldUtils.FIELD_ROUTER_PORT, FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_POINTS));
+        outputFieldsDeclarer.declareStream(StreamUtils.STREAM_ROUTER_MARKER,
+                new Fields(FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_ROUTER_TASK));
+        outputFieldsDeclarer.declareStream(StreamUtils.STREAM_ROUTER_LAYOUT,
+                new Fields(FieldUtils.FIELD_TIMESTAMP, FieldUtils.FIELD_LAYOUT));
+        if (isWriteResults) {
+            outputFieldsDeclarer.declareStream(StreamUtils.STREAM_TIME_COUNTER,
+                    new Fields(FieldUtils.FIELD_TIME_RECODER));
+        }
+    }
+
+    /**
+     * Adds a point of the current slide to the blocks of its partitions.
+     */
+    void route(long id, long time, double x, double y, boolean query) {
+        if (router.isSampling()) router.sample(x, y);
+        router.getIndexes(x, y, routeBuffer);
+        for (int r = 0; r < routeBuffer.size(); r++){
+            int route = routeBuffer.route(r);
+            boolean isBoundary = routeBuffer.isBoundary(r);
+            if (twoPhase && isBoundary) continue;
+            PointBlock block = blocks.get(route);
+            if (null == block){
+                block = new PointBlock();
+                blocks.put(route, block);
+            }
+            //边界点不作为查询点
+            block.add(id, time, x, y, query && !isBoundary);
+        }
+        points++;
+    }
+
+    /**
+     * Number of points routed since the last {@link #flush(long, OutputCollector, long)}.
+     */
+    int size() {
+        return points;
+    }
+
+    /**
+     * Emits the blocks of slide {@code slide}, then lets the router adjust its partitions.
+     * @param startTime when the slide started to be routed, for the timer stream.
+     */
+    void flush(long slide, OutputCollector collector, long startTime) {
+        if (twoPhase) {
+            if (null == layout || layout.getVersion() != router.getLayoutVersion()) {
+                layout = router.layout();
+                collector.emit(StreamUtils.STREAM_ROUTER_LAYOUT, new Values(slide, layout));
+            }
+            for (int i = 0; i < layout.size(); i++) {
+                PointBlock block = blocks.get(layout.id(i));
+                if (null == block || block.isEmpty()) emit(layout.id(i), slide, new PointBlock(1), collector, startTime);
+            }
+        }
+        //2.1 emitting tuples
+        int queries = 0;
+        TIntObjectIterator<PointBlock> iter = blocks.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            PointBlock block = iter.value();
+            if (block.isEmpty()) {
+                //该分区这个Slide没有点(或者已经不存在), 释放它的数据块
+                iter.remove();
+                continue;
+            }
+            queries += block.queryCount();
+            emit(iter.key(), slide, block.copy(), collector, startTime);
+            block.clear();
+        }
+        LOG.info("QUERY_POINTS_SIZE emitting: {}, CurrentTime:\t{}", queries, System.currentTimeMillis());
+        points = 0;
+        if (routerTasks > 1 || twoPhase) {
+            collector.emit(StreamUtils.STREAM_ROUTER_MARKER, new Values(slide, taskId));
+        }
+        //分区调整从下一个Slide开始生效
+        router.rebalance();
+        if(isWriteResults) {
+            String networkTimeStart = "NETWORK_TIME_START:\t" + System.currentTimeMillis() + "\tSlide_" + slide;
+            collector.emit(StreamUtils.STREAM_TIME_COUNTER, new Values(networkTimeStart));
+        }
+    }
+
+    private void emit(int routerPort, long slide, PointBlock block, OutputCollector collector, long startTime) {
+        router.observe(routerPort, block.size(), block.queryCount());
+        collector.emit(StreamUtils.STREAM_ROUTER_TO_KNN, new Values(routerPort, slide, block));
+        if (isWriteResults) {
+            long per_100_time = ((System.currentTimeMillis() - startTime) * 100) / Math.max(block.size(), 1);
+            String val = "Router_Bolt_" + taskId + " timer(per 100 points):\t" + per_100_time;
+            collector.emit(StreamUtils.STREAM_TIME_COUNTER, new Values(val));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package storm.bolt;
+
+import org.apache.storm.Config;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.util.FieldUtils;
+import storm.util.TupleUtils;
+import util.Configuration;
+import vo.Point;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 逐点路由的RouterBolt: 不使用Tumbling window缓存整个Slide, 每个元组到达时立即解析并路由到
+ * 各分区的数据块中, 遇到下一个Slide的数据时发送当前Slide.
+ * <br/>
+ * 数据按时间顺序到达, Slide k包含时间戳在(k-1)*I, k*I]内的点, 编号规则与{@link RouterBolt}的Tumbling window相同,
+ * 见{@link SlideRouter#slideOf(long)}.
+ * 早于当前Slide的迟到数据被丢弃(与lag为0的窗口一致). 超过一个Slide间隔没有新数据时,
+ * 由tick元组发送已缓存的Slide, 数据流结束时最后一个Slide也能发出.
+ * 各Slide的路由, 发送以及多个路由器任务的Slide结束标记见{@link SlideRouter}.
+ */
+public class StreamingRouterBolt extends BaseRichBolt {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingRouterBolt.class);
+    private OutputCollector _collector;
+    private transient SlideRouter slideRouter;
+    private Map conf;
+    private boolean isWriteResults = true;
+    private boolean streamingSpout = true;
+    private int QUERY_NUM = 0;
+
+    private long currentSlide = Long.MIN_VALUE;
+    /**
+     * 最近发送的Slide, 之后再到达的该Slide的数据也算迟到.
+     */
+    private long flushedSlide = Long.MIN_VALUE;
+    private long slideStartTime = 0L;
+    /**
+     * 当前Slide中还要标记为查询点的点数, 与{@link RouterBolt}一样取每个Slide的前{@code QUERY_NUM}个点,
+     * {@code query.num}由各路由器任务均分.
+     */
+    private int queriesLeft = 0;
+    private boolean idle = true;
+    private long latePoints = 0;
+
+    @Override
+    public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+        conf = stormConf;
+        _collector = collector;
+        slideRouter = new SlideRouter(stormConf, context);
+        QUERY_NUM = SlideRouter.queryQuota(stormConf, context);
+        isWriteResults = ! Boolean.valueOf(conf.get("no-write").toString());
+        streamingSpout = Boolean.valueOf(conf.get("streaming-spout").toString());
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+        if (TupleUtils.isTickTuple(tuple)) {
+            //一个tick周期内没有新数据, 视为当前Slide已结束
+            if (idle && slideRouter.size() > 0) flush();
+            idle = true;
+            _collector.ack(tuple);
+            return;
+        }
+        idle = false;
+        if (streamingSpout) {
+            long timestamp = Long.parseLong(tuple.getValueByField(FieldUtils.POINT.TIME).toString());
+            if (advance(timestamp)) {
+                long id = Long.parseLong(tuple.getValueByField(FieldUtils.POINT.ID).toString());
+                double x = Double.parseDouble(tuple.getValueByField(FieldUtils.POINT.X).toString());
+                double y = Double.parseDouble(tuple.getValueByField(FieldUtils.POINT.Y).toString());
+                boolean isQuery = Boolean.valueOf(tuple.getValueByField(FieldUtils.POINT.IS_QUERY).toString());
+                slideRouter.route(id, timestamp, x, y, isQuery);
+            }
+        } else {
+            List<List<String>> list = (List<List<String>>) tuple.getValueByField(FieldUtils.FIELD_POINTS);
+            for (List<String> ps : list) {
+                for (String p : ps) {
+                    Point point = Point.newInstance(p);
+                    if (!advance(point.getTimestamp())) continue;
+                    boolean isQuery = QUERY_NUM == -1 || queriesLeft > 0;
+                    if (queriesLeft > 0) queriesLeft--;
+                    slideRouter.route(Long.parseLong(point.getId()), point.getTimestamp(),
+                            point.getX(), point.getY(), isQuery);
+                }
+            }
+        }
+        _collector.ack(tuple);
+    }
+
+    /**
+     * Moves to the slide of {@code timestamp}, flushing the current one when a later slide starts.
+     * @return false for a late point, which is dropped.
+     */
+    private boolean advance(long timestamp) {
+        long slide = SlideRouter.slideOf(timestamp);
+        if (slide == currentSlide && slide > flushedSlide) return true;
+        if (slide <= currentSlide) {
+            if (latePoints++ % 10000 == 0) {
+                LOG.warn("Dropping late point of slide {}, current slide {}, {} late points", slide, currentSlide, latePoints);
+            }
+            return false;
+        }
+        if (slideRouter.size() > 0) flush();
+        currentSlide = slide;
+        slideStartTime = System.currentTimeMillis();
+        queriesLeft = QUERY_NUM;
+        return true;
+    }
+
+    private void flush() {
+        Configuration.LATEST_SLIDE_TIME = currentSlide;
+        slideRouter.flush(currentSlide, _collector, slideStartTime);
+        flushedSlide = currentSlide;
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
+        SlideRouter.declareOutputFields(outputFieldsDeclarer, isWriteResults);
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, Math.max(1, Configuration.SLIDE_INTERVAL / 1000));
+        return conf;
+    }
+}
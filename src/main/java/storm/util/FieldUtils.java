@@ -8,10 +8,23 @@ public class FieldUtils {
     public static final String FIELD_POINTS = "POINTS_LIST";
     public static final String FIELD_POINT = "POINT";
     public static final String FIELD_ROUTER_PORT = "ROUTER_PORT";
+    public static final String FIELD_ROUTER_TASK = "ROUTER_TASK";
+    public static final String FIELD_KNN_TASK = "KNN_TASK";
 
     public static final String FIELD_TIME_RECODER = "TIMERECODER";
 
     public static final String FIELD_KNN = "KNN";
+
+    /**
+     * 两阶段kNN查询: 查询点, 第K近距离的平方, 一个查询的部分结果数, 以及分区布局.
+     */
+    public static final String FIELD_QUERY_ID = "QUERY_ID";
+    public static final String FIELD_QUERY_TIME = "QUERY_TIME";
+    public static final String FIELD_QUERY_X = "QUERY_X";
+    public static final String FIELD_QUERY_Y = "QUERY_Y";
+    public static final String FIELD_RADIUS = "RADIUS_SQ";
+    public static final String FIELD_PARTS = "PARTS";
+    public static final String FIELD_LAYOUT = "LAYOUT";
     public class POINT{
         public static final String ID = "POINT_ID";
         public static final String TIME = "POINT_TIME";
@@ -10,6 +10,7 @@ public class StreamUtils {
     public static final String SPOUT_HDFS = "HDFS_SPOUT";
     public static final String BOLT_ROUTER = "BOLT_ROUTER";
     public static final String BOLT_KNN = "BOLT_KNN";
+    public static final String BOLT_KNN_MERGE = "BOLT_KNN_MERGE";
 
     public static final String STREAM_POINTS = "STREAM_POINT";
     public static final String STREAM_RESULT = "STREAM_RESULT";
@@ -17,6 +18,11 @@ public class StreamUtils {
     public static final String STREAM_TIME_COUNTER = "STREAM_TIME_COUNTER";
 
     public static final String STREAM_ROUTER_TO_KNN = "STREAM_ROUTER_TO_KNN";
+    public static final String STREAM_ROUTER_LAYOUT = "STREAM_ROUTER_LAYOUT";
+    public static final String STREAM_ROUTER_MARKER = "STREAM_ROUTER_MARKER";
+    public static final String STREAM_KNN_PROBE = "STREAM_KNN_PROBE";
+    public static final String STREAM_KNN_PARTIAL = "STREAM_KNN_PARTIAL";
+    public static final String STREAM_KNN_MARKER = "STREAM_KNN_MARKER";
 
     public static class LATE_TUPLES{
         public static String lateTuplesFromOutlierAggregateBoltStream = "LateTuplesFromOutlierAggregateBolt";
@@ -24,7 +24,8 @@ public class Configuration {
     }
     /**
      * data dimensions.
-     *
+     * {@link vo.Point}及其距离计算支持任意维数(validate中的离线工具);
+     * Storm拓扑中的{@link vo.PointBlock}, 路由分区和KNN索引只支持二维, 其他维数在构建拓扑时被拒绝.
      */
 
     public static  int DIMENSIONS = (Integer)(Configuration.cfg.get("data.dimensions"));
@@ -44,10 +45,79 @@ public class Configuration {
 
     public static  double BOUNDARY_LENGTH_SCALE = (Double) Configuration.cfg.get("index.boundary.length.scale");
 
+    /**
+     * 是否由各分区边缘的点密度估计第K近距离, 逐个分区, 逐个Slide地确定边界宽度,
+     * 代替固定的 leafLength * BOUNDARY_LENGTH_SCALE.
+     */
+    public static boolean BOUNDARY_ADAPTIVE = (Boolean) Configuration.cfg.get("index.boundary.adaptive");
+
+    /**
+     * 自适应边界宽度 = 估计的第K近距离 * BOUNDARY_SAFETY.
+     */
+    public static double BOUNDARY_SAFETY = (Double) Configuration.cfg.get("index.boundary.safety");
+
     public static  int BRANCH_FACTOR = (Integer)Configuration.cfg.get("index.branch.factor");
 
+    /**
+     * KNNBolt索引模式, rebuild, incremental, forest 或 grid.
+     */
+    public static String KNN_MODE = (String)Configuration.cfg.get("index.knn.mode");
+
+    /**
+     * grid模式下网格Cell的边长, 不大于0时由KNNBolt根据数据密度确定.
+     */
+    public static double GRID_CELL_WIDTH = (Double)Configuration.cfg.get("index.grid.cell.width");
+
+    /**
+     * 每个KNNBolt内并行执行查询的线程数, 1为单线程.
+     */
+    public static int QUERY_PARALLELISM = (Integer)Configuration.cfg.get("knn.query.parallelism");
+
+    /**
+     * 是否对同一id的查询对象复用上一个Slide的kNN结果, 见{@link util.knn.ContinuousKNN}.
+     */
+    public static boolean CONTINUOUS = (Boolean)Configuration.cfg.get("knn.continuous");
+
+    /**
+     * 两阶段kNN查询: 不复制边界点, 第K近距离跨出分区的查询再转发给相邻分区, 结果由合并Bolt汇总.
+     * 结果与边界宽度无关, 是精确的.
+     */
+    public static boolean TWO_PHASE = (Boolean)Configuration.cfg.get("knn.two.phase");
+
+    /**
+     * 分区亲和: RouterBolt到KNNBolt按分区id分组, 每个分区固定由一个KNNBolt任务处理,
+     * 各分区的索引和持续查询状态跨Slide保留. 两阶段查询, 多个RouterBolt以及非rebuild的索引模式时总是启用.
+     */
+    public static boolean PARTITION_AFFINITY = (Boolean)Configuration.cfg.get("knn.partition.affinity");
+
+    /**
+     * 近似kNN的距离误差ε, 返回的第i近距离不超过真实值的(1+ε)倍. 0为精确查询.
+     * rebuild索引模式只做精确查询, 不能设置.
+     */
+    public static double APPROXIMATE_EPSILON = (Double)Configuration.cfg.get("knn.approximate.epsilon");
+
+    /**
+     * 近似kNN每次查询最多访问的节点(Cell, 树)数, 0为不限制. rebuild索引模式不能设置.
+     */
+    public static int APPROXIMATE_MAX_NODES = (Integer)Configuration.cfg.get("knn.approximate.max.nodes");
+
+    /**
+     * 近似kNN时每隔多少个查询做一次精确查询来统计召回率, 0为不统计.
+     */
+    public static int APPROXIMATE_RECALL_SAMPLE = (Integer)Configuration.cfg.get("knn.approximate.recall.sample");
+
     public static  int KNN_BOLT_NUM = (Integer)Configuration.cfg.get("topology.knnBolt.num");
 
+    /**
+     * RouterBolt的并行度, 大于1时每个任务路由一部分数据.
+     */
+    public static  int ROUTER_BOLT_NUM = (Integer)Configuration.cfg.get("topology.routerBolt.num");
+
+    /**
+     * 使用逐点路由的{@link storm.bolt.StreamingRouterBolt}代替按Tumbling window路由的RouterBolt.
+     */
+    public static boolean ROUTER_STREAMING = (Boolean) Configuration.cfg.get("router.streaming");
+
     public static long DATA_ENDTIME = (Long) Configuration.cfg.get("data.endtime");
 
 
@@ -109,12 +179,50 @@ public class Configuration {
      */
     public static final String NAME_INDEX_HIGHT = "index.height";
     public static final String NAME_BOUNDARY_LENGTH_SCALE = "index.boundary.length.scale";
+    public static final String NAME_BOUNDARY_ADAPTIVE = "index.boundary.adaptive";
+    public static final String NAME_BOUNDARY_SAFETY = "index.boundary.safety";
     public static final String NAME_K = "K";
     public static final String NAME_KNN_BOLT_NUM = "topology.knnBolt.num";
+    public static final String NAME_ROUTER_BOLT_NUM = "topology.routerBolt.num";
+    public static final String NAME_ROUTER_STREAMING = "router.streaming";
     public static final String NAME_BRANCH_FACTOR = "index.branch.factor";
+    public static final String NAME_KNN_MODE = "index.knn.mode";
+    public static final String NAME_GRID_CELL_WIDTH = "index.grid.cell.width";
+    public static final String NAME_QUERY_PARALLELISM = "knn.query.parallelism";
+    public static final String NAME_CONTINUOUS = "knn.continuous";
+    public static final String NAME_TWO_PHASE = "knn.two.phase";
+    public static final String NAME_PARTITION_AFFINITY = "knn.partition.affinity";
+    public static final String NAME_APPROXIMATE_EPSILON = "knn.approximate.epsilon";
+    public static final String NAME_APPROXIMATE_MAX_NODES = "knn.approximate.max.nodes";
+    public static final String NAME_APPROXIMATE_RECALL_SAMPLE = "knn.approximate.recall.sample";
 
     public static final String NAME_DATA_END_TIME = "data.endtime";
+    /**
+     * 路由分区自适应调整(拆分/合并, hilbert按负载调整分段). 调整后分区id会变, 只能与rebuild索引模式一起使用.
+     */
     public static boolean BALANCE =  (boolean) Configuration.cfg.get("router.balance");
+    public static final String NAME_BALANCE = "router.balance";
+    /**
+     * 路由分区方式, grid: 等面积的规则网格; kdtree: 按前几个Slide的采样构建点数相近的KD树分区;
+     * hilbert: Hilbert曲线上连续的key段.
+     * kdtree采样后会重新划分分区, 只能与rebuild索引模式一起使用.
+     */
+    public static String LAYOUT = (String) Configuration.cfg.get("router.layout");
+    public static final String NAME_LAYOUT = "router.layout";
+    /**
+     * kdtree分区方式下采样的Slide数.
+     */
+    public static int LAYOUT_SAMPLE_SLIDES = (Integer) Configuration.cfg.get("router.layout.sample.slides");
+    public static final String NAME_LAYOUT_SAMPLE_SLIDES = "router.layout.sample.slides";
+    /**
+     * kdtree和hilbert分区方式下的分区数, 0为KNNBolt的数目.
+     */
+    public static int LAYOUT_PARTITIONS = (Integer) Configuration.cfg.get("router.layout.partitions");
+    public static final String NAME_LAYOUT_PARTITIONS = "router.layout.partitions";
+    /**
+     * 负载均衡时每个Slide最多分裂或合并的分区数.
+     */
+    public static final int NODES_COMBINATIONS_MAX = (Integer) Configuration.cfg.get("router.nodes.combinations.max");
     public static void main(String[] args) {
         System.out.println(cfg);
     }
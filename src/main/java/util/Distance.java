@@ -6,11 +6,18 @@ package util;
  */
 public class Distance {
     public static Double euclideanDistance(double[] p1, double[] p2){
+        return Math.sqrt(euclideanDistanceSq(p1, p2));
+    }
+
+    /**
+     * Square of {@link #euclideanDistance(double[], double[])}, enough for ranking.
+     */
+    public static double euclideanDistanceSq(double[] p1, double[] p2){
         double sum = 0.0;
         for (int i = 0; i < p1.length; i++){
            sum += ((p1[i] - p2[i]) * (p1[i] - p2[i]));
         }
-        return Math.sqrt(sum);
+        return sum;
     }
 
     public static Double distance(double[] p1, double[] p2){
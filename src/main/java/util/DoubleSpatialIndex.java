@@ -0,0 +1,120 @@
+package util;
+
+import gnu.trove.procedure.TIntProcedure;
+
+import java.util.Properties;
+
+/**
+ * Defines the methods of {@link SpatialIndex} for double precision
+ * spatial indexes of any number of dimensions. Rectangles are given
+ * as {@code double[] min, double[] max} and points as {@code double[]},
+ * one coordinate per dimension.
+ */
+public interface DoubleSpatialIndex {
+
+  /**
+   * Initializes any implementation dependent properties
+   * of the spatial index, see {@link SpatialIndex#init(Properties)}.
+   *
+   * @param props The set of properties used to initialize the spatial index.
+   */
+  public void init(Properties props);
+
+  /**
+   * Returns the number of coordinates of every point.
+   */
+  public int getDimensions();
+
+  /**
+   * Adds a new rectangle to the spatial index
+   *
+   * @param min The minimum of the rectangle in every dimension.
+   * @param max The maximum of the rectangle in every dimension.
+   * @param id  The ID of the rectangle to add to the spatial index.
+   *            The result of adding more than one rectangle with
+   *            the same ID is undefined.
+   */
+  public void add(double[] min, double[] max, int id);
+
+  /**
+   * Replaces the contents of the spatial index with the given
+   * rectangles, building the index in one pass.
+   *
+   * @param mins  minimum of rectangle i in dimension d at {@code mins[i * dimensions + d]}
+   * @param maxs  maximum of rectangle i in dimension d at {@code maxs[i * dimensions + d]}
+   * @param ids   the ID of each rectangle
+   * @param count number of rectangles, read from the start of the arrays.
+   */
+  public void load(double[] mins, double[] maxs, int[] ids, int count);
+
+  /**
+   * Deletes a rectangle from the spatial index
+   *
+   * @return true  if the rectangle was deleted
+   *         false if the rectangle was not found, or the
+   *               rectangle was found but with a different ID
+   */
+  public boolean delete(double[] min, double[] max, int id);
+
+  /**
+   * Finds the nearest rectangles to the passed point and calls
+   * v.execute(id) for each one.
+   *
+   * If multiple rectangles are equally near, they will
+   * all be returned.
+   *
+   * @param furthestDistance The furthest distance away from the point
+   * to search. Rectangles further than this will not be found.
+   */
+  public void nearest(double[] p, TIntProcedure v, double furthestDistance);
+
+  /**
+   * Finds the N nearest rectangles to the passed point.
+   *
+   * @param p The point for which this method finds the
+   * nearest neighbours.
+   *
+   * @param count The number of rectangles to find; fewer may be found if
+   * fewer entries exist within furthestDistance.
+   *
+   * @param resultIds output, ids of the rectangles found in order of
+   * increasing distance
+   *
+   * @param resultDistancesSq output, squared distances matching resultIds
+   *
+   * @return number of rectangles found, at most count
+   */
+  public int nearestN(double[] p, int count, double furthestDistance, int[] resultIds, double[] resultDistancesSq);
+
+  /**
+   * Finds all rectangles that intersect the passed rectangle
+   * and calls ip.execute(id) for each one, until it returns false.
+   */
+  public void intersects(double[] min, double[] max, TIntProcedure ip);
+
+  /**
+   * Finds all rectangles contained by the passed rectangle
+   * and calls ip.execute(id) for each one, until it returns false.
+   */
+  public void contains(double[] min, double[] max, TIntProcedure ip);
+
+  /**
+   * Returns the number of entries in the spatial index
+   */
+  public int size();
+
+  /**
+   * Returns the bounds of all the entries in the spatial index,
+   * the minimum of every dimension followed by the maximum of
+   * every dimension, or null if there are no entries.
+   */
+  public double[] getBounds();
+
+  /**
+   * Returns a string identifying the type of
+   * spatial index, and the version number,
+   * eg "SimpleIndex-0.1"
+   */
+  public String getVersion();
+
+}
@@ -0,0 +1,76 @@
+package util;
+
+/**
+ * 空间填充曲线编码.
+ * <br/>
+ * 将二维坐标映射到一维key, 使空间上相邻的点在key上也尽量相邻.
+ */
+public class SpaceFillingCurve {
+    /**
+     * 每一维的编码位数.
+     */
+    public static final int BITS = 16;
+    private static final int MAX_CELL = (1 << BITS) - 1;
+
+    private SpaceFillingCurve() {}
+
+    /**
+     * Returns the Z-order (Morton) key of cell {@code (x, y)}, interleaving the
+     * low {@link #BITS} bits of both coordinates.
+     */
+    public static long zOrder(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Returns the Z-order key of {@code (x, y)} after scaling the box
+     * {@code [minX, maxX] x [minY, maxY]} onto a {@code 2^BITS x 2^BITS} grid.
+     */
+    public static long zOrder(double x, double y, double minX, double minY, double maxX, double maxY) {
+        return zOrder(cell(x, minX, maxX), cell(y, minY, maxY));
+    }
+
+    /**
+     * Scales {@code v} in {@code [min, max]} to a cell index in {@code [0, 2^BITS - 1]}.
+     */
+    public static int cell(double v, double min, double max) {
+        if (max <= min) return 0;
+        int c = (int) ((v - min) / (max - min) * MAX_CELL);
+        return c < 0 ? 0 : (c > MAX_CELL ? MAX_CELL : c);
+    }
+
+    /**
+     * Returns the Hilbert key of cell {@code (x, y)} on a {@code 2^bits x 2^bits} grid.
+     * 与Z-order不同, Hilbert曲线上相邻的key在空间上总是相邻的Cell;
+     * 任意对齐的{@code 2^l x 2^l}方块内的Cell构成一段连续的key.
+     */
+    public static long hilbert(int x, int y, int bits) {
+        int n = 1 << bits;
+        long d = 0;
+        for (int s = n >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            //旋转, 使下一层的子方块按标准方向编码
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static long spread(int v) {
+        long x = v & MAX_CELL;
+        x = (x | (x << 8)) & 0x00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0FL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+}
@@ -48,6 +48,19 @@ public interface SpatialIndex {
    */
   public void add(Rectangle r, int id);
 
+  /**
+   * Replaces the contents of the spatial index with the given
+   * rectangles, building the index in one pass.
+   *
+   * @param minX  min x of each rectangle
+   * @param minY  min y of each rectangle
+   * @param maxX  max x of each rectangle
+   * @param maxY  max y of each rectangle
+   * @param ids   the ID of each rectangle
+   * @param count number of rectangles, read from the start of the arrays.
+   */
+  public void load(float[] minX, float[] minY, float[] maxX, float[] maxY, int[] ids, int count);
+
   /**
    * Deletes a rectangle from the spatial index
    *
@@ -0,0 +1,204 @@
+package util.knn;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import vo.PointBlock;
+
+import java.util.Arrays;
+
+/**
+ * 持续kNN查询: 同一个移动对象(相同id)在相邻Slide中反复作为查询点时, 尽量直接由上一次的结果得到新结果.
+ * <br/>
+ * 查询时多取一个点. 对每个查询对象记录上一次的位置{@code q0}, 前n个结果S, 第n近距离{@code d},
+ * 以及S以外的点到{@code q0}距离的下界{@code d'}(第n+1近距离, 或者搜索时的上界).
+ * 新Slide中对象移动到{@code q1}, 移动距离为{@code δ}, 上一次已在窗口内而不在S中的点到{@code q1}都不小于
+ * {@code R = d' - δ}. 所以到{@code q1}距离小于{@code R}的点只能是S中还没过期的点和本次插入的点:
+ * 不搜索索引, 只重新计算这些S中的点的距离, 并扫描本次插入的数据块中{@code R}以内的点;
+ * 若找到了至少n个, 它们中最近的n个就是新的结果, 同时得到新的{@code d'}.
+ * 在没有S中的点过期、也没有插入的点落在{@code R}以内时, 只要{@code d + δ < R}, 结果就是原来的S.
+ * 否则(安全区域内不足n个点, 上一次记录之后漏掉了数据块, 或者没有上一次的记录)退回到完整搜索.
+ * <br/>
+ * 用法: 每次{@link KNNIndex#update(long, PointBlock)}之后调用{@link #prepare(PointBlock)}, 然后对每个查询调用
+ * {@link #reuse(long, long, double, double, int, KNNHeap)}, 返回false的查询用容量n+1完整搜索;
+ * 最后对所有查询调用{@link #record(long, long, double, double, KNNHeap)}, 它把堆裁成n个结果.
+ * 这些方法不是线程安全的, 应在executor线程上调用, 完整搜索本身可以并行.
+ * 近似查询的结果本身不精确, 由它复用的结果也只是近似的.
+ */
+public class ContinuousKNN {
+
+    private static class State {
+        double x, y;
+        /**
+         * 前n个结果的handle.
+         */
+        int[] handles;
+        /**
+         * S以外的点到{@code (x, y)}距离平方的下界.
+         */
+        double nextDistanceSq;
+        /**
+         * 前n个结果各自的Slide. Slide过期后它的槽位会被新的点复用, 不能再用handle去查.
+         */
+        long[] slides;
+        /**
+         * 最近一次记录的Slide.
+         */
+        long lastSlide;
+        /**
+         * 记录时的{@link #updates}.
+         */
+        long update;
+    }
+
+    private final KNNIndex index;
+    private final TLongObjectHashMap<State> states = new TLongObjectHashMap<>();
+    /**
+     * {@link #prepare(PointBlock)}的次数: 只有上一次记录之后正好插入了当前数据块的查询才能复用.
+     */
+    private long updates = 0;
+    private PointBlock inserted;
+    private int insertedCount = 0;
+    /**
+     * 插入的数据块按x排序: 高32位为x(float)的可排序编码, 低32位为点在块中的下标.
+     */
+    private long[] sortedX = new long[0];
+    private long reused = 0;
+    private long searched = 0;
+
+    public ContinuousKNN(KNNIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Takes the block just passed to {@link KNNIndex#update(long, PointBlock)}.
+     */
+    public void prepare(PointBlock points) {
+        updates++;
+        inserted = points;
+        insertedCount = points.size();
+        if (sortedX.length < insertedCount) {
+            sortedX = new long[Math.max(insertedCount, sortedX.length * 2)];
+        }
+        for (int i = 0; i < insertedCount; i++) {
+            sortedX[i] = ((long) sortableBits((float) points.getX(i)) << 32) | i;
+        }
+        Arrays.sort(sortedX, 0, insertedCount);
+    }
+
+    /**
+     * Fills {@code heap} with the {@code k} nearest neighbours of query {@code id} at {@code (x, y)} in slide
+     * {@code slide} from its previous result and the prepared block, plus a lower bound for the next one.
+     * @return false if the previous result cannot decide the new one; the query must then be searched.
+     */
+    public boolean reuse(long slide, long id, double x, double y, int k, KNNHeap heap) {
+        State state = states.get(id);
+        if (null == state || state.update != updates - 1 || state.handles.length != k) {
+            searched++;
+            return false;
+        }
+        double dx = x - state.x, dy = y - state.y;
+        double moved = Math.sqrt(dx * dx + dy * dy);
+        double radius = Math.sqrt(state.nextDistanceSq) - moved;
+        if (radius <= 0.0) {
+            searched++;
+            return false;
+        }
+        heap.reset(k + 1);
+        //缩小一点, 避免舍入误差把S以外的旧点算进来
+        heap.setLimit(Math.nextDown(radius * radius));
+        long expired = slide - index.windowSlides();
+        for (int i = 0; i < k; i++) {
+            if (state.slides[i] <= expired) continue;
+            int handle = state.handles[i];
+            heap.offer(handle, index.distanceSq(handle, x, y));
+        }
+        long from = (long) sortableBits(Math.nextDown((float) (x - radius))) << 32;
+        long to = ((long) sortableBits(Math.nextUp((float) (x + radius))) << 32) | 0xFFFFFFFFL;
+        int i = Arrays.binarySearch(sortedX, 0, insertedCount, from);
+        for (i = i < 0 ? -i - 1 : i; i < insertedCount && sortedX[i] <= to; i++) {
+            int offset = (int) sortedX[i];
+            heap.offer(index.handleOf(offset), inserted.distanceSq(offset, x, y));
+        }
+        if (heap.size() < k) {
+            searched++;
+            return false;
+        }
+        reused++;
+        return true;
+    }
+
+    /**
+     * Keeps the result of query {@code id} and trims {@code heap} to its {@code capacity - 1} nearest results;
+     * must be called before {@link KNNHeap#sort()}.
+     * A result with fewer points cannot bound later searches and is forgotten.
+     */
+    public void record(long slide, long id, double x, double y, KNNHeap heap) {
+        int k = heap.capacity() - 1;
+        if (heap.size() < k || k <= 0) {
+            states.remove(id);
+            return;
+        }
+        double next = heap.getLimit();
+        if (heap.size() > k) {
+            next = heap.bound();
+            heap.poll();
+        }
+        State state = states.get(id);
+        if (null == state) {
+            state = new State();
+            states.put(id, state);
+        }
+        if (null == state.handles || state.handles.length != k) {
+            state.handles = new int[k];
+            state.slides = new long[k];
+        }
+        state.x = x;
+        state.y = y;
+        state.nextDistanceSq = next;
+        state.lastSlide = slide;
+        state.update = updates;
+        for (int i = 0; i < k; i++) {
+            int handle = heap.handle(i);
+            state.handles[i] = handle;
+            state.slides[i] = index.slide(handle);
+        }
+    }
+
+    /**
+     * Forgets the queries not seen within the window ending at {@code slide}.
+     */
+    public void evict(long slide) {
+        long expired = slide - index.windowSlides();
+        states.retainEntries((id, state) -> state.lastSlide > expired);
+    }
+
+    /**
+     * Float bits mapped so that signed comparison follows the float order.
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * Number of results taken from a previous result without a search since the last {@link #resetCounters()}.
+     */
+    public long getReused() {
+        return reused;
+    }
+
+    /**
+     * Number of full searches since the last {@link #resetCounters()}.
+     */
+    public long getSearched() {
+        return searched;
+    }
+
+    public void resetCounters() {
+        reused = 0;
+        searched = 0;
+    }
+}
@@ -0,0 +1,346 @@
+package util.knn;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Configuration;
+import vo.Point;
+import vo.PointBlock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于均匀网格的滑动窗口kNN索引.
+ * <br/>
+ * 平面被划分为边长为{@code cellWidth}的正方形Cell, 只保存非空的Cell(以Cell坐标为key的哈希表).
+ * 每个Cell按Slide槽位分别保存点的handle, 插入是O(1)的追加; Slide过期时只清空该Slide
+ * 涉及到的Cell中对应槽位的列表, 不需要逐点删除.
+ * <br/>
+ * 查询从查询点所在Cell开始一圈一圈向外扩展, 当下一圈到查询点的最小距离
+ * 已经超过当前第K近距离时停止. 近似查询时用{@link KNNHeap#pruneBound()}代替第K近距离,
+ * 每扫描一个非空Cell计一次{@link KNNHeap#visit()}.
+ * <br/>
+ * handle编码与{@link IncrementalKNNIndex}相同: {@code offset * slides + slot}.
+ */
+public class GridKNNIndex implements KNNIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(GridKNNIndex.class);
+    private static final long EMPTY_SLOT = Long.MIN_VALUE;
+    /**
+     * 自动确定Cell边长时, 整个窗口内平均每个Cell的点数.
+     */
+    public static final int DEFAULT_POINTS_PER_CELL = 16;
+    /**
+     * Cell坐标的绝对值上限, Cell边长不小于 坐标的绝对值 / MAX_CELL, 避免Cell坐标超出int范围.
+     */
+    private static final double MAX_CELL = 1 << 30;
+
+    private static class Cell {
+        final int cx, cy;
+        /**
+         * slot -> handles, lazily allocated.
+         */
+        final TIntArrayList[] slotHandles;
+        int count = 0;
+
+        Cell(int cx, int cy, int slides) {
+            this.cx = cx;
+            this.cy = cy;
+            this.slotHandles = new TIntArrayList[slides];
+        }
+    }
+
+    private final int slides;
+    private final long[] slotSlide;
+    private final List<PointBlock> slotPoints;
+    /**
+     * slot -> cells holding points of the slot.
+     */
+    private final List<List<Cell>> slotCells;
+    private final TLongObjectHashMap<Cell> cells = new TLongObjectHashMap<>();
+    private double cellWidth;
+    /**
+     * Cell边长是由退化的数据(单个点, 重合或共线的点)得到的临时值, 数据有了二维的范围后重新确定.
+     */
+    private boolean provisionalWidth = false;
+    private long newestSlide = EMPTY_SLOT;
+    /**
+     * 最近一次update的数据块在槽位中的起始下标和槽位, 见{@link #handleOf(int)}.
+     */
+    private int lastStart = 0, lastSlot = 0;
+    private int size = 0;
+    /**
+     * 非空Cell坐标的范围, 用于限制扩展的圈数.
+     */
+    private int minCx, maxCx, minCy, maxCy;
+
+    /**
+     * @param cellWidth Cell边长, 不大于0时根据第一个Slide的点密度确定.
+     * @param slides number of slides of the window.
+     */
+    public GridKNNIndex(double cellWidth, int slides) {
+        this.cellWidth = cellWidth;
+        this.slides = slides;
+        this.slotSlide = new long[slides];
+        this.slotPoints = new ArrayList<>(slides);
+        this.slotCells = new ArrayList<>(slides);
+        for (int i = 0; i < slides; i++) {
+            slotSlide[i] = EMPTY_SLOT;
+            slotPoints.add(new PointBlock());
+            slotCells.add(new ArrayList<>());
+        }
+        resetExtent();
+    }
+
+    @Override
+    public void update(long slide, PointBlock points) {
+        if (newestSlide != EMPTY_SLOT && slide <= newestSlide - slides) {
+            LOG.warn("Slide {} has expired, newest slide is {}.", slide, newestSlide);
+            return;
+        }
+        if ((cellWidth <= 0 || provisionalWidth) && !points.isEmpty()) {
+            double width = estimateCellWidth(points);
+            //临时的边长只被二维范围的数据替换
+            if (cellWidth <= 0 || !provisionalWidth) {
+                boolean regrid = cellWidth > 0;
+                cellWidth = width;
+                LOG.info("Grid cell width: {}{}", cellWidth, provisionalWidth ? " (provisional)" : "");
+                if (regrid) rebuild();
+            }
+        }
+        if (slide > newestSlide) {
+            newestSlide = slide;
+            expire(newestSlide - slides);
+        }
+        int slot = slot(slide);
+        slotSlide[slot] = slide;
+        PointBlock buffer = slotPoints.get(slot);
+        int offset = buffer.size();
+        lastStart = offset;
+        lastSlot = slot;
+        buffer.addAll(points);
+        for (; offset < buffer.size(); offset++) {
+            insert(buffer, offset, slot);
+        }
+        size += points.size();
+    }
+
+    private void insert(PointBlock buffer, int offset, int slot) {
+        int cx = cell(buffer.getX(offset));
+        int cy = cell(buffer.getY(offset));
+        long key = key(cx, cy);
+        Cell cell = cells.get(key);
+        if (null == cell) {
+            cell = new Cell(cx, cy, slides);
+            cells.put(key, cell);
+            minCx = Math.min(minCx, cx);
+            maxCx = Math.max(maxCx, cx);
+            minCy = Math.min(minCy, cy);
+            maxCy = Math.max(maxCy, cy);
+        }
+        TIntArrayList handles = cell.slotHandles[slot];
+        if (null == handles) {
+            handles = new TIntArrayList();
+            cell.slotHandles[slot] = handles;
+        }
+        if (handles.isEmpty()) slotCells.get(slot).add(cell);
+        handles.add(offset * slides + slot);
+        cell.count++;
+    }
+
+    /**
+     * Cell边长改变后, 把窗口内的点重新放入新的Cell.
+     */
+    private void rebuild() {
+        cells.clear();
+        resetExtent();
+        for (int slot = 0; slot < slides; slot++) {
+            slotCells.get(slot).clear();
+            PointBlock buffer = slotPoints.get(slot);
+            for (int offset = 0; offset < buffer.size(); offset++) {
+                insert(buffer, offset, slot);
+            }
+        }
+    }
+
+    /**
+     * Cell边长取为使整个窗口内每个Cell平均有{@link #DEFAULT_POINTS_PER_CELL}个点.
+     * <br/>
+     * 点共线时按线段长度估计, 只有一个位置时取{@link Configuration#MIN_CELL_WIDTH};
+     * 这两种情况下的边长是临时的, 之后有二维范围的数据到达时重新估计.
+     * 边长也不小于 坐标绝对值 / {@link #MAX_CELL}, 使Cell坐标不会溢出.
+     */
+    private double estimateCellWidth(PointBlock points) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < points.size(); i++) {
+            minX = Math.min(minX, points.getX(i));
+            minY = Math.min(minY, points.getY(i));
+            maxX = Math.max(maxX, points.getX(i));
+            maxY = Math.max(maxY, points.getY(i));
+        }
+        double windowPoints = (double) points.size() * slides;
+        double width;
+        if (maxX > minX && maxY > minY) {
+            width = Math.sqrt((maxX - minX) * (maxY - minY) * DEFAULT_POINTS_PER_CELL / windowPoints);
+            provisionalWidth = false;
+        } else if (maxX > minX || maxY > minY) {
+            width = Math.max(maxX - minX, maxY - minY) * DEFAULT_POINTS_PER_CELL / windowPoints;
+            provisionalWidth = true;
+        } else {
+            width = Configuration.MIN_CELL_WIDTH;
+            provisionalWidth = true;
+        }
+        double magnitude = Math.max(Math.max(Math.abs(minX), Math.abs(maxX)), Math.max(Math.abs(minY), Math.abs(maxY)));
+        width = Math.max(width, magnitude / MAX_CELL);
+        return width > 0 ? width : 1.0;
+    }
+
+    /**
+     * Removes every slide whose timestamp is not greater than {@code expiredSlide}.
+     */
+    private void expire(long expiredSlide) {
+        boolean removed = false;
+        for (int slot = 0; slot < slides; slot++) {
+            if (slotSlide[slot] == EMPTY_SLOT || slotSlide[slot] > expiredSlide) continue;
+            for (Cell cell : slotCells.get(slot)) {
+                TIntArrayList handles = cell.slotHandles[slot];
+                cell.count -= handles.size();
+                handles.resetQuick();
+                if (cell.count == 0) {
+                    cells.remove(key(cell.cx, cell.cy));
+                    removed = true;
+                }
+            }
+            slotCells.get(slot).clear();
+            size -= slotPoints.get(slot).size();
+            slotPoints.get(slot).clear();
+            slotSlide[slot] = EMPTY_SLOT;
+        }
+        if (removed) {
+            resetExtent();
+            for (Cell cell : cells.valueCollection()) {
+                minCx = Math.min(minCx, cell.cx);
+                maxCx = Math.max(maxCx, cell.cx);
+                minCy = Math.min(minCy, cell.cy);
+                maxCy = Math.max(maxCy, cell.cy);
+            }
+        }
+    }
+
+    private void resetExtent() {
+        minCx = minCy = Integer.MAX_VALUE;
+        maxCx = maxCy = Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void nearestNeighbour(double x, double y, int k, KNNHeap heap) {
+        heap.reset(k);
+        if (cells.isEmpty()) return;
+        int qx = cell(x), qy = cell(y);
+        for (int r = 0; ; r++) {
+            if (r > 0) {
+                //第r圈及以外的点到查询点的最小距离
+                double gap = Math.min(Math.min(x - (qx - r + 1) * cellWidth, (qx + r) * cellWidth - x),
+                        Math.min(y - (qy - r + 1) * cellWidth, (qy + r) * cellWidth - y));
+                if (heap.pruneBound() <= gap * gap) break;
+                //上一圈已覆盖所有非空Cell
+                if (qx - r + 1 <= minCx && qx + r - 1 >= maxCx
+                        && qy - r + 1 <= minCy && qy + r - 1 >= maxCy) break;
+            }
+            int fromX = Math.max(qx - r, minCx), toX = Math.min(qx + r, maxCx);
+            int fromY = Math.max(qy - r + 1, minCy), toY = Math.min(qy + r - 1, maxCy);
+            if (qy - r >= minCy && qy - r <= maxCy) {
+                for (int cx = fromX; cx <= toX; cx++) if (!scan(cx, qy - r, x, y, heap)) return;
+            }
+            if (r > 0 && qy + r >= minCy && qy + r <= maxCy) {
+                for (int cx = fromX; cx <= toX; cx++) if (!scan(cx, qy + r, x, y, heap)) return;
+            }
+            if (r > 0 && qx - r >= minCx && qx - r <= maxCx) {
+                for (int cy = fromY; cy <= toY; cy++) if (!scan(qx - r, cy, x, y, heap)) return;
+            }
+            if (r > 0 && qx + r >= minCx && qx + r <= maxCx) {
+                for (int cy = fromY; cy <= toY; cy++) if (!scan(qx + r, cy, x, y, heap)) return;
+            }
+        }
+    }
+
+    /**
+     * @return false once the visit budget of {@code heap} is used up.
+     */
+    private boolean scan(int cx, int cy, double x, double y, KNNHeap heap) {
+        Cell cell = cells.get(key(cx, cy));
+        if (null == cell) return true;
+        double dx = Math.max(Math.max(cx * cellWidth - x, x - (cx + 1) * cellWidth), 0.0);
+        double dy = Math.max(Math.max(cy * cellWidth - y, y - (cy + 1) * cellWidth), 0.0);
+        if (dx * dx + dy * dy > heap.pruneBound()) return true;
+        if (!heap.visit()) return false;
+        for (int slot = 0; slot < slides; slot++) {
+            TIntArrayList handles = cell.slotHandles[slot];
+            if (null == handles || handles.isEmpty()) continue;
+            PointBlock block = slotPoints.get(slot);
+            for (int i = 0; i < handles.size(); i++) {
+                int handle = handles.getQuick(i);
+                heap.offer(handle, block.distanceSq(handle / slides, x, y));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long id(int handle) {
+        return slotPoints.get(handle % slides).getId(handle / slides);
+    }
+
+    @Override
+    public long time(int handle) {
+        return slotPoints.get(handle % slides).getTime(handle / slides);
+    }
+
+    @Override
+    public Point point(int handle) {
+        return slotPoints.get(handle % slides).toPoint(handle / slides);
+    }
+
+    @Override
+    public long slide(int handle) {
+        return slotSlide[handle % slides];
+    }
+
+    @Override
+    public double distanceSq(int handle, double x, double y) {
+        return slotPoints.get(handle % slides).distanceSq(handle / slides, x, y);
+    }
+
+    @Override
+    public int handleOf(int offset) {
+        return (lastStart + offset) * slides + lastSlot;
+    }
+
+    @Override
+    public int windowSlides() {
+        return slides;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / cellWidth);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private int slot(long slide) {
+        return (int) (((slide % slides) + slides) % slides);
+    }
+}
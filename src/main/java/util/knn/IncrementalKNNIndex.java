@@ -0,0 +1,232 @@
+package util.knn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Rectangle;
+import util.SpaceFillingCurve;
+import util.rtree.RTree;
+import vo.Point;
+import vo.PointBlock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 增量维护的滑动窗口kNN索引.
+ * <br/>
+ * 整个窗口只维护一棵{@link RTree}: 新Slide的点逐个插入, 过期Slide的点逐个删除,
+ * 不再每个Slide重新bulk-load. 窗口由{@code slides}个Slide组成
+ * (见{@link util.Configuration#SLIDES}), 每个Slide占用环形数组中的一个槽位.
+ * <br/>
+ * 每个槽位的点以列式的{@link PointBlock}保存, 只有作为查询结果返回时才转成{@link Point}.
+ * RTree中的entry id编码为 {@code offset * slides + slot}, 其中slot为槽位,
+ * offset为点在该槽位{@link PointBlock}中的下标.
+ * <br/>
+ * 近似查询的误差和节点预算取自{@link KNNHeap#getEpsilon()}, {@link KNNHeap#getMaxVisits()},
+ * 由RTree在遍历时使用.
+ */
+public class IncrementalKNNIndex implements KNNIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalKNNIndex.class);
+    private static final long EMPTY_SLOT = Long.MIN_VALUE;
+    /**
+     * 批量查询时每组查询点的个数.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final RTree tree = new RTree();
+    private final int slides;
+    /**
+     * slot -> slide timestamp, {@link #EMPTY_SLOT} if unused.
+     */
+    private final long[] slotSlide;
+    /**
+     * slot -> points of the slide.
+     */
+    private final List<PointBlock> slotPoints;
+    private long newestSlide = EMPTY_SLOT;
+    /**
+     * 最近一次update的数据块在槽位中的起始下标和槽位, 见{@link #handleOf(int)}.
+     */
+    private int lastStart = 0, lastSlot = 0;
+    private final int batchSize;
+
+    public IncrementalKNNIndex(int branchFactor, int slides) {
+        this(branchFactor, slides, DEFAULT_BATCH_SIZE);
+    }
+
+    public IncrementalKNNIndex(int branchFactor, int slides, int batchSize) {
+        this.slides = slides;
+        this.batchSize = batchSize;
+        this.slotSlide = new long[slides];
+        this.slotPoints = new ArrayList<>(slides);
+        for (int i = 0; i < slides; i++) {
+            slotSlide[i] = EMPTY_SLOT;
+            slotPoints.add(new PointBlock());
+        }
+        Properties properties = new Properties();
+        properties.setProperty("MaxNodeEntries", "" + branchFactor);
+        tree.init(properties);
+    }
+
+    @Override
+    public void update(long slide, PointBlock points) {
+        if (newestSlide != EMPTY_SLOT && slide <= newestSlide - slides) {
+            LOG.warn("Slide {} has expired, newest slide is {}.", slide, newestSlide);
+            return;
+        }
+        if (slide > newestSlide) {
+            newestSlide = slide;
+            expire(newestSlide - slides);
+        }
+        int slot = slot(slide);
+        slotSlide[slot] = slide;
+        PointBlock buffer = slotPoints.get(slot);
+        int offset = buffer.size();
+        lastStart = offset;
+        lastSlot = slot;
+        buffer.addAll(points);
+        for (; offset < buffer.size(); offset++) {
+            tree.add(rectangle(buffer, offset), handle(offset, slot));
+        }
+    }
+
+    /**
+     * Removes every slide whose timestamp is not greater than {@code expiredSlide}.
+     */
+    private void expire(long expiredSlide) {
+        for (int slot = 0; slot < slides; slot++) {
+            if (slotSlide[slot] == EMPTY_SLOT || slotSlide[slot] > expiredSlide) continue;
+            PointBlock buffer = slotPoints.get(slot);
+            for (int offset = 0; offset < buffer.size(); offset++) {
+                tree.delete(rectangle(buffer, offset), handle(offset, slot));
+            }
+            buffer.clear();
+            slotSlide[slot] = EMPTY_SLOT;
+        }
+    }
+
+    /**
+     * 单个查询使用RTree的best-first搜索, 见{@link RTreeSearch}.
+     */
+    @Override
+    public void nearestNeighbour(double x, double y, int k, KNNHeap heap) {
+        heap.reset(k);
+        RTreeSearch.nearestNeighbour(tree, this, x, y, k, heap.getLimit(), heap.getEpsilon(), heap.getMaxVisits(), heap);
+    }
+
+    /**
+     * 查询点按Z-order排序后每{@code batchSize}个分为一组, 每组只遍历一次RTree.
+     * 一组内取最严格的近似设置: 最小的误差, 最大的节点预算(有不限制的则不限制).
+     */
+    @Override
+    public void nearestNeighbours(double[] xs, double[] ys, int from, int to, int k, KNNHeap[] heaps) {
+        int count = to - from;
+        if (count <= 0) return;
+
+        //1. Z-order排序
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        long[] keys = new long[count];
+        for (int i = from; i < to; i++) {
+            long z = SpaceFillingCurve.zOrder(xs[i], ys[i], minX, minY, maxX, maxY);
+            keys[i - from] = (z << 32) | i;//高位为Z-order key, 低位为查询下标
+        }
+        Arrays.sort(keys);
+
+        //2. 分组查询
+        float[] groupXs = new float[batchSize];
+        float[] groupYs = new float[batchSize];
+        int[] ids = new int[batchSize * k];
+        float[] distancesSq = new float[batchSize * k];
+        int[] found = new int[batchSize];
+        int[] members = new int[batchSize];
+        for (int start = 0; start < count; start += batchSize) {
+            int groupSize = Math.min(batchSize, count - start);
+            double limitSq = 0.0;
+            double epsilon = Double.POSITIVE_INFINITY;
+            int maxNodes = 1;
+            for (int g = 0; g < groupSize; g++) {
+                members[g] = (int) keys[start + g];
+                groupXs[g] = (float) xs[members[g]];
+                groupYs[g] = (float) ys[members[g]];
+                KNNHeap heap = heaps[members[g]];
+                limitSq = Math.max(limitSq, heap.getLimit());
+                epsilon = Math.min(epsilon, heap.getEpsilon());
+                maxNodes = heap.getMaxVisits() <= 0 || maxNodes <= 0 ? 0 : Math.max(maxNodes, heap.getMaxVisits());
+            }
+            tree.nearestNBatch(groupXs, groupYs, groupSize, k, RTreeSearch.furthestDistance(limitSq),
+                    (float) epsilon, maxNodes, ids, distancesSq, found);
+            for (int g = 0; g < groupSize; g++) {
+                int q = members[g];
+                KNNHeap heap = heaps[q];
+                heap.reset(k);
+                for (int i = 0; i < found[g]; i++) {
+                    int handle = ids[g * k + i];
+                    heap.offer(handle, distanceSq(handle, xs[q], ys[q]));
+                }
+            }
+        }
+    }
+
+    @Override
+    public long id(int handle) {
+        return slotPoints.get(handle % slides).getId(handle / slides);
+    }
+
+    @Override
+    public long time(int handle) {
+        return slotPoints.get(handle % slides).getTime(handle / slides);
+    }
+
+    @Override
+    public Point point(int handle) {
+        return slotPoints.get(handle % slides).toPoint(handle / slides);
+    }
+
+    @Override
+    public long slide(int handle) {
+        return slotSlide[handle % slides];
+    }
+
+    @Override
+    public double distanceSq(int handle, double x, double y) {
+        return slotPoints.get(handle % slides).distanceSq(handle / slides, x, y);
+    }
+
+    @Override
+    public int handleOf(int offset) {
+        return (lastStart + offset) * slides + lastSlot;
+    }
+
+    @Override
+    public int windowSlides() {
+        return slides;
+    }
+
+    @Override
+    public int size() {
+        return tree.size();
+    }
+
+    private int slot(long slide) {
+        return (int) (((slide % slides) + slides) % slides);
+    }
+
+    private int handle(int offset, int slot) {
+        return offset * slides + slot;
+    }
+
+    private static Rectangle rectangle(PointBlock block, int offset) {
+        float x = (float) block.getX(offset);
+        float y = (float) block.getY(offset);
+        return new Rectangle(x, y, x, y);
+    }
+}
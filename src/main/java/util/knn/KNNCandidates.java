@@ -0,0 +1,102 @@
+package util.knn;
+
+import java.io.Serializable;
+
+/**
+ * 一个查询在某个分区中的kNN候选结果: 点的id, 时间戳和距离平方, 按距离升序.
+ * <br/>
+ * 两阶段kNN查询中由各KNNBolt发送给合并的Bolt, 与索引的handle无关, 可以跨任务传递.
+ * {@link #merge(KNNCandidates)}合并同一查询来自不同分区的候选, {@link #truncate(int)}保留前K个.
+ */
+public class KNNCandidates implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long[] ids;
+    private long[] times;
+    private double[] distancesSq;
+    private int size = 0;
+
+    public KNNCandidates() {
+        this(4);
+    }
+
+    public KNNCandidates(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ids = new long[capacity];
+        times = new long[capacity];
+        distancesSq = new double[capacity];
+    }
+
+    /**
+     * Copies the results of {@code heap}, which must already be sorted, resolving the handles in {@code index}.
+     */
+    public static KNNCandidates of(KNNHeap heap, KNNIndex index) {
+        KNNCandidates candidates = new KNNCandidates(heap.size());
+        for (int i = 0; i < heap.size(); i++) {
+            int handle = heap.handle(i);
+            candidates.ids[i] = index.id(handle);
+            candidates.times[i] = index.time(handle);
+            candidates.distancesSq[i] = heap.distanceSq(i);
+        }
+        candidates.size = heap.size();
+        return candidates;
+    }
+
+    /**
+     * Merges the sorted candidates of {@code other} into this sorted list.
+     * 同一个点(id和时间戳都相同)可能同时出现在两个分区的候选中, 只保留一次.
+     */
+    public void merge(KNNCandidates other) {
+        int total = size + other.size;
+        long[] mIds = new long[Math.max(total, 1)];
+        long[] mTimes = new long[mIds.length];
+        double[] mDistancesSq = new double[mIds.length];
+        int i = 0, j = 0, n = 0;
+        while (i < size || j < other.size) {
+            boolean mine = j >= other.size || (i < size && distancesSq[i] <= other.distancesSq[j]);
+            long id = mine ? ids[i] : other.ids[j];
+            long time = mine ? times[i] : other.times[j];
+            double distanceSq = mine ? distancesSq[i++] : other.distancesSq[j++];
+            //距离相同的重复点相邻
+            boolean duplicate = false;
+            for (int d = n - 1; d >= 0 && mDistancesSq[d] == distanceSq; d--) {
+                if (mIds[d] == id && mTimes[d] == time) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (duplicate) continue;
+            mIds[n] = id;
+            mTimes[n] = time;
+            mDistancesSq[n] = distanceSq;
+            n++;
+        }
+        ids = mIds;
+        times = mTimes;
+        distancesSq = mDistancesSq;
+        size = n;
+    }
+
+    /**
+     * Keeps the {@code k} nearest candidates.
+     */
+    public void truncate(int k) {
+        size = Math.min(size, k);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long id(int i) {
+        return ids[i];
+    }
+
+    public long time(int i) {
+        return times[i];
+    }
+
+    public double distanceSq(int i) {
+        return distancesSq[i];
+    }
+}
@@ -0,0 +1,196 @@
+package util.knn;
+
+/**
+ * 定长的kNN结果堆, 保存(handle, 距离平方)两个基本类型数组, 可在不同查询之间复用.
+ * <br/>
+ * 查询过程中是以距离平方为key的大顶堆, 堆顶为当前第K近的结果;
+ * 查询结束后调用{@link #sort()}原地排成距离升序, 再用{@link #handle(int)}和
+ * {@link #distanceSq(int)}按下标读取. handle的含义由{@link KNNIndex}实现类决定.
+ * <br/>
+ * 调用方可以用{@link #setLimit(double)}预先给出距离平方的上界, 超过上界的点不会进入结果,
+ * 索引也用它从一开始就剪枝. 上界不受{@link #reset(int)}影响.
+ * <br/>
+ * 近似查询: {@link #setApproximation(double, int)}给出误差{@code ε}和节点访问预算.
+ * 索引用{@link #pruneBound()}剪枝, 只访问可能包含距离小于 第K近距离/(1+ε) 的点的节点
+ * (不足K个结果时为上界本身, 上界不缩小),
+ * 因此返回的第i近距离不超过真实第i近距离的{@code (1+ε)}倍; 每访问一个节点(或Cell)调用
+ * {@link #visit()}, 预算用完后停止搜索. 这两个设置也不受{@link #reset(int)}影响.
+ */
+public class KNNHeap {
+    private int[] handles;
+    private double[] distancesSq;
+    private int capacity;
+    private int size = 0;
+    private double limit = Double.POSITIVE_INFINITY;
+    private double epsilon = 0.0;
+    /**
+     * {@code 1 / (1 + ε)^2}.
+     */
+    private double pruneScale = 1.0;
+    private int maxVisits = 0;
+    private int visits = 0;
+
+    public KNNHeap(int capacity) {
+        this.capacity = capacity;
+        this.handles = new int[capacity];
+        this.distancesSq = new double[capacity];
+    }
+
+    /**
+     * Empties the heap and sets its capacity to {@code k}, growing the arrays if needed.
+     */
+    public void reset(int k) {
+        if (k > handles.length) {
+            handles = new int[k];
+            distancesSq = new double[k];
+        }
+        capacity = k;
+        size = 0;
+        visits = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sets the squared distance beyond which results are rejected,
+     * {@link Double#POSITIVE_INFINITY} for an unbounded search.
+     */
+    public void setLimit(double limitSq) {
+        this.limit = limitSq;
+    }
+
+    public double getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param epsilon 距离误差, 0为精确查询.
+     * @param maxVisits 每次查询最多访问的节点数, 不大于0为不限制.
+     */
+    public void setApproximation(double epsilon, int maxVisits) {
+        this.epsilon = Math.max(epsilon, 0.0);
+        this.pruneScale = 1.0 / ((1.0 + this.epsilon) * (1.0 + this.epsilon));
+        this.maxVisits = maxVisits;
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    public int getMaxVisits() {
+        return maxVisits;
+    }
+
+    /**
+     * Counts a visited node.
+     * @return false once the visit budget is used up.
+     */
+    public boolean visit() {
+        return maxVisits <= 0 || ++visits <= maxVisits;
+    }
+
+    public int getVisits() {
+        return visits;
+    }
+
+    /**
+     * Keeps {@code handle} if it is nearer than the current Kth result.
+     * @return whether the heap changed.
+     */
+    public boolean offer(int handle, double distanceSq) {
+        if (distanceSq > limit) return false;
+        if (size < capacity) {
+            int i = size++;
+            //上浮
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distancesSq[parent] >= distanceSq) break;
+                handles[i] = handles[parent];
+                distancesSq[i] = distancesSq[parent];
+                i = parent;
+            }
+            handles[i] = handle;
+            distancesSq[i] = distanceSq;
+            return true;
+        }
+        if (capacity == 0 || distanceSq >= distancesSq[0]) return false;
+        siftDown(0, handle, distanceSq, size);
+        return true;
+    }
+
+    /**
+     * Places {@code (handle, distanceSq)} at slot {@code i} of the heap {@code [0, end)} and sifts it down.
+     */
+    private void siftDown(int i, int handle, double distanceSq, int end) {
+        int half = end >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < end && distancesSq[right] > distancesSq[child]) child = right;
+            if (distancesSq[child] <= distanceSq) break;
+            handles[i] = handles[child];
+            distancesSq[i] = distancesSq[child];
+            i = child;
+        }
+        handles[i] = handle;
+        distancesSq[i] = distanceSq;
+    }
+
+    /**
+     * Removes the farthest result. Must not be called after {@link #sort()}.
+     */
+    public void poll() {
+        if (size == 0) return;
+        size--;
+        if (size > 0) siftDown(0, handles[size], distancesSq[size], size);
+    }
+
+    /**
+     * Squared distance of the Kth result, or the limit while fewer than K
+     * results are held. Used as the pruning bound.
+     */
+    public double bound() {
+        return size < capacity ? limit : distancesSq[0];
+    }
+
+    /**
+     * The Kth distance shrunk by {@code (1 + ε)^2}: nodes farther than this are skipped.
+     * While fewer than K results are held this is the limit, unshrunk: the limit is not
+     * a result distance, shrinking it would drop points within it that are still needed.
+     */
+    public double pruneBound() {
+        return size < capacity ? limit : distancesSq[0] * pruneScale;
+    }
+
+    /**
+     * Sorts the results by ascending distance in place (heap sort).
+     * After this no more {@link #offer(int, double)} calls may be made until {@link #reset(int)}.
+     */
+    public void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            int handle = handles[end];
+            double distanceSq = distancesSq[end];
+            handles[end] = handles[0];
+            distancesSq[end] = distancesSq[0];
+            siftDown(0, handle, distanceSq, end);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int handle(int i) {
+        return handles[i];
+    }
+
+    public double distanceSq(int i) {
+        return distancesSq[i];
+    }
+}
@@ -0,0 +1,127 @@
+package util.knn;
+
+import org.khelekore.prtree.DistanceResult;
+import vo.Point;
+import vo.PointBlock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * kNN index kept by a {@link storm.bolt.KNNBolt} task.
+ * <br/>
+ * 每个Slide调用一次{@link #update(long, PointBlock)}, 然后对该Slide的查询点调用
+ * {@link #nearestNeighbour(double, double, int, KNNHeap)}. 实现类决定窗口内的数据如何维护:
+ * 每个Slide重建, 或者按Slide增量插入/删除.
+ * <br/>
+ * 查询结果以int handle写入调用方提供的{@link KNNHeap}, 再通过{@link #id(int)},
+ * {@link #time(int)}读取对应的点, 查询路径上不创建结果对象.
+ * <br/>
+ * 两次update之间索引只读, 查询方法可以被多个线程同时调用.
+ */
+public interface KNNIndex {
+
+    /**
+     * Feeds the points of slide {@code slide} into the index.
+     * Window based implementations also expire the slides that fall out of
+     * the window ({@link util.Configuration#SLIDES}).
+     * @param slide slide timestamp, ascending.
+     * @param block points of the slide.
+     */
+    public void update(long slide, PointBlock block);
+
+    /**
+     * {@link Point} variant of {@link #update(long, PointBlock)}.
+     */
+    public default void update(long slide, Collection<Point> points) {
+        update(slide, PointBlock.of(points));
+    }
+
+    /**
+     * Finds the {@code k} nearest points of {@code (x, y)}.
+     * @param heap reset to capacity {@code k} and filled with (handle, squared distance)
+     *             not beyond {@link KNNHeap#getLimit()};
+     *             call {@link KNNHeap#sort()} to read them by ascending distance.
+     */
+    public void nearestNeighbour(double x, double y, int k, KNNHeap heap);
+
+    /**
+     * Runs {@link #nearestNeighbour(double, double, int, KNNHeap)} for queries
+     * {@code [from, to)}, the results of query {@code i} go to {@code heaps[i]}.
+     * 默认实现逐个查询; 实现类可以把空间上相邻的查询分成一组, 共享同一次树遍历.
+     */
+    public default void nearestNeighbours(double[] xs, double[] ys, int from, int to, int k, KNNHeap[] heaps) {
+        for (int i = from; i < to; i++) {
+            nearestNeighbour(xs[i], ys[i], k, heaps[i]);
+        }
+    }
+
+    /**
+     * Id of the point behind {@code handle}.
+     */
+    public long id(int handle);
+
+    /**
+     * Timestamp of the point behind {@code handle}.
+     */
+    public long time(int handle);
+
+    /**
+     * Materializes the point behind {@code handle}.
+     */
+    public Point point(int handle);
+
+    /**
+     * Slide the point behind {@code handle} was added with.
+     */
+    public long slide(int handle);
+
+    /**
+     * Squared distance between the point behind {@code handle} and {@code (x, y)}.
+     */
+    public double distanceSq(int handle, double x, double y);
+
+    /**
+     * Handle of point {@code offset} of the block passed to the last {@link #update(long, PointBlock)}.
+     */
+    public int handleOf(int offset);
+
+    /**
+     * Number of slides kept by the index; a point added with slide {@code s}
+     * is dropped once a slide {@code >= s + windowSlides()} is added.
+     */
+    public int windowSlides();
+
+    /**
+     * Finds the {@code k} nearest points of {@code query}, ordered by ascending distance.
+     * 分配结果对象, 供验证和离线工具使用.
+     * @return at most {@code k} results.
+     */
+    public default List<DistanceResult<Point>> nearestNeighbour(Point query, int k) {
+        KNNHeap heap = new KNNHeap(k);
+        nearestNeighbour(query.getX(), query.getY(), k, heap);
+        heap.sort();
+        List<DistanceResult<Point>> res = new ArrayList<>(heap.size());
+        for (int i = 0; i < heap.size(); i++) {
+            res.add(new DistanceResult<>(point(heap.handle(i)), Math.sqrt(heap.distanceSq(i))));
+        }
+        return res;
+    }
+
+    /**
+     * {@link #nearestNeighbour(Point, int)} of every query, in the order of {@code queries}.
+     */
+    public default List<List<DistanceResult<Point>>> nearestNeighbours(List<Point> queries, int k) {
+        List<List<DistanceResult<Point>>> results = new ArrayList<>(queries.size());
+        for (Point query : queries) {
+            results.add(nearestNeighbour(query, k));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of points currently indexed.
+     */
+    public int size();
+}
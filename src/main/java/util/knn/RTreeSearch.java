@@ -0,0 +1,105 @@
+package util.knn;
+
+import gnu.trove.procedure.TIntProcedure;
+import util.Rectangle;
+import util.rtree.RTree;
+
+/**
+ * 在{@link RTree}上做best-first kNN查询, 把结果写入{@link KNNHeap}; 结果数组按线程复用,
+ * 容量为该线程用过的最大K加上{@link #EXTRA}. 树中的entry id即为handle, 距离由索引按double重新计算.
+ * <br/>
+ * 树中的坐标是float, 几个点与第K个点的距离相差在舍入误差以内时, 按float距离可能选错第K个点;
+ * 精确查询时这些点都按double距离放入heap, 由heap选出第K个.
+ */
+final class RTreeSearch implements TIntProcedure {
+    private static final ThreadLocal<RTreeSearch> buffers = ThreadLocal.withInitial(RTreeSearch::new);
+    /**
+     * 精确查询时在K个之外多取的点数.
+     */
+    private static final int EXTRA = 4;
+
+    private int[] ids = new int[0];
+    private float[] distancesSq = new float[0];
+    private final Rectangle range = new Rectangle();
+    private KNNIndex index;
+    private double x, y;
+    private KNNHeap heap;
+
+    private RTreeSearch() {
+    }
+
+    /**
+     * Offers the {@code k} entries of {@code tree} nearest to {@code (x, y)} within
+     * {@code limitSq} to {@code heap}.
+     * @param epsilon RTree的近似误差, 0为精确查询.
+     * @param maxNodes RTree最多访问的节点数, 0为不限制.
+     */
+    static void nearestNeighbour(RTree tree, KNNIndex index, double x, double y, int k, double limitSq,
+                                 double epsilon, int maxNodes, KNNHeap heap) {
+        RTreeSearch buffer = buffers.get();
+        if (buffer.ids.length < k + EXTRA) {
+            buffer.ids = new int[k + EXTRA];
+            buffer.distancesSq = new float[k + EXTRA];
+        }
+        if (epsilon > 0 || maxNodes > 0) {
+            //近似查询本身不精确, 不再处理舍入误差
+            int found = tree.nearestN((float) x, (float) y, k, furthestDistance(limitSq),
+                    (float) epsilon, maxNodes, buffer.ids, buffer.distancesSq);
+            buffer.offer(index, x, y, heap, found);
+            return;
+        }
+        float furthestDistance = furthestDistance(limitSq);
+        if (!Float.isInfinite(furthestDistance)) {
+            furthestDistance = Math.nextUp((float) (furthestDistance + slack(x, y, furthestDistance)));
+        }
+        int found = tree.nearestN((float) x, (float) y, k + EXTRA, furthestDistance,
+                buffer.ids, buffer.distancesSq);
+        //float距离比第K个远出两倍误差以内的点都可能是第K个; 多取的点中有更远的, 说明它们都已找到
+        double kth = found < k ? 0 : Math.sqrt(buffer.distancesSq[k - 1]);
+        double r = kth + 2 * slack(x, y, kth);
+        if (found < k + EXTRA || Math.sqrt(buffer.distancesSq[found - 1]) > r) {
+            buffer.offer(index, x, y, heap, found);
+            return;
+        }
+        //第K个附近的点太多, 把距离r以内的点都按double距离重新比较
+        buffer.range.set(Math.nextDown((float) (x - r)), Math.nextDown((float) (y - r)),
+                Math.nextUp((float) (x + r)), Math.nextUp((float) (y + r)));
+        buffer.index = index;
+        buffer.x = x;
+        buffer.y = y;
+        buffer.heap = heap;
+        tree.intersects(buffer.range, buffer);
+        buffer.index = null;
+        buffer.heap = null;
+    }
+
+    private void offer(KNNIndex index, double x, double y, KNNHeap heap, int found) {
+        for (int i = 0; i < found; i++) {
+            heap.offer(ids[i], index.distanceSq(ids[i], x, y));
+        }
+    }
+
+    /**
+     * Bound on the difference between the float distance in the tree and the double distance
+     * of a point within {@code radius} of {@code (x, y)}: the point and the query are each
+     * rounded by half an ulp per coordinate, at most ulp / sqrt(2) apart, and the float
+     * arithmetic adds a relative error.
+     */
+    private static double slack(double x, double y, double radius) {
+        return 1.5 * Math.ulp((float) (Math.max(Math.abs(x), Math.abs(y)) + radius)) + 1e-6 * radius;
+    }
+
+    @Override
+    public boolean execute(int handle) {
+        heap.offer(handle, index.distanceSq(handle, x, y));
+        return true;
+    }
+
+    /**
+     * 把heap的距离平方上界换算为RTree使用的float距离, 向上取整避免漏掉边界上的点.
+     */
+    static float furthestDistance(double limitSq) {
+        if (Double.isInfinite(limitSq)) return Float.POSITIVE_INFINITY;
+        return Math.nextUp((float) Math.sqrt(limitSq));
+    }
+}
@@ -0,0 +1,92 @@
+package util.knn;
+
+import util.rtree.RTree;
+import vo.Point;
+import vo.PointBlock;
+
+import java.util.Properties;
+
+/**
+ * 每次{@link #update(long, PointBlock)}都用传入的点重新bulk-load(STR)一棵{@link RTree}.
+ * 索引中只包含最近一次传入的点, 与原来KNNBolt的行为一致.
+ * <br/>
+ * 树中的entry id是点在{@link PointBlock}中的下标, 也就是handle. 树的节点数组和bulk-load用的坐标数组
+ * 在Slide之间复用. 查询是精确的best-first搜索, 不使用近似设置.
+ */
+public class RebuildKNNIndex implements KNNIndex {
+    private final RTree tree = new RTree();
+    private PointBlock block = new PointBlock();
+    private float[] xs = new float[0], ys = new float[0];
+    private int[] ids = new int[0];
+    private long slide = Long.MIN_VALUE;
+
+    public RebuildKNNIndex(int branchFactor) {
+        Properties properties = new Properties();
+        properties.setProperty("MaxNodeEntries", "" + branchFactor);
+        tree.init(properties);
+    }
+
+    @Override
+    public void update(long slide, PointBlock block) {
+        this.slide = slide;
+        this.block = block;
+        int n = block.size();
+        if (xs.length < n) {
+            xs = new float[n];
+            ys = new float[n];
+            ids = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            xs[i] = (float) block.getX(i);
+            ys[i] = (float) block.getY(i);
+            ids[i] = i;
+        }
+        tree.load(xs, ys, xs, ys, ids, n);
+    }
+
+    @Override
+    public void nearestNeighbour(double x, double y, int k, KNNHeap heap) {
+        heap.reset(k);
+        RTreeSearch.nearestNeighbour(tree, this, x, y, k, heap.getLimit(), 0, 0, heap);
+    }
+
+    @Override
+    public long id(int handle) {
+        return block.getId(handle);
+    }
+
+    @Override
+    public long time(int handle) {
+        return block.getTime(handle);
+    }
+
+    @Override
+    public Point point(int handle) {
+        return block.toPoint(handle);
+    }
+
+    @Override
+    public long slide(int handle) {
+        return slide;
+    }
+
+    @Override
+    public double distanceSq(int handle, double x, double y) {
+        return block.distanceSq(handle, x, y);
+    }
+
+    @Override
+    public int handleOf(int offset) {
+        return offset;
+    }
+
+    @Override
+    public int windowSlides() {
+        return 1;
+    }
+
+    @Override
+    public int size() {
+        return block.size();
+    }
+}
@@ -0,0 +1,234 @@
+package util.knn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.rtree.RTree;
+import vo.Point;
+import vo.PointBlock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 按Slide划分的索引森林.
+ * <br/>
+ * 窗口中的每个Slide各自bulk-load(STR)小的{@link RTree}, 放在与{@link util.Configuration#SLIDES}
+ * 等长的环形数组里. Slide过期时只需丢弃对应的树, 不需要逐点删除.
+ * 同一Slide分多个数据块到达时每块bulk-load一棵树, 已有的树不重建.
+ * <br/>
+ * 查询时按各树MBR到查询点的最小距离由近到远依次搜索, 所有树共享同一个{@link KNNHeap};
+ * 一旦某棵树的最小距离超过当前第K近距离, 其后的树都不必再搜索.
+ * 近似查询只作用在树这一级: 用{@link KNNHeap#pruneBound()}决定是否继续, 每棵树计一次
+ * {@link KNNHeap#visit()}; 树内是精确的best-first搜索, 以当前第K近距离为上界.
+ * <br/>
+ * handle编码为 {@code offset * slides + slot}, offset为点在该槽位{@link PointBlock}中的下标;
+ * 树中的entry id就是handle.
+ */
+public class SlideForestKNNIndex implements KNNIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(SlideForestKNNIndex.class);
+    private static final long EMPTY_SLOT = Long.MIN_VALUE;
+
+    /**
+     * 每个查询线程复用的排序缓冲区: 树的编码以及MBR到查询点的最小距离.
+     */
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static class Scratch {
+        int[] order = new int[0];
+        double[] minDistSq = new double[0];
+    }
+
+    private final Properties treeProperties = new Properties();
+    private final int slides;
+    private final long[] slotSlide;
+    private final List<PointBlock> slotPoints;
+    /**
+     * slot -> one tree per block of the slide.
+     */
+    private final List<List<RTree>> slotTrees;
+    /**
+     * slot -> bounds {minX, minY, maxX, maxY} of the points of each tree of the slide,
+     * in double so that pruning a tree never drops a point that float rounding moved.
+     */
+    private final List<List<double[]>> slotBounds;
+    /**
+     * bulk-load用的坐标和handle数组, 在数据块之间复用.
+     */
+    private float[] xs = new float[0], ys = new float[0];
+    private int[] ids = new int[0];
+    private int trees = 0;
+    /**
+     * 最近一次update的数据块在槽位中的起始下标和槽位, 见{@link #handleOf(int)}.
+     */
+    private int lastStart = 0, lastSlot = 0;
+    private long newestSlide = EMPTY_SLOT;
+    private int size = 0;
+
+    public SlideForestKNNIndex(int branchFactor, int slides) {
+        treeProperties.setProperty("MaxNodeEntries", "" + branchFactor);
+        this.slides = slides;
+        this.slotSlide = new long[slides];
+        this.slotPoints = new ArrayList<>(slides);
+        this.slotTrees = new ArrayList<>(slides);
+        this.slotBounds = new ArrayList<>(slides);
+        for (int i = 0; i < slides; i++) {
+            slotSlide[i] = EMPTY_SLOT;
+            slotPoints.add(new PointBlock());
+            slotTrees.add(new ArrayList<>());
+            slotBounds.add(new ArrayList<>());
+        }
+    }
+
+    @Override
+    public void update(long slide, PointBlock points) {
+        if (newestSlide != EMPTY_SLOT && slide <= newestSlide - slides) {
+            LOG.warn("Slide {} has expired, newest slide is {}.", slide, newestSlide);
+            return;
+        }
+        if (slide > newestSlide) {
+            newestSlide = slide;
+            for (int slot = 0; slot < slides; slot++) {
+                if (slotSlide[slot] != EMPTY_SLOT && slotSlide[slot] <= newestSlide - slides) {
+                    drop(slot);
+                }
+            }
+        }
+        int slot = slot(slide);
+        slotSlide[slot] = slide;
+        //同一Slide可能分多个tuple到达, 新的数据块单独bulk-load一棵树, 下标接在该槽位已有的点之后.
+        PointBlock buffer = slotPoints.get(slot);
+        int start = buffer.size();
+        lastStart = start;
+        lastSlot = slot;
+        if (points.isEmpty()) return;
+        buffer.addAll(points);
+        size += points.size();
+        int n = points.size();
+        if (xs.length < n) {
+            xs = new float[n];
+            ys = new float[n];
+            ids = new int[n];
+        }
+        double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i < n; i++) {
+            double x = points.getX(i), y = points.getY(i);
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.max(bounds[2], x);
+            bounds[3] = Math.max(bounds[3], y);
+            xs[i] = (float) x;
+            ys[i] = (float) y;
+            ids[i] = handle(start + i, slot);
+        }
+        RTree tree = new RTree();
+        tree.init(treeProperties);
+        tree.load(xs, ys, xs, ys, ids, n);
+        slotTrees.get(slot).add(tree);
+        slotBounds.get(slot).add(bounds);
+        trees++;
+    }
+
+    private void drop(int slot) {
+        size -= slotPoints.get(slot).size();
+        slotPoints.get(slot).clear();
+        trees -= slotTrees.get(slot).size();
+        slotTrees.get(slot).clear();
+        slotBounds.get(slot).clear();
+        slotSlide[slot] = EMPTY_SLOT;
+    }
+
+    @Override
+    public void nearestNeighbour(double x, double y, int k, KNNHeap heap) {
+        heap.reset(k);
+        //按最小距离对存活的树排序, 树编码为 该槽位中的序号 * slides + slot.
+        int live = 0;
+        Scratch buffers = scratch.get();
+        if (buffers.order.length < trees) {
+            buffers.order = new int[trees];
+            buffers.minDistSq = new double[trees];
+        }
+        int[] order = buffers.order;
+        double[] minDistSq = buffers.minDistSq;
+        for (int slot = 0; slot < slides; slot++) {
+            List<double[]> bounds = slotBounds.get(slot);
+            for (int t = 0; t < bounds.size(); t++) {
+                double d = minDistSq(bounds.get(t), x, y);
+                int i = live++;
+                while (i > 0 && minDistSq[i - 1] > d) {
+                    minDistSq[i] = minDistSq[i - 1];
+                    order[i] = order[i - 1];
+                    i--;
+                }
+                minDistSq[i] = d;
+                order[i] = t * slides + slot;
+            }
+        }
+
+        for (int i = 0; i < live; i++) {
+            if (minDistSq[i] > heap.pruneBound() || !heap.visit()) break;
+            RTree tree = slotTrees.get(order[i] % slides).get(order[i] / slides);
+            RTreeSearch.nearestNeighbour(tree, this, x, y, k, heap.bound(), 0, 0, heap);
+        }
+    }
+
+    /**
+     * Squared distance between {@code (x, y)} and the box.
+     */
+    private static double minDistSq(double[] bounds, double x, double y) {
+        double dx = 0.0, dy = 0.0;
+        if (x < bounds[0]) dx = bounds[0] - x;
+        else if (x > bounds[2]) dx = x - bounds[2];
+        if (y < bounds[1]) dy = bounds[1] - y;
+        else if (y > bounds[3]) dy = y - bounds[3];
+        return dx * dx + dy * dy;
+    }
+
+    @Override
+    public long id(int handle) {
+        return slotPoints.get(handle % slides).getId(handle / slides);
+    }
+
+    @Override
+    public long time(int handle) {
+        return slotPoints.get(handle % slides).getTime(handle / slides);
+    }
+
+    @Override
+    public Point point(int handle) {
+        return slotPoints.get(handle % slides).toPoint(handle / slides);
+    }
+
+    @Override
+    public long slide(int handle) {
+        return slotSlide[handle % slides];
+    }
+
+    @Override
+    public double distanceSq(int handle, double x, double y) {
+        return slotPoints.get(handle % slides).distanceSq(handle / slides, x, y);
+    }
+
+    @Override
+    public int handleOf(int offset) {
+        return (lastStart + offset) * slides + lastSlot;
+    }
+
+    @Override
+    public int windowSlides() {
+        return slides;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int slot(long slide) {
+        return (int) (((slide % slides) + slides) % slides);
+    }
+
+    private int handle(int offset, int slot) {
+        return offset * slides + slot;
+    }
+}
@@ -0,0 +1,200 @@
+package util.router;
+
+import util.SpaceFillingCurve;
+
+import java.util.Arrays;
+
+/**
+ * 按Hilbert曲线划分的分区: 区域划分为{@code 2^BITS x 2^BITS}个Cell, 每个分区是一段连续的Hilbert key.
+ * <br/>
+ * 分区数可以是任意整数. 分界点取在{@code 2^BUCKET_BITS x 2^BUCKET_BITS}个负载桶(对齐的方块)的边界上,
+ * 负载均衡时按各桶平滑后的点数, 把分界点移到累计负载的等分位处.
+ * <br/>
+ * 对齐的{@code 2^l x 2^l}方块在Hilbert曲线上是一段连续的key, 因此边界复制从整个区域的方块开始,
+ * 只细分与点的边界区域相交, 且跨越了分界点的方块, 得到的分区是精确的.
+ */
+class CurveLayout {
+    static final int BITS = 10;
+    static final int BUCKET_BITS = 6;
+    private static final int BUCKET_SHIFT = 2 * (BITS - BUCKET_BITS);
+    private static final int BUCKETS = 1 << (2 * BUCKET_BITS);
+    private static final int SIDE = 1 << BITS;
+
+    private final double minX, minY, cellWidth, cellHeight;
+    /**
+     * 分区i的key范围为 [cuts[i], cuts[i + 1]).
+     */
+    private long[] cuts;
+    private Partition[] parts;
+    private final int[] bucketCounts = new int[BUCKETS];
+    private final double[] bucketLoads = new double[BUCKETS];
+
+    CurveLayout(double minX, double minY, double maxX, double maxY, int partitions) {
+        this.minX = minX;
+        this.minY = minY;
+        this.cellWidth = (maxX - minX) / SIDE;
+        this.cellHeight = (maxY - minY) / SIDE;
+        int n = Math.max(1, Math.min(partitions, BUCKETS));
+        cuts = new long[n + 1];
+        for (int i = 0; i <= n; i++) {
+            //等面积, 取在桶的边界上
+            cuts[i] = ((long) BUCKETS * i / n) << BUCKET_SHIFT;
+        }
+        Arrays.fill(bucketLoads, -1);
+    }
+
+    int size() {
+        return cuts.length - 1;
+    }
+
+    /**
+     * Creates the partitions of the current cuts, with ids from {@code firstId} on;
+     * each partition's extent is the bounding box of its cells.
+     */
+    Partition[] createPartitions(int firstId, double margin) {
+        int n = size();
+        double[][] bounds = new double[n][];
+        collectBounds(0, 0, BITS, bounds);
+        parts = new Partition[n];
+        for (int i = 0; i < n; i++) {
+            double[] b = null == bounds[i] ? new double[]{minX, minY, minX, minY} : bounds[i];
+            parts[i] = new Partition(firstId + i, b[0], b[1], b[2], b[3], null);
+            parts[i].margin = margin;
+        }
+        return parts;
+    }
+
+    private void collectBounds(int x0, int y0, int level, double[][] bounds) {
+        long k0 = firstKey(x0, y0, level);
+        int p0 = partitionOf(k0), p1 = partitionOf(k0 + (1L << (2 * level)) - 1);
+        if (p0 == p1) {
+            int side = 1 << level;
+            double sx0 = minX + x0 * cellWidth, sy0 = minY + y0 * cellHeight;
+            double sx1 = minX + (x0 + side) * cellWidth, sy1 = minY + (y0 + side) * cellHeight;
+            double[] b = bounds[p0];
+            if (null == b) {
+                bounds[p0] = new double[]{sx0, sy0, sx1, sy1};
+            } else {
+                b[0] = Math.min(b[0], sx0);
+                b[1] = Math.min(b[1], sy0);
+                b[2] = Math.max(b[2], sx1);
+                b[3] = Math.max(b[3], sy1);
+            }
+            return;
+        }
+        int half = 1 << (level - 1);
+        collectBounds(x0, y0, level - 1, bounds);
+        collectBounds(x0 + half, y0, level - 1, bounds);
+        collectBounds(x0, y0 + half, level - 1, bounds);
+        collectBounds(x0 + half, y0 + half, level - 1, bounds);
+    }
+
+    /**
+     * Smallest Hilbert key of the aligned {@code 2^level} square at cell {@code (x0, y0)}.
+     */
+    private static long firstKey(int x0, int y0, int level) {
+        return SpaceFillingCurve.hilbert(x0, y0, BITS) >>> (2 * level) << (2 * level);
+    }
+
+    private int partitionOf(long key) {
+        int i = Arrays.binarySearch(cuts, key);
+        return Math.min(i >= 0 ? i : -i - 2, size() - 1);
+    }
+
+    private int cellX(double x) {
+        return Math.min(Math.max((int) Math.floor((x - minX) / cellWidth), 0), SIDE - 1);
+    }
+
+    private int cellY(double y) {
+        return Math.min(Math.max((int) Math.floor((y - minY) / cellHeight), 0), SIDE - 1);
+    }
+
+    /**
+     * Home partition of {@code (x, y)}; points outside the area go to the nearest cell.
+     * @param count whether to count the point in the load of its bucket.
+     */
+    Partition home(double x, double y, boolean count) {
+        long key = SpaceFillingCurve.hilbert(cellX(x), cellY(y), BITS);
+        if (count) bucketCounts[(int) (key >>> BUCKET_SHIFT)]++;
+        return parts[partitionOf(key)];
+    }
+
+    /**
+     * Adds {@code home} and every other partition whose cells, widened by its margin,
+     * contain {@code (x, y)}.
+     */
+    void route(double x, double y, Partition home, double maxMargin, RouteBuffer buffer) {
+        buffer.add(home.id, false);
+        int cx0 = cellX(x - maxMargin), cx1 = cellX(x + maxMargin);
+        int cy0 = cellY(y - maxMargin), cy1 = cellY(y + maxMargin);
+        route(0, 0, BITS, cx0, cy0, cx1, cy1, x, y, buffer);
+    }
+
+    private void route(int x0, int y0, int level, int cx0, int cy0, int cx1, int cy1,
+                       double x, double y, RouteBuffer buffer) {
+        int side = 1 << level;
+        if (x0 > cx1 || x0 + side - 1 < cx0 || y0 > cy1 || y0 + side - 1 < cy0) return;
+        long k0 = firstKey(x0, y0, level);
+        int p0 = partitionOf(k0), p1 = partitionOf(k0 + (1L << (2 * level)) - 1);
+        if (p0 == p1) {
+            Partition p = parts[p0];
+            double m = p.margin;
+            if (x < minX + x0 * cellWidth - m || x > minX + (x0 + side) * cellWidth + m
+                    || y < minY + y0 * cellHeight - m || y > minY + (y0 + side) * cellHeight + m) return;
+            for (int i = 0; i < buffer.size(); i++) {
+                if (buffer.route(i) == p.id) return;
+            }
+            buffer.add(p.id, true);
+            return;
+        }
+        int half = side >> 1;
+        route(x0, y0, level - 1, cx0, cy0, cx1, cy1, x, y, buffer);
+        route(x0 + half, y0, level - 1, cx0, cy0, cx1, cy1, x, y, buffer);
+        route(x0, y0 + half, level - 1, cx0, cy0, cx1, cy1, x, y, buffer);
+        route(x0 + half, y0 + half, level - 1, cx0, cy0, cx1, cy1, x, y, buffer);
+    }
+
+    /**
+     * 平滑各桶的负载; 最重的分区超过平均负载的{@code imbalance}倍时, 按累计负载等分重新确定分界点,
+     * 每个分区至少一个桶.
+     * @return whether the cuts moved, in which case {@link #createPartitions(int, double)} must be called.
+     */
+    boolean rebalance(double smoothing, double imbalance) {
+        double total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            bucketLoads[b] = bucketLoads[b] < 0 ? bucketCounts[b]
+                    : smoothing * bucketCounts[b] + (1 - smoothing) * bucketLoads[b];
+            bucketCounts[b] = 0;
+            total += bucketLoads[b];
+        }
+        int n = size();
+        if (total <= 0 || n < 2) return false;
+        double max = 0;
+        for (int i = 0; i < n; i++) {
+            double load = 0;
+            for (int b = (int) (cuts[i] >>> BUCKET_SHIFT); b < (int) (cuts[i + 1] >>> BUCKET_SHIFT); b++) {
+                load += bucketLoads[b];
+            }
+            max = Math.max(max, load);
+        }
+        if (max <= imbalance * total / n) return false;
+        int[] bounds = new int[n + 1];
+        bounds[n] = BUCKETS;
+        double cumulative = 0;
+        int j = 1;
+        for (int b = 0; b < BUCKETS && j < n; b++) {
+            cumulative += bucketLoads[b];
+            while (j < n && cumulative >= total * j / n) {
+                bounds[j++] = b + 1;
+            }
+        }
+        for (; j < n; j++) bounds[j] = BUCKETS;
+        for (int i = 1; i < n; i++) bounds[i] = Math.max(bounds[i], bounds[i - 1] + 1);
+        for (int i = n - 1; i > 0; i--) bounds[i] = Math.min(bounds[i], bounds[i + 1] - 1);
+        long[] moved = new long[n + 1];
+        for (int i = 0; i <= n; i++) moved[i] = (long) bounds[i] << BUCKET_SHIFT;
+        if (Arrays.equals(moved, cuts)) return false;
+        cuts = moved;
+        return true;
+    }
+}
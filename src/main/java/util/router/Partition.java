@@ -0,0 +1,95 @@
+package util.router;
+
+import java.util.Arrays;
+
+/**
+ * {@link Router}中的一个分区. 初始的规则网格中每个Cell是一个分区;
+ * 负载均衡时分区可以按四叉树分裂为4个子分区, 子分区也可以再合并回父分区.
+ * 按采样数据构建的KD树分区则在{@link #splitAxis}上一分为二.
+ * 只有叶子分区接收数据.
+ */
+class Partition {
+    /**
+     * {@link #splitAxis} of a partition split into four quadrants at its center.
+     */
+    static final int QUAD = -1;
+
+    final int id;
+    final double minX, minY, maxX, maxY;
+    final Partition parent;
+    /**
+     * 子分区, 四叉树分裂时下标为 {@code qy * 2 + qx}, KD树分裂时依次为{@link #split}两侧; 叶子分区为null.
+     */
+    Partition[] children;
+    /**
+     * {@link #QUAD}, 或KD树分裂的坐标轴(0为x, 1为y).
+     */
+    int splitAxis = QUAD;
+    double split;
+    /**
+     * 平滑后的每Slide负载, 负数表示还没有观测值.
+     */
+    double load = -1;
+    /**
+     * 当前Slide路由到该分区的点数和查询数.
+     */
+    int points = 0;
+    int queries = 0;
+    /**
+     * 边界宽度: 其他分区中到本分区的距离不超过它的点被复制到本分区.
+     */
+    double margin;
+    /**
+     * 自适应边界宽度时, 分区划分为{@code EDGE_GRID x EDGE_GRID}个子Cell,
+     * 记录当前Slide每个子Cell中的点数, 以及按Slide平滑后的点数(负数表示还没有观测值).
+     */
+    static final int EDGE_GRID = 4;
+    int[] edgeCounts;
+    double[] edgeDensity;
+
+    Partition(int id, double minX, double minY, double maxX, double maxY, Partition parent) {
+        this.id = id;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.parent = parent;
+    }
+
+    boolean isLeaf() {
+        return null == children;
+    }
+
+    double midX() {
+        return (minX + maxX) / 2;
+    }
+
+    double midY() {
+        return (minY + maxY) / 2;
+    }
+
+    /**
+     * Counts a point of this partition in its sub-cell.
+     */
+    void countEdge(double x, double y) {
+        if (null == edgeCounts) {
+            edgeCounts = new int[EDGE_GRID * EDGE_GRID];
+            edgeDensity = new double[EDGE_GRID * EDGE_GRID];
+            Arrays.fill(edgeDensity, -1);
+        }
+        int i = Math.min(Math.max((int) ((x - minX) / (maxX - minX) * EDGE_GRID), 0), EDGE_GRID - 1);
+        int j = Math.min(Math.max((int) ((y - minY) / (maxY - minY) * EDGE_GRID), 0), EDGE_GRID - 1);
+        edgeCounts[j * EDGE_GRID + i]++;
+    }
+
+    /**
+     * Index of the child whose own extent (not widened) holds {@code (x, y)},
+     * given that this partition holds it.
+     */
+    int homeChild(double x, double y) {
+        if (splitAxis == QUAD) {
+            return (y >= midY() ? 2 : 0) + (x >= midX() ? 1 : 0);
+        }
+        return (splitAxis == 0 ? x : y) >= split ? 1 : 0;
+    }
+}
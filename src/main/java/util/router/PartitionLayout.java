@@ -0,0 +1,68 @@
+package util.router;
+
+import java.io.Serializable;
+
+/**
+ * {@link Router}叶子分区的快照: 分区id及其范围(不含边界区域).
+ * <br/>
+ * 两阶段kNN查询中由RouterBolt在分区变化时广播给KNNBolt, 用于找出与查询的第K近距离圆相交的相邻分区.
+ */
+public class PartitionLayout implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int version;
+    private final int[] ids;
+    private final double[] minXs, minYs, maxXs, maxYs;
+
+    PartitionLayout(int version, int size) {
+        this.version = version;
+        ids = new int[size];
+        minXs = new double[size];
+        minYs = new double[size];
+        maxXs = new double[size];
+        maxYs = new double[size];
+    }
+
+    void set(int i, Partition p) {
+        ids[i] = p.id;
+        minXs[i] = p.minX;
+        minYs[i] = p.minY;
+        maxXs[i] = p.maxX;
+        maxYs[i] = p.maxY;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int id(int i) {
+        return ids[i];
+    }
+
+    public boolean contains(int id) {
+        for (int i : ids) {
+            if (i == id) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the partitions other than {@code exclude} that are nearer than
+     * {@code sqrt(distanceSq)} to {@code (x, y)}, all flagged as boundary routes.
+     * @return number of partitions added.
+     */
+    public int nearby(double x, double y, double distanceSq, int exclude, RouteBuffer buffer) {
+        buffer.clear();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == exclude) continue;
+            double dx = x < minXs[i] ? minXs[i] - x : (x > maxXs[i] ? x - maxXs[i] : 0);
+            double dy = y < minYs[i] ? minYs[i] - y : (y > maxYs[i] ? y - maxYs[i] : 0);
+            if (dx * dx + dy * dy < distanceSq) buffer.add(ids[i], true);
+        }
+        return buffer.size();
+    }
+}
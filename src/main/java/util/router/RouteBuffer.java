@@ -0,0 +1,50 @@
+package util.router;
+
+import java.util.Arrays;
+
+/**
+ * 一个点的路由结果: 分区id以及该点在分区中是否为边界点.
+ * <br/>
+ * 以基本类型数组保存, 由调用方持有并在不同点之间复用, 路由时不创建对象.
+ * 见{@link Router#getIndexes(double, double, RouteBuffer)}.
+ */
+public class RouteBuffer {
+    private int[] routes;
+    private boolean[] boundaries;
+    private int size = 0;
+
+    public RouteBuffer() {
+        this(4);
+    }
+
+    public RouteBuffer(int capacity) {
+        routes = new int[Math.max(capacity, 1)];
+        boundaries = new boolean[routes.length];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(int route, boolean boundary) {
+        if (size == routes.length) {
+            routes = Arrays.copyOf(routes, size * 2);
+            boundaries = Arrays.copyOf(boundaries, size * 2);
+        }
+        routes[size] = route;
+        boundaries[size] = boundary;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int route(int i) {
+        return routes[i];
+    }
+
+    public boolean isBoundary(int i) {
+        return boundaries[i];
+    }
+}
@@ -2,6 +2,7 @@ package util.router;
 
 
 
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.procedure.TIntCharProcedure;
 import gnu.trove.procedure.TIntProcedure;
 import util.SpatialIndex;
@@ -11,7 +12,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import util.Configuration;
-import util.Rectangle;
 import vo.Point;
 
 import java.util.*;
@@ -25,6 +25,27 @@ public class Router {
         conf = stormConf;
         INDEX_HIGHT = Integer.valueOf(conf.get(Configuration.NAME_INDEX_HIGHT).toString());
         BOUNDARY_LENGTH_SCALE = Double.valueOf(conf.get(Configuration.NAME_BOUNDARY_LENGTH_SCALE).toString());
+        if (null != conf.get(Configuration.NAME_BALANCE)) {
+            balance = Boolean.valueOf(conf.get(Configuration.NAME_BALANCE).toString());
+        }
+        if (null != conf.get(Configuration.NAME_LAYOUT)) {
+            layout = conf.get(Configuration.NAME_LAYOUT).toString();
+            sampleSlides = Integer.valueOf(conf.get(Configuration.NAME_LAYOUT_SAMPLE_SLIDES).toString());
+            layoutPartitions = Integer.valueOf(conf.get(Configuration.NAME_LAYOUT_PARTITIONS).toString());
+        }
+        if (null != conf.get(Configuration.NAME_BOUNDARY_ADAPTIVE)) {
+            adaptiveBoundary = Boolean.valueOf(conf.get(Configuration.NAME_BOUNDARY_ADAPTIVE).toString());
+            boundarySafety = Double.valueOf(conf.get(Configuration.NAME_BOUNDARY_SAFETY).toString());
+        }
+        if (null != conf.get(Configuration.NAME_K)) {
+            K = Integer.valueOf(conf.get(Configuration.NAME_K).toString());
+        }
+        if (null != conf.get(Configuration.NAME_KNN_MODE) && !"rebuild".equalsIgnoreCase(conf.get(Configuration.NAME_KNN_MODE).toString())) {
+            windowSlides = Configuration.SLIDES;
+        }
+        if (null != conf.get(Configuration.NAME_KNN_BOLT_NUM)) {
+            knnTasks = Integer.valueOf(conf.get(Configuration.NAME_KNN_BOLT_NUM).toString());
+        }
     }
     public Router() { }
     class SaveToIntCharProcedure implements TIntCharProcedure {
@@ -51,12 +72,78 @@ public class Router {
     private double[][] area = Configuration.DEFAULT_AREA;
     private double MIN_CELL_WIDTH = Configuration.RADIUS/(2*Math.sqrt(Configuration.DIMENSIONS));
     private double boundaryLength = 0.0;
+    /**
+     * 所有叶子分区中最大的边界宽度, 用于剪枝.
+     */
+    private double maxMargin = 0.0;
+    /**
+     * 是否按各分区边缘的点密度估计第K近距离, 逐个分区, 逐个Slide地确定边界宽度.
+     */
+    private boolean adaptiveBoundary = false;
+    private double boundarySafety = 2.0;
+    private int K = Configuration.K;
+    /**
+     * KNNBolt索引中保存的Slide数, 用于由每Slide的点数估计索引中的点密度.
+     */
+    private int windowSlides = 1;
     SpatialIndex si = null;
+    /**
+     * 分区为规则网格时, 直接由坐标计算所在Cell, 不查询{@link #si}.
+     */
+    private boolean regularGrid = false;
+    private int gridSide;
+    private int gridFirstId;
+    private double gridMinX, gridMinY, gridXInterval, gridYInterval;
+    /**
+     * 规则网格的Cell, 按行排列. 负载均衡时每个Cell是一棵分区四叉树的根.
+     */
+    private Partition[] gridCells;
+    /**
+     * id -> 叶子分区.
+     */
+    private final TIntObjectHashMap<Partition> partitions = new TIntObjectHashMap<>();
+    private int nextPartitionId;
+    private boolean balance = false;
+    /**
+     * 接收分区的KNNBolt任务数, 负载均衡以每个任务的平均负载为基准.
+     */
+    private int knnTasks = 1;
+    private int layoutVersion = 0;
+    /**
+     * grid: 等面积的规则网格; kdtree: 先用规则网格路由前{@link #sampleSlides}个Slide并采样,
+     * 再按样本构建点数相近的KD树分区; hilbert: 按Hilbert曲线上连续的key段划分, 见{@link CurveLayout}.
+     */
+    private String layout = "grid";
+    private int sampleSlides = 1;
+    /**
+     * KD树或Hilbert曲线的分区数, 不大于0时取{@link #knnTasks}.
+     */
+    private int layoutPartitions = 0;
+    /**
+     * KD树分区的根, 规则网格下为null.
+     */
+    private Partition root;
+    /**
+     * Hilbert曲线分区, 其他布局下为null.
+     */
+    private CurveLayout curve;
+    private boolean sampling = false;
+    private int sampledSlides = 0;
+    private static final int SAMPLE_SIZE = 100000;
+    private double[] sampleXs, sampleYs;
+    private int sampleCount = 0;
+    private long sampleSeen = 0;
+    private final Random sampleRandom = new Random(0);
+    /**
+     * 分区负载的平滑系数, 新的Slide占的权重.
+     */
+    private static final double LOAD_SMOOTHING = 0.5;
     public void init(){//initialization.
         double minSide = minSideOfArea();
         long leafNum = 1 << (INDEX_HIGHT - 1);
         double leafLength = minSide / leafNum;
         boundaryLength = leafLength * BOUNDARY_LENGTH_SCALE;
+        maxMargin = boundaryLength;
 
 
         si = new RTree();
@@ -70,35 +157,445 @@ public class Router {
         double xInterval = (area[0][1] - area[0][0]) / leafNum;
         double yInterval = (area[1][1] - area[1][0]) / leafNum;
 
+        int cells = (int) (leafNum * leafNum);
+        gridCells = new Partition[cells];
+        float[] minXs = new float[cells], minYs = new float[cells], maxXs = new float[cells], maxYs = new float[cells];
+        int[] ids = new int[cells];
+        partitions.clear();
         for (int row = 0; row < leafNum; row ++){
             for (int col = 0; col < leafNum; col ++){
-               Rectangle rec =  new Rectangle((float)( x  - boundaryLength) ,(float)( y  - boundaryLength),
-                       (float)( x + xInterval + boundaryLength),
-                       (float)(y + yInterval + boundaryLength));
-
-                si.add(rec, id);
+                Partition cell = new Partition(id, x, y, x + xInterval, y + yInterval, null);
+                cell.margin = boundaryLength;
+                int c = row * (int) leafNum + col;
+                gridCells[c] = cell;
+                partitions.put(id, cell);
+                minXs[c] = (float) (x - boundaryLength);
+                minYs[c] = (float) (y - boundaryLength);
+                maxXs[c] = (float) (x + xInterval + boundaryLength);
+                maxYs[c] = (float) (y + yInterval + boundaryLength);
+                ids[c] = id;
                 x = x + xInterval;
                 id ++;
             }
             x = area[0][0];// back to the start column.
             y = y + yInterval;
         }
+        //一次性打包构建, 大的index.height下也不需要逐个插入和分裂节点
+        si.load(minXs, minYs, maxXs, maxYs, ids, cells);
+        regularGrid = true;
+        gridSide = (int) leafNum;
+        gridFirstId = (1 << (INDEX_HIGHT - 1)) - 1;
+        gridMinX = area[0][0];
+        gridMinY = area[1][0];
+        gridXInterval = xInterval;
+        gridYInterval = yInterval;
+        nextPartitionId = id;
+        layoutVersion = 0;
+        root = null;
+        sampling = "kdtree".equalsIgnoreCase(layout);
+        sampledSlides = 0;
+        curve = null;
+        if ("hilbert".equalsIgnoreCase(layout)) {
+            int n = layoutPartitions > 0 ? layoutPartitions : knnTasks;
+            curve = new CurveLayout(area[0][0], area[1][0], area[0][1], area[1][1], Math.max(n, 1));
+            installCurvePartitions();
+        }
+        if (sampling) {
+            sampleXs = new double[SAMPLE_SIZE];
+            sampleYs = new double[SAMPLE_SIZE];
+            sampleCount = 0;
+            sampleSeen = 0;
+        }
         System.out.println();
     }//init
 
-    SaveToIntCharProcedure stp =  new SaveToIntCharProcedure();
     public Map<Integer, Character> getIndexes(Point point){
-        try {
-            float x =  (float) point.getAttrs()[0];
-            float y = (float) point.getAttrs()[1];
-            si.nearest(new util.Point(x, y),stp,Float.MIN_VALUE);
-            return new HashMap<Integer, Character>(stp.getIds());
-        }finally {
-            stp.getIds().clear();//clear buffer.
+        RouteBuffer routeBuffer = new RouteBuffer();
+        getIndexes(point.getX(), point.getY(), routeBuffer);
+        Map<Integer, Character> routes = new HashMap<Integer, Character>();
+        for (int i = 0; i < routeBuffer.size(); i++) {
+            routes.put(routeBuffer.route(i), routeBuffer.isBoundary(i) ? 'T' : 'F');
         }
-
+        return routes;
     }//getIndexes
 
+    /**
+     * 计算点{@code (x, y)}所属的分区, 写入{@code buffer}.
+     * <br/>
+     * 规则网格下, 所在Cell以及扩展了边界宽度后包含该点的相邻Cell都由坐标直接算出;
+     * 点不在Cell本身范围内(只落在扩展的边界区域内)时为边界点.
+     * Cell被分裂过时, 在它的四叉树中同样按扩展后的范围向下查找叶子分区.
+     * KD树分区从根开始同样查找. Hilbert曲线分区见{@link CurveLayout#route}. 边界宽度默认为{@code boundaryLength}, 自适应时每个分区各不相同.
+     * <br/>
+     * 路由本身不使用共享的临时对象; 但负载均衡和自适应边界的计数不同步, 开启时一个Router只能由一个线程使用.
+     * @return number of routes.
+     */
+    public int getIndexes(double x, double y, RouteBuffer buffer) {
+        buffer.clear();
+        if (null != curve) {
+            Partition home = curve.home(x, y, balance);
+            if (adaptiveBoundary) home.countEdge(x, y);
+            curve.route(x, y, home, maxMargin, buffer);
+            return buffer.size();
+        }
+        if (null != root) {
+            boolean home = x >= root.minX && x <= root.maxX && y >= root.minY && y <= root.maxY;
+            route(root, x, y, home, buffer);
+            return buffer.size();
+        }
+        if (!regularGrid) {
+            //每次调用单独的结果集, 分区索引可以被多个线程同时查询
+            SaveToIntCharProcedure stp = new SaveToIntCharProcedure();
+            si.nearest(new util.Point((float) x, (float) y), stp, Float.MIN_VALUE);
+            for (Map.Entry<Integer, Character> r : stp.getIds().entrySet()) {
+                buffer.add(r.getKey(), r.getValue() == 'T');
+            }
+            return buffer.size();
+        }
+        double col = (x - gridMinX) / gridXInterval;
+        double row = (y - gridMinY) / gridYInterval;
+        double colMargin = maxMargin / gridXInterval;
+        double rowMargin = maxMargin / gridYInterval;
+        int fromCol = Math.max((int) Math.ceil(col - colMargin) - 1, 0);
+        int toCol = Math.min((int) Math.floor(col + colMargin), gridSide - 1);
+        int fromRow = Math.max((int) Math.ceil(row - rowMargin) - 1, 0);
+        int toRow = Math.min((int) Math.floor(row + rowMargin), gridSide - 1);
+        //区域的上边界属于最后一行/列
+        int homeCol = col == gridSide ? gridSide - 1 : (int) Math.floor(col);
+        int homeRow = row == gridSide ? gridSide - 1 : (int) Math.floor(row);
+        for (int r = fromRow; r <= toRow; r++) {
+            for (int c = fromCol; c <= toCol; c++) {
+                route(gridCells[r * gridSide + c], x, y, r == homeRow && c == homeCol, buffer);
+            }
+        }
+        return buffer.size();
+    }
+
+    /**
+     * Adds {@code p}, or the leaves under it, if the widened extent contains {@code (x, y)}.
+     * @param home whether the point lies in {@code p} itself, not only in its boundary area.
+     */
+    private void route(Partition p, double x, double y, boolean home, RouteBuffer buffer) {
+        double margin = p.isLeaf() ? p.margin : maxMargin;
+        if (x < p.minX - margin || x > p.maxX + margin || y < p.minY - margin || y > p.maxY + margin) return;
+        if (p.isLeaf()) {
+            buffer.add(p.id, !home);
+            if (home && adaptiveBoundary) p.countEdge(x, y);
+            return;
+        }
+        int homeChild = p.homeChild(x, y);
+        for (int i = 0; i < p.children.length; i++) {
+            route(p.children[i], x, y, home && i == homeChild, buffer);
+        }
+    }
+
+    /**
+     * 按上一个Slide各分区边缘子Cell的点数更新边界宽度.
+     * <br/>
+     * 密度为{@code ρ}的区域内, 第K近距离约为{@code sqrt(K / (π ρ))}. 对每个叶子分区, 取边缘子Cell
+     * (按Slide平滑后的点数乘以索引中的Slide数)估计出的最大第K近距离, 乘以安全系数
+     * {@link Configuration#NAME_BOUNDARY_SAFETY}作为边界宽度, 并且不超过分区较长的边.
+     * 没有点的子Cell中也没有查询, 不参与估计; 还没有观测值的分区保持原来的宽度.
+     */
+    private void updateMargins() {
+        maxMargin = 0;
+        int g = Partition.EDGE_GRID;
+        for (Partition p : partitions.valueCollection()) {
+            if (null != p.edgeCounts) {
+                double cellArea = (p.maxX - p.minX) * (p.maxY - p.minY) / (g * g);
+                double kth = 0;
+                for (int j = 0; j < g; j++) {
+                    for (int i = 0; i < g; i++) {
+                        if (i != 0 && i != g - 1 && j != 0 && j != g - 1) continue;
+                        int c = j * g + i;
+                        double observed = p.edgeCounts[c];
+                        p.edgeDensity[c] = p.edgeDensity[c] < 0 ? observed
+                                : LOAD_SMOOTHING * observed + (1 - LOAD_SMOOTHING) * p.edgeDensity[c];
+                        p.edgeCounts[c] = 0;
+                        double points = p.edgeDensity[c] * windowSlides;
+                        if (points <= 0) continue;
+                        kth = Math.max(kth, Math.sqrt(K * cellArea / (Math.PI * points)));
+                    }
+                }
+                p.margin = Math.min(boundarySafety * kth, Math.max(p.maxX - p.minX, p.maxY - p.minY));
+            }
+            maxMargin = Math.max(maxMargin, p.margin);
+        }
+    }
+
+    /**
+     * Whether the points of the current slide should be passed to {@link #sample(double, double)}.
+     */
+    public boolean isSampling() {
+        return sampling;
+    }
+
+    /**
+     * Reservoir sampling of the points routed while {@link #isSampling()}.
+     */
+    public void sample(double x, double y) {
+        long seen = sampleSeen++;
+        int i;
+        if (seen < SAMPLE_SIZE) {
+            i = (int) seen;
+            sampleCount++;
+        } else {
+            long j = (long) (sampleRandom.nextDouble() * (seen + 1));
+            if (j >= SAMPLE_SIZE) return;
+            i = (int) j;
+        }
+        sampleXs[i] = x;
+        sampleYs[i] = y;
+    }
+
+    /**
+     * 用样本构建KD树分区: 每次沿较长的边, 按两侧叶子数的比例在样本的分位点处一分为二,
+     * 使每个叶子分区的样本点数相近. 取代规则网格, 之后的负载均衡在KD树的叶子上进行.
+     */
+    private void buildSampledLayout() {
+        sampling = false;
+        if (sampleCount == 0) {
+            LOG.warn("No sample points, keeping the grid partitions.");
+            return;
+        }
+        int leaves = layoutPartitions > 0 ? layoutPartitions : knnTasks;
+        partitions.clear();
+        root = buildKDTree(area[0][0], area[1][0], area[0][1], area[1][1], 0, sampleCount, Math.max(leaves, 1), null);
+        gridCells = null;
+        sampleXs = null;
+        sampleYs = null;
+        layoutVersion++;
+        LOG.info("Partition layout {}: KD tree of {} partitions from {} sample points", layoutVersion,
+                partitions.size(), sampleCount);
+    }
+
+    /**
+     * 按{@link #curve}当前的分界点创建新的叶子分区(新的id), 取代原有分区.
+     */
+    private void installCurvePartitions() {
+        partitions.clear();
+        for (Partition p : curve.createPartitions(nextPartitionId, boundaryLength)) {
+            partitions.put(p.id, p);
+        }
+        nextPartitionId += curve.size();
+        gridCells = null;
+        maxMargin = boundaryLength;
+    }
+
+    private Partition buildKDTree(double minX, double minY, double maxX, double maxY,
+                                  int from, int to, int leaves, Partition parent) {
+        Partition p = new Partition(nextPartitionId++, minX, minY, maxX, maxY, parent);
+        p.margin = boundaryLength;
+        if (leaves <= 1) {
+            partitions.put(p.id, p);
+            return p;
+        }
+        int axis = maxX - minX >= maxY - minY ? 0 : 1;
+        double min = axis == 0 ? minX : minY, max = axis == 0 ? maxX : maxY;
+        int lowerLeaves = leaves / 2;
+        double split;
+        if (to - from < leaves) {
+            split = (min + max) / 2;//样本不足, 按面积等分
+        } else {
+            int k = from + (int) ((long) (to - from) * lowerLeaves / leaves);
+            select(axis, from, to, k);
+            split = Math.min(Math.max(coordinate(axis, k), min), max);
+        }
+        int mid = partition(axis, from, to, split);
+        p.splitAxis = axis;
+        p.split = split;
+        p.children = axis == 0
+                ? new Partition[]{buildKDTree(minX, minY, split, maxY, from, mid, lowerLeaves, p),
+                        buildKDTree(split, minY, maxX, maxY, mid, to, leaves - lowerLeaves, p)}
+                : new Partition[]{buildKDTree(minX, minY, maxX, split, from, mid, lowerLeaves, p),
+                        buildKDTree(minX, split, maxX, maxY, mid, to, leaves - lowerLeaves, p)};
+        return p;
+    }
+
+    private double coordinate(int axis, int i) {
+        return axis == 0 ? sampleXs[i] : sampleYs[i];
+    }
+
+    private void swapSamples(int i, int j) {
+        double x = sampleXs[i], y = sampleYs[i];
+        sampleXs[i] = sampleXs[j];
+        sampleYs[i] = sampleYs[j];
+        sampleXs[j] = x;
+        sampleYs[j] = y;
+    }
+
+    /**
+     * Moves the samples in {@code [from, to)} below {@code split} to the front.
+     * @return index of the first sample not below {@code split}.
+     */
+    private int partition(int axis, int from, int to, double split) {
+        int mid = from;
+        for (int i = from; i < to; i++) {
+            if (coordinate(axis, i) < split) swapSamples(i, mid++);
+        }
+        return mid;
+    }
+
+    /**
+     * Quickselect: puts the sample of rank {@code k} in {@code [from, to)} at index {@code k}.
+     */
+    private void select(int axis, int from, int to, int k) {
+        int lo = from, hi = to - 1;
+        while (lo < hi) {
+            double pivot = coordinate(axis, lo + sampleRandom.nextInt(hi - lo + 1));
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coordinate(axis, i) < pivot) i++;
+                while (coordinate(axis, j) > pivot) j--;
+                if (i <= j) swapSamples(i++, j--);
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    /**
+     * 记录当前Slide路由到分区{@code route}的点数和查询数, 供{@link #rebalance()}使用.
+     */
+    public void observe(int route, int points, int queries) {
+        Partition p = partitions.get(route);
+        if (null == p) return;
+        p.points += points;
+        p.queries += queries;
+    }
+
+    /**
+     * 一个Slide路由结束后调用. KD树分区模式下采样结束时先构建KD树分区;
+     * 之后按负载调整分区(需要开启{@link Configuration#NAME_BALANCE}).
+     * <br/>
+     * 分区负载为每Slide的点数(包括边界复制的点)加查询数, 按Slide平滑. 基准是每个KNNBolt任务的
+     * 平均负载: 单个分区超过它的{@link Configuration#IMBALANCE_DEGREE_HEIGHER}倍时, 无论分区怎样分配,
+     * 总有任务过载, 此时按四叉树把该分区分裂为4个子分区(子分区边长不小于2倍boundaryLength,
+     * 否则边界复制增加的负载超过收益); 4个兄弟叶子分区的负载之和低于基准的
+     * {@link Configuration#IMBALANCE_DEGREE_LOWER}倍时合并回父分区, 减少边界复制.
+     * 每次最多做{@link Configuration#NODES_COMBINATIONS_MAX}次分裂或合并.
+     * Hilbert曲线分区不分裂合并, 而是按各负载桶的点数移动分界点, 分区数不变.
+     * 新的分区从下一个Slide开始生效.
+     * @return whether the layout changed.
+     */
+    public boolean rebalance() {
+        if (sampling && ++sampledSlides >= sampleSlides) {
+            buildSampledLayout();
+            return null != root;
+        }
+        if (adaptiveBoundary) updateMargins();
+        if (null != curve) {
+            if (!balance || !curve.rebalance(LOAD_SMOOTHING, Configuration.IMBALANCE_DEGREE_HEIGHER)) return false;
+            installCurvePartitions();
+            layoutVersion++;
+            LOG.info("Partition layout {}: Hilbert curve of {} partitions", layoutVersion, partitions.size());
+            return true;
+        }
+        if (!balance || (null == gridCells && null == root)) return false;
+        double total = 0;
+        List<Partition> leaves = new ArrayList<>(partitions.valueCollection());
+        for (Partition p : leaves) {
+            double observed = p.points + p.queries;
+            p.load = p.load < 0 ? observed : LOAD_SMOOTHING * observed + (1 - LOAD_SMOOTHING) * p.load;
+            p.points = 0;
+            p.queries = 0;
+            total += p.load;
+        }
+        if (total <= 0) return false;
+        double mean = total / Math.max(knnTasks, 1);
+        int changes = 0;
+        leaves.sort((a, b) -> Double.compare(b.load, a.load));
+        for (Partition p : leaves) {
+            if (changes >= Configuration.NODES_COMBINATIONS_MAX
+                    || p.load <= Configuration.IMBALANCE_DEGREE_HEIGHER * mean) break;
+            if (split(p)) changes++;
+        }
+        Set<Partition> parents = new HashSet<>();
+        for (int i = leaves.size() - 1; i >= 0; i--) {
+            Partition parent = leaves.get(i).parent;
+            if (changes >= Configuration.NODES_COMBINATIONS_MAX) break;
+            if (null == parent || !parents.add(parent)) continue;
+            if (merge(parent, Configuration.IMBALANCE_DEGREE_LOWER * mean)) changes++;
+        }
+        if (changes > 0) {
+            layoutVersion++;
+            LOG.info("Partition layout {}: {} partitions, load per task {}", layoutVersion, partitions.size(), mean);
+        }
+        return changes > 0;
+    }
+
+    private boolean split(Partition p) {
+        if (!p.isLeaf() || p.maxX - p.minX < 4 * boundaryLength || p.maxY - p.minY < 4 * boundaryLength) {
+            return false;
+        }
+        double midX = p.midX(), midY = p.midY();
+        p.children = new Partition[]{
+                new Partition(nextPartitionId++, p.minX, p.minY, midX, midY, p),
+                new Partition(nextPartitionId++, midX, p.minY, p.maxX, midY, p),
+                new Partition(nextPartitionId++, p.minX, midY, midX, p.maxY, p),
+                new Partition(nextPartitionId++, midX, midY, p.maxX, p.maxY, p)};
+        partitions.remove(p.id);
+        for (Partition child : p.children) {
+            child.load = p.load / 4;
+            child.margin = p.margin;
+            partitions.put(child.id, child);
+        }
+        return true;
+    }
+
+    /**
+     * Merges the children of {@code parent} back if they are all leaves with a total load below {@code threshold}.
+     */
+    private boolean merge(Partition parent, double threshold) {
+        double load = 0;
+        for (Partition child : parent.children) {
+            if (!child.isLeaf()) return false;
+            load += child.load;
+        }
+        if (load >= threshold) return false;
+        for (Partition child : parent.children) {
+            partitions.remove(child.id);
+        }
+        double margin = 0;
+        for (Partition child : parent.children) {
+            margin = Math.max(margin, child.margin);
+        }
+        parent.children = null;
+        parent.load = load;
+        parent.margin = margin;
+        parent.edgeCounts = null;
+        parent.edgeDensity = null;
+        partitions.put(parent.id, parent);
+        return true;
+    }
+
+    /**
+     * Incremented every time {@link #rebalance()} changes the partitions.
+     */
+    public int getLayoutVersion() {
+        return layoutVersion;
+    }
+
+    /**
+     * Snapshot of the current leaf partitions, tagged with {@link #getLayoutVersion()}.
+     */
+    public PartitionLayout layout() {
+        PartitionLayout snapshot = new PartitionLayout(layoutVersion, partitions.size());
+        int i = 0;
+        for (Partition p : partitions.valueCollection()) {
+            snapshot.set(i++, p);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Number of partitions receiving data.
+     */
+    public int partitionCount() {
+        return partitions.size();
+    }
+
 
     public void clearBuffer() {
     }
@@ -0,0 +1,108 @@
+package util.rtree;
+
+import java.io.Serializable;
+
+/**
+ * <p>Node of a {@link DoubleRTree}. The MBRs of the entries are stored in
+ * one flat double array, {@code 2 * dimensions} values per entry: the
+ * minimum of every dimension followed by the maximum of every dimension.
+ * The node MBR uses the same layout.</p>
+ */
+class DoubleNode implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  int nodeId;
+  int level;
+  int entryCount;
+  final int dimensions;
+  final double[] mbr;
+  final double[] entries;
+  final int[] ids;
+
+  DoubleNode(int nodeId, int level, int dimensions, int maxNodeEntries) {
+    this.nodeId = nodeId;
+    this.level = level;
+    this.dimensions = dimensions;
+    mbr = new double[2 * dimensions];
+    entries = new double[2 * dimensions * maxNodeEntries];
+    ids = new int[maxNodeEntries];
+    reset(level);
+  }
+
+  /**
+   * Empties the node, so that it can be reused at {@code level}.
+   */
+  void reset(int level) {
+    this.level = level;
+    entryCount = 0;
+    for (int d = 0; d < dimensions; d++) {
+      mbr[d] = Double.MAX_VALUE;
+      mbr[dimensions + d] = -Double.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Adds the box stored at {@code box[offset, offset + 2 * dimensions)}.
+   */
+  void addEntry(double[] box, int offset, int id) {
+    int width = 2 * dimensions;
+    System.arraycopy(box, offset, entries, entryCount * width, width);
+    ids[entryCount] = id;
+    for (int d = 0; d < dimensions; d++) {
+      if (box[offset + d] < mbr[d]) mbr[d] = box[offset + d];
+      if (box[offset + dimensions + d] > mbr[dimensions + d]) mbr[dimensions + d] = box[offset + dimensions + d];
+    }
+    entryCount++;
+  }
+
+  /**
+   * Overwrites the box of entry {@code i}; the node MBR is not updated.
+   */
+  void setEntry(int i, double[] box, int offset) {
+    int width = 2 * dimensions;
+    System.arraycopy(box, offset, entries, i * width, width);
+  }
+
+  // Return the index of the found entry, or -1 if not found
+  int findEntry(double[] box, int id) {
+    int width = 2 * dimensions;
+    for (int i = 0; i < entryCount; i++) {
+      if (ids[i] != id) continue;
+      boolean equal = true;
+      for (int k = 0; k < width && equal; k++) {
+        equal = entries[i * width + k] == box[k];
+      }
+      if (equal) return i;
+    }
+    return -1;
+  }
+
+  // delete entry, the last entry is moved into its place. The MBR is not updated.
+  void deleteEntry(int i) {
+    int width = 2 * dimensions;
+    int lastIndex = entryCount - 1;
+    if (i != lastIndex) {
+      System.arraycopy(entries, lastIndex * width, entries, i * width, width);
+      ids[i] = ids[lastIndex];
+    }
+    entryCount--;
+  }
+
+  void recalculateMBR() {
+    int width = 2 * dimensions;
+    for (int d = 0; d < dimensions; d++) {
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for (int i = 0; i < entryCount; i++) {
+        if (entries[i * width + d] < min) min = entries[i * width + d];
+        if (entries[i * width + dimensions + d] > max) max = entries[i * width + dimensions + d];
+      }
+      mbr[d] = min;
+      mbr[dimensions + d] = max;
+    }
+  }
+
+  boolean isLeaf() {
+    return (level == 1);
+  }
+}
@@ -0,0 +1,791 @@
+package util.rtree;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.stack.TIntStack;
+import gnu.trove.stack.array.TIntArrayStack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.BuildProperties;
+import util.Configuration;
+import util.DoubleSpatialIndex;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * <p>Double precision RTree of any number of dimensions. It implements
+ * {@link DoubleSpatialIndex}, the operations of {@link util.SpatialIndex}
+ * with rectangles given as {@code double[] min, double[] max} and points
+ * as {@code double[]} instead of the 2D float {@link util.Rectangle} and
+ * {@link util.Point}.</p>
+ *
+ * <p>Entry MBRs are kept in a flat double array per node, see
+ * {@link DoubleNode}. Insertion follows Guttman (least enlargement);
+ * a full node is split in the middle after sorting its entries along the
+ * axis where their centres are most spread, so both halves hold at least
+ * MinNodeEntries entries. {@link #load} packs the tree with STR, slicing
+ * one dimension after the other. {@link #nearestN} is a best-first search
+ * like {@link RTree#nearestN(float, float, int, float, int[], float[])}.</p>
+ *
+ * <p>Queries keep their search heaps per thread, like
+ * {@link RTree#nearestN(float, float, int, float, int[], float[])}, so
+ * several threads may query the same tree at once. Updates reuse scratch
+ * buffers of the tree and must not run concurrently with anything else.</p>
+ */
+public class DoubleRTree implements DoubleSpatialIndex, Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = LoggerFactory.getLogger(DoubleRTree.class);
+
+  private final static int DEFAULT_MAX_NODE_ENTRIES = 50;
+  private final static int DEFAULT_MIN_NODE_ENTRIES = 20;
+  int maxNodeEntries;
+  int minNodeEntries;
+  int dimensions;
+
+  // node objects indexed by node id, deleted ids are reused
+  private DoubleNode[] nodes = new DoubleNode[16];
+  private TIntStack deletedNodeIds = new TIntArrayStack();
+  private int highestUsedNodeId = 0;
+
+  private int treeHeight = 1; // leaves are always level 1
+  private int rootNodeId = 0;
+  private int size = 0;
+
+  // path from the root to the node being modified: node ids and the
+  // index of the entry followed in each of them
+  private TIntStack parents = new TIntArrayStack();
+  private TIntStack parentsEntry = new TIntArrayStack();
+
+  // scratch buffers
+  private double[] splitBoxes;
+  private int[] splitIds;
+  private TDoubleArrayList orphanBoxes = new TDoubleArrayList();
+  private TIntArrayList orphanIds = new TIntArrayList();
+
+  // heaps of the best-first searches, nodes nearest first and entries
+  // furthest first; per thread so that queries can run in parallel
+  private static final ThreadLocal<DistanceHeap[]> searchHeaps = ThreadLocal.withInitial(() -> new DistanceHeap[]{
+          new DistanceHeap(), new DistanceHeap()});
+
+  /**
+   * Constructor. Use init() method to initialize parameters of the tree.
+   */
+  public DoubleRTree() {
+    return; // NOP
+  }
+
+  /**
+   * <p>Initialize the tree. Properties are MaxNodeEntries and MinNodeEntries,
+   * as for {@link RTree#init(Properties)}, and Dimensions, which defaults to
+   * {@link Configuration#DIMENSIONS}.</p>
+   */
+  public void init(Properties props) {
+    if (props == null) {
+      props = new Properties();
+    }
+    maxNodeEntries = Integer.parseInt(props.getProperty("MaxNodeEntries", "" + DEFAULT_MAX_NODE_ENTRIES));
+    minNodeEntries = Integer.parseInt(props.getProperty("MinNodeEntries", "" + DEFAULT_MIN_NODE_ENTRIES));
+    dimensions = Integer.parseInt(props.getProperty("Dimensions", "" + Configuration.DIMENSIONS));
+    if (maxNodeEntries < 2) {
+      log.warn("Invalid MaxNodeEntries = " + maxNodeEntries + " Resetting to default value of " + DEFAULT_MAX_NODE_ENTRIES);
+      maxNodeEntries = DEFAULT_MAX_NODE_ENTRIES;
+    }
+    if (minNodeEntries < 1 || minNodeEntries > maxNodeEntries / 2) {
+      log.warn("MinNodeEntries must be between 1 and MaxNodeEntries / 2");
+      minNodeEntries = maxNodeEntries / 2;
+    }
+    if (dimensions < 1) {
+      throw new IllegalArgumentException("Invalid Dimensions = " + dimensions);
+    }
+    splitBoxes = new double[2 * dimensions * (maxNodeEntries + 1)];
+    splitIds = new int[maxNodeEntries + 1];
+    nodes[rootNodeId] = new DoubleNode(rootNodeId, 1, dimensions, maxNodeEntries);
+  }
+
+  public int getDimensions() {
+    return dimensions;
+  }
+
+  /**
+   * Adds the rectangle {@code [min, max]} with the given id.
+   */
+  public void add(double[] min, double[] max, int id) {
+    add(box(min, max), 0, id, 1);
+    size++;
+  }
+
+  /**
+   * Deletes the rectangle {@code [min, max]} with the given id.
+   *
+   * @return true if the rectangle was found and deleted
+   */
+  public boolean delete(double[] min, double[] max, int id) {
+    double[] box = box(min, max);
+    int width = 2 * dimensions;
+
+    // find the leaf, only descending into entries that contain the box
+    parents.clear();
+    parents.push(rootNodeId);
+    parentsEntry.clear();
+    parentsEntry.push(-1);
+    DoubleNode n = null;
+    int foundIndex = -1;
+    while (foundIndex == -1 && parents.size() > 0) {
+      n = nodes[parents.peek()];
+      int startIndex = parentsEntry.peek() + 1;
+      if (!n.isLeaf()) {
+        boolean contains = false;
+        for (int i = startIndex; i < n.entryCount; i++) {
+          if (contains(n.entries, i * width, box, 0)) {
+            parents.push(n.ids[i]);
+            parentsEntry.pop();
+            parentsEntry.push(i); // this becomes the start index when the child has been searched
+            parentsEntry.push(-1);
+            contains = true;
+            break;
+          }
+        }
+        if (contains) {
+          continue;
+        }
+      } else {
+        foundIndex = n.findEntry(box, id);
+      }
+      parents.pop();
+      parentsEntry.pop();
+    }
+    if (foundIndex == -1) {
+      return false;
+    }
+
+    n.deleteEntry(foundIndex);
+    n.recalculateMBR();
+    condenseTree(n);
+    size--;
+    return true;
+  }
+
+  /**
+   * Replaces the contents of the tree, building it with Sort-Tile-Recursive
+   * packing: the entries are sorted by the centre of the first dimension and
+   * cut into slices, every slice is sorted by the next dimension and cut
+   * again, and the last dimension is packed into nodes. Every level is built
+   * from the nodes of the level below, nodes are filled evenly and never split.
+   *
+   * @param mins  minimum of rectangle i in dimension d at {@code mins[i * dimensions + d]}
+   * @param maxs  maximum of rectangle i in dimension d at {@code maxs[i * dimensions + d]}
+   * @param ids   the ID of each rectangle
+   * @param count number of rectangles
+   */
+  public void load(double[] mins, double[] maxs, int[] ids, int count) {
+    int width = 2 * dimensions;
+    deletedNodeIds.clear();
+    highestUsedNodeId = -1; // the first node gets id 0
+    size = count;
+
+    double[] boxes = new double[count * width];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(mins, i * dimensions, boxes, i * width, dimensions);
+      System.arraycopy(maxs, i * dimensions, boxes, i * width + dimensions, dimensions);
+    }
+    int[] levelIds = ids;
+    int level = 1;
+    while (count > maxNodeEntries) {
+      int nodeCount = (count + maxNodeEntries - 1) / maxNodeEntries;
+      long[] order = new long[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      double[] nodeBoxes = new double[nodeCount * width];
+      int[] nodeIds = new int[nodeCount];
+      tile(boxes, levelIds, count, order, 0, 0, nodeCount, 0, level, nodeBoxes, nodeIds);
+      boxes = nodeBoxes;
+      levelIds = nodeIds;
+      count = nodeCount;
+      level++;
+    }
+
+    DoubleNode root = allocateNode(level);
+    for (int i = 0; i < count; i++) {
+      root.addEntry(boxes, i * width, levelIds[i]);
+    }
+    rootNodeId = root.nodeId;
+    treeHeight = level;
+  }
+
+  /**
+   * Packs nodes {@code [firstNode, firstNode + nodeCount)} of a level from the
+   * entries {@code order[from, ...)}, sorting them along {@code dim} and
+   * slicing the remaining dimensions recursively.
+   *
+   * @param count number of entries of the whole level, entries are shared out
+   *              evenly over all its nodes
+   */
+  private void tile(double[] boxes, int[] ids, int count, long[] order, int from,
+                    int firstNode, int nodeCount, int dim, int level, double[] nodeBoxes, int[] nodeIds) {
+    int width = 2 * dimensions;
+    int levelNodes = nodeBoxes.length / width;
+    int to = from;
+    for (int j = firstNode; j < firstNode + nodeCount; j++) {
+      to += entriesOfNode(count, levelNodes, j);
+    }
+    for (int i = from; i < to; i++) {
+      int e = (int) order[i];
+      order[i] = sortKey((float) (boxes[e * width + dim] + boxes[e * width + dimensions + dim]), e);
+    }
+    Arrays.sort(order, from, to);
+
+    if (dim == dimensions - 1) {
+      for (int j = firstNode; j < firstNode + nodeCount; j++) {
+        DoubleNode n = allocateNode(level);
+        int entries = entriesOfNode(count, levelNodes, j);
+        for (int i = from; i < from + entries; i++) {
+          int e = (int) order[i];
+          n.addEntry(boxes, e * width, ids[e]);
+        }
+        from += entries;
+        System.arraycopy(n.mbr, 0, nodeBoxes, j * width, width);
+        nodeIds[j] = n.nodeId;
+      }
+      return;
+    }
+    int slices = (int) Math.ceil(Math.pow(nodeCount, 1.0 / (dimensions - dim)) - 1e-9);
+    int node = firstNode;
+    for (int s = 0; s < slices; s++) {
+      int sliceNodes = nodeCount / slices + (s < nodeCount % slices ? 1 : 0);
+      if (sliceNodes == 0) {
+        continue;
+      }
+      int sliceFrom = from;
+      for (int j = node; j < node + sliceNodes; j++) {
+        from += entriesOfNode(count, levelNodes, j);
+      }
+      tile(boxes, ids, count, order, sliceFrom, node, sliceNodes, dim + 1, level, nodeBoxes, nodeIds);
+      node += sliceNodes;
+    }
+  }
+
+  private static int entriesOfNode(int count, int nodeCount, int node) {
+    return count / nodeCount + (node < count % nodeCount ? 1 : 0);
+  }
+
+  /**
+   * A long that sorts by {@code key}, then by {@code index}, which is
+   * kept in the low 32 bits. The key only decides the packing, so the
+   * float precision is enough.
+   */
+  private static long sortKey(float key, int index) {
+    int bits = Float.floatToIntBits(key);
+    bits ^= (bits >> 31) & 0x7fffffff; // negative floats sort in reverse
+    return ((long) bits << 32) | index;
+  }
+
+  /**
+   * Calls {@code v.execute(id)} for the nearest entries to {@code p}.
+   * If multiple entries are equally near, they will all be returned.
+   *
+   * @param furthestDistance entries further than this are not returned
+   */
+  public void nearest(double[] p, TIntProcedure v, double furthestDistance) {
+    double bestSq = furthestDistance * furthestDistance;
+    int width = 2 * dimensions;
+    TIntArrayList nearestIds = new TIntArrayList();
+    DistanceHeap nodeHeap = searchHeaps.get()[0];
+    nodeHeap.clear();
+    nodeHeap.push(rootNodeId, 0);
+    while (nodeHeap.size() > 0 && nodeHeap.topKey() <= bestSq) {
+      DoubleNode n = nodes[nodeHeap.topValue()];
+      nodeHeap.pop();
+      for (int i = 0; i < n.entryCount; i++) {
+        double distanceSq = distanceSq(n.entries, i * width, p);
+        if (distanceSq > bestSq) {
+          continue;
+        }
+        if (!n.isLeaf()) {
+          nodeHeap.push(n.ids[i], distanceSq);
+          continue;
+        }
+        if (distanceSq < bestSq) {
+          nearestIds.reset();
+          bestSq = distanceSq;
+        }
+        nearestIds.add(n.ids[i]);
+      }
+    }
+    nearestIds.forEach(v);
+  }
+
+  /**
+   * Best-first N nearest entries, see
+   * {@link RTree#nearestN(float, float, int, float, int[], float[])}.
+   *
+   * @param p the query point, one coordinate per dimension
+   * @param resultIds output, ids of the entries found in order of increasing distance
+   * @param resultDistancesSq output, squared distances matching resultIds
+   * @return number of entries found, at most {@code count}
+   */
+  public int nearestN(double[] p, int count, double furthestDistance, int[] resultIds, double[] resultDistancesSq) {
+    if (count <= 0) {
+      return 0;
+    }
+    double boundSq = furthestDistance * furthestDistance;
+    int width = 2 * dimensions;
+    DistanceHeap[] heaps = searchHeaps.get();
+    DistanceHeap nodeHeap = heaps[0];
+    DistanceHeap entryHeap = heaps[1];
+    nodeHeap.clear();
+    entryHeap.clear(); // furthest first, keys are negated
+    nodeHeap.push(rootNodeId, 0);
+    while (nodeHeap.size() > 0 && nodeHeap.topKey() <= boundSq) {
+      DoubleNode n = nodes[nodeHeap.topValue()];
+      nodeHeap.pop();
+      for (int i = 0; i < n.entryCount; i++) {
+        double distanceSq = distanceSq(n.entries, i * width, p);
+        if (distanceSq > boundSq) {
+          continue;
+        }
+        if (!n.isLeaf()) {
+          nodeHeap.push(n.ids[i], distanceSq);
+          continue;
+        }
+        if (entryHeap.size() == count) {
+          if (distanceSq >= -entryHeap.topKey()) {
+            continue;
+          }
+          entryHeap.pop();
+        }
+        entryHeap.push(n.ids[i], -distanceSq);
+        if (entryHeap.size() == count) {
+          boundSq = -entryHeap.topKey();
+        }
+      }
+    }
+
+    int found = entryHeap.size();
+    for (int i = found - 1; i >= 0; i--) {
+      resultIds[i] = entryHeap.topValue();
+      resultDistancesSq[i] = -entryHeap.topKey();
+      entryHeap.pop();
+    }
+    return found;
+  }
+
+  /**
+   * Calls {@code v.execute(id)} for every entry intersecting {@code [min, max]},
+   * until it returns false.
+   */
+  public void intersects(double[] min, double[] max, TIntProcedure v) {
+    search(box(min, max), false, v);
+  }
+
+  /**
+   * Calls {@code v.execute(id)} for every entry contained in {@code [min, max]},
+   * until it returns false.
+   */
+  public void contains(double[] min, double[] max, TIntProcedure v) {
+    search(box(min, max), true, v);
+  }
+
+  private void search(double[] box, boolean contained, TIntProcedure v) {
+    int width = 2 * dimensions;
+    // not shared: v may query the tree again
+    TIntArrayStack searchStack = new TIntArrayStack();
+    searchStack.push(rootNodeId);
+    while (searchStack.size() > 0) {
+      DoubleNode n = nodes[searchStack.pop()];
+      for (int i = 0; i < n.entryCount; i++) {
+        if (!intersects(n.entries, i * width, box)) {
+          continue;
+        }
+        if (!n.isLeaf()) {
+          searchStack.push(n.ids[i]);
+        } else if (!contained || contains(box, 0, n.entries, i * width)) {
+          if (!v.execute(n.ids[i])) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Bounds of all entries, the minimum of every dimension followed by
+   * the maximum of every dimension; null if the tree is empty.
+   */
+  public double[] getBounds() {
+    return size == 0 ? null : nodes[rootNodeId].mbr.clone();
+  }
+
+  public String getVersion() {
+    return "DoubleRTree-" + BuildProperties.getVersion();
+  }
+
+  //-------------------------------------------------------------------------
+  // insertion and deletion
+  //-------------------------------------------------------------------------
+
+  private double[] box(double[] min, double[] max) {
+    if (min.length != dimensions || max.length != dimensions) {
+      throw new IllegalArgumentException("Expected " + dimensions + " dimensions");
+    }
+    double[] box = new double[2 * dimensions];
+    System.arraycopy(min, 0, box, 0, dimensions);
+    System.arraycopy(max, 0, box, dimensions, dimensions);
+    return box;
+  }
+
+  private int getNextNodeId() {
+    if (deletedNodeIds.size() > 0) {
+      return deletedNodeIds.pop();
+    }
+    return ++highestUsedNodeId;
+  }
+
+  private DoubleNode allocateNode(int level) {
+    int nodeId = getNextNodeId();
+    if (nodeId >= nodes.length) {
+      nodes = Arrays.copyOf(nodes, Math.max(nodeId + 1, nodes.length * 2));
+    }
+    DoubleNode n = nodes[nodeId];
+    if (n == null) {
+      n = new DoubleNode(nodeId, level, dimensions, maxNodeEntries);
+      nodes[nodeId] = n;
+    } else {
+      n.reset(level);
+    }
+    return n;
+  }
+
+  /**
+   * Adds an entry to a node at {@code level}, splitting full nodes on the
+   * way back up and growing a new root if the root splits.
+   */
+  private void add(double[] box, int offset, int id, int level) {
+    DoubleNode n = chooseNode(box, offset, level);
+    DoubleNode split = null;
+    if (n.entryCount < maxNodeEntries) {
+      n.addEntry(box, offset, id);
+    } else {
+      split = splitNode(n, box, offset, id);
+    }
+
+    while (parents.size() > 0) {
+      DoubleNode parent = nodes[parents.pop()];
+      parent.setEntry(parentsEntry.pop(), n.mbr, 0);
+      parent.recalculateMBR();
+      DoubleNode parentSplit = null;
+      if (split != null) {
+        if (parent.entryCount < maxNodeEntries) {
+          parent.addEntry(split.mbr, 0, split.nodeId);
+        } else {
+          parentSplit = splitNode(parent, split.mbr, 0, split.nodeId);
+        }
+      }
+      n = parent;
+      split = parentSplit;
+    }
+
+    if (split != null) {
+      treeHeight++;
+      DoubleNode root = allocateNode(treeHeight);
+      root.addEntry(n.mbr, 0, n.nodeId);
+      root.addEntry(split.mbr, 0, split.nodeId);
+      rootNodeId = root.nodeId;
+    }
+  }
+
+  /**
+   * Descends from the root to a node at {@code level}, following the entry
+   * needing the least enlargement (then the smallest), and records the path.
+   */
+  private DoubleNode chooseNode(double[] box, int offset, int level) {
+    int width = 2 * dimensions;
+    parents.clear();
+    parentsEntry.clear();
+    DoubleNode n = nodes[rootNodeId];
+    while (n.level > level) {
+      int best = 0;
+      double bestEnlargement = Double.MAX_VALUE;
+      double bestVolume = Double.MAX_VALUE;
+      for (int i = 0; i < n.entryCount; i++) {
+        double volume = 1;
+        double enlarged = 1;
+        for (int d = 0; d < dimensions; d++) {
+          double min = n.entries[i * width + d];
+          double max = n.entries[i * width + dimensions + d];
+          volume *= max - min;
+          enlarged *= Math.max(max, box[offset + dimensions + d]) - Math.min(min, box[offset + d]);
+        }
+        double enlargement = enlarged - volume;
+        if (enlargement < bestEnlargement || (enlargement == bestEnlargement && volume < bestVolume)) {
+          best = i;
+          bestEnlargement = enlargement;
+          bestVolume = volume;
+        }
+      }
+      parents.push(n.nodeId);
+      parentsEntry.push(best);
+      n = nodes[n.ids[best]];
+    }
+    return n;
+  }
+
+  /**
+   * Splits the full node {@code n} and the new entry between {@code n} and a
+   * new node: the entries are sorted along the axis where their centres
+   * are most spread and cut in the middle.
+   *
+   * @return the new node
+   */
+  private DoubleNode splitNode(DoubleNode n, double[] box, int offset, int id) {
+    int width = 2 * dimensions;
+    int total = maxNodeEntries + 1;
+    System.arraycopy(n.entries, 0, splitBoxes, 0, maxNodeEntries * width);
+    System.arraycopy(n.ids, 0, splitIds, 0, maxNodeEntries);
+    System.arraycopy(box, offset, splitBoxes, maxNodeEntries * width, width);
+    splitIds[maxNodeEntries] = id;
+
+    int axis = 0;
+    double widestSpread = -1;
+    for (int d = 0; d < dimensions; d++) {
+      double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+      for (int i = 0; i < total; i++) {
+        double centre = splitBoxes[i * width + d] + splitBoxes[i * width + dimensions + d];
+        min = Math.min(min, centre);
+        max = Math.max(max, centre);
+      }
+      if (max - min > widestSpread) {
+        widestSpread = max - min;
+        axis = d;
+      }
+    }
+    long[] order = new long[total];
+    for (int i = 0; i < total; i++) {
+      order[i] = sortKey((float) (splitBoxes[i * width + axis] + splitBoxes[i * width + dimensions + axis]), i);
+    }
+    Arrays.sort(order);
+
+    DoubleNode newNode = allocateNode(n.level);
+    n.reset(n.level);
+    int half = total / 2; // at least MinNodeEntries, which is at most MaxNodeEntries / 2
+    for (int i = 0; i < total; i++) {
+      int e = (int) order[i];
+      (i < half ? n : newNode).addEntry(splitBoxes, e * width, splitIds[e]);
+    }
+    return newNode;
+  }
+
+  /**
+   * Goes up from the leaf {@code n} along the recorded path, removing nodes
+   * with fewer than MinNodeEntries entries and shrinking the MBRs, then
+   * reinserts the leaf entries below the removed nodes.
+   */
+  private void condenseTree(DoubleNode n) {
+    int width = 2 * dimensions;
+    orphanBoxes.resetQuick();
+    orphanIds.resetQuick();
+    while (parents.size() > 0) {
+      DoubleNode parent = nodes[parents.pop()];
+      int entry = parentsEntry.pop();
+      if (n.entryCount < minNodeEntries) {
+        parent.deleteEntry(entry);
+        eliminate(n);
+      } else {
+        parent.setEntry(entry, n.mbr, 0);
+      }
+      parent.recalculateMBR();
+      n = parent;
+    }
+
+    DoubleNode root = nodes[rootNodeId];
+    if (!root.isLeaf() && root.entryCount == 0) {
+      root.reset(1);
+      treeHeight = 1;
+    }
+    // shrink the tree while the root has a single child
+    while (!root.isLeaf() && root.entryCount == 1) {
+      deletedNodeIds.push(rootNodeId);
+      rootNodeId = root.ids[0];
+      treeHeight--;
+      root = nodes[rootNodeId];
+    }
+
+    for (int i = 0; i < orphanIds.size(); i++) {
+      double[] box = new double[width];
+      for (int k = 0; k < width; k++) {
+        box[k] = orphanBoxes.get(i * width + k);
+      }
+      add(box, 0, orphanIds.get(i), 1);
+    }
+  }
+
+  /**
+   * Frees {@code n} and the nodes below it, keeping their leaf entries for reinsertion.
+   */
+  private void eliminate(DoubleNode n) {
+    int width = 2 * dimensions;
+    for (int i = 0; i < n.entryCount; i++) {
+      if (n.isLeaf()) {
+        orphanBoxes.add(n.entries, i * width, width);
+        orphanIds.add(n.ids[i]);
+      } else {
+        eliminate(nodes[n.ids[i]]);
+      }
+    }
+    n.entryCount = 0;
+    deletedNodeIds.push(n.nodeId);
+  }
+
+  //-------------------------------------------------------------------------
+  // geometry on flat boxes: the minimum of every dimension, then the maximum
+  //-------------------------------------------------------------------------
+
+  private double distanceSq(double[] boxes, int offset, double[] p) {
+    double distanceSq = 0;
+    for (int d = 0; d < dimensions; d++) {
+      double min = boxes[offset + d];
+      double max = boxes[offset + dimensions + d];
+      double delta = p[d] < min ? min - p[d] : (p[d] > max ? p[d] - max : 0);
+      distanceSq += delta * delta;
+    }
+    return distanceSq;
+  }
+
+  private boolean intersects(double[] a, int offset, double[] b) {
+    for (int d = 0; d < dimensions; d++) {
+      if (a[offset + d] > b[dimensions + d] || a[offset + dimensions + d] < b[d]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether box {@code a} contains box {@code b}.
+   */
+  private boolean contains(double[] a, int aOffset, double[] b, int bOffset) {
+    for (int d = 0; d < dimensions; d++) {
+      if (a[aOffset + d] > b[bOffset + d] || a[aOffset + dimensions + d] < b[bOffset + dimensions + d]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks that levels and MBRs are consistent throughout the tree.
+   */
+  public boolean checkConsistency() {
+    return checkConsistency(rootNodeId, treeHeight, null, 0) == size;
+  }
+
+  // returns the number of leaf entries below the node, -1 if inconsistent
+  private int checkConsistency(int nodeId, int expectedLevel, double[] expected, int offset) {
+    DoubleNode n = nodes[nodeId];
+    if (n.level != expectedLevel) {
+      log.error("Error: Node " + nodeId + ", expected level " + expectedLevel + ", actual level " + n.level);
+      return -1;
+    }
+    double[] mbr = n.mbr.clone();
+    n.recalculateMBR();
+    if (!Arrays.equals(mbr, n.mbr)) {
+      log.error("Error: Node " + nodeId + ", calculated MBR does not equal stored MBR");
+      return -1;
+    }
+    if (expected != null) {
+      for (int k = 0; k < 2 * dimensions; k++) {
+        if (expected[offset + k] != mbr[k]) {
+          log.error("Error: Node " + nodeId + ", expected MBR (from parent) does not equal stored MBR");
+          return -1;
+        }
+      }
+    }
+    if (n.isLeaf()) {
+      return n.entryCount;
+    }
+    int count = 0;
+    for (int i = 0; i < n.entryCount; i++) {
+      int below = checkConsistency(n.ids[i], n.level - 1, n.entries, i * 2 * dimensions);
+      if (below < 0) {
+        return -1;
+      }
+      count += below;
+    }
+    return count;
+  }
+
+  /**
+   * Binary min-heap of ids keyed by a double distance.
+   */
+  private static final class DistanceHeap {
+    private double[] keys = new double[16];
+    private int[] values = new int[16];
+    private int size = 0;
+
+    void clear() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int topValue() {
+      return values[0];
+    }
+
+    double topKey() {
+      return keys[0];
+    }
+
+    void push(int value, double key) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (keys[parent] <= key) {
+          break;
+        }
+        keys[i] = keys[parent];
+        values[i] = values[parent];
+        i = parent;
+      }
+      keys[i] = key;
+      values[i] = value;
+    }
+
+    void pop() {
+      size--;
+      if (size == 0) {
+        return;
+      }
+      double key = keys[size];
+      int value = values[size];
+      int i = 0;
+      int child;
+      while ((child = 2 * i + 1) < size) {
+        if (child + 1 < size && keys[child + 1] < keys[child]) {
+          child++;
+        }
+        if (keys[child] >= key) {
+          break;
+        }
+        keys[i] = keys[child];
+        values[i] = values[child];
+        i = child;
+      }
+      keys[i] = key;
+      values[i] = value;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package util.rtree;
+
+import java.io.Serializable;
+
+/**
+ * <p>Used by RTree. Flat storage of all the nodes of a tree: node {@code n}
+ * has its level, entry count and MBR at index {@code n} of the node arrays,
+ * and its entry {@code i} at index {@code n * maxNodeEntries + i} of the
+ * entry arrays. For an index node the entry ids are the ids of the child
+ * nodes, so a traversal only indexes into these arrays.</p>
+ *
+ * <p>An entry id of -1 marks an entry that is not in use during a node
+ * split, as in {@link Node}.</p>
+ */
+final class NodeStore implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final int maxNodeEntries;
+  // number of node ids that fit in the arrays
+  final int capacity;
+
+  final int[] levels;
+  final int[] entryCounts;
+  final float[] mbrMinX;
+  final float[] mbrMinY;
+  final float[] mbrMaxX;
+  final float[] mbrMaxY;
+
+  final float[] entriesMinX;
+  final float[] entriesMinY;
+  final float[] entriesMaxX;
+  final float[] entriesMaxY;
+  final int[] ids;
+
+  NodeStore(int maxNodeEntries, int capacity) {
+    this.maxNodeEntries = maxNodeEntries;
+    this.capacity = capacity;
+    levels = new int[capacity];
+    entryCounts = new int[capacity];
+    mbrMinX = new float[capacity];
+    mbrMinY = new float[capacity];
+    mbrMaxX = new float[capacity];
+    mbrMaxY = new float[capacity];
+    int entries = capacity * maxNodeEntries;
+    entriesMinX = new float[entries];
+    entriesMinY = new float[entries];
+    entriesMaxX = new float[entries];
+    entriesMaxY = new float[entries];
+    ids = new int[entries];
+  }
+
+  /**
+   * A new store holding the nodes of this one, with room for at least
+   * {@code minCapacity} nodes. This store is not changed.
+   */
+  NodeStore grow(int minCapacity) {
+    NodeStore s = new NodeStore(maxNodeEntries, Math.max(minCapacity, capacity * 2));
+    System.arraycopy(levels, 0, s.levels, 0, capacity);
+    System.arraycopy(entryCounts, 0, s.entryCounts, 0, capacity);
+    System.arraycopy(mbrMinX, 0, s.mbrMinX, 0, capacity);
+    System.arraycopy(mbrMinY, 0, s.mbrMinY, 0, capacity);
+    System.arraycopy(mbrMaxX, 0, s.mbrMaxX, 0, capacity);
+    System.arraycopy(mbrMaxY, 0, s.mbrMaxY, 0, capacity);
+    int entries = capacity * maxNodeEntries;
+    System.arraycopy(entriesMinX, 0, s.entriesMinX, 0, entries);
+    System.arraycopy(entriesMinY, 0, s.entriesMinY, 0, entries);
+    System.arraycopy(entriesMaxX, 0, s.entriesMaxX, 0, entries);
+    System.arraycopy(entriesMaxY, 0, s.entriesMaxY, 0, entries);
+    System.arraycopy(ids, 0, s.ids, 0, entries);
+    return s;
+  }
+
+  /**
+   * Empties node {@code n} so that it can be used at {@code level}.
+   */
+  void reset(int n, int level) {
+    levels[n] = level;
+    entryCounts[n] = 0;
+    mbrMinX[n] = Float.MAX_VALUE;
+    mbrMinY[n] = Float.MAX_VALUE;
+    mbrMaxX[n] = -Float.MAX_VALUE;
+    mbrMaxY[n] = -Float.MAX_VALUE;
+  }
+
+  /**
+   * Copies node {@code from} into node {@code to}.
+   */
+  void copy(int from, int to) {
+    levels[to] = levels[from];
+    entryCounts[to] = entryCounts[from];
+    mbrMinX[to] = mbrMinX[from];
+    mbrMinY[to] = mbrMinY[from];
+    mbrMaxX[to] = mbrMaxX[from];
+    mbrMaxY[to] = mbrMaxY[from];
+    int src = from * maxNodeEntries, dst = to * maxNodeEntries;
+    System.arraycopy(entriesMinX, src, entriesMinX, dst, maxNodeEntries);
+    System.arraycopy(entriesMinY, src, entriesMinY, dst, maxNodeEntries);
+    System.arraycopy(entriesMaxX, src, entriesMaxX, dst, maxNodeEntries);
+    System.arraycopy(entriesMaxY, src, entriesMaxY, dst, maxNodeEntries);
+    System.arraycopy(ids, src, ids, dst, maxNodeEntries);
+  }
+
+  boolean isLeaf(int n) {
+    return levels[n] == 1;
+  }
+
+  void addEntry(int n, float minX, float minY, float maxX, float maxY, int id) {
+    int e = n * maxNodeEntries + entryCounts[n];
+    ids[e] = id;
+    entriesMinX[e] = minX;
+    entriesMinY[e] = minY;
+    entriesMaxX[e] = maxX;
+    entriesMaxY[e] = maxY;
+
+    if (minX < mbrMinX[n]) mbrMinX[n] = minX;
+    if (minY < mbrMinY[n]) mbrMinY[n] = minY;
+    if (maxX > mbrMaxX[n]) mbrMaxX[n] = maxX;
+    if (maxY > mbrMaxY[n]) mbrMaxY[n] = maxY;
+
+    entryCounts[n]++;
+  }
+
+  // Return the index of the found entry in node n, or -1 if not found
+  int findEntry(int n, float minX, float minY, float maxX, float maxY, int id) {
+    int base = n * maxNodeEntries;
+    for (int i = 0; i < entryCounts[n]; i++) {
+      int e = base + i;
+      if (id == ids[e] &&
+          entriesMinX[e] == minX && entriesMinY[e] == minY &&
+          entriesMaxX[e] == maxX && entriesMaxY[e] == maxY) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // delete entry i of node n. This is done by copying the last entry into its space.
+  void deleteEntry(int n, int i) {
+    int base = n * maxNodeEntries;
+    int e = base + i;
+    int last = base + entryCounts[n] - 1;
+    float deletedMinX = entriesMinX[e];
+    float deletedMinY = entriesMinY[e];
+    float deletedMaxX = entriesMaxX[e];
+    float deletedMaxY = entriesMaxY[e];
+
+    if (e != last) {
+      entriesMinX[e] = entriesMinX[last];
+      entriesMinY[e] = entriesMinY[last];
+      entriesMaxX[e] = entriesMaxX[last];
+      entriesMaxY[e] = entriesMaxY[last];
+      ids[e] = ids[last];
+    }
+    entryCounts[n]--;
+
+    // adjust the MBR
+    recalculateMBRIfInfluencedBy(n, deletedMinX, deletedMinY, deletedMaxX, deletedMaxY);
+  }
+
+  // deletedMin/MaxX/Y is a rectangle that has just been deleted or made smaller.
+  // Thus, the MBR is only recalculated if the deleted rectangle influenced the old MBR
+  void recalculateMBRIfInfluencedBy(int n, float deletedMinX, float deletedMinY, float deletedMaxX, float deletedMaxY) {
+    if (mbrMinX[n] == deletedMinX || mbrMinY[n] == deletedMinY || mbrMaxX[n] == deletedMaxX || mbrMaxY[n] == deletedMaxY) {
+      recalculateMBR(n);
+    }
+  }
+
+  void recalculateMBR(int n) {
+    int base = n * maxNodeEntries;
+    float minX = entriesMinX[base];
+    float minY = entriesMinY[base];
+    float maxX = entriesMaxX[base];
+    float maxY = entriesMaxY[base];
+
+    for (int e = base + 1; e < base + entryCounts[n]; e++) {
+      if (entriesMinX[e] < minX) minX = entriesMinX[e];
+      if (entriesMinY[e] < minY) minY = entriesMinY[e];
+      if (entriesMaxX[e] > maxX) maxX = entriesMaxX[e];
+      if (entriesMaxY[e] > maxY) maxY = entriesMaxY[e];
+    }
+    mbrMinX[n] = minX;
+    mbrMinY[n] = minY;
+    mbrMaxX[n] = maxX;
+    mbrMaxY[n] = maxY;
+  }
+
+  /**
+   * eliminate null entries, move all entries to the start of node n
+   */
+  void reorganize(int n) {
+    int base = n * maxNodeEntries;
+    int countdownIndex = base + maxNodeEntries - 1;
+    for (int index = base; index < base + entryCounts[n]; index++) {
+      if (ids[index] == -1) {
+        while (ids[countdownIndex] == -1 && countdownIndex > index) {
+          countdownIndex--;
+        }
+        entriesMinX[index] = entriesMinX[countdownIndex];
+        entriesMinY[index] = entriesMinY[countdownIndex];
+        entriesMaxX[index] = entriesMaxX[countdownIndex];
+        entriesMaxY[index] = entriesMaxY[countdownIndex];
+        ids[index] = ids[countdownIndex];
+        ids[countdownIndex] = -1;
+      }
+    }
+  }
+
+  /**
+   * A {@link Node} holding a copy of node {@code n}.
+   */
+  Node toNode(int n) {
+    Node node = new Node(n, levels[n], maxNodeEntries);
+    node.entryCount = entryCounts[n];
+    node.mbrMinX = mbrMinX[n];
+    node.mbrMinY = mbrMinY[n];
+    node.mbrMaxX = mbrMaxX[n];
+    node.mbrMaxY = mbrMaxY[n];
+    int base = n * maxNodeEntries;
+    System.arraycopy(entriesMinX, base, node.entriesMinX, 0, maxNodeEntries);
+    System.arraycopy(entriesMinY, base, node.entriesMinY, 0, maxNodeEntries);
+    System.arraycopy(entriesMaxX, base, node.entriesMaxX, 0, maxNodeEntries);
+    System.arraycopy(entriesMaxY, base, node.entriesMaxY, 0, maxNodeEntries);
+    System.arraycopy(ids, base, node.ids, 0, maxNodeEntries);
+    return node;
+  }
+}
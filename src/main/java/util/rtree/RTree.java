@@ -22,14 +22,17 @@ package util.rtree;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntCharMap;
 import gnu.trove.map.hash.TIntCharHashMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.procedure.TIntCharProcedure;
 import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.stack.TIntStack;
 import gnu.trove.stack.array.TIntArrayStack;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,7 +76,9 @@ import util.SpatialIndex;
  *
  * <p>The main reason for the high speed of this RTree implementation is the
  * avoidance of the creation of unnecessary objects, mainly achieved by using
- * primitive collections from the trove4j library.</p>
+ * primitive collections from the trove4j library. All nodes are kept in
+ * flat arrays indexed by node id (see {@link NodeStore}), there is no
+ * object per node.</p>
  */
 public class RTree implements SpatialIndex, Serializable {
   private static final long serialVersionUID = 5946232781609920309L;
@@ -88,10 +93,10 @@ public class RTree implements SpatialIndex, Serializable {
   private double boundaryLength = 0.0;
 
 
-    // map of nodeId -> node object
-  // TODO eliminate this map - it should not be needed. Nodes
-  // can be found by traversing the tree.
-  private TIntObjectHashMap<Node> nodeMap = new TIntObjectHashMap<Node>();
+  // all nodes, in flat arrays indexed by node id. Ids are dense (deleted
+  // ids are reused before new ones are taken), so finding a child during
+  // a traversal is an array access instead of a hash map lookup.
+  private NodeStore store = null;
 
   // internal consistency checking - set to true if debugging tree corruption
   private final static boolean INTERNAL_CONSISTENCY_CHECKING = false;
@@ -116,7 +121,113 @@ public class RTree implements SpatialIndex, Serializable {
   // Enables creation of new nodes
   private int highestUsedNodeId = rootNodeId;
 
-  // Deleted node objects are retained in the nodeMap,
+  // queues reused by the best-first nearestN(float, float, ...) of each
+  // thread: nodes ordered by MINDIST, and the nearest entries found so
+  // far, furthest first
+  private static final ThreadLocal<PriorityQueue[]> nearestQueues = ThreadLocal.withInitial(() -> new PriorityQueue[]{
+          new PriorityQueue(PriorityQueue.SORT_ORDER_ASCENDING),
+          new PriorityQueue(PriorityQueue.SORT_ORDER_DESCENDING)});
+
+  // buffers reused by the nearestNBatch() calls of each thread
+  private static final ThreadLocal<BatchBuffers> batchBuffers = ThreadLocal.withInitial(BatchBuffers::new);
+
+  /**
+   * Per query state and per level scratch of nearestNBatch(), grown to the
+   * largest batch, tree height and node size seen by the thread.
+   */
+  private static final class BatchBuffers {
+    PriorityQueue[] queues = new PriorityQueue[0];
+    float[] bounds = new float[0];
+    int[] visitedNodes = new int[0];
+    int[] active = new int[0];
+    // one per level, so that the recursion does not overwrite them
+    int[][] activeByLevel = new int[1][0];
+    int[][] orderByLevel = new int[1][0];
+    float[][] keysByLevel = new float[1][0];
+
+    void ensure(int queryCount, int treeHeight, int maxNodeEntries) {
+      if (queues.length < queryCount) {
+        PriorityQueue[] grown = Arrays.copyOf(queues, queryCount);
+        for (int q = queues.length; q < queryCount; q++) {
+          grown[q] = new PriorityQueue(PriorityQueue.SORT_ORDER_DESCENDING);
+        }
+        queues = grown;
+        bounds = new float[queryCount];
+        visitedNodes = new int[queryCount];
+        active = new int[queryCount];
+      }
+      if (activeByLevel.length <= treeHeight) {
+        activeByLevel = Arrays.copyOf(activeByLevel, treeHeight + 1);
+        orderByLevel = Arrays.copyOf(orderByLevel, treeHeight + 1);
+        keysByLevel = Arrays.copyOf(keysByLevel, treeHeight + 1);
+      }
+      for (int level = 1; level <= treeHeight; level++) {
+        if (activeByLevel[level] == null || activeByLevel[level].length < queryCount) {
+          activeByLevel[level] = new int[queues.length];
+        }
+        if (orderByLevel[level] == null || orderByLevel[level].length < maxNodeEntries) {
+          orderByLevel[level] = new int[maxNodeEntries];
+          keysByLevel[level] = new float[maxNodeEntries];
+        }
+      }
+    }
+  }
+
+  // The tree as seen by queries: the node store, root and size as of the
+  // end of the last update. Queries read it once and only use that. Only in
+  // ConcurrentReads mode does this keep them from seeing a half-done update:
+  // in the default mode updates change the nodes in place, and queries must
+  // not run while the tree is updated.
+  private static final class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final NodeStore store;
+    final int rootNodeId;
+    final int treeHeight;
+    final int size;
+    // queries running on this snapshot, only counted in ConcurrentReads mode
+    final AtomicInteger readers = new AtomicInteger();
+
+    Snapshot(NodeStore store, int rootNodeId, int treeHeight, int size) {
+      this.store = store;
+      this.rootNodeId = rootNodeId;
+      this.treeHeight = treeHeight;
+      this.size = size;
+    }
+  }
+  private volatile Snapshot snapshot = null;
+
+  // ConcurrentReads mode: an update never changes a node that a published
+  // snapshot can reach. The first time an update changes a node, the node
+  // is copied to a new id and the entry of its parent is pointed at the
+  // copy (copy on write along the path from the root), so queries may run
+  // on other threads during updates. Updates must still come from one
+  // thread at a time.
+  private boolean concurrentReads = false;
+  // ids of the nodes allocated by the current update, which it may change
+  private BitSet freshNodeIds = new BitSet();
+  // ids of published nodes that the current update copied or deleted
+  private TIntArrayList retiredNodeIds = new TIntArrayList();
+  // ids retired by earlier updates, in order. They are reused once no
+  // query runs on a snapshot that can still reach them.
+  private ArrayDeque<Retired> retired = new ArrayDeque<Retired>();
+  // nesting depth of beginUpdate()
+  private int updateDepth = 0;
+  // whether the current update changed the tree, otherwise it is not published
+  private boolean updateChanged = false;
+
+  private static final class Retired implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // the last snapshot that can reach the nodes
+    final Snapshot snapshot;
+    final int[] nodeIds;
+
+    Retired(Snapshot snapshot, int[] nodeIds) {
+      this.snapshot = snapshot;
+      this.nodeIds = nodeIds;
+    }
+  }
+
+  // Deleted nodes are retained in the node store,
   // so that they can be reused. Store the IDs of nodes
   // which can be reused.
   private TIntStack deletedNodeIds = new TIntArrayStack();
@@ -133,6 +244,7 @@ public class RTree implements SpatialIndex, Serializable {
   //  init(Properties)
   //  add(Rectangle, int)
   //  delete(Rectangle, int)
+  //  load(float[], float[], float[], float[], int[], int)
   //  nearest(Point, TIntProcedure, float)
   //  intersects(Rectangle, TIntProcedure)
   //  contains(Rectangle, TIntProcedure)
@@ -148,6 +260,8 @@ public class RTree implements SpatialIndex, Serializable {
    * <li>MinNodeEntries</li> This specifies the minimum number of entries
    * in a node. The default value is half of the MaxNodeEntries value (rounded
    * down), which is used if the property is not specified or is less than 1.
+   * <li>ConcurrentReads</li> If true, queries may run on any number of threads,
+   * also while the tree is updated, see beginUpdate(). Default false.
    * </ul></p>
    *
    * @see util.SpatialIndex#init(Properties)
@@ -161,6 +275,7 @@ public class RTree implements SpatialIndex, Serializable {
       maxNodeEntries = Integer.parseInt(props.getProperty("MaxNodeEntries", "0"));
       minNodeEntries = Integer.parseInt(props.getProperty("MinNodeEntries", "0"));
       boundaryLength = Double.parseDouble(props.getProperty("BOUNDARY_LENGTH", "0"));
+      concurrentReads = Boolean.parseBoolean(props.getProperty("ConcurrentReads", "false"));
 
         // Obviously a node with less than 2 entries cannot be split.
       // The node splitting algorithm will work with only 2 entries
@@ -184,8 +299,9 @@ public class RTree implements SpatialIndex, Serializable {
       initialEntryStatus[i] = ENTRY_STATUS_UNASSIGNED;
     }
 
-    Node root = new Node(rootNodeId, 1, maxNodeEntries);
-    nodeMap.put(rootNodeId, root);
+    store = new NodeStore(maxNodeEntries, 16);
+    store.reset(rootNodeId, 1);
+    publish();
 
     log.debug("init() " + " MaxNodeEntries = " + maxNodeEntries + ", MinNodeEntries = " + minNodeEntries);
   }
@@ -198,9 +314,12 @@ public class RTree implements SpatialIndex, Serializable {
       log.debug("Adding rectangle " + r + ", id " + id);
     }
 
+    beginUpdate();
     add(r.minX, r.minY, r.maxX, r.maxY, id, 1);
 
     size++;
+    updateChanged = true;
+    endUpdate();
 
     if (INTERNAL_CONSISTENCY_CHECKING) {
       checkConsistency();
@@ -213,34 +332,33 @@ public class RTree implements SpatialIndex, Serializable {
   private void add(float minX, float minY, float maxX, float maxY, int id, int level) {
     // I1 [Find position for new record] Invoke ChooseLeaf to select a
     // leaf node L in which to place r
-    Node n = chooseNode(minX, minY, maxX, maxY, level);
-    Node newLeaf = null;
+    int n = chooseNode(minX, minY, maxX, maxY, level);
+    int newLeaf = -1;
 
     // I2 [Add record to leaf node] If L has room for another entry,
     // install E. Otherwise invoke SplitNode to obtain L and LL containing
     // E and all the old entries of L
-    if (n.entryCount < maxNodeEntries) {
-      n.addEntry(minX, minY, maxX, maxY, id);
+    if (store.entryCounts[n] < maxNodeEntries) {
+      store.addEntry(n, minX, minY, maxX, maxY, id);
     } else {
       newLeaf = splitNode(n, minX, minY, maxX, maxY, id);
     }
 
     // I3 [Propagate changes upwards] Invoke AdjustTree on L, also passing LL
     // if a split was performed
-    Node newNode = adjustTree(n, newLeaf);
+    int newNode = adjustTree(n, newLeaf);
 
     // I4 [Grow tree taller] If node split propagation caused the root to
     // split, create a new root whose children are the two resulting nodes.
-    if (newNode != null) {
+    if (newNode != -1) {
       int oldRootNodeId = rootNodeId;
-      Node oldRoot = getNode(oldRootNodeId);
 
-      rootNodeId = getNextNodeId();
       treeHeight++;
-      Node root = new Node(rootNodeId, treeHeight, maxNodeEntries);
-      root.addEntry(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY, newNode.nodeId);
-      root.addEntry(oldRoot.mbrMinX, oldRoot.mbrMinY, oldRoot.mbrMaxX, oldRoot.mbrMaxY, oldRoot.nodeId);
-      nodeMap.put(rootNodeId, root);
+      int root = allocateNode(treeHeight);
+      NodeStore st = store;
+      st.addEntry(root, st.mbrMinX[newNode], st.mbrMinY[newNode], st.mbrMaxX[newNode], st.mbrMaxY[newNode], newNode);
+      st.addEntry(root, st.mbrMinX[oldRootNodeId], st.mbrMinY[oldRootNodeId], st.mbrMaxX[oldRootNodeId], st.mbrMaxY[oldRootNodeId], oldRootNodeId);
+      rootNodeId = root;
     }
   }
 
@@ -259,25 +377,29 @@ public class RTree implements SpatialIndex, Serializable {
     // to determine if it contains r. For each entry found, invoke
     // findLeaf on the node pointed to by the entry, until r is found or
     // all entries have been checked.
+    beginUpdate();
+    NodeStore st = store;
     parents.clear();
     parents.push(rootNodeId);
 
     parentsEntry.clear();
     parentsEntry.push(-1);
-    Node n = null;
+    int n = -1;
     int foundIndex = -1;  // index of entry to be deleted in leaf
 
     while (foundIndex == -1 && parents.size() > 0) {
-      n = getNode(parents.peek());
+      n = parents.peek();
       int startIndex = parentsEntry.peek() + 1;
 
-      if (!n.isLeaf()) {
-        deleteLog.debug("searching node " + n.nodeId + ", from index " + startIndex);
+      if (!st.isLeaf(n)) {
+        deleteLog.debug("searching node " + n + ", from index " + startIndex);
         boolean contains = false;
-        for (int i = startIndex; i < n.entryCount; i++) {
-          if (Rectangle.contains(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i],
+        int base = n * maxNodeEntries;
+        for (int i = startIndex; i < st.entryCounts[n]; i++) {
+          int e = base + i;
+          if (Rectangle.contains(st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e],
                   r.minX, r.minY, r.maxX, r.maxY)) {
-            parents.push(n.ids[i]);
+            parents.push(st.ids[e]);
             parentsEntry.pop();
             parentsEntry.push(i); // this becomes the start index when the child has been searched
             parentsEntry.push(-1);
@@ -289,57 +411,168 @@ public class RTree implements SpatialIndex, Serializable {
           continue;
         }
       } else {
-        foundIndex = n.findEntry(r.minX, r.minY, r.maxX, r.maxY, id);
+        foundIndex = st.findEntry(n, r.minX, r.minY, r.maxX, r.maxY, id);
       }
 
       parents.pop();
       parentsEntry.pop();
     } // while not found
 
-    if (foundIndex != -1 && n != null) {
-      n.deleteEntry(foundIndex);
-      condenseTree(n);
-      size--;
+    // nothing found: nothing is copied, and nothing is published
+    if (foundIndex == -1) {
+      endUpdate();
+      return false;
     }
 
+    n = writablePath(n);
+    store.deleteEntry(n, foundIndex);
+    condenseTree(n);
+    size--;
+    updateChanged = true;
+
     // shrink the tree if possible (i.e. if root node has exactly one entry,and that
     // entry is not a leaf node, delete the root (it's entry becomes the new root)
-    Node root = getNode(rootNodeId);
-    while (root.entryCount == 1 && treeHeight > 1)
+    while (store.entryCounts[rootNodeId] == 1 && treeHeight > 1)
     {
-      deletedNodeIds.push(rootNodeId);
-      root.entryCount = 0;
-      rootNodeId = root.ids[0];
+      int oldRootNodeId = rootNodeId;
+      rootNodeId = store.ids[oldRootNodeId * maxNodeEntries];
+      freeNode(oldRootNodeId);
       treeHeight--;
-      root = getNode(rootNodeId);
     }
 
     // if the tree is now empty, then set the MBR of the root node back to it's original state
     // (this is only needed when the tree is empty, as this is the only state where an empty node
     // is not eliminated)
     if (size == 0) {
-      root.mbrMinX = Float.MAX_VALUE;
-      root.mbrMinY = Float.MAX_VALUE;
-      root.mbrMaxX = -Float.MAX_VALUE;
-      root.mbrMaxY = -Float.MAX_VALUE;
+      rootNodeId = writableNode(rootNodeId);
+      store.mbrMinX[rootNodeId] = Float.MAX_VALUE;
+      store.mbrMinY[rootNodeId] = Float.MAX_VALUE;
+      store.mbrMaxX[rootNodeId] = -Float.MAX_VALUE;
+      store.mbrMaxY[rootNodeId] = -Float.MAX_VALUE;
+    }
+    endUpdate();
+
+    if (INTERNAL_CONSISTENCY_CHECKING) {
+      checkConsistency();
     }
 
+    return true;
+  }
+
+  /**
+   * Sort-Tile-Recursive bulk load, see Leutenegger et al, "STR: A Simple
+   * and Efficient Algorithm for R-Tree Packing". The entries are sorted by
+   * the x of their centres and cut into about sqrt(nodes) vertical slices,
+   * each slice is sorted by y and packed into nodes; the nodes of a level
+   * are the entries of the level above. Nodes are filled evenly (between
+   * MinNodeEntries and MaxNodeEntries entries) and no node is ever split,
+   * so a build is O(n log n). The node store of the previous contents is
+   * reused.
+   *
+   * @see util.SpatialIndex#load(float[], float[], float[], float[], int[], int)
+   */
+  public void load(float[] minX, float[] minY, float[] maxX, float[] maxY, int[] ids, int count) {
+    beginUpdate();
+    if (concurrentReads) {
+      // queries may still read the old nodes: build in new arrays, the old
+      // ones go away with the last snapshot using them
+      store = new NodeStore(maxNodeEntries, store.capacity);
+      retired.clear();
+      retiredNodeIds.reset();
+    }
+    deletedNodeIds.clear();
+    highestUsedNodeId = -1; // the first node gets id 0
+    size = count;
+
+    float[] lMinX = minX, lMinY = minY, lMaxX = maxX, lMaxY = maxY;
+    int[] lIds = ids;
+    int level = 1;
+    while (count > maxNodeEntries) {
+      int nodeCount = (count + maxNodeEntries - 1) / maxNodeEntries;
+      int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+      long[] order = new long[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = sortKey(lMinX[i] + lMaxX[i], i);
+      }
+      Arrays.sort(order);
+
+      float[] nMinX = new float[nodeCount], nMinY = new float[nodeCount];
+      float[] nMaxX = new float[nodeCount], nMaxY = new float[nodeCount];
+      int[] nIds = new int[nodeCount];
+      int node = 0, start = 0;
+      for (int slice = 0; slice < sliceCount; slice++) {
+        // nodes, and then entries, are shared out as evenly as possible
+        int sliceNodes = nodeCount / sliceCount + (slice < nodeCount % sliceCount ? 1 : 0);
+        int end = start;
+        for (int j = 0; j < sliceNodes; j++) {
+          end += count / nodeCount + (node + j < count % nodeCount ? 1 : 0);
+        }
+        for (int i = start; i < end; i++) {
+          int e = (int) order[i];
+          order[i] = sortKey(lMinY[e] + lMaxY[e], e);
+        }
+        Arrays.sort(order, start, end);
+        for (int j = 0; j < sliceNodes; j++, node++) {
+          int entries = count / nodeCount + (node < count % nodeCount ? 1 : 0);
+          int n = allocateNode(level);
+          NodeStore st = store;
+          for (int i = start; i < start + entries; i++) {
+            int e = (int) order[i];
+            st.addEntry(n, lMinX[e], lMinY[e], lMaxX[e], lMaxY[e], lIds[e]);
+          }
+          start += entries;
+          nMinX[node] = st.mbrMinX[n];
+          nMinY[node] = st.mbrMinY[n];
+          nMaxX[node] = st.mbrMaxX[n];
+          nMaxY[node] = st.mbrMaxY[n];
+          nIds[node] = n;
+        }
+      }
+      lMinX = nMinX;
+      lMinY = nMinY;
+      lMaxX = nMaxX;
+      lMaxY = nMaxY;
+      lIds = nIds;
+      count = nodeCount;
+      level++;
+    }
+
+    int root = allocateNode(level);
+    for (int i = 0; i < count; i++) {
+      store.addEntry(root, lMinX[i], lMinY[i], lMaxX[i], lMaxY[i], lIds[i]);
+    }
+    rootNodeId = root;
+    treeHeight = level;
+    updateChanged = true;
+    endUpdate();
+
     if (INTERNAL_CONSISTENCY_CHECKING) {
       checkConsistency();
     }
+  }
 
-    return (foundIndex != -1);
+  /**
+   * A long that sorts by {@code key}, then by {@code index}, which is
+   * kept in the low 32 bits.
+   */
+  private static long sortKey(float key, int index) {
+    int bits = Float.floatToIntBits(key);
+    bits ^= (bits >> 31) & 0x7fffffff; // negative floats sort in reverse
+    return ((long) bits << 32) | index;
   }
 
   /**
    * @see util.SpatialIndex#nearest(Point, TIntProcedure, float)
    */
   public void nearest(Point p, TIntProcedure v, float furthestDistance) {
-    Node rootNode = getNode(rootNodeId);
-
     float furthestDistanceSq = furthestDistance * furthestDistance;
     TIntArrayList nearestIds = new TIntArrayList();
-    nearest(p, rootNode, furthestDistanceSq, nearestIds);
+    Snapshot s = acquire();
+    try {
+      nearest(p, s.store, s.rootNodeId, furthestDistanceSq, nearestIds);
+    } finally {
+      release(s);
+    }
 
     nearestIds.forEach(v);
     nearestIds.reset();
@@ -349,22 +582,49 @@ public class RTree implements SpatialIndex, Serializable {
    * @see util.SpatialIndex#nearest(Point, TIntProcedure, float)
    */
   public void nearest(Point p, TIntCharProcedure v, float furthestDistance) {
-    Node rootNode = getNode(rootNodeId);
-
     float furthestDistanceSq = furthestDistance * furthestDistance;
     TIntCharMap nearestIds = new TIntCharHashMap();
-    nearest(p, rootNode, furthestDistanceSq, nearestIds);
+    Snapshot s = acquire();
+    try {
+      nearest(p, s.store, s.rootNodeId, furthestDistanceSq, nearestIds);
+    } finally {
+      release(s);
+    }
 
     nearestIds.forEachEntry(v);
     nearestIds.clear();
   }
 
   private void createNearestNDistanceQueue(Point p, int count, PriorityQueue distanceQueue, float furthestDistance) {
+    createNearestNDistanceQueue(p, count, distanceQueue, furthestDistance, 0, 0);
+  }
+
+  /**
+   * @param epsilon a node is only visited if it could contain an entry nearer than
+   *                (current Nth distance) / (1 + epsilon); 0 for an exact search
+   * @param maxNodes maximum number of nodes visited below the root, 0 for no limit
+   */
+  private void createNearestNDistanceQueue(Point p, int count, PriorityQueue distanceQueue, float furthestDistance,
+                                           float epsilon, int maxNodes) {
     //  return immediately if given an invalid "count" parameter
     if (count <= 0) {
       return;
     }
 
+    Snapshot s = acquire();
+    try {
+      createNearestNDistanceQueue(s.store, s.rootNodeId, p, count, distanceQueue, furthestDistance, epsilon, maxNodes);
+    } finally {
+      release(s);
+    }
+  }
+
+  private void createNearestNDistanceQueue(NodeStore st, int rootNodeId, Point p, int count, PriorityQueue distanceQueue,
+                                           float furthestDistance, float epsilon, int maxNodes) {
+    float scale = (1 + epsilon) * (1 + epsilon);
+    int visitedNodes = 0;
+    boolean full = false; // whether count entries have been found
+
     TIntStack parents = new TIntArrayStack();
     parents.push(rootNodeId);
 
@@ -380,19 +640,26 @@ public class RTree implements SpatialIndex, Serializable {
     float furthestDistanceSq = furthestDistance * furthestDistance;
 
     while (parents.size() > 0) {
-      Node n = getNode(parents.peek());
+      int n = parents.peek();
+      int base = n * st.maxNodeEntries;
       int startIndex = parentsEntry.peek() + 1;
 
-      if (!n.isLeaf()) {
+      if (!st.isLeaf(n)) {
         // go through every entry in the index node to check
         // if it could contain an entry closer than the farthest entry
         // currently stored.
         boolean near = false;
-        for (int i = startIndex; i < n.entryCount; i++) {
-          if (Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i],
-                  n.entriesMaxX[i], n.entriesMaxY[i],
-                  p.x, p.y) <= furthestDistanceSq) {
-            parents.push(n.ids[i]);
+        for (int i = startIndex; i < st.entryCounts[n]; i++) {
+          if (maxNodes > 0 && visitedNodes >= maxNodes) {
+            break;
+          }
+          int e = base + i;
+          // only the Nth distance is shrunk by (1 + epsilon), not furthestDistance
+          if (Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e],
+                  st.entriesMaxX[e], st.entriesMaxY[e],
+                  p.x, p.y) * (full ? scale : 1) <= furthestDistanceSq) {
+            visitedNodes++;
+            parents.push(st.ids[e]);
             parentsEntry.pop();
             parentsEntry.push(i); // this becomes the start index when the child has been searched
             parentsEntry.push(-1);
@@ -406,11 +673,11 @@ public class RTree implements SpatialIndex, Serializable {
       } else {
         // go through every entry in the leaf to check if
         // it is currently one of the nearest N entries.
-        for (int i = 0; i < n.entryCount; i++) {
-          float entryDistanceSq = Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i],
-                  n.entriesMaxX[i], n.entriesMaxY[i],
+        for (int e = base; e < base + st.entryCounts[n]; e++) {
+          float entryDistanceSq = Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e],
+                  st.entriesMaxX[e], st.entriesMaxY[e],
                   p.x, p.y);
-          int entryId = n.ids[i];
+          int entryId = st.ids[e];
 
           if (entryDistanceSq <= furthestDistanceSq) {
             distanceQueue.insert(entryId, entryDistanceSq);
@@ -443,6 +710,7 @@ public class RTree implements SpatialIndex, Serializable {
             if (distanceQueue.getPriority() < furthestDistanceSq && distanceQueue.size() >= count) {
               furthestDistanceSq = distanceQueue.getPriority();
             }
+            full |= distanceQueue.size() >= count;
           }
         }
       }
@@ -477,8 +745,22 @@ public class RTree implements SpatialIndex, Serializable {
    * @see util.SpatialIndex#nearestN(Point, TIntProcedure, int, float)
    */
   public void nearestN(Point p, TIntProcedure v, int count, float furthestDistance) {
+    nearestN(p, v, count, furthestDistance, 0, 0);
+  }
+
+  /**
+   * Approximate variant of nearestN(). Nodes are pruned against the current
+   * Nth distance divided by (1 + epsilon), so the distance of the i-th entry
+   * returned is at most (1 + epsilon) times the true i-th distance. The search
+   * also stops descending once maxNodes nodes have been visited, in which case
+   * no bound holds.
+   *
+   * @param epsilon relative distance error, 0 for an exact search
+   * @param maxNodes maximum number of nodes visited, 0 for no limit
+   */
+  public void nearestN(Point p, TIntProcedure v, int count, float furthestDistance, float epsilon, int maxNodes) {
     PriorityQueue distanceQueue = new PriorityQueue(PriorityQueue.SORT_ORDER_DESCENDING);
-    createNearestNDistanceQueue(p, count, distanceQueue, furthestDistance);
+    createNearestNDistanceQueue(p, count, distanceQueue, furthestDistance, epsilon, maxNodes);
     distanceQueue.setSortOrder(PriorityQueue.SORT_ORDER_ASCENDING);
 
     while (distanceQueue.size() > 0) {
@@ -487,18 +769,284 @@ public class RTree implements SpatialIndex, Serializable {
     }
   }
 
+  /**
+   * <p>Best-first N nearest entries, see Hjaltason and Samet, "Distance
+   * Browsing in Spatial Databases". Nodes are taken from a priority queue
+   * in order of their MINDIST to the point, and the search stops as soon as
+   * the nearest unvisited node is further than the current Nth entry, so
+   * only nodes that intersect the circle of the final Nth distance are
+   * visited. The depth-first nearestN() descends into the first child in
+   * range and only tightens its bound at the leaves.</p>
+   *
+   * <p>Exactly min(count, found) entries are returned, ties at the Nth
+   * distance are broken arbitrarily. Every thread reuses its own queues
+   * between calls.</p>
+   *
+   * @param x X coordinate of the query point
+   * @param y Y coordinate of the query point
+   * @param count number of entries to find
+   * @param furthestDistance entries further than this are not found
+   * @param resultIds output, ids of the entries found in order of increasing distance
+   * @param resultDistancesSq output, squared distances matching resultIds
+   * @return number of entries found
+   */
+  public int nearestN(float x, float y, int count, float furthestDistance,
+                      int[] resultIds, float[] resultDistancesSq) {
+    return nearestN(x, y, count, furthestDistance, 0, 0, resultIds, resultDistancesSq);
+  }
+
+  /**
+   * Approximate variant of the best-first nearestN(). The search stops once
+   * the nearest unvisited node, moved (1 + epsilon) times further away, is
+   * further than the current Nth entry, so the distance of the i-th entry
+   * returned is at most (1 + epsilon) times the true i-th distance. It also
+   * stops after maxNodes nodes below the root, in which case no bound holds.
+   *
+   * @param epsilon relative distance error, 0 for an exact search
+   * @param maxNodes maximum number of nodes visited below the root, 0 for no limit
+   */
+  public int nearestN(float x, float y, int count, float furthestDistance, float epsilon, int maxNodes,
+                      int[] resultIds, float[] resultDistancesSq) {
+    if (count <= 0) {
+      return 0;
+    }
+    PriorityQueue[] queues = nearestQueues.get();
+    PriorityQueue nodeQueue = queues[0];
+    PriorityQueue entryQueue = queues[1];
+    nodeQueue.reset();
+    entryQueue.reset();
+
+    Snapshot s = acquire();
+    try {
+      NodeStore st = s.store;
+      float scale = (1 + epsilon) * (1 + epsilon);
+      float boundSq = furthestDistance * furthestDistance;
+      // the bound nodes are pruned against: the furthest distance, or
+      // (Nth distance) / (1 + epsilon) once N entries are held
+      float nodeBoundSq = boundSq;
+      int visitedNodes = -1; // the root does not count
+      nodeQueue.insert(s.rootNodeId, 0);
+      while (nodeQueue.size() > 0 && nodeQueue.getPriority() <= nodeBoundSq
+              && (maxNodes <= 0 || visitedNodes < maxNodes)) {
+        int n = nodeQueue.pop();
+        visitedNodes++;
+        boolean leaf = st.isLeaf(n);
+        int base = n * st.maxNodeEntries;
+        for (int e = base; e < base + st.entryCounts[n]; e++) {
+          float distanceSq = Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e],
+                  st.entriesMaxX[e], st.entriesMaxY[e], x, y);
+          if (!leaf) {
+            if (distanceSq <= nodeBoundSq) {
+              nodeQueue.insert(st.ids[e], distanceSq);
+            }
+            continue;
+          }
+          if (distanceSq > boundSq) {
+            continue;
+          }
+          if (entryQueue.size() == count) {
+            if (distanceSq >= entryQueue.getPriority()) {
+              continue;
+            }
+            entryQueue.pop();
+          }
+          entryQueue.insert(st.ids[e], distanceSq);
+          if (entryQueue.size() == count) {
+            boundSq = entryQueue.getPriority();
+            nodeBoundSq = boundSq / scale;
+          }
+        }
+      }
+    } finally {
+      release(s);
+    }
+
+    // the entry queue is sorted descending, fill the output from the back
+    int found = entryQueue.size();
+    for (int i = found - 1; i >= 0; i--) {
+      resultIds[i] = entryQueue.getValue();
+      resultDistancesSq[i] = entryQueue.getPriority();
+      entryQueue.pop();
+    }
+    return found;
+  }
+
+  /**
+   * <p>Finds the N nearest entries of a batch of query points with a single
+   * traversal of the tree. The query points should be spatially close to
+   * each other (e.g. consecutive on a Z-order curve), so that they share
+   * most of the visited subtrees.</p>
+   *
+   * <p>Every query keeps its own pruning bound; a subtree is visited when at
+   * least one query of the batch could still find a nearer entry in it, and
+   * only those queries are carried down into the subtree. Unlike nearestN(),
+   * exactly min(n, found) entries are returned per query even if there are
+   * ties at the Nth distance.</p>
+   *
+   * @param xs X coordinates of the query points
+   * @param ys Y coordinates of the query points
+   * @param queryCount number of query points
+   * @param n number of entries to find per query
+   * @param furthestDistance entries further than this are not found
+   * @param resultIds output, ids of query q are at [q * n, q * n + resultCounts[q]),
+   *                  in order of increasing distance
+   * @param resultDistancesSq output, squared distances matching resultIds
+   * @param resultCounts output, number of entries found per query
+   */
+  public void nearestNBatch(float[] xs, float[] ys, int queryCount, int n, float furthestDistance,
+                            int[] resultIds, float[] resultDistancesSq, int[] resultCounts) {
+    nearestNBatch(xs, ys, queryCount, n, furthestDistance, 0, 0, resultIds, resultDistancesSq, resultCounts);
+  }
+
+  /**
+   * Approximate variant of nearestNBatch(), see nearestN(Point, TIntProcedure, int, float, float, int).
+   * The node budget applies to every query separately: a query is no longer
+   * carried down into subtrees once it has been carried into maxNodes nodes.
+   *
+   * @param epsilon relative distance error, 0 for an exact search
+   * @param maxNodes maximum number of nodes visited per query, 0 for no limit
+   */
+  public void nearestNBatch(float[] xs, float[] ys, int queryCount, int n, float furthestDistance,
+                            float epsilon, int maxNodes,
+                            int[] resultIds, float[] resultDistancesSq, int[] resultCounts) {
+    if (queryCount <= 0 || n <= 0) {
+      return;
+    }
+    float furthestDistanceSq = furthestDistance * furthestDistance;
+    float scale = (1 + epsilon) * (1 + epsilon);
+    BatchBuffers b = batchBuffers.get();
+    PriorityQueue[] queues;
+
+    Snapshot s = acquire();
+    try {
+      b.ensure(queryCount, s.treeHeight, s.store.maxNodeEntries);
+      queues = b.queues;
+      for (int q = 0; q < queryCount; q++) {
+        queues[q].reset();
+        b.bounds[q] = furthestDistanceSq;
+        b.visitedNodes[q] = 0;
+        b.active[q] = q;
+      }
+
+      nearestNBatch(s.store, s.rootNodeId, xs, ys, b.active, queryCount, n, queues, b.bounds,
+              scale, maxNodes, b.visitedNodes, b.activeByLevel, b.orderByLevel, b.keysByLevel);
+    } finally {
+      release(s);
+    }
+
+    for (int q = 0; q < queryCount; q++) {
+      PriorityQueue queue = queues[q];
+      int found = queue.size();
+      resultCounts[q] = found;
+      // the queue is sorted descending, fill the output from the back
+      for (int i = found - 1; i >= 0; i--) {
+        resultIds[q * n + i] = queue.getValue();
+        resultDistancesSq[q * n + i] = queue.getPriority();
+        queue.pop();
+      }
+    }
+  }
+
+  private void nearestNBatch(NodeStore st, int n, float[] xs, float[] ys, int[] active, int activeCount, int count,
+                             PriorityQueue[] queues, float[] bounds,
+                             float scale, int maxNodes, int[] visitedNodes,
+                             int[][] activeByLevel, int[][] orderByLevel, float[][] keysByLevel) {
+    int base = n * st.maxNodeEntries;
+    int entryCount = st.entryCounts[n];
+    if (st.isLeaf(n)) {
+      for (int a = 0; a < activeCount; a++) {
+        int q = active[a];
+        PriorityQueue queue = queues[q];
+        for (int e = base; e < base + entryCount; e++) {
+          float distanceSq = Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e],
+                  st.entriesMaxX[e], st.entriesMaxY[e], xs[q], ys[q]);
+          if (distanceSq > bounds[q] || (queue.size() >= count && distanceSq >= queue.getPriority())) {
+            continue;
+          }
+          queue.insert(st.ids[e], distanceSq);
+          if (queue.size() > count) {
+            queue.pop();
+          }
+          if (queue.size() >= count) {
+            bounds[q] = queue.getPriority();
+          }
+        }
+      }
+      return;
+    }
+
+    // visit the children in order of their smallest distance to any active query,
+    // so that the bounds shrink as early as possible.
+    int level = st.levels[n];
+    int[] order = orderByLevel[level];
+    float[] keys = keysByLevel[level];
+    for (int i = 0; i < entryCount; i++) {
+      int e = base + i;
+      float key = Float.POSITIVE_INFINITY;
+      for (int a = 0; a < activeCount; a++) {
+        int q = active[a];
+        float distanceSq = Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e],
+                st.entriesMaxX[e], st.entriesMaxY[e], xs[q], ys[q]);
+        if (distanceSq < key) key = distanceSq;
+      }
+      int j = i;
+      while (j > 0 && keys[j - 1] > key) {
+        keys[j] = keys[j - 1];
+        order[j] = order[j - 1];
+        j--;
+      }
+      keys[j] = key;
+      order[j] = i;
+    }
+
+    int[] childActive = activeByLevel[level - 1];
+    for (int o = 0; o < entryCount; o++) {
+      int e = base + order[o];
+      int childActiveCount = 0;
+      for (int a = 0; a < activeCount; a++) {
+        int q = active[a];
+        if (maxNodes > 0 && visitedNodes[q] >= maxNodes) {
+          continue;
+        }
+        // only the Nth distance is shrunk by (1 + epsilon), not furthestDistance
+        if (Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e],
+                xs[q], ys[q]) * (queues[q].size() >= count ? scale : 1) <= bounds[q]) {
+          visitedNodes[q]++;
+          childActive[childActiveCount++] = q;
+        }
+      }
+      if (childActiveCount > 0) {
+        nearestNBatch(st, st.ids[e], xs, ys, childActive, childActiveCount, count, queues, bounds,
+                scale, maxNodes, visitedNodes, activeByLevel, orderByLevel, keysByLevel);
+      }
+    }
+  }
+
   /**
    * @see util.SpatialIndex#intersects(Rectangle, TIntProcedure)
    */
   public void intersects(Rectangle r, TIntProcedure v) {
-    Node rootNode = getNode(rootNodeId);
-    intersects(r, v, rootNode);
+    Snapshot s = acquire();
+    try {
+      intersects(r, v, s.store, s.rootNodeId);
+    } finally {
+      release(s);
+    }
   }
 
   /**
    * @see util.SpatialIndex#contains(Rectangle, TIntProcedure)
    */
   public void contains(Rectangle r, TIntProcedure v) {
+    Snapshot s = acquire();
+    try {
+      contains(r, v, s.store, s.rootNodeId);
+    } finally {
+      release(s);
+    }
+  }
+
+  private void contains(Rectangle r, TIntProcedure v, NodeStore st, int rootNodeId) {
     // find all rectangles in the tree that are contained by the passed rectangle
     // written to be non-recursive (should model other searches on this?)
     TIntStack parents = new TIntArrayStack();
@@ -511,18 +1059,20 @@ public class RTree implements SpatialIndex, Serializable {
     // MBR of the root node. If no intersection, return immediately.
 
     while (parents.size() > 0) {
-      Node n = getNode(parents.peek());
+      int n = parents.peek();
+      int base = n * st.maxNodeEntries;
       int startIndex = parentsEntry.peek() + 1;
 
-      if (!n.isLeaf()) {
+      if (!st.isLeaf(n)) {
         // go through every entry in the index node to check
         // if it intersects the passed rectangle. If so, it
         // could contain entries that are contained.
         boolean intersects = false;
-        for (int i = startIndex; i < n.entryCount; i++) {
+        for (int i = startIndex; i < st.entryCounts[n]; i++) {
+          int e = base + i;
           if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY,
-                  n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i])) {
-            parents.push(n.ids[i]);
+                  st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e])) {
+            parents.push(st.ids[e]);
             parentsEntry.pop();
             parentsEntry.push(i); // this becomes the start index when the child has been searched
             parentsEntry.push(-1);
@@ -536,10 +1086,10 @@ public class RTree implements SpatialIndex, Serializable {
       } else {
         // go through every entry in the leaf to check if
         // it is contained by the passed rectangle
-        for (int i = 0; i < n.entryCount; i++) {
+        for (int e = base; e < base + st.entryCounts[n]; e++) {
           if (Rectangle.contains(r.minX, r.minY, r.maxX, r.maxY,
-                  n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i])) {
-            if (!v.execute(n.ids[i])) {
+                  st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e])) {
+            if (!v.execute(st.ids[e])) {
               return;
             }
           }
@@ -554,7 +1104,7 @@ public class RTree implements SpatialIndex, Serializable {
    * @see util.SpatialIndex#size()
    */
   public int size() {
-    return size;
+    return snapshot.size;
   }
 
   /**
@@ -563,13 +1113,19 @@ public class RTree implements SpatialIndex, Serializable {
   public Rectangle getBounds() {
     Rectangle bounds = null;
 
-    Node n = getNode(getRootNodeId());
-    if (n != null && n.entryCount > 0) {
-      bounds = new Rectangle();
-      bounds.minX = n.mbrMinX;
-      bounds.minY = n.mbrMinY;
-      bounds.maxX = n.mbrMaxX;
-      bounds.maxY = n.mbrMaxY;
+    Snapshot s = acquire();
+    try {
+      NodeStore st = s.store;
+      int n = s.rootNodeId;
+      if (st.entryCounts[n] > 0) {
+        bounds = new Rectangle();
+        bounds.minX = st.mbrMinX[n];
+        bounds.minY = st.mbrMinY[n];
+        bounds.maxX = st.mbrMaxX[n];
+        bounds.maxY = st.mbrMaxY[n];
+      }
+    } finally {
+      release(s);
     }
     return bounds;
   }
@@ -599,10 +1155,159 @@ public class RTree implements SpatialIndex, Serializable {
   }
 
   /**
-   * Get a node object, given the ID of the node.
+   * Get an empty node with the next available node ID, growing the
+   * node store if needed.
+   */
+  private int allocateNode(int level) {
+    int nodeId = getNextNodeId();
+    if (nodeId >= store.capacity) {
+      // a new store, the published snapshot keeps the old arrays
+      store = store.grow(nodeId + 1);
+    }
+    store.reset(nodeId, level);
+    if (concurrentReads) {
+      freshNodeIds.set(nodeId);
+    }
+    return nodeId;
+  }
+
+  /**
+   * Get the id of a node of the current update that may be changed. In
+   * ConcurrentReads mode a published node is copied to a new id the first
+   * time the update changes it; the caller must point the parent entry (or
+   * rootNodeId) at the returned id.
+   */
+  private int writableNode(int id) {
+    if (!concurrentReads || freshNodeIds.get(id)) {
+      return id;
+    }
+    int copy = allocateNode(store.levels[id]);
+    store.copy(id, copy);
+    retiredNodeIds.add(id);
+    return copy;
+  }
+
+  /**
+   * Makes the nodes on the path from the root to {@code leaf} writable. The
+   * path is held by the parents stacks, as left by the FindLeaf loop of
+   * delete(). Returns the id of the writable leaf.
+   */
+  private int writablePath(int leaf) {
+    if (!concurrentReads) {
+      return leaf;
+    }
+    int depth = parents.size();
+    int[] path = new int[depth + 1];
+    int[] entries = new int[depth];
+    path[depth] = leaf;
+    for (int d = depth - 1; d >= 0; d--) {
+      path[d] = parents.pop();
+      entries[d] = parentsEntry.pop();
+    }
+    path[0] = writableNode(path[0]);
+    rootNodeId = path[0];
+    for (int d = 1; d <= depth; d++) {
+      path[d] = writableNode(path[d]);
+      store.ids[path[d - 1] * maxNodeEntries + entries[d - 1]] = path[d];
+    }
+    for (int d = 0; d < depth; d++) {
+      parents.push(path[d]);
+      parentsEntry.push(entries[d]);
+    }
+    return path[depth];
+  }
+
+  /**
+   * Makes a node id reusable, in ConcurrentReads mode only once no query
+   * can reach a published node any more.
+   */
+  private void freeNode(int id) {
+    if (concurrentReads && !freshNodeIds.get(id)) {
+      retiredNodeIds.add(id);
+    } else {
+      deletedNodeIds.push(id);
+    }
+  }
+
+  /**
+   * Starts an update. add(), delete() and load() call this themselves; a
+   * caller may wrap several of them in beginUpdate() / endUpdate() so that
+   * queries see them all at once, and in ConcurrentReads mode a node changed
+   * by several of them is only copied once.
+   */
+  public void beginUpdate() {
+    if (updateDepth++ == 0 && concurrentReads) {
+      reclaimNodeIds();
+      freshNodeIds.clear();
+    }
+  }
+
+  /**
+   * Ends an update, the outermost call publishes the new tree to queries.
+   */
+  public void endUpdate() {
+    if (--updateDepth == 0 && updateChanged) {
+      publish();
+      updateChanged = false;
+    }
+  }
+
+  private void publish() {
+    Snapshot replaced = snapshot;
+    snapshot = new Snapshot(store, rootNodeId, treeHeight, size);
+    if (retiredNodeIds.size() > 0) {
+      retired.add(new Retired(replaced, retiredNodeIds.toArray()));
+      retiredNodeIds.reset();
+    }
+  }
+
+  /**
+   * Makes the ids retired by earlier updates reusable, oldest first, as long
+   * as no query runs on the snapshots that can reach them. A query that
+   * takes a replaced snapshot after this check sees that it is no longer
+   * current and does not read it, see acquire().
+   */
+  private void reclaimNodeIds() {
+    while (!retired.isEmpty() && retired.peek().snapshot.readers.get() == 0) {
+      for (int id : retired.poll().nodeIds) {
+        deletedNodeIds.push(id);
+      }
+    }
+  }
+
+  /**
+   * The snapshot a query runs on; must be handed back with release().
+   */
+  private Snapshot acquire() {
+    if (!concurrentReads) {
+      return snapshot;
+    }
+    while (true) {
+      Snapshot s = snapshot;
+      s.readers.incrementAndGet();
+      if (s == snapshot) {
+        return s;
+      }
+      s.readers.decrementAndGet();
+    }
+  }
+
+  private void release(Snapshot s) {
+    if (concurrentReads) {
+      s.readers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Get a copy of a node, given the ID of the node.
    */
   public Node getNode(int id) {
-    return nodeMap.get(id);
+    Snapshot s = acquire();
+    try {
+      return id >= 0 && id < s.store.capacity ? s.store.toNode(id) : null;
+    } finally {
+      release(s);
+    }
   }
 
   /**
@@ -616,16 +1321,16 @@ public class RTree implements SpatialIndex, Serializable {
    * Get the root node ID
    */
   public int getRootNodeId() {
-    return rootNodeId;
+    return snapshot.rootNodeId;
   }
 
   /**
    * Split a node. Algorithm is taken pretty much verbatim from
    * Guttman's original paper.
    *
-   * @return new node object.
+   * @return id of the new node.
    */
-  private Node splitNode(Node n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, int newId) {
+  private int splitNode(int n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, int newId) {
     // [Pick first entry for each group] Apply algorithm pickSeeds to
     // choose two entries to be the first elements of the groups. Assign
     // each to a group.
@@ -633,49 +1338,51 @@ public class RTree implements SpatialIndex, Serializable {
     // debug code
     float initialArea = 0;
     if (log.isDebugEnabled()) {
-      float unionMinX = Math.min(n.mbrMinX, newRectMinX);
-      float unionMinY = Math.min(n.mbrMinY, newRectMinY);
-      float unionMaxX = Math.max(n.mbrMaxX, newRectMaxX);
-      float unionMaxY = Math.max(n.mbrMaxY, newRectMaxY);
+      float unionMinX = Math.min(store.mbrMinX[n], newRectMinX);
+      float unionMinY = Math.min(store.mbrMinY[n], newRectMinY);
+      float unionMaxX = Math.max(store.mbrMaxX[n], newRectMaxX);
+      float unionMaxY = Math.max(store.mbrMaxY[n], newRectMaxY);
 
       initialArea = (unionMaxX - unionMinX) * (unionMaxY - unionMinY);
     }
 
     System.arraycopy(initialEntryStatus, 0, entryStatus, 0, maxNodeEntries);
 
-    Node newNode = null;
-    newNode = new Node(getNextNodeId(), n.level, maxNodeEntries);
-    nodeMap.put(newNode.nodeId, newNode);
+    int newNode = allocateNode(store.levels[n]);
+    NodeStore st = store;
+    int base = n * maxNodeEntries;
 
-    pickSeeds(n, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId, newNode); // this also sets the entryCount to 1
+    pickSeeds(st, n, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId, newNode); // this also sets the entryCount to 1
 
     // [Check if done] If all entries have been assigned, stop. If one
     // group has so few entries that all the rest must be assigned to it in
     // order for it to have the minimum number m, assign them and stop.
-    while (n.entryCount + newNode.entryCount < maxNodeEntries + 1) {
-      if (maxNodeEntries + 1 - newNode.entryCount == minNodeEntries) {
+    while (st.entryCounts[n] + st.entryCounts[newNode] < maxNodeEntries + 1) {
+      if (maxNodeEntries + 1 - st.entryCounts[newNode] == minNodeEntries) {
         // assign all remaining entries to original node
         for (int i = 0; i < maxNodeEntries; i++) {
           if (entryStatus[i] == ENTRY_STATUS_UNASSIGNED) {
             entryStatus[i] = ENTRY_STATUS_ASSIGNED;
+            int e = base + i;
 
-            if (n.entriesMinX[i] < n.mbrMinX) n.mbrMinX = n.entriesMinX[i];
-            if (n.entriesMinY[i] < n.mbrMinY) n.mbrMinY = n.entriesMinY[i];
-            if (n.entriesMaxX[i] > n.mbrMaxX) n.mbrMaxX = n.entriesMaxX[i];
-            if (n.entriesMaxY[i] > n.mbrMaxY) n.mbrMaxY = n.entriesMaxY[i];
+            if (st.entriesMinX[e] < st.mbrMinX[n]) st.mbrMinX[n] = st.entriesMinX[e];
+            if (st.entriesMinY[e] < st.mbrMinY[n]) st.mbrMinY[n] = st.entriesMinY[e];
+            if (st.entriesMaxX[e] > st.mbrMaxX[n]) st.mbrMaxX[n] = st.entriesMaxX[e];
+            if (st.entriesMaxY[e] > st.mbrMaxY[n]) st.mbrMaxY[n] = st.entriesMaxY[e];
 
-            n.entryCount++;
+            st.entryCounts[n]++;
           }
         }
         break;
       }
-      if (maxNodeEntries + 1 - n.entryCount == minNodeEntries) {
+      if (maxNodeEntries + 1 - st.entryCounts[n] == minNodeEntries) {
         // assign all remaining entries to new node
         for (int i = 0; i < maxNodeEntries; i++) {
           if (entryStatus[i] == ENTRY_STATUS_UNASSIGNED) {
             entryStatus[i] = ENTRY_STATUS_ASSIGNED;
-            newNode.addEntry(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], n.ids[i]);
-            n.ids[i] = -1; // an id of -1 indicates the entry is not in use
+            int e = base + i;
+            st.addEntry(newNode, st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e], st.ids[e]);
+            st.ids[e] = -1; // an id of -1 indicates the entry is not in use
           }
         }
         break;
@@ -686,29 +1393,29 @@ public class RTree implements SpatialIndex, Serializable {
       // will have to be enlarged least to accommodate it. Resolve ties
       // by adding the entry to the group with smaller area, then to the
       // the one with fewer entries, then to either. Repeat from S2
-      pickNext(n, newNode);
+      pickNext(st, n, newNode);
     }
 
-    n.reorganize(this);
+    st.reorganize(n);
 
     // check that the MBR stored for each node is correct.
     if (INTERNAL_CONSISTENCY_CHECKING) {
-      Rectangle nMBR = new Rectangle(n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY);
-      if (!nMBR.equals(calculateMBR(n))) {
+      Rectangle nMBR = new Rectangle(st.mbrMinX[n], st.mbrMinY[n], st.mbrMaxX[n], st.mbrMaxY[n]);
+      if (!nMBR.equals(calculateMBR(st, n))) {
         log.error("Error: splitNode old node MBR wrong");
       }
-      Rectangle newNodeMBR = new Rectangle(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY);
-      if (!newNodeMBR.equals(calculateMBR(newNode))) {
+      Rectangle newNodeMBR = new Rectangle(st.mbrMinX[newNode], st.mbrMinY[newNode], st.mbrMaxX[newNode], st.mbrMaxY[newNode]);
+      if (!newNodeMBR.equals(calculateMBR(st, newNode))) {
         log.error("Error: splitNode new node MBR wrong");
       }
     }
 
     // debug code
     if (log.isDebugEnabled()) {
-      float newArea = Rectangle.area(n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY) +
-              Rectangle.area(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY);
+      float newArea = Rectangle.area(st.mbrMinX[n], st.mbrMinY[n], st.mbrMaxX[n], st.mbrMaxY[n]) +
+              Rectangle.area(st.mbrMinX[newNode], st.mbrMinY[newNode], st.mbrMaxX[newNode], st.mbrMaxY[newNode]);
       float percentageIncrease = (100 * (newArea - initialArea)) / initialArea;
-      log.debug("Node " + n.nodeId + " split. New area increased by " + percentageIncrease + "%");
+      log.debug("Node " + n + " split. New area increased by " + percentageIncrease + "%");
     }
 
     return newNode;
@@ -718,26 +1425,27 @@ public class RTree implements SpatialIndex, Serializable {
    * Pick the seeds used to split a node.
    * Select two entries to be the first elements of the groups
    */
-  private void pickSeeds(Node n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, int newId, Node newNode) {
+  private void pickSeeds(NodeStore st, int n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, int newId, int newNode) {
     // Find extreme rectangles along all dimension. Along each dimension,
     // find the entry whose rectangle has the highest low side, and the one
     // with the lowest high side. Record the separation.
     float maxNormalizedSeparation = -1; // initialize to -1 so that even overlapping rectangles will be considered for the seeds
     int highestLowIndex = -1;
     int lowestHighIndex = -1;
+    int base = n * maxNodeEntries;
 
     // for the purposes of picking seeds, take the MBR of the node to include
     // the new rectangle aswell.
-    if (newRectMinX < n.mbrMinX) n.mbrMinX = newRectMinX;
-    if (newRectMinY < n.mbrMinY) n.mbrMinY = newRectMinY;
-    if (newRectMaxX > n.mbrMaxX) n.mbrMaxX = newRectMaxX;
-    if (newRectMaxY > n.mbrMaxY) n.mbrMaxY = newRectMaxY;
+    if (newRectMinX < st.mbrMinX[n]) st.mbrMinX[n] = newRectMinX;
+    if (newRectMinY < st.mbrMinY[n]) st.mbrMinY[n] = newRectMinY;
+    if (newRectMaxX > st.mbrMaxX[n]) st.mbrMaxX[n] = newRectMaxX;
+    if (newRectMaxY > st.mbrMaxY[n]) st.mbrMaxY[n] = newRectMaxY;
 
-    float mbrLenX = n.mbrMaxX - n.mbrMinX;
-    float mbrLenY = n.mbrMaxY - n.mbrMinY;
+    float mbrLenX = st.mbrMaxX[n] - st.mbrMinX[n];
+    float mbrLenY = st.mbrMaxY[n] - st.mbrMinY[n];
 
     if (log.isDebugEnabled()) {
-      log.debug("pickSeeds(): NodeId = " + n.nodeId);
+      log.debug("pickSeeds(): NodeId = " + n);
     }
 
     float tempHighestLow = newRectMinX;
@@ -746,13 +1454,13 @@ public class RTree implements SpatialIndex, Serializable {
     float tempLowestHigh = newRectMaxX;
     int tempLowestHighIndex = -1; // -1 indicates the new rectangle is the seed
 
-    for (int i = 0; i < n.entryCount; i++) {
-      float tempLow = n.entriesMinX[i];
+    for (int i = 0; i < st.entryCounts[n]; i++) {
+      float tempLow = st.entriesMinX[base + i];
       if (tempLow >= tempHighestLow) {
         tempHighestLow = tempLow;
         tempHighestLowIndex = i;
       } else {  // ensure that the same index cannot be both lowestHigh and highestLow
-        float tempHigh = n.entriesMaxX[i];
+        float tempHigh = st.entriesMaxX[base + i];
         if (tempHigh <= tempLowestHigh) {
           tempLowestHigh = tempHigh;
           tempLowestHighIndex = i;
@@ -791,13 +1499,13 @@ public class RTree implements SpatialIndex, Serializable {
     tempLowestHigh = newRectMaxY;
     tempLowestHighIndex = -1; // -1 indicates the new rectangle is the seed
 
-    for (int i = 0; i < n.entryCount; i++) {
-      float tempLow = n.entriesMinY[i];
+    for (int i = 0; i < st.entryCounts[n]; i++) {
+      float tempLow = st.entriesMinY[base + i];
       if (tempLow >= tempHighestLow) {
         tempHighestLow = tempLow;
         tempHighestLowIndex = i;
       } else {  // ensure that the same index cannot be both lowestHigh and highestLow
-        float tempHigh = n.entriesMaxY[i];
+        float tempHigh = st.entriesMaxY[base + i];
         if (tempHigh <= tempLowestHigh) {
           tempLowestHigh = tempHigh;
           tempLowestHighIndex = i;
@@ -837,15 +1545,15 @@ public class RTree implements SpatialIndex, Serializable {
       highestLowIndex = -1;
       float tempMinY = newRectMinY;
       lowestHighIndex = 0;
-      float tempMaxX = n.entriesMaxX[0];
+      float tempMaxX = st.entriesMaxX[base];
 
-      for (int i = 1; i < n.entryCount; i++) {
-        if (n.entriesMinY[i] < tempMinY) {
-          tempMinY = n.entriesMinY[i];
+      for (int i = 1; i < st.entryCounts[n]; i++) {
+        if (st.entriesMinY[base + i] < tempMinY) {
+          tempMinY = st.entriesMinY[base + i];
           highestLowIndex = i;
         }
-        else if (n.entriesMaxX[i] > tempMaxX) {
-          tempMaxX = n.entriesMaxX[i];
+        else if (st.entriesMaxX[base + i] > tempMaxX) {
+          tempMaxX = st.entriesMaxX[base + i];
           lowestHighIndex = i;
         }
       }
@@ -853,20 +1561,21 @@ public class RTree implements SpatialIndex, Serializable {
 
     // highestLowIndex is the seed for the new node.
     if (highestLowIndex == -1) {
-      newNode.addEntry(newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId);
+      st.addEntry(newNode, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId);
     } else {
-      newNode.addEntry(n.entriesMinX[highestLowIndex], n.entriesMinY[highestLowIndex],
-              n.entriesMaxX[highestLowIndex], n.entriesMaxY[highestLowIndex],
-              n.ids[highestLowIndex]);
-      n.ids[highestLowIndex] = -1;
+      int e = base + highestLowIndex;
+      st.addEntry(newNode, st.entriesMinX[e], st.entriesMinY[e],
+              st.entriesMaxX[e], st.entriesMaxY[e],
+              st.ids[e]);
+      st.ids[e] = -1;
 
       // move the new rectangle into the space vacated by the seed for the new node
-      n.entriesMinX[highestLowIndex] = newRectMinX;
-      n.entriesMinY[highestLowIndex] = newRectMinY;
-      n.entriesMaxX[highestLowIndex] = newRectMaxX;
-      n.entriesMaxY[highestLowIndex] = newRectMaxY;
+      st.entriesMinX[e] = newRectMinX;
+      st.entriesMinY[e] = newRectMinY;
+      st.entriesMaxX[e] = newRectMaxX;
+      st.entriesMaxY[e] = newRectMaxY;
 
-      n.ids[highestLowIndex] = newId;
+      st.ids[e] = newId;
     }
 
     // lowestHighIndex is the seed for the original node.
@@ -875,11 +1584,11 @@ public class RTree implements SpatialIndex, Serializable {
     }
 
     entryStatus[lowestHighIndex] = ENTRY_STATUS_ASSIGNED;
-    n.entryCount = 1;
-    n.mbrMinX = n.entriesMinX[lowestHighIndex];
-    n.mbrMinY = n.entriesMinY[lowestHighIndex];
-    n.mbrMaxX = n.entriesMaxX[lowestHighIndex];
-    n.mbrMaxY = n.entriesMaxY[lowestHighIndex];
+    st.entryCounts[n] = 1;
+    st.mbrMinX[n] = st.entriesMinX[base + lowestHighIndex];
+    st.mbrMinY[n] = st.entriesMinY[base + lowestHighIndex];
+    st.mbrMaxX[n] = st.entriesMaxX[base + lowestHighIndex];
+    st.mbrMaxY[n] = st.entriesMaxY[base + lowestHighIndex];
   }
 
   /**
@@ -889,10 +1598,11 @@ public class RTree implements SpatialIndex, Serializable {
    * entry not yet in a group, calculate the area increase required
    * in the covering rectangles of each group
    */
-  private int pickNext(Node n, Node newNode) {
+  private int pickNext(NodeStore st, int n, int newNode) {
     float maxDifference = Float.NEGATIVE_INFINITY;
     int next = 0;
     int nextGroup = 0;
+    int base = n * maxNodeEntries;
 
     maxDifference = Float.NEGATIVE_INFINITY;
 
@@ -902,30 +1612,33 @@ public class RTree implements SpatialIndex, Serializable {
 
     for (int i = 0; i < maxNodeEntries; i++) {
       if (entryStatus[i] == ENTRY_STATUS_UNASSIGNED) {
+        int e = base + i;
 
-        if (n.ids[i] == -1) {
-          log.error("Error: Node " + n.nodeId + ", entry " + i + " is null");
+        if (st.ids[e] == -1) {
+          log.error("Error: Node " + n + ", entry " + i + " is null");
         }
 
-        float nIncrease = Rectangle.enlargement(n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY,
-                n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i]);
-        float newNodeIncrease = Rectangle.enlargement(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY,
-                n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i]);
+        float nIncrease = Rectangle.enlargement(st.mbrMinX[n], st.mbrMinY[n], st.mbrMaxX[n], st.mbrMaxY[n],
+                st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e]);
+        float newNodeIncrease = Rectangle.enlargement(st.mbrMinX[newNode], st.mbrMinY[newNode], st.mbrMaxX[newNode], st.mbrMaxY[newNode],
+                st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e]);
 
         float difference = Math.abs(nIncrease - newNodeIncrease);
 
         if (difference > maxDifference) {
           next = i;
 
+          float nArea = Rectangle.area(st.mbrMinX[n], st.mbrMinY[n], st.mbrMaxX[n], st.mbrMaxY[n]);
+          float newNodeArea = Rectangle.area(st.mbrMinX[newNode], st.mbrMinY[newNode], st.mbrMaxX[newNode], st.mbrMaxY[newNode]);
           if (nIncrease < newNodeIncrease) {
             nextGroup = 0;
           } else if (newNodeIncrease < nIncrease) {
             nextGroup = 1;
-          } else if (Rectangle.area(n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY) < Rectangle.area(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY)) {
+          } else if (nArea < newNodeArea) {
             nextGroup = 0;
-          } else if (Rectangle.area(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY) < Rectangle.area(n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY)) {
+          } else if (newNodeArea < nArea) {
             nextGroup = 1;
-          } else if (newNode.entryCount < maxNodeEntries / 2) {
+          } else if (st.entryCounts[newNode] < maxNodeEntries / 2) {
             nextGroup = 0;
           } else {
             nextGroup = 1;
@@ -940,17 +1653,18 @@ public class RTree implements SpatialIndex, Serializable {
     }
 
     entryStatus[next] = ENTRY_STATUS_ASSIGNED;
+    int e = base + next;
 
     if (nextGroup == 0) {
-      if (n.entriesMinX[next] < n.mbrMinX) n.mbrMinX = n.entriesMinX[next];
-      if (n.entriesMinY[next] < n.mbrMinY) n.mbrMinY = n.entriesMinY[next];
-      if (n.entriesMaxX[next] > n.mbrMaxX) n.mbrMaxX = n.entriesMaxX[next];
-      if (n.entriesMaxY[next] > n.mbrMaxY) n.mbrMaxY = n.entriesMaxY[next];
-      n.entryCount++;
+      if (st.entriesMinX[e] < st.mbrMinX[n]) st.mbrMinX[n] = st.entriesMinX[e];
+      if (st.entriesMinY[e] < st.mbrMinY[n]) st.mbrMinY[n] = st.entriesMinY[e];
+      if (st.entriesMaxX[e] > st.mbrMaxX[n]) st.mbrMaxX[n] = st.entriesMaxX[e];
+      if (st.entriesMaxY[e] > st.mbrMaxY[n]) st.mbrMaxY[n] = st.entriesMaxY[e];
+      st.entryCounts[n]++;
     } else {
       // move to new node.
-      newNode.addEntry(n.entriesMinX[next], n.entriesMinY[next], n.entriesMaxX[next], n.entriesMaxY[next], n.ids[next]);
-      n.ids[next] = -1;
+      st.addEntry(newNode, st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e], st.ids[e]);
+      st.ids[e] = -1;
     }
 
     return next;
@@ -965,22 +1679,24 @@ public class RTree implements SpatialIndex, Serializable {
    * entry IDs (it is an array, rather than a single value, in case
    * multiple entries are equally near)
    */
-  private float nearest(Point p, Node n, float furthestDistanceSq, TIntArrayList nearestIds) {
-    for (int i = 0; i < n.entryCount; i++) {
-      float tempDistanceSq = Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], p.x, p.y);
-      if (n.isLeaf()) { // for leaves, the distance is an actual nearest distance
+  private float nearest(Point p, NodeStore st, int n, float furthestDistanceSq, TIntArrayList nearestIds) {
+    boolean leaf = st.isLeaf(n);
+    int base = n * st.maxNodeEntries;
+    for (int e = base; e < base + st.entryCounts[n]; e++) {
+      float tempDistanceSq = Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e], p.x, p.y);
+      if (leaf) { // for leaves, the distance is an actual nearest distance
         if (tempDistanceSq < furthestDistanceSq) {
           furthestDistanceSq = tempDistanceSq;
           nearestIds.reset();
         }
         if (tempDistanceSq <= furthestDistanceSq) {
-          nearestIds.add(n.ids[i]);
+          nearestIds.add(st.ids[e]);
         }
       } else { // for index nodes, only go into them if they potentially could have
         // a rectangle nearer than actualNearest
         if (tempDistanceSq <= furthestDistanceSq) {
           // search the child node
-          furthestDistanceSq = nearest(p, getNode(n.ids[i]), furthestDistanceSq, nearestIds);
+          furthestDistanceSq = nearest(p, st, st.ids[e], furthestDistanceSq, nearestIds);
         }
       }
     }
@@ -997,27 +1713,29 @@ public class RTree implements SpatialIndex, Serializable {
      * entry IDs (it is an array, rather than a single value, in case
      * multiple entries are equally near)
      */
-    private float nearest(Point p, Node n, float furthestDistanceSq, TIntCharMap nearestIds) {
-        for (int i = 0; i < n.entryCount; i++) {
-            float tempDistanceSq = Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], p.x, p.y);
-            if (n.isLeaf()) { // for leaves, the distance is an actual nearest distance
+    private float nearest(Point p, NodeStore st, int n, float furthestDistanceSq, TIntCharMap nearestIds) {
+        boolean leaf = st.isLeaf(n);
+        int base = n * st.maxNodeEntries;
+        for (int e = base; e < base + st.entryCounts[n]; e++) {
+            float tempDistanceSq = Rectangle.distanceSq(st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e], p.x, p.y);
+            if (leaf) { // for leaves, the distance is an actual nearest distance
                 if (tempDistanceSq < furthestDistanceSq) {
                     furthestDistanceSq = tempDistanceSq;
                     nearestIds.clear();
                 }
                 if (tempDistanceSq <= furthestDistanceSq) {
-                    double innerDistance = Rectangle.innerDistance(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], p.x, p.y);
+                    double innerDistance = Rectangle.innerDistance(st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e], p.x, p.y);
                     char isBoundary = 'F';
                     if (innerDistance < boundaryLength){
                         isBoundary = 'T';
                     }
-                    nearestIds.put(n.ids[i],isBoundary);
+                    nearestIds.put(st.ids[e],isBoundary);
                 }
             } else { // for index nodes, only go into them if they potentially could have
                 // a rectangle nearer than actualNearest
                 if (tempDistanceSq <= furthestDistanceSq) {
                     // search the child node
-                    furthestDistanceSq = nearest(p, getNode(n.ids[i]), furthestDistanceSq, nearestIds);
+                    furthestDistanceSq = nearest(p, st, st.ids[e], furthestDistanceSq, nearestIds);
                 }
             }
         }
@@ -1031,16 +1749,17 @@ public class RTree implements SpatialIndex, Serializable {
    * TODO rewrite this to be non-recursive? Make sure it
    * doesn't slow it down.
    */
-  private boolean intersects(Rectangle r, TIntProcedure v, Node n) {
-    for (int i = 0; i < n.entryCount; i++) {
-      if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i])) {
-        if (n.isLeaf()) {
-          if (!v.execute(n.ids[i])) {
+  private boolean intersects(Rectangle r, TIntProcedure v, NodeStore st, int n) {
+    boolean leaf = st.isLeaf(n);
+    int base = n * st.maxNodeEntries;
+    for (int e = base; e < base + st.entryCounts[n]; e++) {
+      if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e])) {
+        if (leaf) {
+          if (!v.execute(st.ids[e])) {
             return false;
           }
         } else {
-          Node childNode = getNode(n.ids[i]);
-          if (!intersects(r, v, childNode)) {
+          if (!intersects(r, v, st, st.ids[e])) {
             return false;
           }
         }
@@ -1056,42 +1775,44 @@ public class RTree implements SpatialIndex, Serializable {
    * Note that the parent and parentEntry stacks are expected to
    * contain the nodeIds of all parents up to the root.
    */
-  private void condenseTree(Node l) {
+  private void condenseTree(int l) {
     // CT1 [Initialize] Set n=l. Set the list of eliminated
     // nodes to be empty.
-    Node n = l;
-    Node parent = null;
+    int n = l;
+    int parent = -1;
     int parentEntry = 0;
 
     TIntStack eliminatedNodeIds = new TIntArrayStack();
 
     // CT2 [Find parent entry] If N is the root, go to CT6. Otherwise
     // let P be the parent of N, and let En be N's entry in P
-    while (n.level != treeHeight) {
-      parent = getNode(parents.pop());
+    while (store.levels[n] != treeHeight) {
+      NodeStore st = store;
+      parent = parents.pop();
       parentEntry = parentsEntry.pop();
 
       // CT3 [Eliminiate under-full node] If N has too few entries,
       // delete En from P and add N to the list of eliminated nodes
-      if (n.entryCount < minNodeEntries) {
-        parent.deleteEntry(parentEntry);
-        eliminatedNodeIds.push(n.nodeId);
+      if (st.entryCounts[n] < minNodeEntries) {
+        st.deleteEntry(parent, parentEntry);
+        eliminatedNodeIds.push(n);
       } else {
         // CT4 [Adjust covering rectangle] If N has not been eliminated,
         // adjust EnI to tightly contain all entries in N
-        if (n.mbrMinX != parent.entriesMinX[parentEntry] ||
-                n.mbrMinY != parent.entriesMinY[parentEntry] ||
-                n.mbrMaxX != parent.entriesMaxX[parentEntry] ||
-                n.mbrMaxY != parent.entriesMaxY[parentEntry]) {
-          float deletedMinX = parent.entriesMinX[parentEntry];
-          float deletedMinY = parent.entriesMinY[parentEntry];
-          float deletedMaxX = parent.entriesMaxX[parentEntry];
-          float deletedMaxY = parent.entriesMaxY[parentEntry];
-          parent.entriesMinX[parentEntry] = n.mbrMinX;
-          parent.entriesMinY[parentEntry] = n.mbrMinY;
-          parent.entriesMaxX[parentEntry] = n.mbrMaxX;
-          parent.entriesMaxY[parentEntry] = n.mbrMaxY;
-          parent.recalculateMBRIfInfluencedBy(deletedMinX, deletedMinY, deletedMaxX, deletedMaxY);
+        int e = parent * maxNodeEntries + parentEntry;
+        if (st.mbrMinX[n] != st.entriesMinX[e] ||
+                st.mbrMinY[n] != st.entriesMinY[e] ||
+                st.mbrMaxX[n] != st.entriesMaxX[e] ||
+                st.mbrMaxY[n] != st.entriesMaxY[e]) {
+          float deletedMinX = st.entriesMinX[e];
+          float deletedMinY = st.entriesMinY[e];
+          float deletedMaxX = st.entriesMaxX[e];
+          float deletedMaxY = st.entriesMaxY[e];
+          st.entriesMinX[e] = st.mbrMinX[n];
+          st.entriesMinY[e] = st.mbrMinY[n];
+          st.entriesMaxX[e] = st.mbrMaxX[n];
+          st.entriesMaxY[e] = st.mbrMaxY[n];
+          st.recalculateMBRIfInfluencedBy(parent, deletedMinX, deletedMinY, deletedMaxX, deletedMaxY);
         }
       }
       // CT5 [Move up one level in tree] Set N=P and repeat from CT2
@@ -1104,100 +1825,109 @@ public class RTree implements SpatialIndex, Serializable {
     // the tree, so that leaves of their dependent subtrees will be on the same
     // level as leaves of the main tree
     while (eliminatedNodeIds.size() > 0) {
-      Node e = getNode(eliminatedNodeIds.pop());
-      for (int j = 0; j < e.entryCount; j++) {
-        add(e.entriesMinX[j], e.entriesMinY[j], e.entriesMaxX[j], e.entriesMaxY[j], e.ids[j], e.level);
-        e.ids[j] = -1;
+      int e = eliminatedNodeIds.pop();
+      for (int j = 0; j < store.entryCounts[e]; j++) {
+        // add() may grow the store, read it again for every entry
+        NodeStore st = store;
+        int entry = e * maxNodeEntries + j;
+        add(st.entriesMinX[entry], st.entriesMinY[entry], st.entriesMaxX[entry], st.entriesMaxY[entry], st.ids[entry], st.levels[e]);
       }
-      e.entryCount = 0;
-      deletedNodeIds.push(e.nodeId);
+      freeNode(e);
     }
   }
 
   /**
    *  Used by add(). Chooses a leaf to add the rectangle to.
    */
-  private Node chooseNode(float minX, float minY, float maxX, float maxY, int level) {
+  private int chooseNode(float minX, float minY, float maxX, float maxY, int level) {
     // CL1 [Initialize] Set N to be the root node
-    Node n = getNode(rootNodeId);
+    rootNodeId = writableNode(rootNodeId);
+    int n = rootNodeId;
     parents.clear();
     parentsEntry.clear();
 
     // CL2 [Leaf check] If N is a leaf, return N
     while (true) {
-      if (n == null) {
-        log.error("Could not get root node (" + rootNodeId + ")");
-      }
-
-      if (n.level == level) {
+      NodeStore st = store;
+      if (st.levels[n] == level) {
         return n;
       }
 
       // CL3 [Choose subtree] If N is not at the desired level, let F be the entry in N
       // whose rectangle FI needs least enlargement to include EI. Resolve
       // ties by choosing the entry with the rectangle of smaller area.
-      float leastEnlargement = Rectangle.enlargement(n.entriesMinX[0], n.entriesMinY[0], n.entriesMaxX[0], n.entriesMaxY[0],
+      int base = n * maxNodeEntries;
+      float leastEnlargement = Rectangle.enlargement(st.entriesMinX[base], st.entriesMinY[base], st.entriesMaxX[base], st.entriesMaxY[base],
               minX, minY, maxX, maxY);
       int index = 0; // index of rectangle in subtree
-      for (int i = 1; i < n.entryCount; i++) {
-        float tempMinX = n.entriesMinX[i];
-        float tempMinY = n.entriesMinY[i];
-        float tempMaxX = n.entriesMaxX[i];
-        float tempMaxY = n.entriesMaxY[i];
+      for (int i = 1; i < st.entryCounts[n]; i++) {
+        int e = base + i;
+        float tempMinX = st.entriesMinX[e];
+        float tempMinY = st.entriesMinY[e];
+        float tempMaxX = st.entriesMaxX[e];
+        float tempMaxY = st.entriesMaxY[e];
         float tempEnlargement = Rectangle.enlargement(tempMinX, tempMinY, tempMaxX, tempMaxY,
                 minX, minY, maxX, maxY);
+        int f = base + index;
         if ((tempEnlargement < leastEnlargement) ||
                 ((tempEnlargement == leastEnlargement) &&
                         (Rectangle.area(tempMinX, tempMinY, tempMaxX, tempMaxY) <
-                                Rectangle.area(n.entriesMinX[index], n.entriesMinY[index], n.entriesMaxX[index], n.entriesMaxY[index])))) {
+                                Rectangle.area(st.entriesMinX[f], st.entriesMinY[f], st.entriesMaxX[f], st.entriesMaxY[f])))) {
           index = i;
           leastEnlargement = tempEnlargement;
         }
       }
 
-      parents.push(n.nodeId);
+      parents.push(n);
       parentsEntry.push(index);
 
       // CL4 [Descend until a leaf is reached] Set N to be the child node
       // pointed to by Fp and repeat from CL2
-      n = getNode(n.ids[index]);
+      int child = writableNode(st.ids[base + index]);
+      store.ids[base + index] = child;
+      n = child;
     }
   }
 
   /**
    * Ascend from a leaf node L to the root, adjusting covering rectangles and
    * propagating node splits as necessary.
+   *
+   * @param nn the node split from n, or -1
+   * @return the node split from the root, or -1
    */
-  private Node adjustTree(Node n, Node nn) {
+  private int adjustTree(int n, int nn) {
     // AT1 [Initialize] Set N=L. If L was split previously, set NN to be
     // the resulting second node.
 
     // AT2 [Check if done] If N is the root, stop
-    while (n.level != treeHeight) {
+    while (store.levels[n] != treeHeight) {
 
       // AT3 [Adjust covering rectangle in parent entry] Let P be the parent
       // node of N, and let En be N's entry in P. Adjust EnI so that it tightly
       // encloses all entry rectangles in N.
-      Node parent = getNode(parents.pop());
+      NodeStore st = store;
+      int parent = parents.pop();
       int entry = parentsEntry.pop();
+      int e = parent * maxNodeEntries + entry;
 
-      if (parent.ids[entry] != n.nodeId) {
+      if (st.ids[e] != n) {
         log.error("Error: entry " + entry + " in node " +
-                parent.nodeId + " should point to node " +
-                n.nodeId + "; actually points to node " + parent.ids[entry]);
+                parent + " should point to node " +
+                n + "; actually points to node " + st.ids[e]);
       }
 
-      if (parent.entriesMinX[entry] != n.mbrMinX ||
-              parent.entriesMinY[entry] != n.mbrMinY ||
-              parent.entriesMaxX[entry] != n.mbrMaxX ||
-              parent.entriesMaxY[entry] != n.mbrMaxY) {
+      if (st.entriesMinX[e] != st.mbrMinX[n] ||
+              st.entriesMinY[e] != st.mbrMinY[n] ||
+              st.entriesMaxX[e] != st.mbrMaxX[n] ||
+              st.entriesMaxY[e] != st.mbrMaxY[n]) {
 
-        parent.entriesMinX[entry] = n.mbrMinX;
-        parent.entriesMinY[entry] = n.mbrMinY;
-        parent.entriesMaxX[entry] = n.mbrMaxX;
-        parent.entriesMaxY[entry] = n.mbrMaxY;
+        st.entriesMinX[e] = st.mbrMinX[n];
+        st.entriesMinY[e] = st.mbrMinY[n];
+        st.entriesMaxX[e] = st.mbrMaxX[n];
+        st.entriesMaxY[e] = st.mbrMaxY[n];
 
-        parent.recalculateMBR();
+        st.recalculateMBR(parent);
       }
 
       // AT4 [Propagate node split upward] If N has a partner NN resulting from
@@ -1205,12 +1935,12 @@ public class RTree implements SpatialIndex, Serializable {
       // Enni enclosing all rectangles in NN. Add Enn to P if there is room.
       // Otherwise, invoke splitNode to produce P and PP containing Enn and
       // all P's old entries.
-      Node newNode = null;
-      if (nn != null) {
-        if (parent.entryCount < maxNodeEntries) {
-          parent.addEntry(nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY, nn.nodeId);
+      int newNode = -1;
+      if (nn != -1) {
+        if (st.entryCounts[parent] < maxNodeEntries) {
+          st.addEntry(parent, st.mbrMinX[nn], st.mbrMinY[nn], st.mbrMaxX[nn], st.mbrMaxY[nn], nn);
         } else {
-          newNode = splitNode(parent, nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY, nn.nodeId);
+          newNode = splitNode(parent, st.mbrMinX[nn], st.mbrMinY[nn], st.mbrMaxX[nn], st.mbrMaxY[nn], nn);
         }
       }
 
@@ -1218,9 +1948,6 @@ public class RTree implements SpatialIndex, Serializable {
       // occurred. Repeat from AT2
       n = parent;
       nn = newNode;
-
-      parent = null;
-      newNode = null;
     }
 
     return nn;
@@ -1233,45 +1960,50 @@ public class RTree implements SpatialIndex, Serializable {
    * @return false if an inconsistency is detected, true otherwise.
    */
   public boolean checkConsistency() {
-    return checkConsistency(rootNodeId, treeHeight, null);
+    Snapshot s = acquire();
+    try {
+      return checkConsistency(s, s.rootNodeId, s.treeHeight, null);
+    } finally {
+      release(s);
+    }
   }
 
-  private boolean checkConsistency(int nodeId, int expectedLevel, Rectangle expectedMBR) {
+  private boolean checkConsistency(Snapshot s, int nodeId, int expectedLevel, Rectangle expectedMBR) {
     // go through the tree, and check that the internal data structures of
     // the tree are not corrupted.
-    Node n = getNode(nodeId);
+    NodeStore st = s.store;
 
-    if (n == null) {
+    if (nodeId < 0 || nodeId >= st.capacity) {
       log.error("Error: Could not read node " + nodeId);
       return false;
     }
 
     // if tree is empty, then there should be exactly one node, at level 1
     // TODO: also check the MBR is as for a new node
-    if (nodeId == rootNodeId && size() == 0) {
-      if (n.level != 1) {
+    if (nodeId == s.rootNodeId && s.size == 0) {
+      if (st.levels[nodeId] != 1) {
         log.error("Error: tree is empty but root node is not at level 1");
         return false;
       }
     }
 
-    if (n.level != expectedLevel) {
-      log.error("Error: Node " + nodeId + ", expected level " + expectedLevel + ", actual level " + n.level);
+    if (st.levels[nodeId] != expectedLevel) {
+      log.error("Error: Node " + nodeId + ", expected level " + expectedLevel + ", actual level " + st.levels[nodeId]);
       return false;
     }
 
-    Rectangle calculatedMBR = calculateMBR(n);
+    Rectangle calculatedMBR = calculateMBR(st, nodeId);
     Rectangle actualMBR = new Rectangle();
-    actualMBR.minX = n.mbrMinX;
-    actualMBR.minY = n.mbrMinY;
-    actualMBR.maxX = n.mbrMaxX;
-    actualMBR.maxY = n.mbrMaxY;
+    actualMBR.minX = st.mbrMinX[nodeId];
+    actualMBR.minY = st.mbrMinY[nodeId];
+    actualMBR.maxX = st.mbrMaxX[nodeId];
+    actualMBR.maxY = st.mbrMaxY[nodeId];
     if (!actualMBR.equals(calculatedMBR)) {
       log.error("Error: Node " + nodeId + ", calculated MBR does not equal stored MBR");
-      if (actualMBR.minX != n.mbrMinX) log.error("  actualMinX=" + actualMBR.minX + ", calc=" + calculatedMBR.minX);
-      if (actualMBR.minY != n.mbrMinY) log.error("  actualMinY=" + actualMBR.minY + ", calc=" + calculatedMBR.minY);
-      if (actualMBR.maxX != n.mbrMaxX) log.error("  actualMaxX=" + actualMBR.maxX + ", calc=" + calculatedMBR.maxX);
-      if (actualMBR.maxY != n.mbrMaxY) log.error("  actualMaxY=" + actualMBR.maxY + ", calc=" + calculatedMBR.maxY);
+      if (actualMBR.minX != calculatedMBR.minX) log.error("  actualMinX=" + actualMBR.minX + ", calc=" + calculatedMBR.minX);
+      if (actualMBR.minY != calculatedMBR.minY) log.error("  actualMinY=" + actualMBR.minY + ", calc=" + calculatedMBR.minY);
+      if (actualMBR.maxX != calculatedMBR.maxX) log.error("  actualMaxX=" + actualMBR.maxX + ", calc=" + calculatedMBR.maxX);
+      if (actualMBR.maxY != calculatedMBR.maxY) log.error("  actualMaxY=" + actualMBR.maxY + ", calc=" + calculatedMBR.maxY);
       return false;
     }
 
@@ -1280,20 +2012,16 @@ public class RTree implements SpatialIndex, Serializable {
       return false;
     }
 
-    // Check for corruption where a parent entry is the same object as the child MBR
-    if (expectedMBR != null && actualMBR.sameObject(expectedMBR)) {
-      log.error("Error: Node " + nodeId + " MBR using same rectangle object as parent's entry");
-      return false;
-    }
-
-    for (int i = 0; i < n.entryCount; i++) {
-      if (n.ids[i] == -1) {
+    int base = nodeId * st.maxNodeEntries;
+    for (int i = 0; i < st.entryCounts[nodeId]; i++) {
+      int e = base + i;
+      if (st.ids[e] == -1) {
         log.error("Error: Node " + nodeId + ", Entry " + i + " is null");
         return false;
       }
 
-      if (n.level > 1) { // if not a leaf
-        if (!checkConsistency(n.ids[i], n.level - 1, new Rectangle(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i]))) {
+      if (st.levels[nodeId] > 1) { // if not a leaf
+        if (!checkConsistency(s, st.ids[e], st.levels[nodeId] - 1, new Rectangle(st.entriesMinX[e], st.entriesMinY[e], st.entriesMaxX[e], st.entriesMaxY[e]))) {
           return false;
         }
       }
@@ -1302,17 +2030,18 @@ public class RTree implements SpatialIndex, Serializable {
   }
 
   /**
-   * Given a node object, calculate the node MBR from it's entries.
+   * Given a node, calculate the node MBR from it's entries.
    * Used in consistency checking
    */
-  private Rectangle calculateMBR(Node n) {
+  private Rectangle calculateMBR(NodeStore st, int n) {
     Rectangle mbr = new Rectangle();
 
-    for (int i = 0; i < n.entryCount; i++) {
-      if (n.entriesMinX[i] < mbr.minX) mbr.minX = n.entriesMinX[i];
-      if (n.entriesMinY[i] < mbr.minY) mbr.minY = n.entriesMinY[i];
-      if (n.entriesMaxX[i] > mbr.maxX) mbr.maxX = n.entriesMaxX[i];
-      if (n.entriesMaxY[i] > mbr.maxY) mbr.maxY = n.entriesMaxY[i];
+    int base = n * st.maxNodeEntries;
+    for (int e = base; e < base + st.entryCounts[n]; e++) {
+      if (st.entriesMinX[e] < mbr.minX) mbr.minX = st.entriesMinX[e];
+      if (st.entriesMinY[e] < mbr.minY) mbr.minY = st.entriesMinY[e];
+      if (st.entriesMaxX[e] > mbr.maxX) mbr.maxX = st.entriesMaxX[e];
+      if (st.entriesMaxY[e] > mbr.maxY) mbr.maxY = st.entriesMaxY[e];
     }
     return mbr;
   }
@@ -0,0 +1,71 @@
+package validate;
+
+import util.knn.KNNHeap;
+
+import java.io.Serializable;
+
+/**
+ * 在线统计近似kNN结果的召回率和精度.
+ * <br/>
+ * 每次{@link #add(KNNHeap, KNNHeap)}比较同一个查询的近似结果和精确结果, 两者都是距离平方.
+ * 距离不超过精确结果第K近距离的近似结果计为命中, 这样第K近距离相同的点可以互相替代,
+ * 不会因为并列而少算. 指标为所有查询的平均值.
+ */
+public class KNNRecallEvaluation implements Serializable, EffectivenessEvaluation {
+    private static final long serialVersionUID = 1L;
+
+    private double recallSum = 0.0;
+    private double precisionSum = 0.0;
+    private long count = 0;
+
+    /**
+     * @param approximate result of the approximate search, not necessarily sorted.
+     * @param exact result of the exact search of the same query, not necessarily sorted.
+     */
+    public void add(KNNHeap approximate, KNNHeap exact) {
+        double kthDistanceSq = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < exact.size(); i++) {
+            kthDistanceSq = Math.max(kthDistanceSq, exact.distanceSq(i));
+        }
+        int hits = 0;
+        for (int i = 0; i < approximate.size(); i++) {
+            if (approximate.distanceSq(i) <= kthDistanceSq) hits++;
+        }
+        hits = Math.min(hits, exact.size());
+        recallSum += exact.size() == 0 ? 1.0 : (double) hits / exact.size();
+        precisionSum += approximate.size() == 0 ? 1.0 : (double) hits / approximate.size();
+        count++;
+    }
+
+    @Override
+    public double recall() {
+        return count == 0 ? 1.0 : recallSum / count;
+    }
+
+    @Override
+    public double precision() {
+        return count == 0 ? 1.0 : precisionSum / count;
+    }
+
+    /**
+     * kNN查询没有负例, 不计算准确率.
+     */
+    @Override
+    @Deprecated
+    public double accuracy() {
+        return 0;
+    }
+
+    /**
+     * Number of queries compared since the last {@link #reset()}.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void reset() {
+        recallSum = 0.0;
+        precisionSum = 0.0;
+        count = 0;
+    }
+}
@@ -10,6 +10,7 @@ import storm.hdfs.spout.TextFileReader;
 import util.Configuration;
 import util.args.MainArgsHandler;
 import vo.Point;
+import vo.SquaredDistanceCalculator;
 import vo.Point2DConverter;
 
 import java.io.IOException;
@@ -41,7 +42,7 @@ public class StreamKNN implements Serializable {
         NodeFilter<Point> acceptAll;
 
         converter = new Point2DConverter();
-        dc = new Point();
+        dc = new SquaredDistanceCalculator();//只比较远近, 不需要开方
         acceptAll = new AcceptAll<>();
 
         Configuration.HDFS_URI = "hdfs://localhost:9000";
@@ -11,6 +11,7 @@ import storm.hdfs.spout.TextFileReader;
 import util.Configuration;
 import util.router.Router;
 import vo.Point;
+import vo.SquaredDistanceCalculator;
 import vo.Point2DConverter;
 
 import java.io.File;
@@ -54,7 +55,7 @@ public class StreamKNNTest implements Serializable {
         NodeFilter<Point> acceptAll;
 
         converter = new Point2DConverter();
-        dc = new Point();
+        dc = new SquaredDistanceCalculator();//只比较远近, 不需要开方
         acceptAll = new AcceptAll<>();
 
 
@@ -11,6 +11,7 @@ import util.Configuration;
 import util.args.MainArgsHandler;
 import util.router.Router;
 import vo.Point;
+import vo.SquaredDistanceCalculator;
 import vo.Point2DConverter;
 
 import java.io.IOException;
@@ -42,7 +43,7 @@ public class StreamKNNWithGrid implements Serializable {
         NodeFilter<Point> acceptAll;
 
         converter = new Point2DConverter();
-        dc = new Point();
+        dc = new SquaredDistanceCalculator();//只比较远近, 不需要开方
         acceptAll = new AcceptAll<>();
 
         Configuration.HDFS_URI = "hdfs://centos1:9000";
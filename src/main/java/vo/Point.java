@@ -136,12 +136,22 @@ public class Point implements KryoSerializable
      * the specified <code>Point</code>.
      */
     public double distance(Point p){
-        double distance = 0.0;
-        double[] attrs_p = p.getAttrs();
+        return Math.sqrt(distanceSq(p));
+    }
+    /**
+     * Returns the square of the distance from this <code>Point</code>
+     * to a specified point, over all of its dimensions.
+     * @param p
+     * @return the square of the distance between this <code>Point</code>
+     * and the specified point.
+     */
+    public double distanceSq(PointND p){
+        double sq = 0.0;
         for(int i = this.attrs.length-1; i >= 0; i--){
-            distance += (this.attrs[i] - attrs_p[i])*(this.attrs[i] - attrs_p[i]);
+            double d = this.attrs[i] - p.getOrd(i);
+            sq += d * d;
         }
-        return Math.sqrt(distance);
+        return sq;
     }
     /**
      * Returns the distance from this <code>Point</code> to
@@ -215,6 +225,13 @@ public class Point implements KryoSerializable
         return "[id="+this.id+", time="+this.timestamp+"]";//+", attrs="+sb.toString()+"]";
     }
 
+    /**
+     * Appends the same text as {@link #toString()} for a point given by id and timestamp.
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long id, long timestamp){
+        return sb.append("[id=").append(id).append(", time=").append(timestamp).append("]");
+    }
+
     public void write(Kryo kryo, Output output) {
         output.writeString(id);
         output.writeLong(timestamp.longValue());
@@ -245,11 +262,12 @@ public class Point implements KryoSerializable
         return coords;
     }
 
+    /**
+     * Euclidean distance, see {@link SquaredDistanceCalculator} for the squared variant.
+     */
     @Override
     public double distanceTo(Point r, PointND p) {
-        double md = (r.attrs[0] - p.getOrd(0))*(r.attrs[0] - p.getOrd(0))
-                +(r.attrs[1] - p.getOrd(1))*(r.attrs[1] - p.getOrd(1));
-        return Math.sqrt (md);
+        return Math.sqrt(r.distanceSq(p));
     }
 
     @Override
@@ -0,0 +1,201 @@
+package vo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 列式存储的一组二维点, 用于RouterBolt向KNNBolt发送一个分区的数据.
+ * 只保存{@link #DIMENSIONS}维坐标, 拓扑因此只支持二维数据, 见{@link util.Configuration#DIMENSIONS}.
+ * <br/>
+ * 与{@code Set<Point>}相比, 每个点不再是独立的对象(String id, Long timestamp, double[]),
+ * 而是各字段分别放在{@code long[] ids}, {@code long[] times}, {@code double[] xs},
+ * {@code double[] ys}中, 查询点用{@link BitSet}标记. 点的下标即其在块中的位置.
+ * <br/>
+ * 点的id必须是数值(数据集中的车辆编号).
+ * 序列化见{@link PointBlockSerializer}.
+ */
+public class PointBlock implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * 坐标维数: x, y两列.
+     */
+    public static final int DIMENSIONS = 2;
+
+    long[] ids;
+    long[] times;
+    double[] xs;
+    double[] ys;
+    BitSet queries;
+    int size = 0;
+
+    public PointBlock() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PointBlock(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ids = new long[capacity];
+        times = new long[capacity];
+        xs = new double[capacity];
+        ys = new double[capacity];
+        queries = new BitSet(capacity);
+    }
+
+    /**
+     * Builds a block from {@code Point}s, keeping their query flags.
+     */
+    public static PointBlock of(Collection<Point> points) {
+        PointBlock block = new PointBlock(points.size());
+        for (Point point : points) {
+            block.add(point);
+        }
+        return block;
+    }
+
+    /**
+     * Appends a point and returns its index.
+     */
+    public int add(long id, long time, double x, double y, boolean query) {
+        ensureCapacity(size + 1);
+        ids[size] = id;
+        times[size] = time;
+        xs[size] = x;
+        ys[size] = y;
+        if (query) queries.set(size);
+        return size++;
+    }
+
+    public int add(Point point) {
+        if (point.getDimensions() != DIMENSIONS) {
+            throw new IllegalArgumentException("PointBlock holds " + DIMENSIONS + "-d points, got "
+                    + point.getDimensions() + " dimensions");
+        }
+        return add(Long.parseLong(point.getId()), point.getTimestamp(),
+                point.getX(), point.getY(), point.isQuery() && !point.isBoundary());
+    }
+
+    /**
+     * Appends every point of {@code other}.
+     */
+    public void addAll(PointBlock other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.ids, 0, ids, size, other.size);
+        System.arraycopy(other.times, 0, times, size, other.size);
+        System.arraycopy(other.xs, 0, xs, size, other.size);
+        System.arraycopy(other.ys, 0, ys, size, other.size);
+        for (int i = other.queries.nextSetBit(0); i >= 0; i = other.queries.nextSetBit(i + 1)) {
+            queries.set(size + i);
+        }
+        size += other.size;
+    }
+
+    /**
+     * Copies the points into a new block of exactly {@link #size()} capacity.
+     */
+    public PointBlock copy() {
+        PointBlock copy = new PointBlock(size);
+        System.arraycopy(ids, 0, copy.ids, 0, size);
+        System.arraycopy(times, 0, copy.times, 0, size);
+        System.arraycopy(xs, 0, copy.xs, 0, size);
+        System.arraycopy(ys, 0, copy.ys, 0, size);
+        copy.queries = (BitSet) queries.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) return;
+        int newCapacity = Math.max(capacity, ids.length + (ids.length >> 1));
+        ids = Arrays.copyOf(ids, newCapacity);
+        times = Arrays.copyOf(times, newCapacity);
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+    }
+
+    public void clear() {
+        size = 0;
+        queries.clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * Whether point {@code i} is a query of this partition (boundary points never are).
+     */
+    public boolean isQuery(int i) {
+        return queries.get(i);
+    }
+
+    public int queryCount() {
+        return queries.cardinality();
+    }
+
+    /**
+     * Index of the first query point at or after {@code from}, -1 if none.
+     */
+    public int nextQuery(int from) {
+        int i = queries.nextSetBit(from);
+        return i < size ? i : -1;
+    }
+
+    public double distanceSq(int i, double x, double y) {
+        double dx = xs[i] - x;
+        double dy = ys[i] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Materializes point {@code i} as a {@link Point}.
+     */
+    public Point toPoint(int i) {
+        Point point = new Point(String.valueOf(ids[i]), new double[]{xs[i], ys[i]}, times[i]);
+        point.setQuery(queries.get(i));
+        return point;
+    }
+
+    public List<Point> toPoints() {
+        List<Point> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(toPoint(i));
+        }
+        return points;
+    }
+
+    /**
+     * Materializes the query points only.
+     */
+    public List<Point> queryPoints() {
+        List<Point> points = new ArrayList<>(queryCount());
+        for (int i = nextQuery(0); i >= 0; i = nextQuery(i + 1)) {
+            points.add(toPoint(i));
+        }
+        return points;
+    }
+}
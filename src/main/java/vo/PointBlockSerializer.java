@@ -0,0 +1,40 @@
+package vo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * Kryo serializer of {@link PointBlock}, writes the columns as primitive arrays.
+ */
+public class PointBlockSerializer extends Serializer<PointBlock> implements Serializable {
+    @Override
+    public void write(Kryo kryo, Output output, PointBlock block) {
+        int size = block.size;
+        output.writeInt(size, true);
+        for (int i = 0; i < size; i++) output.writeLong(block.ids[i]);
+        for (int i = 0; i < size; i++) output.writeLong(block.times[i]);
+        for (int i = 0; i < size; i++) output.writeDouble(block.xs[i]);
+        for (int i = 0; i < size; i++) output.writeDouble(block.ys[i]);
+        long[] queries = block.queries.toLongArray();
+        output.writeInt(queries.length, true);
+        output.writeLongs(queries);
+    }
+
+    @Override
+    public PointBlock read(Kryo kryo, Input input, Class<PointBlock> type) {
+        int size = input.readInt(true);
+        PointBlock block = new PointBlock(size);
+        block.ids = input.readLongs(size);
+        block.times = input.readLongs(size);
+        block.xs = input.readDoubles(size);
+        block.ys = input.readDoubles(size);
+        block.queries = BitSet.valueOf(input.readLongs(input.readInt(true)));
+        block.size = size;
+        return block;
+    }
+}
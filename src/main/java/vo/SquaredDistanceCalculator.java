@@ -0,0 +1,21 @@
+package vo;
+
+import org.khelekore.prtree.DistanceCalculator;
+import org.khelekore.prtree.PointND;
+
+import java.io.Serializable;
+
+/**
+ * 以距离平方作为PRTree kNN查询的距离, 支持任意维度.
+ * <br/>
+ * PRTree剪枝时用的MinDist本身就是距离平方, 与之比较的候选距离也用平方才能一致,
+ * 同时省去每个候选点的{@code Math.sqrt}. 只有最终需要输出距离时才对前K个结果开方.
+ */
+public class SquaredDistanceCalculator implements DistanceCalculator<Point>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public double distanceTo(Point r, PointND p) {
+        return r.distanceSq(p);
+    }
+}
@@ -0,0 +1,146 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.knn.*;
+import vo.PointBlock;
+
+import java.util.*;
+
+/**
+ * 持续kNN查询与窗口内暴力搜索的结果对比: 由上一次结果复用的, 和退回完整搜索的结果都必须精确.
+ * <br/>
+ * 查询对象大多缓慢移动, 每三个中有一个移动较快; 每个Slide随机缺少一些对象, 并且插入新的随机点,
+ * 隔几个Slide在同一位置插入一批重合的点.
+ */
+public class TestContinuousKNN {
+    private static final int SLIDES = 3;
+    private static final int K = 5;
+    private static final int OBJECTS = 300;
+    private static final int QUERIES = 100;
+
+    @Test
+    public void testIncremental() {
+        check(new IncrementalKNNIndex(10, SLIDES, 7), false);
+    }
+
+    @Test
+    public void testForest() {
+        check(new SlideForestKNNIndex(10, SLIDES), false);
+    }
+
+    @Test
+    public void testGrid() {
+        check(new GridKNNIndex(0, SLIDES), false);
+    }
+
+    @Test
+    public void testRebuild() {
+        check(new RebuildKNNIndex(10), true);
+    }
+
+    /**
+     * 查询对象在一个Slide中没有出现, 下一个Slide不能复用, 之后又可以复用.
+     * 每个Slide在查询点附近插入一组比上一个Slide更近的点, 安全区域内总有足够的点.
+     */
+    @Test
+    public void testMissedBlock() {
+        GridKNNIndex index = new GridKNNIndex(0, SLIDES);
+        ContinuousKNN continuous = new ContinuousKNN(index);
+        Random random = new Random(3);
+        for (long t = 1; t <= 5; t++) {
+            PointBlock block = new PointBlock();
+            if (t != 3) block.add(0, t, 0.5, 0.5, true);
+            for (int i = 1; i <= K + 1; i++) {
+                block.add(i, t, 0.5 + i * Math.pow(10, -2 - t), 0.5, false);
+            }
+            for (int i = K + 2; i < 200; i++) {
+                block.add(i, t, random.nextDouble(), random.nextDouble(), false);
+            }
+            index.update(t, block);
+            continuous.prepare(block);
+            if (t == 3) continue;
+            KNNHeap heap = new KNNHeap(K + 2);
+            boolean reused = continuous.reuse(t, 0, block.getX(0), block.getY(0), K + 1, heap);
+            Assert.assertEquals(t == 2 || t == 5, reused);
+            if (!reused) {
+                heap.setLimit(Double.POSITIVE_INFINITY);
+                index.nearestNeighbour(block.getX(0), block.getY(0), K + 2, heap);
+            }
+            continuous.record(t, 0, block.getX(0), block.getY(0), heap);
+            Assert.assertEquals(1, continuous.size());
+        }
+        continuous.evict(5 + SLIDES);
+        Assert.assertEquals(0, continuous.size());
+    }
+
+    private static void check(KNNIndex index, boolean rebuild) {
+        ContinuousKNN continuous = new ContinuousKNN(index);
+        Random random = new Random(2);
+        double[] xs = new double[OBJECTS], ys = new double[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            xs[i] = random.nextDouble();
+            ys[i] = random.nextDouble();
+        }
+        TreeMap<Long, PointBlock> window = new TreeMap<>();
+        long reused = 0, searched = 0;
+        for (long t = 1; t <= 30; t++) {
+            PointBlock block = new PointBlock();
+            for (int i = 0; i < OBJECTS; i++) {
+                if (random.nextInt(10) == 0) continue;
+                double step = i % 3 == 0 ? 0.02 : 0.0005;
+                xs[i] += (random.nextDouble() - 0.5) * step;
+                ys[i] += (random.nextDouble() - 0.5) * step;
+                block.add(i, t, xs[i], ys[i], i < QUERIES);
+            }
+            for (int i = 0; i < 200; i++) {
+                block.add(100000 + t * 1000 + i, t, random.nextDouble(), random.nextDouble(), false);
+            }
+            if (t % 7 == 0) {
+                for (int i = 0; i < 20; i++) {
+                    block.add(900000 + t * 1000 + i, t, 0.5, 0.5, false);
+                }
+            }
+            index.update(t, block);
+            window.put(t, block);
+            window.headMap(rebuild ? t : t - SLIDES, !rebuild).clear();
+
+            continuous.prepare(block);
+            for (int i = block.nextQuery(0); i >= 0; i = block.nextQuery(i + 1)) {
+                double x = block.getX(i), y = block.getY(i);
+                KNNHeap heap = new KNNHeap(K + 2);
+                if (!continuous.reuse(t, block.getId(i), x, y, K + 1, heap)) {
+                    heap.setLimit(Double.POSITIVE_INFINITY);
+                    index.nearestNeighbour(x, y, K + 2, heap);
+                }
+                continuous.record(t, block.getId(i), x, y, heap);
+                heap.sort();
+                double[] expected = sortedDistancesSq(window.values(), x, y);
+                Assert.assertEquals(K + 1, heap.size());
+                for (int j = 0; j <= K; j++) {
+                    Assert.assertEquals(expected[j], heap.distanceSq(j), 1e-12);
+                }
+            }
+            reused += continuous.getReused();
+            searched += continuous.getSearched();
+            continuous.resetCounters();
+            continuous.evict(t);
+        }
+        //快速移动的对象和新出现的点使一部分查询退回完整搜索, 其余由上一次的结果得到
+        Assert.assertTrue(reused > searched / 2);
+    }
+
+    private static double[] sortedDistancesSq(Collection<PointBlock> blocks, double x, double y) {
+        int size = 0;
+        for (PointBlock block : blocks) {
+            size += block.size();
+        }
+        double[] distancesSq = new double[size];
+        int n = 0;
+        for (PointBlock block : blocks) {
+            for (int i = 0; i < block.size(); i++) {
+                distancesSq[n++] = block.distanceSq(i, x, y);
+            }
+        }
+        Arrays.sort(distancesSq);
+        return distancesSq;
+    }
+}
@@ -0,0 +1,188 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.Configuration;
+import util.SpaceFillingCurve;
+import util.router.RouteBuffer;
+import util.router.Router;
+
+import java.util.*;
+
+/**
+ * Hilbert曲线分区(router.layout=hilbert)的测试: Hilbert key的连续性, 分区是连续的key范围,
+ * 负载均衡, 以及边界复制与逐个Cell判断的结果对比.
+ */
+public class TestCurveLayout {
+    /**
+     * 与CurveLayout.BITS相同.
+     */
+    private static final int BITS = 10;
+    private static final int SIDE = 1 << BITS;
+    private static final int HEIGHT = 3;
+    private static final double SCALE = 0.1;
+
+    /**
+     * 任意对齐的2^l x 2^l方块是一段连续的key, 相邻的key是相邻的Cell.
+     */
+    @Test
+    public void testHilbert() {
+        int bits = 5, side = 1 << bits;
+        int[] cells = new int[side * side];
+        Arrays.fill(cells, -1);
+        for (int level = 0; level <= bits; level++) {
+            for (int x0 = 0; x0 < side; x0 += 1 << level) {
+                for (int y0 = 0; y0 < side; y0 += 1 << level) {
+                    long min = Long.MAX_VALUE, max = -1;
+                    for (int x = x0; x < x0 + (1 << level); x++) {
+                        for (int y = y0; y < y0 + (1 << level); y++) {
+                            long key = SpaceFillingCurve.hilbert(x, y, bits);
+                            min = Math.min(min, key);
+                            max = Math.max(max, key);
+                            if (level == 0) {
+                                Assert.assertEquals(-1, cells[(int) key]);
+                                cells[(int) key] = x * side + y;
+                            }
+                        }
+                    }
+                    Assert.assertEquals(1L << (2 * level), max - min + 1);
+                    Assert.assertEquals(0, min % (1L << (2 * level)));
+                }
+            }
+        }
+        for (int key = 1; key < side * side; key++) {
+            int dx = Math.abs(cells[key] / side - cells[key - 1] / side);
+            int dy = Math.abs(cells[key] % side - cells[key - 1] % side);
+            Assert.assertEquals(1, dx + dy);
+        }
+    }
+
+    @Test
+    public void testRoute() {
+        for (int partitions : new int[]{1, 7, 64}) {
+            Router router = newRouter(partitions, false);
+            Assert.assertEquals(partitions, router.partitionCount());
+            check(router, new Random(partitions));
+        }
+    }
+
+    /**
+     * 偏斜的数据经过几个Slide的负载均衡后, 最重的分区接近平均负载; 调整后的分区同样要检查.
+     */
+    @Test
+    public void testRebalance() {
+        Router router = newRouter(7, true);
+        double[][] area = Configuration.DEFAULT_AREA;
+        double w = area[0][1] - area[0][0], h = area[1][1] - area[1][0];
+        double cx = area[0][0] + w * 0.3, cy = area[1][0] + h * 0.6;
+        Random random = new Random(3);
+        RouteBuffer buffer = new RouteBuffer();
+        int version = router.getLayoutVersion();
+        double imbalance = 0;
+        for (int slide = 0; slide < 8; slide++) {
+            Map<Integer, Integer> homes = new HashMap<>();
+            int n = 50000;
+            for (int i = 0; i < n; i++) {
+                double x, y;
+                if (i % 4 != 0) {
+                    x = cx + random.nextGaussian() * w * 0.04;
+                    y = cy + random.nextGaussian() * h * 0.04;
+                } else {
+                    x = area[0][0] + random.nextDouble() * w;
+                    y = area[1][0] + random.nextDouble() * h;
+                }
+                x = Math.max(area[0][0], Math.min(area[0][1], x));
+                y = Math.max(area[1][0], Math.min(area[1][1], y));
+                router.getIndexes(x, y, buffer);
+                homes.merge(home(buffer), 1, Integer::sum);
+            }
+            int max = 0;
+            for (int count : homes.values()) {
+                max = Math.max(max, count);
+            }
+            imbalance = max / (n / (double) router.partitionCount());
+            router.rebalance();
+        }
+        Assert.assertNotEquals(version, router.getLayoutVersion());
+        Assert.assertEquals(7, router.partitionCount());
+        Assert.assertTrue("max/mean " + imbalance, imbalance < 1.5);
+        check(router, random);
+    }
+
+    private static Router newRouter(int partitions, boolean balance) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Configuration.NAME_INDEX_HIGHT, HEIGHT);
+        conf.put(Configuration.NAME_BOUNDARY_LENGTH_SCALE, SCALE);
+        conf.put(Configuration.NAME_BALANCE, balance);
+        conf.put(Configuration.NAME_KNN_BOLT_NUM, partitions);
+        conf.put(Configuration.NAME_LAYOUT, "hilbert");
+        conf.put(Configuration.NAME_LAYOUT_SAMPLE_SLIDES, 1);
+        conf.put(Configuration.NAME_LAYOUT_PARTITIONS, 0);
+        Router router = new Router(conf);
+        router.init();
+        return router;
+    }
+
+    /**
+     * 每个Cell中心点所在的分区构成连续的key范围; 随机点被复制到的分区,
+     * 正是扩展了边界宽度后包含该点的Cell所在的分区.
+     */
+    private static void check(Router router, Random random) {
+        double[][] area = Configuration.DEFAULT_AREA;
+        double w = area[0][1] - area[0][0], h = area[1][1] - area[1][0];
+        double cw = w / SIDE, ch = h / SIDE;
+        double margin = Math.min(w, h) / (1 << (HEIGHT - 1)) * SCALE;
+        RouteBuffer buffer = new RouteBuffer();
+        int[] cells = new int[SIDE * SIDE];
+        int[] byKey = new int[SIDE * SIDE];
+        for (int i = 0; i < SIDE; i++) {
+            for (int j = 0; j < SIDE; j++) {
+                router.getIndexes(area[0][0] + (i + 0.5) * cw, area[1][0] + (j + 0.5) * ch, buffer);
+                cells[i * SIDE + j] = home(buffer);
+                byKey[(int) SpaceFillingCurve.hilbert(i, j, BITS)] = cells[i * SIDE + j];
+            }
+        }
+        Set<Integer> seen = new HashSet<>();
+        for (int key = 0; key < byKey.length; key++) {
+            if (key > 0 && byKey[key] == byKey[key - 1]) continue;
+            Assert.assertTrue("partition " + byKey[key] + " is not one key range", seen.add(byKey[key]));
+        }
+        Assert.assertEquals(router.partitionCount(), seen.size());
+
+        for (int t = 0; t < 20000; t++) {
+            double x = area[0][0] + random.nextDouble() * w, y = area[1][0] + random.nextDouble() * h;
+            router.getIndexes(x, y, buffer);
+            Set<Integer> got = new TreeSet<>();
+            for (int q = 0; q < buffer.size(); q++) {
+                got.add(buffer.route(q));
+            }
+            Assert.assertEquals(buffer.size(), got.size());
+            Set<Integer> expected = new TreeSet<>();
+            int i0 = Math.max(0, (int) Math.floor((x - margin - area[0][0]) / cw) - 1);
+            int i1 = Math.min(SIDE - 1, (int) Math.floor((x + margin - area[0][0]) / cw) + 1);
+            int j0 = Math.max(0, (int) Math.floor((y - margin - area[1][0]) / ch) - 1);
+            int j1 = Math.min(SIDE - 1, (int) Math.floor((y + margin - area[1][0]) / ch) + 1);
+            for (int i = i0; i <= i1; i++) {
+                for (int j = j0; j <= j1; j++) {
+                    double x0 = area[0][0] + i * cw, y0 = area[1][0] + j * ch;
+                    if (x >= x0 - margin && x <= x0 + cw + margin && y >= y0 - margin && y <= y0 + ch + margin) {
+                        expected.add(cells[i * SIDE + j]);
+                    }
+                }
+            }
+            Assert.assertEquals(x + "," + y, expected, got);
+        }
+    }
+
+    /**
+     * The only route that is not a boundary route.
+     */
+    private static int home(RouteBuffer buffer) {
+        int home = -1;
+        for (int i = 0; i < buffer.size(); i++) {
+            if (buffer.isBoundary(i)) continue;
+            Assert.assertEquals(-1, home);
+            home = buffer.route(i);
+        }
+        Assert.assertNotEquals(-1, home);
+        return home;
+    }
+}
@@ -0,0 +1,280 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.DoubleSpatialIndex;
+import util.rtree.DoubleRTree;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * DoubleRTree与暴力搜索的结果对比: 插入, 删除, 批量构建之后的nearest, nearestN, intersects和contains.
+ */
+public class TestDoubleRTree {
+    private static final int K = 7;
+
+    @Test
+    public void testAddDelete() {
+        for (int dimensions = 1; dimensions <= 4; dimensions++) {
+            check(dimensions, false);
+        }
+    }
+
+    @Test
+    public void testLoad() {
+        for (int dimensions = 1; dimensions <= 4; dimensions++) {
+            check(dimensions, true);
+        }
+    }
+
+    /**
+     * 小节点上反复插入再按随机顺序删光, 树每次都回到空树.
+     */
+    @Test
+    public void testDeleteAll() {
+        DoubleRTree tree = newTree(3, 4, 2);
+        Random random = new Random(1);
+        int n = 3000;
+        double[][] points = new double[n][3];
+        Integer[] order = new Integer[n];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < n; i++) {
+                for (int d = 0; d < 3; d++) {
+                    points[i][d] = random.nextDouble();
+                }
+                tree.add(points[i], points[i], i);
+                order[i] = i;
+            }
+            Assert.assertTrue(tree.checkConsistency());
+            Collections.shuffle(Arrays.asList(order), random);
+            for (int i : order) {
+                Assert.assertTrue(tree.delete(points[i], points[i], i));
+            }
+            Assert.assertEquals(0, tree.size());
+            Assert.assertNull(tree.getBounds());
+            Assert.assertTrue(tree.checkConsistency());
+        }
+    }
+
+    /**
+     * 多个线程同时查询同一棵树.
+     */
+    @Test
+    public void testParallelQueries() throws Exception {
+        int dimensions = 2;
+        Data data = new Data(dimensions, 5000, new Random(3));
+        DoubleRTree tree = newTree(dimensions, 8, 3);
+        for (int i = 0; i < data.size; i++) {
+            tree.add(data.min[i], data.max[i], i);
+            data.live[i] = true;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int q = 0; q < 300; q++) {
+                        checkNearestN(tree, data, data.randomPoint(random));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void check(int dimensions, boolean bulk) {
+        Random random = new Random(9 + dimensions);
+        Data data = new Data(dimensions, 4000, random);
+        DoubleRTree tree = newTree(dimensions, 8, 3);
+        if (bulk) {
+            int count = data.size / 2;
+            double[] mins = new double[count * dimensions];
+            double[] maxs = new double[count * dimensions];
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(data.min[i], 0, mins, i * dimensions, dimensions);
+                System.arraycopy(data.max[i], 0, maxs, i * dimensions, dimensions);
+                ids[i] = i;
+                data.live[i] = true;
+            }
+            tree.load(mins, maxs, ids, count);
+            Assert.assertTrue(tree.checkConsistency());
+            Assert.assertEquals(count, tree.size());
+        }
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < data.size; i++) {
+                if (data.live[i] || random.nextBoolean()) continue;
+                data.reset(i, random);
+                tree.add(data.min[i], data.max[i], i);
+                data.live[i] = true;
+            }
+            Assert.assertTrue(tree.checkConsistency());
+            for (int i = 0; i < data.size; i++) {
+                if (!data.live[i] || random.nextInt(3) != 0) continue;
+                Assert.assertTrue(tree.delete(data.min[i], data.max[i], i));
+                Assert.assertFalse(tree.delete(data.min[i], data.max[i], i));
+                data.live[i] = false;
+            }
+            Assert.assertTrue(tree.checkConsistency());
+            Assert.assertEquals(data.liveCount(), tree.size());
+            Assert.assertArrayEquals(data.bounds(), tree.getBounds(), 0.0);
+            for (int q = 0; q < 100; q++) {
+                double[] p = data.randomPoint(random);
+                checkNearestN(tree, data, p);
+                checkNearest(tree, data, p);
+                double[] max = new double[dimensions];
+                for (int d = 0; d < dimensions; d++) {
+                    max[d] = p[d] + 0.002;
+                }
+                checkWindow(tree, data, p, max);
+            }
+        }
+    }
+
+    private static DoubleRTree newTree(int dimensions, int maxNodeEntries, int minNodeEntries) {
+        Properties props = new Properties();
+        props.setProperty("MaxNodeEntries", "" + maxNodeEntries);
+        props.setProperty("MinNodeEntries", "" + minNodeEntries);
+        props.setProperty("Dimensions", "" + dimensions);
+        DoubleRTree tree = new DoubleRTree();
+        tree.init(props);
+        Assert.assertEquals(dimensions, tree.getDimensions());
+        return tree;
+    }
+
+    private static void checkNearestN(DoubleSpatialIndex index, Data data, double[] p) {
+        double[] expected = data.sortedDistancesSq(p);
+        int[] ids = new int[K];
+        double[] distancesSq = new double[K];
+        int found = index.nearestN(p, K, Double.POSITIVE_INFINITY, ids, distancesSq);
+        Assert.assertEquals(Math.min(K, expected.length), found);
+        for (int i = 0; i < found; i++) {
+            Assert.assertTrue(data.live[ids[i]]);
+            Assert.assertEquals(expected[i], distancesSq[i], 0.0);
+            Assert.assertEquals(data.distanceSq(ids[i], p), distancesSq[i], 0.0);
+        }
+        //限定距离时只返回距离以内的点
+        if (found > 1) {
+            double furthest = Math.sqrt(expected[0]);
+            int within = 0;
+            while (within < expected.length && expected[within] <= furthest * furthest) within++;
+            Assert.assertEquals(Math.min(K, within), index.nearestN(p, K, furthest, ids, distancesSq));
+        }
+    }
+
+    private static void checkNearest(DoubleSpatialIndex index, Data data, double[] p) {
+        double[] expected = data.sortedDistancesSq(p);
+        Set<Integer> nearest = new TreeSet<>();
+        for (int i = 0; i < data.size; i++) {
+            if (data.live[i] && data.distanceSq(i, p) == expected[0]) nearest.add(i);
+        }
+        Set<Integer> found = new TreeSet<>();
+        index.nearest(p, id -> found.add(id), Double.POSITIVE_INFINITY);
+        Assert.assertEquals(nearest, found);
+    }
+
+    private static void checkWindow(DoubleSpatialIndex index, Data data, double[] min, double[] max) {
+        Set<Integer> intersecting = new TreeSet<>();
+        Set<Integer> contained = new TreeSet<>();
+        for (int i = 0; i < data.size; i++) {
+            if (!data.live[i]) continue;
+            boolean intersects = true, contains = true;
+            for (int d = 0; d < min.length; d++) {
+                if (data.min[i][d] > max[d] || data.max[i][d] < min[d]) intersects = false;
+                if (data.min[i][d] < min[d] || data.max[i][d] > max[d]) contains = false;
+            }
+            if (intersects) intersecting.add(i);
+            if (contains) contained.add(i);
+        }
+        Set<Integer> found = new TreeSet<>();
+        index.intersects(min, max, id -> found.add(id));
+        Assert.assertEquals(intersecting, found);
+        found.clear();
+        index.contains(min, max, id -> found.add(id));
+        Assert.assertEquals(contained, found);
+    }
+
+    /**
+     * 暴力搜索用的矩形: 一半是点, 一半是很小的矩形, 集中在经纬度的一小块区域内.
+     */
+    private static class Data {
+        final int dimensions, size;
+        final double[][] min, max;
+        final boolean[] live;
+
+        Data(int dimensions, int size, Random random) {
+            this.dimensions = dimensions;
+            this.size = size;
+            min = new double[size][dimensions];
+            max = new double[size][dimensions];
+            live = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                reset(i, random);
+            }
+        }
+
+        void reset(int i, Random random) {
+            boolean point = random.nextBoolean();
+            for (int d = 0; d < dimensions; d++) {
+                min[i][d] = 116 + random.nextDouble() * 0.01;
+                max[i][d] = point ? min[i][d] : min[i][d] + random.nextDouble() * 1e-5;
+            }
+        }
+
+        double[] randomPoint(Random random) {
+            double[] p = new double[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                p[d] = 116 + random.nextDouble() * 0.01;
+            }
+            return p;
+        }
+
+        double distanceSq(int i, double[] p) {
+            double sum = 0;
+            for (int d = 0; d < dimensions; d++) {
+                double delta = p[d] < min[i][d] ? min[i][d] - p[d] : (p[d] > max[i][d] ? p[d] - max[i][d] : 0);
+                sum += delta * delta;
+            }
+            return sum;
+        }
+
+        double[] sortedDistancesSq(double[] p) {
+            double[] distances = new double[liveCount()];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (live[i]) distances[n++] = distanceSq(i, p);
+            }
+            Arrays.sort(distances);
+            return distances;
+        }
+
+        int liveCount() {
+            int n = 0;
+            for (boolean b : live) {
+                if (b) n++;
+            }
+            return n;
+        }
+
+        double[] bounds() {
+            double[] bounds = new double[2 * dimensions];
+            Arrays.fill(bounds, 0, dimensions, Double.POSITIVE_INFINITY);
+            Arrays.fill(bounds, dimensions, 2 * dimensions, Double.NEGATIVE_INFINITY);
+            for (int i = 0; i < size; i++) {
+                if (!live[i]) continue;
+                for (int d = 0; d < dimensions; d++) {
+                    bounds[d] = Math.min(bounds[d], min[i][d]);
+                    bounds[dimensions + d] = Math.max(bounds[dimensions + d], max[i][d]);
+                }
+            }
+            return bounds;
+        }
+    }
+}
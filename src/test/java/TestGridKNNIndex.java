@@ -0,0 +1,172 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.knn.GridKNNIndex;
+import util.knn.KNNHeap;
+import vo.PointBlock;
+
+import java.util.*;
+
+/**
+ * GridKNNIndex与窗口内暴力搜索的结果对比: 自动和固定的Cell边长, 空的Slide, 退化的第一个数据块.
+ */
+public class TestGridKNNIndex {
+    private static final int SLIDES = 3;
+    private static final int K = 6;
+
+    @Test
+    public void testAutomaticWidth() {
+        check(new GridKNNIndex(0, SLIDES), new Window(), new Random(1), 0, 10);
+    }
+
+    @Test
+    public void testFixedWidth() {
+        //远小于和远大于点间距的边长
+        check(new GridKNNIndex(0.0003, SLIDES), new Window(), new Random(2), 0, 8);
+        check(new GridKNNIndex(0.05, SLIDES), new Window(), new Random(3), 0, 8);
+    }
+
+    /**
+     * 第一个数据块只有一个位置或者共线时, 边长是临时的, 之后的二维数据重新确定边长.
+     */
+    @Test
+    public void testDegenerateFirstBlock() {
+        for (int degenerate = 0; degenerate < 3; degenerate++) {
+            GridKNNIndex index = new GridKNNIndex(0, SLIDES);
+            PointBlock first = new PointBlock();
+            for (int i = 0; i < 50; i++) {
+                if (degenerate == 0) first.add(i, 0, 116.3, 39.9, false);
+                else if (degenerate == 1) first.add(i, 0, 116.3 + i * 1e-4, 39.9, false);
+                else first.add(i, 0, 116.3 + i * 1e-4, 39.9 + i * 1e-4, false);
+            }
+            Window window = new Window();
+            index.update(0, first);
+            window.add(0, first);
+            Assert.assertTrue(index.getCellWidth() > 1e-9);
+            checkQueries(index, window, first, K);
+            checkQueries(index, window, first, 200);
+            check(index, window, new Random(4 + degenerate), 1, 5);
+        }
+    }
+
+    @Test
+    public void testEmptySlidesAndFarQueries() {
+        GridKNNIndex index = new GridKNNIndex(0, SLIDES);
+        Window window = new Window();
+        Random random = new Random(5);
+        for (long t = 1; t <= 6; t++) {
+            PointBlock block = new PointBlock();
+            for (int i = 0; i < (t == 4 ? 0 : 300); i++) {
+                block.add(t * 1000 + i, t, random.nextDouble(), random.nextDouble(), false);
+            }
+            index.update(t, block);
+            window.add(t, block);
+            Assert.assertEquals(window.size(), index.size());
+
+            KNNHeap heap = new KNNHeap(K);
+            index.nearestNeighbour(50, 50, K, heap);
+            heap.sort();
+            check(index, window, heap, 50, 50, K);
+            index.nearestNeighbour(0.5, 0.5, 10000, heap);
+            heap.sort();
+            check(index, window, heap, 0.5, 0.5, 10000);
+        }
+    }
+
+    private static void check(GridKNNIndex index, Window window, Random random, long from, int slides) {
+        for (long t = from; t < from + slides; t++) {
+            PointBlock block = new PointBlock();
+            for (int i = 0; i < 700; i++) {
+                block.add(t * 1000 + i, t, 116.3 + random.nextDouble() * 0.1, 39.9 + random.nextDouble() * 0.06, i < 60);
+            }
+            index.update(t, block);
+            window.add(t, block);
+            Assert.assertEquals(window.size(), index.size());
+            checkQueries(index, window, block, K);
+        }
+    }
+
+    /**
+     * 以数据块的查询点(没有查询点时取前20个点)做单个查询和批量查询, 都与暴力搜索一致.
+     */
+    private static void checkQueries(GridKNNIndex index, Window window, PointBlock block, int k) {
+        int n = block.queryCount() > 0 ? block.queryCount() : Math.min(block.size(), 20);
+        double[] xs = new double[n], ys = new double[n];
+        for (int i = 0, q = 0; q < n; i++) {
+            if (block.queryCount() > 0 && !block.isQuery(i)) continue;
+            xs[q] = block.getX(i);
+            ys[q] = block.getY(i);
+            q++;
+        }
+        checkQueries(index, window, xs, ys, k);
+    }
+
+    private static void checkQueries(GridKNNIndex index, Window window, double[] xs, double[] ys, int k) {
+        int n = xs.length;
+        KNNHeap[] heaps = new KNNHeap[n];
+        for (int q = 0; q < n; q++) {
+            heaps[q] = new KNNHeap(k);
+        }
+        index.nearestNeighbours(xs, ys, 0, n, k, heaps);
+        KNNHeap heap = new KNNHeap(1);
+        for (int q = 0; q < n; q++) {
+            index.nearestNeighbour(xs[q], ys[q], k, heap);
+            heap.sort();
+            check(index, window, heap, xs[q], ys[q], k);
+            heaps[q].sort();
+            check(index, window, heaps[q], xs[q], ys[q], k);
+        }
+    }
+
+    private static void check(GridKNNIndex index, Window window, KNNHeap heap, double x, double y, int k) {
+        double[] expected = window.sortedDistancesSq(x, y);
+        Assert.assertEquals(Math.min(k, expected.length), heap.size());
+        for (int i = 0; i < heap.size(); i++) {
+            Assert.assertEquals(expected[i], heap.distanceSq(i), 1e-12);
+            int handle = heap.handle(i);
+            Assert.assertEquals(heap.distanceSq(i), index.distanceSq(handle, x, y), 0);
+            Assert.assertTrue(window.contains(index.slide(handle), index.id(handle)));
+        }
+    }
+
+    /**
+     * 窗口内最近{@link #SLIDES}个Slide的数据块.
+     */
+    private static class Window {
+        private final TreeMap<Long, PointBlock> blocks = new TreeMap<>();
+
+        void add(long slide, PointBlock block) {
+            blocks.put(slide, block);
+            blocks.headMap(slide - SLIDES, true).clear();
+        }
+
+        int size() {
+            int size = 0;
+            for (PointBlock block : blocks.values()) {
+                size += block.size();
+            }
+            return size;
+        }
+
+        boolean contains(long slide, long id) {
+            PointBlock block = blocks.get(slide);
+            if (null == block) return false;
+            for (int i = 0; i < block.size(); i++) {
+                if (block.getId(i) == id) return true;
+            }
+            return false;
+        }
+
+        double[] sortedDistancesSq(double x, double y) {
+            double[] distancesSq = new double[size()];
+            int n = 0;
+            for (PointBlock block : blocks.values()) {
+                for (int i = 0; i < block.size(); i++) {
+                    double dx = block.getX(i) - x, dy = block.getY(i) - y;
+                    distancesSq[n++] = dx * dx + dy * dy;
+                }
+            }
+            Arrays.sort(distancesSq);
+            return distancesSq;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.knn.KNNHeap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * KNNHeap的offer, poll, sort与排序后的数组对比.
+ */
+public class TestKNNHeap {
+
+    @Test
+    public void testOfferSort() {
+        Random random = new Random(4);
+        for (int capacity : new int[]{1, 2, 5, 17}) {
+            for (int n : new int[]{0, 1, capacity - 1, capacity, capacity + 1, 300}) {
+                KNNHeap heap = new KNNHeap(capacity);
+                double[] distancesSq = new double[n];
+                for (int i = 0; i < n; i++) {
+                    //有重复的距离
+                    distancesSq[i] = random.nextInt(50) / 7.0;
+                    heap.offer(i, distancesSq[i]);
+                }
+                heap.sort();
+                check(heap, distancesSq, Math.min(capacity, n));
+            }
+        }
+    }
+
+    @Test
+    public void testOfferResult() {
+        KNNHeap heap = new KNNHeap(2);
+        Assert.assertTrue(heap.offer(0, 3));
+        Assert.assertTrue(heap.offer(1, 1));
+        Assert.assertFalse(heap.offer(2, 3));
+        Assert.assertFalse(heap.offer(3, 4));
+        Assert.assertTrue(heap.offer(4, 2));
+        heap.sort();
+        Assert.assertEquals(1, heap.handle(0));
+        Assert.assertEquals(4, heap.handle(1));
+
+        KNNHeap empty = new KNNHeap(0);
+        Assert.assertFalse(empty.offer(0, 1));
+        Assert.assertEquals(0, empty.size());
+    }
+
+    @Test
+    public void testPoll() {
+        Random random = new Random(5);
+        int capacity = 12;
+        KNNHeap heap = new KNNHeap(capacity);
+        double[] distancesSq = new double[100];
+        for (int i = 0; i < distancesSq.length; i++) {
+            distancesSq[i] = random.nextDouble();
+            heap.offer(i, distancesSq[i]);
+        }
+        double[] sorted = distancesSq.clone();
+        Arrays.sort(sorted);
+        for (int size = capacity; size > 0; size--) {
+            Assert.assertEquals(size, heap.size());
+            //堆顶是最远的结果
+            Assert.assertEquals(sorted[size - 1], heap.distanceSq(0), 0);
+            heap.poll();
+        }
+        Assert.assertEquals(0, heap.size());
+        heap.poll();
+        Assert.assertEquals(0, heap.size());
+
+        //poll之后还可以继续offer
+        for (int i = 0; i < distancesSq.length; i++) {
+            heap.offer(i, distancesSq[i]);
+        }
+        heap.poll();
+        heap.sort();
+        check(heap, distancesSq, capacity - 1);
+    }
+
+    /**
+     * limit以外的点不进入heap; 不足K个结果时bound和pruneBound都是limit.
+     */
+    @Test
+    public void testLimit() {
+        KNNHeap heap = new KNNHeap(3);
+        heap.setLimit(4);
+        heap.setApproximation(1, 0);
+        Assert.assertFalse(heap.offer(0, 5));
+        Assert.assertTrue(heap.offer(1, 4));
+        Assert.assertTrue(heap.offer(2, 1));
+        Assert.assertEquals(4, heap.bound(), 0);
+        Assert.assertEquals(4, heap.pruneBound(), 0);
+        Assert.assertTrue(heap.offer(3, 2));
+        Assert.assertEquals(4, heap.bound(), 0);
+        //第K近的距离缩小(1 + ε)^2
+        Assert.assertEquals(1, heap.pruneBound(), 0);
+
+        heap.reset(2);
+        Assert.assertEquals(0, heap.size());
+        Assert.assertEquals(2, heap.capacity());
+        for (int i = 0; i < 10; i++) {
+            heap.offer(i, 10 - i);
+        }
+        heap.sort();
+        Assert.assertEquals(9, heap.handle(0));
+        Assert.assertEquals(8, heap.handle(1));
+    }
+
+    private static void check(KNNHeap heap, double[] distancesSq, int expected) {
+        double[] sorted = distancesSq.clone();
+        Arrays.sort(sorted);
+        Assert.assertEquals(expected, heap.size());
+        for (int i = 0; i < expected; i++) {
+            Assert.assertEquals(sorted[i], heap.distanceSq(i), 0);
+            Assert.assertEquals(sorted[i], distancesSq[heap.handle(i)], 0);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.Point;
+import util.Rectangle;
+import util.rtree.RTree;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RTree与暴力搜索的结果对比: best-first的nearestN, 深度优先的nearestN, 以及两者的furthestDistance截断.
+ */
+public class TestRTree {
+    private static final int K = 9;
+
+    @Test
+    public void testNearestN() {
+        Random random = new Random(5);
+        Data data = new Data(3000, random);
+        RTree tree = newTree(8, 3);
+        for (int i = 0; i < data.size; i++) {
+            tree.add(data.rectangle(i), i);
+        }
+        Assert.assertTrue(tree.checkConsistency());
+        for (int q = 0; q < 300; q++) {
+            float x = random.nextFloat() * 100, y = random.nextFloat() * 100;
+            checkNearestN(tree, data, x, y, K, Float.POSITIVE_INFINITY);
+            //截断距离取第3近和第K+3近之间, 结果少于K个或正好K个
+            float[] expected = data.sortedDistancesSq(x, y);
+            float furthest = (float) Math.sqrt(expected[random.nextInt(K) + 3]);
+            checkNearestN(tree, data, x, y, K, furthest);
+        }
+    }
+
+    /**
+     * 整数坐标使很多点距离相同: best-first正好返回K个, 深度优先可能多返回与第K近距离相同的点.
+     */
+    @Test
+    public void testTies() {
+        Random random = new Random(6);
+        Data data = new Data(2000, random);
+        for (int i = 0; i < data.size; i++) {
+            data.minX[i] = data.maxX[i] = random.nextInt(40);
+            data.minY[i] = data.maxY[i] = random.nextInt(40);
+        }
+        RTree tree = newTree(6, 2);
+        for (int i = 0; i < data.size; i++) {
+            tree.add(data.rectangle(i), i);
+        }
+        for (int q = 0; q < 200; q++) {
+            checkNearestN(tree, data, random.nextInt(40), random.nextInt(40), K, Float.POSITIVE_INFINITY);
+            checkNearestN(tree, data, random.nextInt(40), random.nextInt(40), K, random.nextInt(4));
+        }
+    }
+
+    /**
+     * 要求的个数多于树中的点: 返回全部点.
+     */
+    @Test
+    public void testCountGreaterThanSize() {
+        Random random = new Random(7);
+        for (int size = 0; size <= 20; size += 5) {
+            Data data = new Data(size, random);
+            RTree tree = newTree(4, 2);
+            for (int i = 0; i < size; i++) {
+                tree.add(data.rectangle(i), i);
+            }
+            for (int q = 0; q < 20; q++) {
+                checkNearestN(tree, data, random.nextFloat() * 100, random.nextFloat() * 100, size + 3, Float.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    /**
+     * 近似查询只把第K近距离缩小(1+ε)倍: furthestDistance以内不足K个点时, 近似查询也要找到全部这些点.
+     */
+    @Test
+    public void testApproximateWithinFurthestDistance() {
+        Random random = new Random(9);
+        Data data = new Data(3000, random);
+        RTree tree = newTree(8, 3);
+        for (int i = 0; i < data.size; i++) {
+            tree.add(data.rectangle(i), i);
+        }
+        int[] ids = new int[K];
+        float[] distancesSq = new float[K];
+        for (int q = 0; q < 200; q++) {
+            float x = random.nextFloat() * 100, y = random.nextFloat() * 100;
+            float[] expected = data.sortedDistancesSq(x, y);
+            float furthest = (float) Math.sqrt(expected[random.nextInt(K - 1)]);
+            int within = 0;
+            while (within < expected.length && expected[within] <= furthest * furthest) within++;
+            if (within >= K) continue;
+            Assert.assertEquals(within, tree.nearestN(x, y, K, furthest, 1.0f, 0, ids, distancesSq));
+            List<Integer> depthFirst = new ArrayList<>();
+            tree.nearestN(new Point(x, y), id -> depthFirst.add(id), K, furthest, 1.0f, 0);
+            Assert.assertEquals(within, depthFirst.size());
+            int[] counts = new int[1];
+            tree.nearestNBatch(new float[]{x}, new float[]{y}, 1, K, furthest, 1.0f, 0, ids, distancesSq, counts);
+            Assert.assertEquals(within, counts[0]);
+        }
+    }
+
+    /**
+     * bulk-load 0, 1, M, M+1个和大量点, 包括负坐标; 之后继续插入和删除, 树保持一致.
+     */
+    @Test
+    public void testLoad() {
+        int m = 8;
+        Random random = new Random(8);
+        for (int count : new int[]{0, 1, m, m + 1, 2 * m * m + 3, 20000}) {
+            for (boolean negative : new boolean[]{false, true}) {
+                Data data = new Data(count + 500, random);
+                if (negative) {
+                    for (int i = 0; i < data.size; i++) {
+                        data.minX[i] -= 150;
+                        data.maxX[i] -= 150;
+                        data.minY[i] -= 50;
+                        data.maxY[i] -= 50;
+                    }
+                }
+                int[] ids = new int[count];
+                for (int i = 0; i < count; i++) ids[i] = i;
+                RTree tree = newTree(m, 3);
+                //重复load, 第二次复用第一次的节点
+                tree.load(data.minX, data.minY, data.maxX, data.maxY, ids, count / 2);
+                tree.load(data.minX, data.minY, data.maxX, data.maxY, ids, count);
+                Assert.assertTrue(tree.checkConsistency());
+                Assert.assertEquals(count, tree.size());
+                Data loaded = data.prefix(count);
+                checkQueries(tree, loaded, random, negative);
+
+                //load之后插入剩余的点, 再删除一部分
+                for (int i = count; i < data.size; i++) {
+                    tree.add(data.rectangle(i), i);
+                }
+                boolean[] deleted = new boolean[data.size];
+                for (int i = 0; i < data.size; i += 2) {
+                    Assert.assertTrue(tree.delete(data.rectangle(i), i));
+                    deleted[i] = true;
+                }
+                Assert.assertTrue(tree.checkConsistency());
+                Assert.assertEquals(data.size - (data.size + 1) / 2, tree.size());
+                checkQueries(tree, data.without(deleted), random, negative);
+            }
+        }
+    }
+
+    /**
+     * nearestNBatch与逐个查询的best-first nearestN对比: 精确查询结果相同; 近似查询都满足(1+ε)的误差;
+     * 节点预算足够大时等于精确结果, 很小时返回的仍是按距离排好序的真实点.
+     * 同一线程依次查询高度和节点大小不同的树, 批量大小也不同, 检查复用的缓冲区.
+     */
+    @Test
+    public void testNearestNBatch() {
+        Random random = new Random(11);
+        for (int m : new int[]{16, 4, 8}) {
+            for (int size : new int[]{5, 4000}) {
+                Data data = new Data(size, random);
+                RTree tree = newTree(m, m / 2);
+                for (int i = 0; i < data.size; i++) {
+                    tree.add(data.rectangle(i), i);
+                }
+                for (int round = 0; round < 20; round++) {
+                    int queryCount = 1 + random.nextInt(40);
+                    float[] xs = new float[queryCount], ys = new float[queryCount];
+                    float cx = random.nextFloat() * 100, cy = random.nextFloat() * 100;
+                    for (int q = 0; q < queryCount; q++) {
+                        xs[q] = cx + random.nextFloat() * 5;
+                        ys[q] = cy + random.nextFloat() * 5;
+                    }
+                    checkBatch(tree, data, xs, ys, 0, 0);
+                    checkBatch(tree, data, xs, ys, 0.5f, 0);
+                    checkBatch(tree, data, xs, ys, 0, 1000000);
+                    checkBatch(tree, data, xs, ys, 0.5f, 3);
+                }
+            }
+        }
+    }
+
+    private static void checkBatch(RTree tree, Data data, float[] xs, float[] ys, float epsilon, int maxNodes) {
+        int queryCount = xs.length;
+        int[] ids = new int[queryCount * K];
+        float[] distancesSq = new float[queryCount * K];
+        int[] counts = new int[queryCount];
+        tree.nearestNBatch(xs, ys, queryCount, K, Float.POSITIVE_INFINITY, epsilon, maxNodes, ids, distancesSq, counts);
+        int[] singleIds = new int[K];
+        float[] singleDistancesSq = new float[K];
+        float scale = (1 + epsilon) * (1 + epsilon);
+        boolean limited = maxNodes > 0 && maxNodes < 1000000;
+        for (int q = 0; q < queryCount; q++) {
+            float[] expected = data.sortedDistancesSq(xs[q], ys[q]);
+            int n = Math.min(K, expected.length);
+            int single = tree.nearestN(xs[q], ys[q], K, Float.POSITIVE_INFINITY, epsilon, maxNodes, singleIds, singleDistancesSq);
+            if (!limited) {
+                Assert.assertEquals(n, counts[q]);
+                Assert.assertEquals(n, single);
+            }
+            if (epsilon == 0 && !limited) {
+                for (int i = 0; i < n; i++) {
+                    Assert.assertEquals(singleDistancesSq[i], distancesSq[q * K + i], 0.0f);
+                    Assert.assertEquals(expected[i], distancesSq[q * K + i], 0.0f);
+                }
+            }
+            checkResult(data, xs[q], ys[q], ids, distancesSq, q * K, counts[q], expected, limited ? Float.NaN : scale);
+            checkResult(data, xs[q], ys[q], singleIds, singleDistancesSq, 0, single, expected, limited ? Float.NaN : scale);
+        }
+    }
+
+    /**
+     * 结果是不重复的真实点, 按距离升序; scale不是NaN时第i近距离不超过真实第i近距离的scale倍.
+     */
+    private static void checkResult(Data data, float x, float y, int[] ids, float[] distancesSq, int from, int count,
+                                    float[] expected, float scale) {
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            int id = ids[from + i];
+            Assert.assertTrue(seen.add(id));
+            Assert.assertEquals(data.distanceSq(id, x, y), distancesSq[from + i], 0.0f);
+            if (i > 0) Assert.assertTrue(distancesSq[from + i - 1] <= distancesSq[from + i]);
+            if (!Float.isNaN(scale)) Assert.assertTrue(distancesSq[from + i] <= expected[i] * scale);
+        }
+    }
+
+    /**
+     * ConcurrentReads模式: 多个线程查询的同时另一个线程更新树. 固定的点一直在树中, 其余的点每轮在一次
+     * beginUpdate/endUpdate中整体替换(有时用load), 因此查询看到的每个版本都正好有stable + churn个点.
+     */
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final int stable = 3000, churn = 2000;
+        Random random = new Random(10);
+        Data data = new Data(stable + 4 * churn, random);
+        Properties props = new Properties();
+        props.setProperty("MaxNodeEntries", "8");
+        props.setProperty("MinNodeEntries", "3");
+        props.setProperty("ConcurrentReads", "true");
+        RTree tree = new RTree();
+        tree.init(props);
+        List<Integer> live = new ArrayList<>();
+        tree.beginUpdate();
+        for (int i = 0; i < stable + churn; i++) {
+            tree.add(data.rectangle(i), i);
+            if (i >= stable) live.add(i);
+        }
+        tree.endUpdate();
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long seed = t;
+                readers.add(executor.submit(() -> {
+                    Random r = new Random(seed);
+                    int[] ids = new int[K];
+                    float[] distancesSq = new float[K];
+                    int queries = 0;
+                    while (!done.get() || queries < 100) {
+                        queries++;
+                        Assert.assertEquals(stable + churn, tree.size());
+                        //固定的点总能找到
+                        int i = r.nextInt(stable);
+                        float x = (data.minX[i] + data.maxX[i]) / 2, y = (data.minY[i] + data.maxY[i]) / 2;
+                        int found = tree.nearestN(x, y, K, Float.POSITIVE_INFINITY, ids, distancesSq);
+                        Assert.assertEquals(K, found);
+                        Assert.assertEquals(0.0f, distancesSq[0], 0.0f);
+                        boolean hit = false;
+                        for (int j = 0; j < found; j++) hit |= ids[j] == i;
+                        Assert.assertTrue(hit);
+                        Set<Integer> nearest = new HashSet<>();
+                        tree.nearest(new Point(x, y), id -> nearest.add(id), Float.POSITIVE_INFINITY);
+                        Assert.assertTrue(nearest.contains(i));
+                        //整个空间的查询正好返回一个版本的全部点
+                        if (queries % 50 == 0) {
+                            Set<Integer> all = new HashSet<>();
+                            tree.intersects(new Rectangle(-Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE),
+                                    id -> all.add(id));
+                            Assert.assertEquals(stable + churn, all.size());
+                            for (int j = 0; j < stable; j++) Assert.assertTrue(all.contains(j));
+                            Assert.assertTrue(tree.checkConsistency());
+                        }
+                    }
+                }));
+            }
+
+            int[] ids = new int[stable + churn];
+            for (int round = 0; round < 40; round++) {
+                List<Integer> next = new ArrayList<>();
+                for (int i = stable; i < data.size; i++) next.add(i);
+                Collections.shuffle(next, random);
+                next = new ArrayList<>(next.subList(0, churn));
+                if (round % 10 == 9) {
+                    for (int i = 0; i < stable; i++) ids[i] = i;
+                    for (int j = 0; j < churn; j++) ids[stable + j] = next.get(j);
+                    float[] minX = new float[ids.length], minY = new float[ids.length];
+                    float[] maxX = new float[ids.length], maxY = new float[ids.length];
+                    for (int j = 0; j < ids.length; j++) {
+                        minX[j] = data.minX[ids[j]];
+                        minY[j] = data.minY[ids[j]];
+                        maxX[j] = data.maxX[ids[j]];
+                        maxY[j] = data.maxY[ids[j]];
+                    }
+                    tree.load(minX, minY, maxX, maxY, ids, ids.length);
+                } else {
+                    tree.beginUpdate();
+                    for (int i : live) Assert.assertTrue(tree.delete(data.rectangle(i), i));
+                    for (int i : next) tree.add(data.rectangle(i), i);
+                    tree.endUpdate();
+                }
+                live = next;
+
+                //没有找到要删除的点时不复制节点, 也不发布新版本
+                int root = tree.getRootNodeId(), highest = tree.getHighestUsedNodeId();
+                Assert.assertFalse(tree.delete(data.rectangle(0), -1));
+                Assert.assertEquals(root, tree.getRootNodeId());
+                Assert.assertEquals(highest, tree.getHighestUsedNodeId());
+            }
+            done.set(true);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            done.set(true);
+            executor.shutdown();
+        }
+        Assert.assertTrue(tree.checkConsistency());
+        Assert.assertEquals(stable + churn, tree.size());
+    }
+
+    private static void checkQueries(RTree tree, Data data, Random random, boolean negative) {
+        for (int q = 0; q < 20; q++) {
+            float x = random.nextFloat() * 100 - (negative ? 150 : 0);
+            float y = random.nextFloat() * 100 - (negative ? 50 : 0);
+            checkNearestN(tree, data, x, y, K, Float.POSITIVE_INFINITY);
+        }
+        Set<Integer> expected = data.ids();
+        Set<Integer> found = new HashSet<>();
+        tree.intersects(new Rectangle(-Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE), id -> found.add(id));
+        Assert.assertEquals(expected, found);
+    }
+
+    static RTree newTree(int maxNodeEntries, int minNodeEntries) {
+        Properties props = new Properties();
+        props.setProperty("MaxNodeEntries", "" + maxNodeEntries);
+        props.setProperty("MinNodeEntries", "" + minNodeEntries);
+        RTree tree = new RTree();
+        tree.init(props);
+        return tree;
+    }
+
+    /**
+     * best-first结果与暴力搜索一致, 深度优先结果除了距离相同的多余点外也一致.
+     */
+    static void checkNearestN(RTree tree, Data data, float x, float y, int count, float furthestDistance) {
+        float[] expected = data.sortedDistancesSq(x, y);
+        float furthestDistanceSq = furthestDistance * furthestDistance;
+        int within = 0;
+        while (within < expected.length && expected[within] <= furthestDistanceSq) within++;
+        int n = Math.min(count, within);
+
+        int[] ids = new int[count];
+        float[] distancesSq = new float[count];
+        Assert.assertEquals(n, tree.nearestN(x, y, count, furthestDistance, ids, distancesSq));
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(expected[i], distancesSq[i], 0.0f);
+            Assert.assertEquals(data.distanceSq(ids[i], x, y), distancesSq[i], 0.0f);
+        }
+
+        List<Integer> depthFirst = new ArrayList<>();
+        tree.nearestN(new Point(x, y), id -> depthFirst.add(id), count, furthestDistance);
+        Assert.assertTrue(depthFirst.size() >= n);
+        for (int i = 0; i < depthFirst.size(); i++) {
+            float distanceSq = data.distanceSq(depthFirst.get(i), x, y);
+            Assert.assertEquals(i < n ? expected[i] : expected[n - 1], distanceSq, 0.0f);
+        }
+        Assert.assertEquals(depthFirst.size(), new HashSet<>(depthFirst).size());
+    }
+
+    /**
+     * 暴力搜索用的矩形: 一半是点, 一半是小矩形. 矩形i的id为i, 只有live的矩形在树中.
+     */
+    static class Data {
+        final int size;
+        final float[] minX, minY, maxX, maxY;
+        final boolean[] live;
+
+        Data(int size, Random random) {
+            this.size = size;
+            minX = new float[size];
+            minY = new float[size];
+            maxX = new float[size];
+            maxY = new float[size];
+            live = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                boolean point = random.nextBoolean();
+                minX[i] = random.nextFloat() * 100;
+                minY[i] = random.nextFloat() * 100;
+                maxX[i] = point ? minX[i] : minX[i] + random.nextFloat();
+                maxY[i] = point ? minY[i] : minY[i] + random.nextFloat();
+                live[i] = true;
+            }
+        }
+
+        private Data(Data other) {
+            size = other.size;
+            minX = other.minX;
+            minY = other.minY;
+            maxX = other.maxX;
+            maxY = other.maxY;
+            live = other.live.clone();
+        }
+
+        /**
+         * The same rectangles, of which only the first {@code count} are live.
+         */
+        Data prefix(int count) {
+            Data data = new Data(this);
+            Arrays.fill(data.live, count, size, false);
+            return data;
+        }
+
+        /**
+         * The same rectangles without the deleted ones.
+         */
+        Data without(boolean[] deleted) {
+            Data data = new Data(this);
+            for (int i = 0; i < size; i++) {
+                if (deleted[i]) data.live[i] = false;
+            }
+            return data;
+        }
+
+        Set<Integer> ids() {
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < size; i++) {
+                if (live[i]) ids.add(i);
+            }
+            return ids;
+        }
+
+        Rectangle rectangle(int i) {
+            return new Rectangle(minX[i], minY[i], maxX[i], maxY[i]);
+        }
+
+        float distanceSq(int i, float x, float y) {
+            Assert.assertTrue(live[i]);
+            return Rectangle.distanceSq(minX[i], minY[i], maxX[i], maxY[i], x, y);
+        }
+
+        float[] sortedDistancesSq(float x, float y) {
+            float[] distances = new float[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (live[i]) distances[n++] = distanceSq(i, x, y);
+            }
+            distances = Arrays.copyOf(distances, n);
+            Arrays.sort(distances);
+            return distances;
+        }
+    }
+}
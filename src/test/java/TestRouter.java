@@ -0,0 +1,171 @@
+import org.junit.Assert;
+import org.junit.Test;
+import util.Configuration;
+import util.router.RouteBuffer;
+import util.router.Router;
+import vo.Point;
+
+import java.util.*;
+
+/**
+ * 规则网格下Router.getIndexes与逐个Cell判断的结果对比.
+ * <br/>
+ * 除了区域内外的随机点, 还检查落在Cell边上, 角上, 扩展的边界区域边缘内外, 以及区域上边界上的点.
+ * 与Cell边的距离在舍入误差以内的点, 只检查分区集合, 不检查哪个是所在的Cell.
+ */
+public class TestRouter {
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void testGrid() {
+        check(4, 0.3);
+    }
+
+    @Test
+    public void testSingleCell() {
+        check(1, 0.5);
+    }
+
+    /**
+     * 边界宽度大于Cell边长, 点被复制到不相邻的Cell.
+     */
+    @Test
+    public void testWideBoundary() {
+        check(3, 1.5);
+    }
+
+    private static void check(int height, double scale) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Configuration.NAME_INDEX_HIGHT, height);
+        conf.put(Configuration.NAME_BOUNDARY_LENGTH_SCALE, scale);
+        Router router = new Router(conf);
+        router.init();
+        Grid grid = new Grid(Configuration.DEFAULT_AREA, height, scale);
+        RouteBuffer buffer = new RouteBuffer();
+
+        Random random = new Random(3);
+        double width = grid.maxX - grid.minX, heightY = grid.maxY - grid.minY;
+        for (int i = 0; i < 50000; i++) {
+            double x = grid.minX - 2 * grid.margin + random.nextDouble() * (width + 4 * grid.margin);
+            double y = grid.minY - 2 * grid.margin + random.nextDouble() * (heightY + 4 * grid.margin);
+            check(router, grid, x, y, buffer);
+        }
+        //Cell边和扩展区域的边缘附近
+        double[] offsets = {0, 1e-5, -1e-5, 1 - 1e-5, 1 + 1e-5, -1 + 1e-5, -1 - 1e-5};
+        for (int c = 0; c <= grid.side; c++) {
+            for (int r = 0; r <= grid.side; r++) {
+                for (double dx : offsets) {
+                    for (double dy : offsets) {
+                        check(router, grid, grid.xs[c] + dx * grid.margin, grid.ys[r] + dy * grid.margin, buffer);
+                    }
+                    double y = grid.minY + random.nextDouble() * heightY;
+                    check(router, grid, grid.xs[c] + dx * grid.margin, y, buffer);
+                }
+            }
+        }
+        //区域的上边界属于最后一行/列
+        router.getIndexes(grid.maxX, grid.maxY, buffer);
+        Assert.assertEquals(grid.id(grid.side - 1, grid.side - 1), home(buffer));
+        //离区域太远的点没有分区
+        Assert.assertEquals(0, router.getIndexes(grid.maxX + 2 * grid.margin, grid.minY, buffer));
+
+        double px = grid.xs[1] - grid.margin / 2, py = grid.ys[0] + grid.margin / 2;
+        Map<Integer, Character> routes = router.getIndexes(new Point("0", new double[]{px, py}, 0L));
+        router.getIndexes(px, py, buffer);
+        Assert.assertEquals(buffer.size(), routes.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            Assert.assertEquals(buffer.isBoundary(i) ? 'T' : 'F', (char) routes.get(buffer.route(i)));
+        }
+    }
+
+    private static void check(Router router, Grid grid, double x, double y, RouteBuffer buffer) {
+        router.getIndexes(x, y, buffer);
+        Map<Integer, Boolean> got = new TreeMap<>();
+        for (int i = 0; i < buffer.size(); i++) {
+            Assert.assertNull("duplicate route", got.put(buffer.route(i), buffer.isBoundary(i)));
+        }
+        Map<Integer, Boolean> expected = new TreeMap<>();
+        boolean nearEdge = false;
+        for (int r = 0; r < grid.side; r++) {
+            for (int c = 0; c < grid.side; c++) {
+                double x0 = grid.xs[c], x1 = x0 + grid.xInterval, y0 = grid.ys[r], y1 = y0 + grid.yInterval;
+                double m = grid.margin;
+                nearEdge |= near(x, x0 - m) || near(x, x1 + m) || near(y, y0 - m) || near(y, y1 + m);
+                if (x < x0 - m || x > x1 + m || y < y0 - m || y > y1 + m) continue;
+                nearEdge |= near(x, x0) || near(x, x1) || near(y, y0) || near(y, y1);
+                expected.put(grid.id(r, c), x < x0 || x > x1 || y < y0 || y > y1);
+            }
+        }
+        if (nearEdge) {
+            //舍入误差可能使边上的点落在任一侧: 只有点在其扩展范围边缘上的Cell可以不一致
+            Set<Integer> difference = new TreeSet<>(expected.keySet());
+            difference.addAll(got.keySet());
+            for (int id : difference) {
+                if (expected.containsKey(id) == got.containsKey(id)) continue;
+                Assert.assertTrue(x + "," + y + " " + expected + " vs " + got, grid.nearExtent(id, x, y));
+            }
+        } else {
+            Assert.assertEquals(x + "," + y, expected, got);
+        }
+        boolean inside = x >= grid.minX && x <= grid.maxX && y >= grid.minY && y <= grid.maxY;
+        if (inside) Assert.assertTrue(x + "," + y + " " + got, home(buffer) >= 0);
+    }
+
+    private static boolean near(double a, double b) {
+        return Math.abs(a - b) <= TOLERANCE;
+    }
+
+    /**
+     * The only route that is not a boundary route, -1 if none.
+     */
+    private static int home(RouteBuffer buffer) {
+        int home = -1;
+        for (int i = 0; i < buffer.size(); i++) {
+            if (buffer.isBoundary(i)) continue;
+            Assert.assertEquals(-1, home);
+            home = buffer.route(i);
+        }
+        return home;
+    }
+
+    /**
+     * 与{@link Router#init()}相同的网格: 2^(height-1) x 2^(height-1)个Cell, 按行编号.
+     */
+    private static class Grid {
+        final int side, firstId;
+        final double minX, minY, maxX, maxY, xInterval, yInterval, margin;
+        final double[] xs, ys;
+
+        Grid(double[][] area, int height, double scale) {
+            side = 1 << (height - 1);
+            firstId = side - 1;
+            minX = area[0][0];
+            maxX = area[0][1];
+            minY = area[1][0];
+            maxY = area[1][1];
+            xInterval = (maxX - minX) / side;
+            yInterval = (maxY - minY) / side;
+            margin = Math.min(maxX - minX, maxY - minY) / side * scale;
+            xs = new double[side + 1];
+            ys = new double[side + 1];
+            for (int i = 0; i <= side; i++) {
+                xs[i] = minX + i * xInterval;
+                ys[i] = minY + i * yInterval;
+            }
+        }
+
+        int id(int row, int col) {
+            return firstId + row * side + col;
+        }
+
+        /**
+         * 点在该Cell扩展后范围的边缘上.
+         */
+        boolean nearExtent(int id, double x, double y) {
+            int c = (id - firstId) % side, r = (id - firstId) / side;
+            double x0 = xs[c] - margin, x1 = xs[c] + xInterval + margin;
+            double y0 = ys[r] - margin, y1 = ys[r] + yInterval + margin;
+            return near(x, x0) || near(x, x1) || near(y, y0) || near(y, y1);
+        }
+    }
+}
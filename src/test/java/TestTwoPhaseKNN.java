@@ -0,0 +1,332 @@
+import org.apache.storm.generated.StreamInfo;
+import org.apache.storm.task.GeneralTopologyContext;
+import org.apache.storm.task.IOutputCollector;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.BasicOutputCollector;
+import org.apache.storm.topology.IComponent;
+import org.apache.storm.topology.OutputFieldsGetter;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.TupleImpl;
+import org.junit.Assert;
+import org.junit.Test;
+import storm.bolt.KNNBolt;
+import storm.bolt.KNNMergeBolt;
+import storm.bolt.StreamingRouterBolt;
+import storm.util.FieldUtils;
+import storm.util.StreamUtils;
+import util.Configuration;
+
+import java.util.*;
+
+/**
+ * 两阶段kNN查询与窗口内暴力搜索的结果对比.
+ * <br/>
+ * 在一个进程内把两个StreamingRouterBolt任务, 三个KNNBolt任务和一个KNNMergeBolt任务按拓扑中的分组连起来,
+ * 每对任务之间的元组保持发送顺序, 不同任务对之间随机交错, 因此转发来的查询经常晚于下一个Slide的数据到达.
+ */
+public class TestTwoPhaseKNN {
+    private static final int SPOUT_TASK = 1;
+    private static final List<Integer> ROUTER_TASKS = Arrays.asList(2, 3);
+    private static final List<Integer> KNN_TASKS = Arrays.asList(4, 5, 6);
+    private static final int MERGE_TASK = 7;
+    private static final int K = 5;
+    private static final int SLIDES = 14;
+
+    @Test
+    public void testRebuild() {
+        check("rebuild", 1);
+    }
+
+    @Test
+    public void testForest() {
+        check("forest", Configuration.SLIDES);
+    }
+
+    @Test
+    public void testGrid() {
+        check("grid", Configuration.SLIDES);
+    }
+
+    /**
+     * 一个点: id, Slide, 坐标.
+     */
+    private static class Sample {
+        long id, slide;
+        double x, y;
+        boolean query;
+    }
+
+    private void check(String mode, int windowSlides) {
+        Map<String, Object> conf = conf(mode);
+        Random random = new Random(7);
+        List<Sample> samples = new ArrayList<>();
+        double[][] area = Configuration.DEFAULT_AREA;
+        long id = 0;
+        for (long slide = 1; slide <= SLIDES; slide++) {
+            for (int i = 0; i < 300; i++) {
+                Sample sample = new Sample();
+                sample.id = id++;
+                sample.slide = slide;
+                sample.x = area[0][0] + random.nextDouble() * (area[0][1] - area[0][0]);
+                sample.y = area[1][0] + random.nextDouble() * (area[1][1] - area[1][0]);
+                sample.query = i % 10 == 0;
+                samples.add(sample);
+            }
+        }
+        Cluster cluster = new Cluster(conf, random);
+        for (int i = 0; i < samples.size(); i++) {
+            Sample sample = samples.get(i);
+            cluster.spout(ROUTER_TASKS.get(i % ROUTER_TASKS.size()), sample.id, sample.slide, sample.x, sample.y, sample.query);
+        }
+        //最后一个Slide之后每个路由器再收到一个点, 使它们发出最后一个Slide
+        for (int router : ROUTER_TASKS) {
+            cluster.spout(router, id++, SLIDES + 1, area[0][0], area[1][0], false);
+        }
+        cluster.run();
+
+        Map<String, Sample> byKey = new HashMap<>();
+        for (Sample sample : samples) {
+            byKey.put(key(sample.id, sample.slide), sample);
+        }
+        int checked = 0;
+        for (Sample query : samples) {
+            if (!query.query) continue;
+            String result = cluster.results.remove(key(query.id, query.slide));
+            Assert.assertNotNull(mode + ": no result for query " + query.id + " of slide " + query.slide, result);
+            List<Double> expected = new ArrayList<>();
+            for (Sample sample : samples) {
+                if (sample.slide > query.slide || sample.slide <= query.slide - windowSlides) continue;
+                expected.add(distanceSq(query, sample));
+            }
+            Collections.sort(expected);
+            List<Double> actual = new ArrayList<>();
+            for (String neighbour : result.split("\t")) {
+                if (neighbour.isEmpty()) continue;
+                String[] parts = neighbour.replace("[id=", "").replace(" time=", "").replace("]", "").split(",");
+                actual.add(distanceSq(query, byKey.get(key(Long.parseLong(parts[0]), Long.parseLong(parts[1])))));
+            }
+            Collections.sort(actual);
+            Assert.assertEquals(mode + ": result size of query " + query.id, K + 1, actual.size());
+            for (int i = 0; i <= K; i++) {
+                Assert.assertEquals(mode + ": neighbour " + i + " of query " + query.id, expected.get(i), actual.get(i), 1e-15);
+            }
+            checked++;
+        }
+        Assert.assertTrue(checked > 0);
+        Assert.assertTrue(mode + ": unexpected results " + cluster.results.keySet(), cluster.results.isEmpty());
+    }
+
+    private static String key(long id, long slide) {
+        return id + "@" + slide;
+    }
+
+    private static double distanceSq(Sample a, Sample b) {
+        double dx = a.x - b.x, dy = a.y - b.y;
+        return dx * dx + dy * dy;
+    }
+
+    private static Map<String, Object> conf(String mode) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Configuration.NAME_BOUNDARY_LENGTH_SCALE, Configuration.BOUNDARY_LENGTH_SCALE);
+        conf.put(Configuration.NAME_BOUNDARY_ADAPTIVE, false);
+        conf.put(Configuration.NAME_BOUNDARY_SAFETY, Configuration.BOUNDARY_SAFETY);
+        conf.put(Configuration.NAME_BRANCH_FACTOR, 8);
+        conf.put(Configuration.NAME_KNN_MODE, mode);
+        conf.put(Configuration.NAME_GRID_CELL_WIDTH, 0.0);
+        conf.put(Configuration.NAME_QUERY_PARALLELISM, 1);
+        conf.put(Configuration.NAME_CONTINUOUS, false);
+        conf.put(Configuration.NAME_TWO_PHASE, true);
+        conf.put(Configuration.NAME_PARTITION_AFFINITY, true);
+        conf.put(Configuration.NAME_APPROXIMATE_EPSILON, 0.0);
+        conf.put(Configuration.NAME_APPROXIMATE_MAX_NODES, 0);
+        conf.put(Configuration.NAME_APPROXIMATE_RECALL_SAMPLE, 0);
+        conf.put(Configuration.NAME_BALANCE, false);
+        conf.put(Configuration.NAME_LAYOUT, "grid");
+        conf.put(Configuration.NAME_LAYOUT_SAMPLE_SLIDES, 1);
+        conf.put(Configuration.NAME_LAYOUT_PARTITIONS, 0);
+        conf.put(Configuration.NAME_INDEX_HIGHT, 3);
+        conf.put(Configuration.NAME_K, K);
+        conf.put(Configuration.NAME_KNN_BOLT_NUM, KNN_TASKS.size());
+        conf.put(Configuration.NAME_ROUTER_BOLT_NUM, ROUTER_TASKS.size());
+        conf.put(Configuration.NAME_ROUTER_STREAMING, true);
+        conf.put(Configuration.NAME_DATA_END_TIME, Long.MAX_VALUE);
+        conf.put(Configuration.NAME_QUERY, -1);
+        conf.put("streaming-spout", true);
+        conf.put("no-write", false);
+        return conf;
+    }
+
+    /**
+     * 按{@link storm.StreamKNNTopology}中两阶段查询的分组投递元组.
+     */
+    private static class Cluster {
+        final Map<String, Object> conf;
+        final Random random;
+        final Map<Integer, String> taskToComponent = new HashMap<>();
+        final Map<String, List<Integer>> componentToTasks = new HashMap<>();
+        final Map<String, Map<String, Fields>> componentToStreamToFields = new HashMap<>();
+        final GeneralTopologyContext context;
+        final Map<Integer, StreamingRouterBolt> routers = new HashMap<>();
+        final Map<Integer, KNNBolt> knnBolts = new HashMap<>();
+        final Map<Integer, BasicOutputCollector> knnCollectors = new HashMap<>();
+        final KNNMergeBolt merge = new KNNMergeBolt();
+        BasicOutputCollector mergeCollector;
+        /**
+         * (发送任务, 接收任务) -> 待投递的元组, 每个队列内保持发送顺序.
+         */
+        final Map<List<Integer>, Deque<Tuple>> queues = new LinkedHashMap<>();
+        /**
+         * 查询id@Slide -> 合并后的结果.
+         */
+        final Map<String, String> results = new HashMap<>();
+
+        Cluster(Map<String, Object> conf, Random random) {
+            this.conf = conf;
+            this.random = random;
+            taskToComponent.put(SPOUT_TASK, StreamUtils.SPOUT_HDFS);
+            componentToTasks.put(StreamUtils.SPOUT_HDFS, Collections.singletonList(SPOUT_TASK));
+            componentToStreamToFields.put(StreamUtils.SPOUT_HDFS, Collections.singletonMap("default",
+                    new Fields(FieldUtils.POINT.ID, FieldUtils.POINT.TIME, FieldUtils.POINT.X, FieldUtils.POINT.Y,
+                            FieldUtils.POINT.IS_QUERY)));
+            StreamingRouterBolt router = new StreamingRouterBolt();
+            KNNBolt knnBolt = new KNNBolt();
+            register(StreamUtils.BOLT_ROUTER, ROUTER_TASKS, router);
+            register(StreamUtils.BOLT_KNN, KNN_TASKS, knnBolt);
+            register(StreamUtils.BOLT_KNN_MERGE, Collections.singletonList(MERGE_TASK), merge);
+            context = new GeneralTopologyContext(null, conf, taskToComponent, componentToTasks,
+                    componentToStreamToFields, "test");
+            for (int task : ROUTER_TASKS) {
+                StreamingRouterBolt bolt = new StreamingRouterBolt();
+                bolt.prepare(conf, topologyContext(task), new OutputCollector(new Emitter(task)));
+                routers.put(task, bolt);
+            }
+            for (int task : KNN_TASKS) {
+                KNNBolt bolt = new KNNBolt();
+                bolt.prepare(conf, topologyContext(task));
+                knnBolts.put(task, bolt);
+                knnCollectors.put(task, new BasicOutputCollector(new OutputCollector(new Emitter(task))));
+            }
+            merge.prepare(conf, topologyContext(MERGE_TASK));
+            mergeCollector = new BasicOutputCollector(new OutputCollector(new Emitter(MERGE_TASK)));
+        }
+
+        private void register(String component, List<Integer> tasks, IComponent bolt) {
+            componentToTasks.put(component, tasks);
+            for (int task : tasks) {
+                taskToComponent.put(task, component);
+            }
+            OutputFieldsGetter getter = new OutputFieldsGetter();
+            bolt.declareOutputFields(getter);
+            Map<String, Fields> streams = new HashMap<>();
+            for (Map.Entry<String, StreamInfo> stream : getter.getFieldsDeclaration().entrySet()) {
+                streams.put(stream.getKey(), new Fields(stream.getValue().get_output_fields()));
+            }
+            componentToStreamToFields.put(component, streams);
+        }
+
+        private TopologyContext topologyContext(int task) {
+            return new TopologyContext(null, conf, taskToComponent, componentToTasks, componentToStreamToFields,
+                    "test", null, null, task, null, new ArrayList<>(taskToComponent.keySet()),
+                    new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>(), null);
+        }
+
+        void spout(int router, long id, long slide, double x, double y, boolean query) {
+            enqueue(SPOUT_TASK, router, "default", Arrays.asList(id, slide, x, y, query));
+        }
+
+        private void enqueue(int source, int target, String stream, List<Object> values) {
+            queues.computeIfAbsent(Arrays.asList(source, target), k -> new ArrayDeque<>())
+                    .add(new TupleImpl(context, values, source, stream));
+        }
+
+        /**
+         * Delivers queued tuples in a random order that keeps each (source, target) pair in order.
+         * Each pick delivers a random burst from one pair, so some tasks run several slides ahead of others.
+         */
+        void run() {
+            List<List<Integer>> pairs = new ArrayList<>();
+            while (true) {
+                pairs.clear();
+                for (Map.Entry<List<Integer>, Deque<Tuple>> queue : queues.entrySet()) {
+                    if (!queue.getValue().isEmpty()) pairs.add(queue.getKey());
+                }
+                if (pairs.isEmpty()) return;
+                List<Integer> pair = pairs.get(random.nextInt(pairs.size()));
+                Deque<Tuple> queue = queues.get(pair);
+                for (int burst = 1 + random.nextInt(200); burst > 0 && !queue.isEmpty(); burst--) {
+                    deliver(pair.get(1), queue.poll());
+                }
+            }
+        }
+
+        private void deliver(int target, Tuple tuple) {
+            if (routers.containsKey(target)) {
+                routers.get(target).execute(tuple);
+            } else if (knnBolts.containsKey(target)) {
+                BasicOutputCollector collector = knnCollectors.get(target);
+                collector.setContext(tuple);
+                knnBolts.get(target).execute(tuple, collector);
+            } else {
+                mergeCollector.setContext(tuple);
+                merge.execute(tuple, mergeCollector);
+            }
+        }
+
+        /**
+         * Routes the tuples emitted by one task like the groupings of the topology.
+         */
+        private class Emitter implements IOutputCollector {
+            final int task;
+
+            Emitter(int task) {
+                this.task = task;
+            }
+
+            @Override
+            public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+                List<Integer> targets = new ArrayList<>();
+                if (StreamUtils.STREAM_ROUTER_TO_KNN.equals(streamId) || StreamUtils.STREAM_KNN_PROBE.equals(streamId)) {
+                    int route = (Integer) tuple.get(0);
+                    targets.add(KNN_TASKS.get(Math.floorMod(route, KNN_TASKS.size())));
+                } else if (StreamUtils.STREAM_ROUTER_LAYOUT.equals(streamId) || StreamUtils.STREAM_ROUTER_MARKER.equals(streamId)
+                        || StreamUtils.STREAM_KNN_MARKER.equals(streamId)) {
+                    targets.addAll(KNN_TASKS);
+                } else if (StreamUtils.STREAM_KNN_PARTIAL.equals(streamId)) {
+                    targets.add(MERGE_TASK);
+                } else if (StreamUtils.STREAM_RESULT.equals(streamId) && MERGE_TASK == task) {
+                    Object previous = results.put(key(Long.parseLong(tuple.get(1).toString().replaceAll("\\[id=(\\d+),.*", "$1")),
+                            (Long) tuple.get(0)), (String) tuple.get(2));
+                    Assert.assertNull("duplicate result " + tuple, previous);
+                }
+                for (int target : targets) {
+                    enqueue(task, target, streamId, tuple);
+                }
+                return targets;
+            }
+
+            @Override
+            public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void ack(Tuple input) {
+            }
+
+            @Override
+            public void fail(Tuple input) {
+            }
+
+            @Override
+            public void resetTimeout(Tuple input) {
+            }
+
+            @Override
+            public void reportError(Throwable error) {
+                throw new RuntimeException(error);
+            }
+        }
+    }
+}